@@ -0,0 +1,121 @@
+package library.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// The calls behind each screen against an embedded database seeded with a
+// synthetic catalog of each size in books. Catalogs are LibraryBenchmark's,
+// kept in dataDir (relative to where the benchmarks are run) and reused:
+//
+//   java -jar benchmarks/target/benchmarks.jar -prof gc -p books=10000,100000
+//
+// Throughput and sampled latency (with percentiles) for every call; -prof gc
+// adds the allocation rate and bytes allocated per call. One thread only: a
+// desk makes one call at a time.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataAccessBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+
+    @Param("bench-data")
+    public String dataDir;
+
+    private Map<String, Callable<Object>> operations;
+    private Callable<Object> loadBooks;
+    private Callable<Object> searchBooks;
+    private Callable<Object> searchUsers;
+    private Callable<Object> checkoutBook;
+    private Callable<Object> returnBook;
+    private Callable<Object> loadBorrowedBooks;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void open() throws Exception {
+        // LibraryBenchmark is in the default package, which cannot be imported
+        Method method = Class.forName("LibraryBenchmark").getDeclaredMethod("operations", int.class, String.class);
+        method.setAccessible(true);
+        operations = (Map<String, Callable<Object>>) method.invoke(null, books, dataDir);
+        loadBooks = operations.get("loadBooks");
+        searchBooks = operations.get("searchBooks");
+        searchUsers = operations.get("searchUsers");
+        checkoutBook = operations.get("checkoutBook");
+        returnBook = operations.get("returnBook");
+        loadBorrowedBooks = operations.get("loadBorrowedBooks");
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        operations.get("close").call();
+    }
+
+    @Benchmark
+    public Object loadBooks() throws Exception {
+        return loadBooks.call();
+    }
+
+    @Benchmark
+    public Object searchBooks() throws Exception {
+        return searchBooks.call();
+    }
+
+    @Benchmark
+    public Object searchUsers() throws Exception {
+        return searchUsers.call();
+    }
+
+    @Benchmark
+    public Object checkoutBook(Borrowed borrowed) throws Exception {
+        return checkoutBook.call();
+    }
+
+    @Benchmark
+    public Object returnBook(Lent lent) throws Exception {
+        return returnBook.call();
+    }
+
+    @Benchmark
+    public Object loadBorrowedBooks() throws Exception {
+        return loadBorrowedBooks.call();
+    }
+
+    // Every timed checkout is returned again, untimed, so the catalog is left
+    // as it was. The calls take a millisecond or more, which is what makes
+    // per-invocation fixtures usable here.
+    @State(Scope.Thread)
+    public static class Borrowed {
+        @TearDown(Level.Invocation)
+        public void giveBack(DataAccessBenchmark benchmark) throws Exception {
+            benchmark.returnBook.call();
+        }
+    }
+
+    // Every timed return is of a copy checked out, untimed, just before
+    @State(Scope.Thread)
+    public static class Lent {
+        @Setup(Level.Invocation)
+        public void lend(DataAccessBenchmark benchmark) throws Exception {
+            benchmark.checkoutBook.call();
+        }
+    }
+}
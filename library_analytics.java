@@ -0,0 +1,630 @@
+import java.sql.*;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Checkouts, returns and late returns counted into loan_counts: per book by
+// day, week (from Monday) and month, per user by day and month, and for the
+// whole library by day. Every checkout and return adds its counts with one
+// statement in its own transaction, so a report reads a few index entries
+// instead of grouping the loan history.
+//
+// A book's rows are only written by transactions already holding its book
+// row. The library's daily counts are split over LIBRARY_SLOTS rows by book
+// ID, so desks lending different books seldom wait on the same counter.
+// Rows are written in key order, so two stacks never deadlock on them.
+final class LoanCounts {
+    static final String BOOK = "B";
+    static final String USER = "U";
+    static final String LIBRARY = "L";
+    static final String DAY = "D";
+    static final String WEEK = "W";
+    static final String MONTH = "M";
+    static final int LIBRARY_SLOTS = 16;
+
+    private static final List<String> KEYS = Arrays.asList("subject", "period", "period_start", "subject_id");
+    private static final List<String> COUNTERS = Arrays.asList("checkouts", "returns", "late_returns");
+    // One checkout or return: three rows for its book, two for its user and one for the library
+    private static final int ROWS_PER_LOAN = 6;
+    private static final int CHECKOUTS = 0;
+    private static final int RETURNS = 1;
+    private static final int LATE_RETURNS = 2;
+
+    // One counter row, ordered as the primary key
+    static final class Key implements Comparable<Key> {
+        final String subject;
+        final String period;
+        final LocalDate start;
+        final int id;
+
+        Key(String subject, String period, LocalDate start, int id) {
+            this.subject = subject;
+            this.period = period;
+            this.start = start;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int c = subject.compareTo(other.subject);
+            if (c == 0) {
+                c = period.compareTo(other.period);
+            }
+            if (c == 0) {
+                c = start.compareTo(other.start);
+            }
+            return c != 0 ? c : Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && subject.equals(other.subject) &&
+                period.equals(other.period) && start.equals(other.start);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((subject.hashCode() * 31 + period.hashCode()) * 31 + start.hashCode()) * 31 + id;
+        }
+    }
+
+    private final Map<Key, int[]> counts = new HashMap<>();   // {checkouts, returns, late returns}
+    private long loans;
+
+    // First day of the period the day falls in
+    static LocalDate periodStart(String period, LocalDate day) {
+        switch (period) {
+            case WEEK:
+                return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MONTH:
+                return day.withDayOfMonth(1);
+            default:
+                return day;
+        }
+    }
+
+    // The periods a subject is counted by
+    static List<String> periods(String subject) {
+        switch (subject) {
+            case BOOK:
+                return Arrays.asList(DAY, WEEK, MONTH);
+            case USER:
+                return Arrays.asList(DAY, MONTH);
+            default:
+                return Collections.singletonList(DAY);
+        }
+    }
+
+    void checkout(int bookId, int userId, LocalDate day) {
+        add(bookId, userId, day, CHECKOUTS);
+    }
+
+    void returned(int bookId, int userId, LocalDate day, boolean late) {
+        add(bookId, userId, day, RETURNS);
+        if (late) {
+            add(bookId, userId, day, LATE_RETURNS);
+        }
+    }
+
+    // A loan read back from history: its checkout and its return, each
+    // counted only if it happened before cutoff
+    void loan(int bookId, int userId, LocalDate borrowed, LocalDate due, LocalDate returned, LocalDate cutoff) {
+        loans++;
+        if (borrowed != null && borrowed.isBefore(cutoff)) {
+            checkout(bookId, userId, borrowed);
+        }
+        if (returned != null && returned.isBefore(cutoff)) {
+            returned(bookId, userId, returned, due != null && returned.isAfter(due));
+        }
+    }
+
+    private void add(int bookId, int userId, LocalDate day, int column) {
+        for (String period : periods(BOOK)) {
+            add(new Key(BOOK, period, periodStart(period, day), bookId), column, 1);
+        }
+        for (String period : periods(USER)) {
+            add(new Key(USER, period, periodStart(period, day), userId), column, 1);
+        }
+        add(new Key(LIBRARY, DAY, day, Math.floorMod(bookId, LIBRARY_SLOTS)), column, 1);
+    }
+
+    void add(Key key, int column, int n) {
+        counts.computeIfAbsent(key, k -> new int[3])[column] += n;
+    }
+
+    // Adds other's counts to these; returns this
+    LoanCounts merge(LoanCounts other) {
+        for (Map.Entry<Key, int[]> entry : other.counts.entrySet()) {
+            int[] values = entry.getValue();
+            for (int column = 0; column < values.length; column++) {
+                add(entry.getKey(), column, values[column]);
+            }
+        }
+        loans += other.loans;
+        return this;
+    }
+
+    int size() {
+        return counts.size();
+    }
+
+    // Loans read by loan(), for a rebuild to report
+    long loans() {
+        return loans;
+    }
+
+    int[] get(Key key) {
+        return counts.get(key);
+    }
+
+    // In primary key order
+    List<Map.Entry<Key, int[]>> sorted() {
+        List<Map.Entry<Key, int[]>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        return entries;
+    }
+
+    // Adding rows of counts to loan_counts, inserting those not there yet
+    static String addSql(StorageBackend backend, int rows) {
+        return backend.addCountsSql("loan_counts", KEYS, COUNTERS, rows);
+    }
+
+    // Adds the counts in key order, ROWS_PER_LOAN rows to a statement (or
+    // fewer, as the backend allows) and any left over one at a time, so only
+    // two statements are ever cached
+    void write(SqlSession session, StorageBackend backend) throws SQLException {
+        List<Map.Entry<Key, int[]>> rows = sorted();
+        int per = backend.addCountsRows(ROWS_PER_LOAN);
+        int whole = rows.size() - rows.size() % per;
+        if (whole > 0) {
+            PreparedStatement pstmt = session.prepare(addSql(backend, per));
+            for (int from = 0; from < whole; from += per) {
+                for (int i = 0; i < per; i++) {
+                    bind(pstmt, i * 7, rows.get(from + i).getKey(), rows.get(from + i).getValue());
+                }
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        if (whole < rows.size()) {
+            PreparedStatement pstmt = session.prepare(addSql(backend, 1));
+            for (Map.Entry<Key, int[]> row : rows.subList(whole, rows.size())) {
+                bind(pstmt, 0, row.getKey(), row.getValue());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    // Sets one row's parameters, starting after the first offset
+    static void bind(PreparedStatement pstmt, int offset, Key key, int[] values) throws SQLException {
+        pstmt.setString(offset + 1, key.subject);
+        pstmt.setString(offset + 2, key.period);
+        pstmt.setDate(offset + 3, Date.valueOf(key.start));
+        pstmt.setInt(offset + 4, key.id);
+        pstmt.setInt(offset + 5, values[CHECKOUTS]);
+        pstmt.setInt(offset + 6, values[RETURNS]);
+        pstmt.setInt(offset + 7, values[LATE_RETURNS]);
+    }
+}
+
+// Rebuilds loan_counts from the loan history in borrowed_books and
+// loan_archive. The borrow_id range is split in a ForkJoinPool down to
+// RANGE_SIZE IDs, each piece is counted on a pooled connection of its own
+// and the pieces' counts are merged on the way back up.
+//
+// Desks keep counting while it runs. Days before the one it starts on are
+// closed, as nothing checks out or returns on them any more, so their rows
+// are replaced outright. The current week's and month's rows are still
+// being added to, so they are corrected by the difference instead. Both
+// happen in one transaction at the end.
+//
+// Runs once as a schema migration; after that from the Reports tab or
+// headless: java CirculationBackfill
+class CirculationBackfill {
+    private static final int RANGE_SIZE = 20000;
+    private static final int BATCH_SIZE = 1000;
+    private static final String TALLY_SQL =
+        "SELECT book_id, user_id, borrow_date, due_date, return_date FROM borrowed_books " +
+        "WHERE borrow_id BETWEEN ? AND ? UNION ALL " +
+        "SELECT book_id, user_id, borrow_date, due_date, return_date FROM loan_archive " +
+        "WHERE borrow_id BETWEEN ? AND ?";
+    private static final String COUNTED_DAYS_SQL =
+        "SELECT subject_id, period_start, checkouts, returns, late_returns FROM loan_counts " +
+        "WHERE subject=? AND period='D' AND period_start >= ? AND period_start < ?";
+    private static final String INSERT_SQL =
+        "INSERT INTO loan_counts (subject, period, period_start, subject_id, checkouts, returns, late_returns) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private final LibraryDataAccess data;
+    private final Clock clock;
+    private final int threads;
+
+    CirculationBackfill(LibraryDataAccess data, LibraryConfig config) {
+        this(data, Clock.systemDefaultZone(),
+            config.getInt("analytics.backfillThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    CirculationBackfill(LibraryDataAccess data, Clock clock, int threads) {
+        this.data = data;
+        this.clock = clock;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        LibraryDataAccess data = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            data.migrateSchema().get();
+            long started = System.nanoTime();
+            long loans = new CirculationBackfill(data, config).run();
+            LibraryMetrics.note(String.format("Counted %,d loans in %,d ms", loans,
+                (System.nanoTime() - started) / 1000000));
+        } finally {
+            data.shutdown();
+        }
+    }
+
+    // The migration step: nothing counts into the new table until it
+    // commits, so today is closed too
+    static void migrate(Connection conn, StorageBackend backend) throws SQLException {
+        LocalDate cutoff = LocalDate.now().plusDays(1);
+        LoanCounts history = new LoanCounts();
+        int maxId = maxLoanId(conn);
+        for (int from = 1; from <= maxId; from += RANGE_SIZE) {
+            history.merge(tally(conn, from, Math.min(maxId, from + RANGE_SIZE - 1), cutoff));
+        }
+        apply(conn, backend, history, cutoff);
+    }
+
+    // Runs on a thread of its own; completes with run()'s count
+    CompletableFuture<Long> start() {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                done.complete(run());
+            } catch (ExecutionException e) {
+                done.completeExceptionally(e.getCause());
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        }, "library-backfill");
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    // Returns how many loans were counted
+    long run() throws SQLException, InterruptedException, ExecutionException {
+        LocalDate cutoff = LocalDate.now(clock);
+        int maxId = data.submit(null, "maxLoanId", session -> maxLoanId(session.connection())).get();
+        ForkJoinPool forkJoin = new ForkJoinPool(threads);
+        LoanCounts history;
+        try {
+            history = forkJoin.invoke(new Tally(1, maxId, cutoff));
+        } catch (CompletionException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            forkJoin.shutdown();
+        }
+        data.submit(null, "applyLoanCounts", session -> data.inTransaction(session, s -> {
+            apply(s.connection(), data.backend(), history, cutoff);
+            return null;
+        })).get();
+        return history.loans();
+    }
+
+    // Counts one borrow_id range, splitting it while it is larger than RANGE_SIZE
+    private final class Tally extends RecursiveTask<LoanCounts> {
+        private final int from;
+        private final int to;
+        private final LocalDate cutoff;
+
+        Tally(int from, int to, LocalDate cutoff) {
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected LoanCounts compute() {
+            if (to - from < RANGE_SIZE) {
+                // The pool's borrow timeout bounds the wait, so no worker parks indefinitely
+                try (SqlSession session = data.openSession()) {
+                    return tally(session.connection(), from, to, cutoff);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            int middle = from + (to - from) / 2;
+            Tally upper = new Tally(middle + 1, to, cutoff);
+            upper.fork();
+            LoanCounts lower = new Tally(from, middle, cutoff).compute();
+            LoanCounts higher = upper.join();
+            // Merge the smaller map into the larger
+            return lower.size() >= higher.size() ? lower.merge(higher) : higher.merge(lower);
+        }
+    }
+
+    private static int maxLoanId(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                 "SELECT MAX(borrow_id) FROM borrowed_books UNION ALL SELECT MAX(borrow_id) FROM loan_archive")) {
+            int max = 0;
+            while (rs.next()) {
+                max = Math.max(max, rs.getInt(1));
+            }
+            return max;
+        }
+    }
+
+    private static LoanCounts tally(Connection conn, int from, int to, LocalDate cutoff) throws SQLException {
+        LoanCounts counts = new LoanCounts();
+        try (PreparedStatement pstmt = conn.prepareStatement(TALLY_SQL)) {
+            pstmt.setInt(1, from);
+            pstmt.setInt(2, to);
+            pstmt.setInt(3, from);
+            pstmt.setInt(4, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    counts.loan(rs.getInt(1), rs.getInt(2), localDate(rs.getDate(3)),
+                        localDate(rs.getDate(4)), localDate(rs.getDate(5)), cutoff);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static LocalDate localDate(Date date) {
+        return date == null ? null : date.toLocalDate();
+    }
+
+    // In the caller's transaction, replaces the closed rows with history and
+    // moves the current week's and month's rows by the difference between
+    // history and the closed days they have already counted. Rebuilds lock
+    // this migration's schema_version row first, so two never interleave.
+    private static void apply(Connection conn, StorageBackend backend, LoanCounts history, LocalDate cutoff)
+            throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeQuery("SELECT version FROM schema_version WHERE version = 11 FOR UPDATE").close();
+        }
+
+        // What the current periods already hold for days before cutoff
+        LoanCounts counted = new LoanCounts();
+        try (PreparedStatement days = conn.prepareStatement(COUNTED_DAYS_SQL)) {
+            for (String subject : new String[]{LoanCounts.BOOK, LoanCounts.USER}) {
+                for (String period : LoanCounts.periods(subject)) {
+                    LocalDate start = LoanCounts.periodStart(period, cutoff);
+                    if (period.equals(LoanCounts.DAY) || !start.isBefore(cutoff)) {
+                        continue;
+                    }
+                    days.setString(1, subject);
+                    days.setDate(2, Date.valueOf(start));
+                    days.setDate(3, Date.valueOf(cutoff));
+                    try (ResultSet rs = days.executeQuery()) {
+                        while (rs.next()) {
+                            LoanCounts.Key key = new LoanCounts.Key(subject, period, start, rs.getInt(1));
+                            for (int column = 0; column < 3; column++) {
+                                counted.add(key, column, rs.getInt(3 + column));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        try (PreparedStatement delete = conn.prepareStatement(
+                 "DELETE FROM loan_counts WHERE subject=? AND period=? AND period_start < ?");
+             PreparedStatement insert = conn.prepareStatement(INSERT_SQL);
+             PreparedStatement add = conn.prepareStatement(LoanCounts.addSql(backend, 1))) {
+            for (String subject : new String[]{LoanCounts.BOOK, LoanCounts.USER, LoanCounts.LIBRARY}) {
+                for (String period : LoanCounts.periods(subject)) {
+                    delete.setString(1, subject);
+                    delete.setString(2, period);
+                    delete.setDate(3, Date.valueOf(LoanCounts.periodStart(period, cutoff)));
+                    delete.executeUpdate();
+                }
+            }
+            int batched = 0;
+            for (Map.Entry<LoanCounts.Key, int[]> entry : history.sorted()) {
+                LoanCounts.Key key = entry.getKey();
+                if (key.start.isBefore(LoanCounts.periodStart(key.period, cutoff))) {
+                    LoanCounts.bind(insert, 0, key, entry.getValue());
+                    insert.addBatch();
+                    if (++batched % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                } else {
+                    counted.add(key, 0, 0);   // so it is corrected below, even if nothing is counted yet
+                }
+            }
+            insert.executeBatch();
+
+            batched = 0;
+            for (Map.Entry<LoanCounts.Key, int[]> entry : counted.sorted()) {
+                int[] already = entry.getValue();
+                int[] rebuilt = history.get(entry.getKey());
+                int[] delta = new int[3];
+                for (int column = 0; column < 3; column++) {
+                    delta[column] = (rebuilt == null ? 0 : rebuilt[column]) - already[column];
+                }
+                if (delta[0] == 0 && delta[1] == 0 && delta[2] == 0) {
+                    continue;
+                }
+                LoanCounts.bind(add, 0, entry.getKey(), delta);
+                add.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    add.executeBatch();
+                }
+            }
+            add.executeBatch();
+        }
+    }
+}
+
+// What the Reports tab shows: the most borrowed books today, this week and
+// this month, the busiest borrowers this month, and day by day circulation
+// with the number of copies out at the end of each day. Every list is one
+// index range of loan_counts, however long the history.
+class CirculationReport {
+    private static final String TOP_BOOKS_SQL =
+        "SELECT c.subject_id, b.title, c.checkouts, c.returns, c.late_returns FROM loan_counts c " +
+        "LEFT JOIN books b ON c.subject_id = b.book_id " +
+        "WHERE c.subject='B' AND c.period=? AND c.period_start=? " +
+        "ORDER BY c.subject, c.period, c.period_start, c.checkouts DESC LIMIT ?";
+    private static final String TOP_USERS_SQL =
+        "SELECT c.subject_id, u.name, c.checkouts, c.returns, c.late_returns FROM loan_counts c " +
+        "LEFT JOIN users u ON c.subject_id = u.user_id " +
+        "WHERE c.subject='U' AND c.period='M' AND c.period_start=? " +
+        "ORDER BY c.subject, c.period, c.period_start, c.checkouts DESC LIMIT ?";
+    private static final String DAILY_SQL =
+        "SELECT period_start, SUM(checkouts), SUM(returns), SUM(late_returns) FROM loan_counts " +
+        "WHERE subject='L' AND period='D' AND period_start > ? GROUP BY period_start";
+    private static final String ON_LOAN_SQL =
+        "SELECT COUNT(*) FROM borrowed_books WHERE status='BORROWED'";
+    private static final String STOCK_SQL =
+        "SELECT SUM(total_quantity), SUM(available_quantity) FROM books";
+
+    // A book or user and its counts for the period
+    static class Ranked {
+        final int id;
+        final String name;   // null once the book or user is deleted
+        final int checkouts;
+        final int returns;
+        final int lateReturns;
+
+        Ranked(int id, String name, int checkouts, int returns, int lateReturns) {
+            this.id = id;
+            this.name = name;
+            this.checkouts = checkouts;
+            this.returns = returns;
+            this.lateReturns = lateReturns;
+        }
+    }
+
+    static class Day {
+        final LocalDate day;
+        final int checkouts;
+        final int returns;
+        final int lateReturns;
+        final int onLoan;   // copies out at the end of the day
+
+        Day(LocalDate day, int checkouts, int returns, int lateReturns, int onLoan) {
+            this.day = day;
+            this.checkouts = checkouts;
+            this.returns = returns;
+            this.lateReturns = lateReturns;
+            this.onLoan = onLoan;
+        }
+    }
+
+    final LocalDate today;
+    final List<Ranked> booksToday;
+    final List<Ranked> booksThisWeek;
+    final List<Ranked> booksThisMonth;
+    final List<Ranked> usersThisMonth;
+    final List<Day> days;   // newest first, today included
+    final int copies;
+    final int available;
+    final int onLoan;
+
+    private CirculationReport(LocalDate today, List<Ranked> booksToday, List<Ranked> booksThisWeek,
+                              List<Ranked> booksThisMonth, List<Ranked> usersThisMonth, List<Day> days,
+                              int copies, int available, int onLoan) {
+        this.today = today;
+        this.booksToday = booksToday;
+        this.booksThisWeek = booksThisWeek;
+        this.booksThisMonth = booksThisMonth;
+        this.usersThisMonth = usersThisMonth;
+        this.days = days;
+        this.copies = copies;
+        this.available = available;
+        this.onLoan = onLoan;
+    }
+
+    static CirculationReport read(SqlSession session, LocalDate today, int dayCount, int topK)
+            throws SQLException {
+        List<Ranked> booksToday = topBooks(session, LoanCounts.DAY, today, topK);
+        List<Ranked> booksThisWeek = topBooks(session, LoanCounts.WEEK, today, topK);
+        List<Ranked> booksThisMonth = topBooks(session, LoanCounts.MONTH, today, topK);
+
+        PreparedStatement users = session.prepare(TOP_USERS_SQL);
+        users.setDate(1, Date.valueOf(LoanCounts.periodStart(LoanCounts.MONTH, today)));
+        users.setInt(2, topK);
+        List<Ranked> usersThisMonth = ranked(users);
+
+        int onLoan;
+        try (ResultSet rs = session.statement().executeQuery(ON_LOAN_SQL)) {
+            onLoan = rs.next() ? rs.getInt(1) : 0;
+        }
+        int copies;
+        int available;
+        try (ResultSet rs = session.statement().executeQuery(STOCK_SQL)) {
+            rs.next();
+            copies = rs.getInt(1);
+            available = rs.getInt(2);
+        }
+
+        // Walked back from today's open loans: the day before had this day's
+        // checkouts fewer out and its returns more
+        Map<LocalDate, int[]> counted = new HashMap<>();
+        PreparedStatement daily = session.prepare(DAILY_SQL);
+        daily.setDate(1, Date.valueOf(today.minusDays(dayCount)));
+        try (ResultSet rs = daily.executeQuery()) {
+            while (rs.next()) {
+                counted.put(rs.getDate(1).toLocalDate(), new int[]{rs.getInt(2), rs.getInt(3), rs.getInt(4)});
+            }
+        }
+        List<Day> days = new ArrayList<>();
+        int out = onLoan;
+        for (int i = 0; i < dayCount; i++) {
+            LocalDate day = today.minusDays(i);
+            int[] c = counted.getOrDefault(day, new int[3]);
+            days.add(new Day(day, c[0], c[1], c[2], out));
+            out = Math.max(0, out - c[0] + c[1]);
+        }
+        return new CirculationReport(today, booksToday, booksThisWeek, booksThisMonth, usersThisMonth,
+            days, copies, available, onLoan);
+    }
+
+    private static List<Ranked> topBooks(SqlSession session, String period, LocalDate today, int topK)
+            throws SQLException {
+        PreparedStatement pstmt = session.prepare(TOP_BOOKS_SQL);
+        pstmt.setString(1, period);
+        pstmt.setDate(2, Date.valueOf(LoanCounts.periodStart(period, today)));
+        pstmt.setInt(3, topK);
+        return ranked(pstmt);
+    }
+
+    private static List<Ranked> ranked(PreparedStatement pstmt) throws SQLException {
+        List<Ranked> rows = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                rows.add(new Ranked(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)));
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,96 @@
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps borrowed_books to open loans and recent history. Every
+// archive.intervalMillis, loans returned more than archive.afterDays ago move
+// to loan_archive, archive.batchSize at a time. Each chunk is its own short
+// transaction that locks only the returned rows it moves, and the archiver
+// rests archive.pauseMillis between chunks so desks' work interleaves. Loan
+// history (userLoanHistory, bookLoanHistory) reads both tables.
+//
+// Every client runs one unless archive.intervalMillis is 0; when two pick the
+// same chunk, the later waits on the earlier's row locks and finds it moved.
+// Headless, one pass until caught up: java LoanArchiver
+class LoanArchiver {
+    private final LibraryRepository repository;
+    private final Clock clock;
+    private final int afterDays;
+    private final int batchSize;
+    private final int intervalMillis;
+    private final int pauseMillis;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "library-archive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    LoanArchiver(LibraryRepository repository, LibraryConfig config) {
+        this(repository, Clock.systemDefaultZone(), config.getInt("archive.afterDays", 365),
+            config.getInt("archive.batchSize", 500), config.getInt("archive.intervalMillis", 3600000),
+            config.getInt("archive.pauseMillis", 100));
+    }
+
+    LoanArchiver(LibraryRepository repository, Clock clock, int afterDays, int batchSize,
+                 int intervalMillis, int pauseMillis) {
+        this.repository = repository;
+        this.clock = clock;
+        this.afterDays = afterDays;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        LibraryDataAccess data = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            data.migrateSchema().get();
+            long moved = new LoanArchiver(data, config).archive();
+            LibraryMetrics.note("Archived " + String.format("%,d", moved) + " returned loans");
+        } finally {
+            data.shutdown();
+        }
+    }
+
+    void start() {
+        if (intervalMillis > 0) {
+            ticker.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        ticker.shutdownNow();
+    }
+
+    // Archives every loan that is due, a chunk at a time; returns how many moved
+    long archive() throws InterruptedException, ExecutionException {
+        LocalDate returnedBefore = LocalDate.now(clock).minusDays(afterDays);
+        long moved = 0;
+        int afterId = 0;
+        while (true) {
+            List<Integer> ids = repository.archiveLoans(returnedBefore, afterId, batchSize).get();
+            moved += ids.size();
+            if (ids.size() < batchSize) {
+                return moved;
+            }
+            afterId = ids.get(ids.size() - 1);
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private void tick() {
+        try {
+            archive();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();   // stopping
+        } catch (ExecutionException e) {
+            LibraryMetrics.report("Archiving loans failed", e.getCause());   // tried again next interval
+        }
+    }
+}
@@ -0,0 +1,1854 @@
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Times the operations behind each screen against an embedded database seeded
+// with a synthetic catalog, one catalog size after another:
+//
+//   java -cp .:h2.jar -Dbench.sizes=10000,100000 LibraryBenchmark
+//
+// Settings (system properties): bench.sizes (books per catalog, default
+// 10000,100000,1000000), bench.warmup and bench.iterations (calls per
+// operation, default 200 and 1000), bench.dataDir (default bench-data). Each
+// catalog is kept in bench.dataDir/<size> and reused by later runs; delete the
+// directory to seed afresh. Checkouts are returned again, so runs leave the
+// catalog as they found it.
+//
+// Operations are called one at a time from a single thread, through the same
+// worker pool the UI uses. Allocation is summed over all live threads, so
+// keep other work off the JVM while it runs.
+class LibraryBenchmark {
+    private static final String[] WORDS = {
+        "river", "garden", "winter", "shadow", "silver", "empire", "ocean", "forest",
+        "letters", "mountain", "journey", "secret", "harbor", "kingdom", "stone", "flight",
+        "midnight", "island", "thunder", "summer", "glass", "orchard", "desert", "lantern",
+        "crown", "voyage", "meadow", "signal", "tower", "whisper", "valley", "ember"};
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda",
+        "David", "Elizabeth", "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica"};
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+        "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas", "Taylor"};
+    private static final int COPIES = 5;
+    private static final int SEED_BATCH = 1000;
+
+    private interface Operation {
+        void call(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        int warmup = config.getInt("bench.warmup", 200);
+        int iterations = config.getInt("bench.iterations", 1000);
+        String dataDir = config.get("bench.dataDir", "bench-data");
+        for (String size : config.get("bench.sizes", "10000,100000,1000000").split(",")) {
+            run(Integer.parseInt(size.trim()), dataDir, warmup, iterations);
+        }
+    }
+
+    private static void run(int books, String dataDir, int warmup, int iterations) throws Exception {
+        LibraryConfig config = catalogConfig(books, dataDir);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)),
+            new CatalogCache(config.getInt("cache.maxRecords", 100000)));
+        try {
+            dataAccess.migrateSchema().get();
+            int users = Math.max(1, books / 10);
+            long started = System.nanoTime();
+            boolean seeded = dataAccess.submit(null, session -> seed(session, books, users)).get();
+            CatalogSearch search = new CatalogSearch(dataAccess, config);
+            search.open().get();
+            System.out.printf("%nCatalog of %d books and %d users (%s in %.1f s)%n", books, users,
+                seeded ? "seeded" : "opened", (System.nanoTime() - started) / 1e9);
+            System.out.printf("%-18s %9s %9s %9s %9s %9s %10s %8s%n",
+                "operation", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "KB/op", "gc ms");
+
+            int pageSize = config.getInt("table.pageSize", 200);
+            Random random = new Random(42);
+            String[] bookQueries = new String[warmup + iterations];
+            String[] userQueries = new String[warmup + iterations];
+            int[] bookIds = new int[warmup + iterations];
+            int[] userIds = new int[warmup + iterations];
+            String[] barcodes = new String[warmup + iterations];
+            for (int i = 0; i < bookQueries.length; i++) {
+                bookQueries[i] = bookQuery(random);
+                userQueries[i] = userQuery(random);
+                bookIds[i] = 1 + random.nextInt(books);
+                userIds[i] = 1 + random.nextInt(users);
+                // Seeded loans took the lowest-numbered copies, so the last is on the shelf
+                barcodes[i] = CopyRows.generatedBarcode(bookIds[i], COPIES);
+            }
+
+            measure("loadBooks", warmup, iterations,
+                i -> firstPage(dataAccess, dataAccess.bookPages(), pageSize));
+            measure("searchBooks", warmup, iterations,
+                i -> firstPage(dataAccess, search.searchBooks(bookQueries[i]).get(), pageSize));
+            measure("searchUsers", warmup, iterations,
+                i -> firstPage(dataAccess, search.searchUsers(userQueries[i]).get(), pageSize));
+            measurePair("checkoutBook", "returnBook", warmup, iterations,
+                i -> dataAccess.checkoutBook(bookIds[i], userIds[i]).get(),
+                i -> dataAccess.returnBook(bookIds[i], userIds[i]).get());
+            // Each barcode's first lookup, then a desk scanning the same hundred items over and over
+            measure("resolveBarcode", warmup, iterations,
+                i -> dataAccess.resolveBarcode(barcodes[i]).get());
+            measure("resolveHotBarcode", warmup, iterations,
+                i -> dataAccess.resolveBarcode(barcodes[i % 100]).get());
+            measurePair("checkoutCopy", "returnCopy", warmup, iterations,
+                i -> dataAccess.checkoutCopy(barcodes[i], userIds[i]).get(),
+                i -> dataAccess.returnCopy(barcodes[i]).get());
+            measure("loadBorrowedBooks", warmup, iterations,
+                i -> firstPage(dataAccess, dataAccess.borrowedPages(), pageSize));
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+
+    // The six calls behind the screens, one call at a time, for the JMH
+    // benchmarks in benchmarks/. Each call draws fresh arguments, and
+    // returnBook gives back the copy the last checkoutBook lent. "close" shuts
+    // the catalog down. JMH will not run a benchmark from the default package,
+    // so they reach this reflectively.
+    static Map<String, Callable<Object>> operations(int books, String dataDir) throws Exception {
+        LibraryConfig config = catalogConfig(books, dataDir);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)),
+            new CatalogCache(config.getInt("cache.maxRecords", 100000)));
+        dataAccess.migrateSchema().get();
+        int users = Math.max(1, books / 10);
+        dataAccess.submit(null, session -> seed(session, books, users)).get();
+        CatalogSearch search = new CatalogSearch(dataAccess, config);
+        search.open().get();
+
+        int pageSize = config.getInt("table.pageSize", 200);
+        Random random = new Random(42);
+        int[] loan = new int[2];
+        Map<String, Callable<Object>> operations = new LinkedHashMap<>();
+        operations.put("loadBooks", () -> firstPage(dataAccess, dataAccess.bookPages(), pageSize));
+        operations.put("searchBooks",
+            () -> firstPage(dataAccess, search.searchBooks(bookQuery(random)).get(), pageSize));
+        operations.put("searchUsers",
+            () -> firstPage(dataAccess, search.searchUsers(userQuery(random)).get(), pageSize));
+        operations.put("checkoutBook", () -> {
+            loan[0] = 1 + random.nextInt(books);
+            loan[1] = 1 + random.nextInt(users);
+            return dataAccess.checkoutBook(loan[0], loan[1]).get();
+        });
+        operations.put("returnBook", () -> dataAccess.returnBook(loan[0], loan[1]).get());
+        operations.put("loadBorrowedBooks", () -> firstPage(dataAccess, dataAccess.borrowedPages(), pageSize));
+        operations.put("close", () -> {
+            dataAccess.shutdown();
+            return null;
+        });
+        return operations;
+    }
+
+    private static LibraryConfig catalogConfig(int books, String dataDir) {
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("storage.dataDir", Paths.get(dataDir, String.valueOf(books)).toString());
+        props.setProperty("search.indexDir", Paths.get(dataDir, String.valueOf(books), "index").toString());
+        props.setProperty("search.cacheSize", "0");   // time the index, not the query cache
+        return LibraryConfig.of(props);
+    }
+
+    private static String bookQuery(Random random) {
+        return WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)].substring(0, 3);
+    }
+
+    private static String userQuery(Random random) {
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " +
+            LAST_NAMES[random.nextInt(LAST_NAMES.length)].substring(0, 2);
+    }
+
+    // What a table does when it gets a new source: count, then fetch the first page
+    private static List<Object[]> firstPage(LibraryDataAccess dataAccess, PageSource source, int pageSize)
+            throws Exception {
+        return dataAccess.submit(null, session -> {
+            source.count(session);
+            return source.page(session, 0, null, pageSize);
+        }).get();
+    }
+
+    private static void measure(String name, int warmup, int iterations, Operation op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.call(i);
+        }
+        Sample sample = new Sample();
+        for (int i = 0; i < iterations; i++) {
+            sample.time(op, warmup + i);
+        }
+        sample.print(name);
+    }
+
+    // Runs each first before its second, in rounds, so every checkout is returned
+    private static void measurePair(String firstName, String secondName, int warmup, int iterations,
+                                    Operation first, Operation second) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            first.call(i);
+            second.call(i);
+        }
+        Sample firsts = new Sample();
+        Sample seconds = new Sample();
+        for (int i = 0; i < iterations; i++) {
+            firsts.time(first, warmup + i);
+            seconds.time(second, warmup + i);
+        }
+        firsts.print(firstName);
+        seconds.print(secondName);
+    }
+
+    static boolean seed(SqlSession session, int books, int users) throws SQLException {
+        try (ResultSet rs = session.statement().executeQuery("SELECT COUNT(*) FROM books")) {
+            if (rs.next() && rs.getInt(1) > 0) {
+                return false;
+            }
+        }
+        Random random = new Random(books);
+        // Loan history of half a loan per book, one in twenty still out
+        int loans = books / 2;
+        int[] loanBooks = new int[loans];
+        int[] loanUsers = new int[loans];
+        boolean[] open = new boolean[loans];
+        int[] out = new int[books + 1];
+        for (int i = 0; i < loans; i++) {
+            loanBooks[i] = 1 + random.nextInt(books);
+            loanUsers[i] = 1 + random.nextInt(users);
+            open[i] = i % 20 == 0 && out[loanBooks[i]] < COPIES;
+            if (open[i]) {
+                out[loanBooks[i]]++;
+            }
+        }
+
+        Connection conn = session.connection();
+        conn.setAutoCommit(false);
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO books (title, author, isbn, total_quantity, available_quantity) " +
+                    "VALUES (?, ?, ?, ?, ?)")) {
+                for (int id = 1; id <= books; id++) {
+                    pstmt.setString(1, WORDS[random.nextInt(WORDS.length)] + " " +
+                        WORDS[random.nextInt(WORDS.length)] + " " + id);
+                    pstmt.setString(2, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " +
+                        LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+                    pstmt.setString(3, String.format("978-%010d", id));
+                    pstmt.setInt(4, COPIES);
+                    pstmt.setInt(5, COPIES - out[id]);
+                    addBatch(conn, pstmt, id);
+                }
+                pstmt.executeBatch();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO users (name, email, phone) VALUES (?, ?, ?)")) {
+                for (int id = 1; id <= users; id++) {
+                    pstmt.setString(1, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " +
+                        LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+                    pstmt.setString(2, "user" + id + "@example.com");
+                    pstmt.setString(3, String.format("555-%07d", id));
+                    addBatch(conn, pstmt, id);
+                }
+                pstmt.executeBatch();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO borrowed_books (book_id, user_id, borrow_date, due_date, return_date, status) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)")) {
+                Date borrowed = Date.valueOf("2024-01-01");
+                Date due = Date.valueOf("2024-01-15");
+                for (int i = 0; i < loans; i++) {
+                    pstmt.setInt(1, loanBooks[i]);
+                    pstmt.setInt(2, loanUsers[i]);
+                    pstmt.setDate(3, borrowed);
+                    pstmt.setDate(4, due);
+                    pstmt.setDate(5, open[i] ? null : due);
+                    pstmt.setString(6, open[i] ? Loan.BORROWED : Loan.RETURNED);
+                    addBatch(conn, pstmt, i + 1);
+                }
+                pstmt.executeBatch();
+            }
+            CopyBackfill.run(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    private static void addBatch(Connection conn, PreparedStatement pstmt, int n) throws SQLException {
+        pstmt.addBatch();
+        if (n % SEED_BATCH == 0) {
+            pstmt.executeBatch();
+            conn.commit();
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Latencies of one operation plus the allocation and GC time they caused
+    private static final class Sample {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final List<Throwable> failures = new ArrayList<>();
+        private long totalNanos;
+        private long allocated;
+        private long gc;
+
+        void time(Operation op, int i) {
+            long bytes = allocatedBytes();
+            long gcBefore = gcMillis();
+            long start = System.nanoTime();
+            try {
+                op.call(i);
+            } catch (Exception e) {
+                failures.add(e);
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated += allocatedBytes() - bytes;
+            gc += gcMillis() - gcBefore;
+            totalNanos += elapsed;
+            latency.recordNanos(elapsed);
+        }
+
+        void print(String name) {
+            LatencySnapshot snapshot = latency.snapshot();
+            System.out.printf("%-18s %9.0f %9.3f %9.3f %9.3f %9.3f %10.1f %8d%n", name,
+                snapshot.count / (totalNanos / 1e9),
+                snapshot.millis(0.5), snapshot.millis(0.9), snapshot.millis(0.99), snapshot.maxMillis(),
+                allocated / 1024.0 / snapshot.count, gc);
+            if (!failures.isEmpty()) {
+                System.out.println("  " + failures.size() + " calls failed, first: " + failures.get(0));
+            }
+        }
+    }
+}
+
+// Hold placement and fulfillment on a few popular titles under contention,
+// against a fresh in-memory embedded database:
+//
+//   java -cp .:h2.jar -Dbench.holdThreads=16 HoldBenchmark
+//
+// Every copy starts checked out. First all threads place holds until each
+// title has bench.holdQueue of them (placeHold). Then, for bench.holdSeconds,
+// most threads return a copy and have the holder it was set aside for collect
+// it (returnToHold, collectHold), a quarter keep placing holds, and
+// bench.walkUpThreads threads try walk-up checkouts of the same titles.
+//
+// Checked at the end: walk-ups got no more copies than were returned with
+// nobody waiting, and on every title no hold was served ahead of an older
+// one still waiting. Other settings: bench.holdTitles (20), bench.holdCopies
+// (copies per title, 1), bench.holdUsers (5000).
+class HoldBenchmark {
+    private static final String FIFO_CHECK_SQL =
+        "SELECT COUNT(*) FROM holds f WHERE f.status IN ('READY', 'FULFILLED') AND EXISTS (" +
+        "SELECT 1 FROM holds w WHERE w.book_id = f.book_id AND w.status = 'WAITING' AND w.hold_id < f.hold_id)";
+
+    private interface Step {
+        // One round of a worker's loop; false if it found nothing to do
+        boolean run(Random random) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int titles = base.getInt("bench.holdTitles", 20);
+        int copies = base.getInt("bench.holdCopies", 1);
+        int users = base.getInt("bench.holdUsers", 5000);
+        int queueDepth = base.getInt("bench.holdQueue", 200);
+        int threads = base.getInt("bench.holdThreads", 16);
+        int walkUpThreads = base.getInt("bench.walkUpThreads", 2);
+        int seconds = base.getInt("bench.holdSeconds", 20);
+
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("db.url", "jdbc:h2:mem:hold-bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+            "DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        props.setProperty("pool.maxSize", base.get("pool.maxSize", "8"));
+        LibraryConfig config = LibraryConfig.of(props);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(100000));
+        try {
+            dataAccess.migrateSchema().get();
+            dataAccess.submit(null, session -> seed(session, titles, copies, users)).get();
+
+            // Each title's copies start out with users 1, 2, ...
+            List<ConcurrentLinkedQueue<Integer>> borrowers = new ArrayList<>();
+            for (int t = 1; t <= titles; t++) {
+                ConcurrentLinkedQueue<Integer> out = new ConcurrentLinkedQueue<>();
+                for (int c = 0; c < copies; c++) {
+                    int userId = 1 + ((t - 1) * copies + c) % users;
+                    expect(dataAccess.checkoutBook(t, userId).get().status == LoanResult.Status.OK, "seed checkout");
+                    out.add(userId);
+                }
+                borrowers.add(out);
+            }
+            System.out.printf("%d titles x %d copies, %d users, %d threads + %d walk-up%n",
+                titles, copies, users, threads, walkUpThreads);
+            System.out.printf("%-16s %9s %9s %9s %9s %9s%n", "operation", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+
+            // Queue build: placement only, every thread on the same few book rows
+            LatencyHistogram build = new LatencyHistogram();
+            AtomicInteger placed = new AtomicInteger();
+            long elapsed = runWorkers(threads, Long.MAX_VALUE, i -> random -> {
+                if (placed.get() >= titles * queueDepth) {
+                    throw new StopWorker();
+                }
+                HoldResult result = timed(build, dataAccess.placeHold(
+                    1 + random.nextInt(titles), 1 + random.nextInt(users)));
+                if (result.status == HoldResult.Status.PLACED) {
+                    placed.incrementAndGet();
+                }
+                return true;
+            });
+            print("placeHold", build, elapsed);
+
+            LatencyHistogram placing = new LatencyHistogram();
+            LatencyHistogram returning = new LatencyHistogram();
+            LatencyHistogram collecting = new LatencyHistogram();
+            LatencyHistogram walkingUp = new LatencyHistogram();
+            AtomicInteger setAside = new AtomicInteger();
+            AtomicInteger shelved = new AtomicInteger();
+            AtomicInteger walkUps = new AtomicInteger();
+            AtomicInteger failures = new AtomicInteger();
+            int placers = Math.max(1, threads / 4);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            elapsed = runWorkers(threads + walkUpThreads, deadline, i -> {
+                if (i < placers) {
+                    return random -> {
+                        timed(placing, dataAccess.placeHold(1 + random.nextInt(titles), 1 + random.nextInt(users)));
+                        return true;
+                    };
+                }
+                if (i >= threads) {
+                    return random -> {
+                        int bookId = 1 + random.nextInt(titles);
+                        int userId = 1 + random.nextInt(users);
+                        LoanResult result = timed(walkingUp, dataAccess.checkoutBook(bookId, userId));
+                        if (result.status == LoanResult.Status.OK) {
+                            walkUps.incrementAndGet();
+                            borrowers.get(bookId - 1).add(userId);
+                        }
+                        return true;
+                    };
+                }
+                return random -> {
+                    int bookId = 1 + random.nextInt(titles);
+                    Integer userId = borrowers.get(bookId - 1).poll();
+                    if (userId == null) {
+                        return false;   // every copy is on the shelf or being collected
+                    }
+                    LoanResult returned = timed(returning, dataAccess.returnBook(bookId, userId));
+                    if (returned.status != LoanResult.Status.OK) {
+                        failures.incrementAndGet();
+                        return true;
+                    }
+                    if (returned.hold == null) {
+                        shelved.incrementAndGet();
+                        return true;
+                    }
+                    setAside.incrementAndGet();
+                    int holder = returned.hold.userId;
+                    LoanResult collected = timed(collecting, dataAccess.checkoutBook(bookId, holder));
+                    if (collected.status == LoanResult.Status.OK && collected.hold != null &&
+                            collected.hold.id == returned.hold.id) {
+                        borrowers.get(bookId - 1).add(holder);
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                    return true;
+                };
+            });
+            print("placeHold", placing, elapsed);
+            print("returnToHold", returning, elapsed);
+            print("collectHold", collecting, elapsed);
+            print("walkUpCheckout", walkingUp, elapsed);
+
+            int outOfOrder = dataAccess.submit(null, session -> {
+                try (ResultSet rs = session.statement().executeQuery(FIFO_CHECK_SQL)) {
+                    return rs.next() ? rs.getInt(1) : -1;
+                }
+            }).get();
+            System.out.printf("%nCopies set aside for holds: %d, returned with nobody waiting: %d%n",
+                setAside.get(), shelved.get());
+            System.out.printf("Walk-up checkouts: %d (%s)%n", walkUps.get(),
+                walkUps.get() <= shelved.get() ? "none took a copy set aside" : "TOOK COPIES SET ASIDE");
+            System.out.printf("Holds served ahead of an older waiting hold: %d%n", outOfOrder);
+            System.out.printf("Failed returns or collections: %d%n", failures.get());
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+
+    static boolean seed(SqlSession session, int titles, int copies, int users) throws SQLException {
+        Connection conn = session.connection();
+        conn.setAutoCommit(false);
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO books (title, author, isbn, total_quantity, available_quantity) " +
+                    "VALUES (?, ?, ?, ?, ?)")) {
+                for (int id = 1; id <= titles; id++) {
+                    pstmt.setString(1, "Popular title " + id);
+                    pstmt.setString(2, "Author " + id);
+                    pstmt.setString(3, String.format("979-%010d", id));
+                    pstmt.setInt(4, copies);
+                    pstmt.setInt(5, copies);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO users (name, email, phone) VALUES (?, ?, ?)")) {
+                for (int id = 1; id <= users; id++) {
+                    pstmt.setString(1, "Reader " + id);
+                    pstmt.setString(2, "reader" + id + "@example.com");
+                    pstmt.setString(3, String.format("555-%07d", id));
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            CopyBackfill.run(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    private interface WorkerFactory {
+        Step worker(int index);
+    }
+
+    // Thrown by a step to end its worker before the deadline
+    private static final class StopWorker extends RuntimeException {
+        StopWorker() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Runs each worker's step until the deadline or a StopWorker; returns the wall time in nanos
+    private static long runWorkers(int count, long deadline, WorkerFactory factory) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(count);
+        List<Future<?>> running = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Step step = factory.worker(i);
+            long seed = i;
+            running.add(workers.submit(() -> {
+                Random random = new Random(seed);
+                try {
+                    while (System.nanoTime() < deadline) {
+                        if (!step.run(random)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (StopWorker e) {
+                    // done
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : running) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static <T> T timed(LatencyHistogram recorder, CompletableFuture<T> call) throws Exception {
+        long start = System.nanoTime();
+        T value = call.get();
+        recorder.recordNanos(System.nanoTime() - start);
+        return value;
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Benchmark setup failed: " + what);
+        }
+    }
+
+    private static void print(String name, LatencyHistogram latency, long elapsedNanos) {
+        LatencySnapshot snapshot = latency.snapshot();
+        System.out.printf("%-16s %9.0f %9.3f %9.3f %9.3f %9.3f%n", name,
+            snapshot.count / (elapsedNanos / 1e9),
+            snapshot.millis(0.5), snapshot.millis(0.9), snapshot.millis(0.99), snapshot.maxMillis());
+    }
+}
+
+// A desk taking checkouts and returns through its LoanJournal while the
+// embedded database behind it is killed and restarted:
+//
+//   java -cp .:h2.jar JournalBenchmark
+//
+// Every copy of bench.journalTitles titles (bench.journalCopies each) is
+// checked out, title 1 once more than it has copies (the last copy
+// oversold), then half the loans are returned and a user who does not
+// exist borrows one of the copies back. After the first third of
+// these the database is shut down abruptly; for the second third its file
+// is moved aside, so it cannot be reached; then it comes back. Meanwhile
+// the desk is restarted on its journal, and a copy of the journal file is
+// kept as it was then.
+//
+// Checked at the end: every operation was applied exactly once, the
+// oversold checkout and the unknown user's are the two conflicts, replaying the old copy of the
+// journal applies nothing, and open loans agree with the copies on loan and
+// the books' counts. bench.journalOnline checkouts and returns straight to
+// the database first give the latency the journal saves a desk from.
+class JournalBenchmark {
+    private static final String COUNTS_SQL =
+        "SELECT (SELECT COUNT(*) FROM desk_journal), " +
+        "(SELECT COUNT(*) FROM desk_journal WHERE outcome <> 'OK'), " +
+        "(SELECT COUNT(*) FROM borrowed_books WHERE status='BORROWED'), " +
+        "(SELECT COUNT(*) FROM copies WHERE status='ON_LOAN'), " +
+        "(SELECT SUM(total_quantity - available_quantity) FROM books)";
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int titles = base.getInt("bench.journalTitles", 500);
+        int copies = base.getInt("bench.journalCopies", 2);
+        int online = base.getInt("bench.journalOnline", 200);
+        Path dir = Paths.get(base.get("bench.dataDir", "bench-data"), "journal").toAbsolutePath();
+        deleteTree(dir);
+        Files.createDirectories(dir);
+        Path database = dir.resolve("library.mv.db");
+        Path aside = dir.resolve("library.mv.db.aside");
+        // Commits written straight through, as a server database keeps them: H2 otherwise holds
+        // up to a second of them in memory, and the abrupt shutdown would lose replayed entries
+        String url = "jdbc:h2:file:" + dir.resolve("library") +
+            ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;LOCK_TIMEOUT=10000;WRITE_DELAY=0";
+
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        // Once created, the database is only opened, never made afresh while moved aside
+        props.setProperty("db.url", url + ";IFEXISTS=TRUE");
+        props.setProperty("pool.validationTimeoutSeconds", "1");
+        LibraryConfig config = LibraryConfig.of(props);
+        DriverManager.getConnection(url, "sa", "").close();
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(100000));
+        try {
+            dataAccess.migrateSchema().get();
+            int users = titles * copies + 1;
+            dataAccess.submit(null, session -> HoldBenchmark.seed(session, titles, copies, users)).get();
+
+            LatencyHistogram direct = new LatencyHistogram();
+            for (int i = 0; i < online; i++) {
+                timed(direct, dataAccess.checkoutBook(titles, 1));
+                timed(direct, dataAccess.returnBook(titles, 1));
+            }
+
+            // Each title's copies go to users 1, 2, ... in turn; the last user oversells title 1
+            List<JournalEntry.Kind> kinds = new ArrayList<>();
+            List<LoanRequest> items = new ArrayList<>();
+            for (int t = 1; t <= titles; t++) {
+                for (int c = 0; c < copies; c++) {
+                    kinds.add(JournalEntry.Kind.CHECKOUT_BOOK);
+                    items.add(new LoanRequest(t, items.size() + 1));
+                }
+            }
+            kinds.add(JournalEntry.Kind.CHECKOUT_BOOK);
+            items.add(new LoanRequest(1, users));
+            int loans = titles * copies;
+            for (int i = 0; i < loans / 2; i++) {
+                kinds.add(JournalEntry.Kind.RETURN_BOOK);
+                items.add(items.get(i));
+            }
+            // Title 2 is back on the shelf; its checkout by no user is turned down by the database
+            kinds.add(JournalEntry.Kind.CHECKOUT_BOOK);
+            items.add(new LoanRequest(2, users + 1));
+            int total = items.size();
+
+            Path journalFile = dir.resolve("desk-journal.dat");
+            Path oldCopy = dir.resolve("desk-journal.old");
+            LatencyHistogram journaled = new LatencyHistogram();
+            DeskLoans desk = openDesk(dataAccess, journalFile);
+            long killedAt = 0;
+            long restoredAt = 0;
+            for (int i = 0; i < total; i++) {
+                if (i == total / 3) {
+                    kill(url);
+                    Files.move(database, aside);
+                    killedAt = System.nanoTime();
+                }
+                if (i == 2 * total / 3) {
+                    int waiting = desk.replayer().waiting();
+                    desk.replayer().stop();
+                    desk.close();
+                    Files.copy(journalFile, oldCopy);
+                    desk = openDesk(dataAccess, journalFile);
+                    expect(desk.replayer().waiting() == waiting, "desk restarted with " +
+                        desk.replayer().waiting() + " of " + waiting + " operations still to replay");
+                    Files.move(aside, database);
+                    restoredAt = System.nanoTime();
+                    System.out.printf("Database down for %.1f s, %d operations journaled meanwhile%n",
+                        (System.nanoTime() - killedAt) / 1e9, waiting);
+                }
+                LoanRequest item = items.get(i);
+                LoanResult result = timed(journaled, kinds.get(i) == JournalEntry.Kind.CHECKOUT_BOOK
+                    ? desk.checkoutBook(item.bookId, item.userId) : desk.returnBook(item.bookId, item.userId));
+                expect(result.status == LoanResult.Status.QUEUED, "operation " + i + " " + result.status);
+            }
+            while (desk.replayer().waiting() > 0) {
+                Thread.sleep(10);
+            }
+            double catchUpSeconds = (System.nanoTime() - restoredAt) / 1e9;
+            desk.replayer().stop();
+            desk.close();
+
+            int stale;
+            int applied = 0;
+            try (LoanJournal copy = LoanJournal.open(oldCopy, 0)) {
+                List<JournalEntry> entries = copy.pending(Integer.MAX_VALUE);
+                stale = entries.size();
+                for (LoanResult result : dataAccess.replayJournal(entries).get()) {
+                    if (result != null) {
+                        applied++;
+                    }
+                }
+            }
+
+            int[] counts = dataAccess.submit(null, session -> {
+                try (ResultSet rs = session.statement().executeQuery(COUNTS_SQL)) {
+                    rs.next();
+                    return new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)};
+                }
+            }).get();
+
+            System.out.printf("%-16s %9s %9s %9s %9s %9s%n", "operation", "ops", "p50 ms", "p90 ms", "p99 ms", "max ms");
+            print("direct", direct);
+            print("journaled", journaled);
+            System.out.printf("%nReplay caught up %.2f s after the database came back%n", catchUpSeconds);
+            System.out.printf("Applied: %d of %d operations, %d conflicts (%s)%n", counts[0], total, counts[1],
+                counts[0] == total && counts[1] == 2 ? "each once, two turned down" : "WRONG");
+            System.out.printf("Old journal copy: %d operations replayed again, %d applied (%s)%n", stale, applied,
+                applied == 0 ? "none twice" : "APPLIED TWICE");
+            int open = loans - loans / 2;
+            System.out.printf("Open loans %d, copies on loan %d, books lent out %d, expected %d (%s)%n",
+                counts[2], counts[3], counts[4], open,
+                counts[2] == open && counts[3] == open && counts[4] == open ? "consistent" : "INCONSISTENT");
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+
+    private static DeskLoans openDesk(LibraryDataAccess dataAccess, Path file) throws IOException {
+        LoanJournal journal = LoanJournal.open(file, 1 << 20);
+        JournalReplayer replayer = new JournalReplayer(dataAccess, journal, 100, 200);
+        replayer.start();
+        return new DeskLoans(dataAccess, journal, replayer, userId -> false);
+    }
+
+    // Stops the database as a crash would: no checkpoint, open transactions lost
+    private static void kill(String url) {
+        try (Connection conn = DriverManager.getConnection(url, "sa", "")) {
+            conn.createStatement().execute("SHUTDOWN IMMEDIATELY");
+        } catch (SQLException e) {
+            // the shutdown closes this connection too
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        Files.walk(dir).forEach(paths::add);
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Files.delete(paths.get(i));
+        }
+    }
+
+    private static <T> T timed(LatencyHistogram recorder, CompletableFuture<T> call) throws Exception {
+        long start = System.nanoTime();
+        T value = call.get();
+        recorder.recordNanos(System.nanoTime() - start);
+        return value;
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Benchmark failed: " + what);
+        }
+    }
+
+    private static void print(String name, LatencyHistogram latency) {
+        LatencySnapshot snapshot = latency.snapshot();
+        System.out.printf("%-16s %9d %9.3f %9.3f %9.3f %9.3f%n", name, snapshot.count,
+            snapshot.millis(0.5), snapshot.millis(0.9), snapshot.millis(0.99), snapshot.maxMillis());
+    }
+}
+
+// How soon the desk app has the first page of the Books tab on screen, at
+// each catalog size, from the database and from the local BookSnapshot:
+//
+//   java -cp .:h2.jar -Dbench.sizes=10000,100000 StartupBenchmark
+//
+// A full rebuild of the snapshot is timed first. Then, as the app starts,
+// "from snapshot" maps the snapshot file and reads the page from it, and
+// "from database" starts a LibraryService on the closed embedded database,
+// counts the books and reads the first page. Both end when the page has been
+// painted into an offscreen Books table. Last come delta syncs of the
+// snapshot after bench.startupChanges checkouts, after they are returned,
+// and with nothing changed. Uses LibraryBenchmark's catalogs in bench.dataDir
+// (seeding any that are missing) and leaves them as it found them; each
+// timing is one cold start, so run it a few times.
+class StartupBenchmark {
+    private static final String[] COLUMNS = {"ID", "Title", "Author", "ISBN", "Total Qty", "Available Qty"};
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        LibraryConfig base = LibraryConfig.load();
+        String dataDir = base.get("bench.dataDir", "bench-data");
+        int changes = base.getInt("bench.startupChanges", 1000);
+        // Swing's classes load once here rather than in whichever timing comes first
+        paintFirstPage(null, oneRowSource(), System.nanoTime());
+        for (String size : base.get("bench.sizes", "10000,100000,1000000").split(",")) {
+            run(Integer.parseInt(size.trim()), dataDir, changes);
+        }
+    }
+
+    private static void run(int books, String dataDir, int changes) throws Exception {
+        Path dir = Paths.get(dataDir, String.valueOf(books));
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("storage.dataDir", dir.toString());
+        props.setProperty("search.indexDir", dir.resolve("index").toString());
+        props.setProperty("metrics.jmx", "false");
+        LibraryConfig config = LibraryConfig.of(props);
+        Path file = dir.resolve("books.snap");
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> old = Files.newDirectoryStream(dir, "books.snap*")) {
+                for (Path path : old) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        System.out.printf("%nCatalog of %d books%n", books);
+        LibraryDataAccess seeding = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            seeding.migrateSchema().get();
+            seeding.submit(null, session -> LibraryBenchmark.seed(session, books, Math.max(1, books / 10))).get();
+            // Saved search indexes, as an earlier session leaves them
+            new CatalogSearch(seeding, config).open().get();
+            long started = System.nanoTime();
+            BookSnapshot built = BookSnapshot.sync(seeding, file, null).get();
+            print("snapshot rebuild", (System.nanoTime() - started) / 1e6,
+                String.format("%d books, %.1f MB", built.count(), Files.size(built.path()) / 1048576.0));
+        } finally {
+            seeding.shutdown();   // the database closes, so the start below opens it cold
+        }
+
+        // As the app starts: the snapshot is painted before the service starts
+        long started = System.nanoTime();
+        BookSnapshot snapshot = BookSnapshot.open(file);
+        print("first paint from snapshot", paintFirstPage(null, snapshot.pages(), started), "");
+
+        started = System.nanoTime();
+        LibraryService service = new LibraryService(config);
+        try {
+            service.start().get();
+            LibraryDataAccess dataAccess = service.data();
+            print("first paint from database", paintFirstPage(dataAccess, dataAccess.bookPages(), started), "");
+
+            // Checkouts of distinct books change their available counts; returns put them back
+            Random random = new Random(books);
+            List<LoanRequest> lent = new ArrayList<>();
+            Set<Integer> picked = new HashSet<>();
+            while (picked.size() < Math.min(changes, books)) {
+                LoanRequest item = new LoanRequest(1 + random.nextInt(books), 1 + random.nextInt(Math.max(1, books / 10)));
+                if (picked.add(item.bookId) &&
+                        dataAccess.checkoutBook(item.bookId, item.userId).get().status == LoanResult.Status.OK) {
+                    lent.add(item);
+                }
+            }
+            snapshot = timedSync(dataAccess, file, snapshot, "delta sync, checkouts", lent.size() + " books lent");
+            for (LoanRequest item : lent) {
+                dataAccess.returnBook(item.bookId, item.userId).get();
+            }
+            snapshot = timedSync(dataAccess, file, snapshot, "delta sync, returns", lent.size() + " books back");
+            timedSync(dataAccess, file, snapshot, "delta sync, unchanged", "");
+        } finally {
+            service.stop();
+        }
+    }
+
+    private static BookSnapshot timedSync(LibraryDataAccess dataAccess, Path file, BookSnapshot snapshot,
+                                          String name, String note) throws Exception {
+        long started = System.nanoTime();
+        BookSnapshot synced = BookSnapshot.sync(dataAccess, file, snapshot).get();
+        String outcome = synced == snapshot ? "file kept" : "file rewritten";
+        print(name, (System.nanoTime() - started) / 1e6, note.isEmpty() ? outcome : note + ", " + outcome);
+        return synced;
+    }
+
+    // Milliseconds from started until the Books table has painted its first
+    // page: the table repaints whenever its model changes, as it would on
+    // screen, and its first repaint with rows ends the wait
+    private static double paintFirstPage(LibraryDataAccess dataAccess, PageSource source, long started)
+            throws Exception {
+        CompletableFuture<Double> painted = new CompletableFuture<>();
+        SwingUtilities.invokeAndWait(() -> {
+            PagedTableModel model = new PagedTableModel(dataAccess, "books", COLUMNS, 200, 50,
+                painted::completeExceptionally);
+            JTable table = new JTable(model);
+            table.setSize(1000, 600);
+            BufferedImage image = new BufferedImage(1000, 600, BufferedImage.TYPE_INT_RGB);
+            model.addTableModelListener(e -> {
+                Graphics2D g = image.createGraphics();
+                table.paint(g);
+                g.dispose();
+            });
+            model.setSource(source, () -> painted.complete((System.nanoTime() - started) / 1e6));
+        });
+        return painted.get();
+    }
+
+    private static PageSource oneRowSource() {
+        return new PageSource() {
+            @Override
+            public boolean local() {
+                return true;
+            }
+
+            @Override
+            public int count(SqlSession session) {
+                return 1;
+            }
+
+            @Override
+            public List<Object[]> page(SqlSession session, int offset, Integer afterKey, int limit) {
+                List<Object[]> rows = new ArrayList<>();
+                rows.add(new Object[]{1, "", "", "", 1, 1});
+                return rows;
+            }
+        };
+    }
+
+    private static void print(String name, double millis, String note) {
+        System.out.printf("%-28s %10.1f ms   %s%n", name, millis, note);
+    }
+}
+
+// Rebuilds of the "borrowed together" neighbours (BorrowedTogether) from a
+// loan history of bench.loans returned loans (default 1000000):
+//
+//   java -cp .:h2.jar -Dbench.loans=1000000 RecommendBenchmark
+//
+// The history is seeded into loan_archive in bench.dataDir/recommend-<loans>
+// and reused by later runs. bench.recommendBooks titles (default 100000) are
+// split into bench.recommendGroups reading groups (200); each of loans / 10
+// users belongs to one group and borrows ten books, four in five from the
+// group, the group's first titles most often.
+//
+// Timed: reading the pairs from the database, then the build in memory with
+// 1 and with bench.recommendThreads threads (default: the processors), best
+// of bench.iterations (3). Then related() for every book, and new loans
+// added one at a time, each until its rows are worked out again. Checked:
+// most neighbours are in the book's own group.
+class RecommendBenchmark {
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int loans = base.getInt("bench.loans", 1000000);
+        int books = base.getInt("bench.recommendBooks", 100000);
+        int groups = base.getInt("bench.recommendGroups", 200);
+        int threads = base.getInt("bench.recommendThreads", Runtime.getRuntime().availableProcessors());
+        int iterations = base.getInt("bench.iterations", 3);
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("storage.dataDir",
+            Paths.get(base.get("bench.dataDir", "bench-data"), "recommend-" + loans).toString());
+        LibraryConfig config = LibraryConfig.of(props);
+        LibraryDataAccess data = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            data.migrateSchema().get();
+            long started = System.nanoTime();
+            boolean seeded = data.submit(null, session -> seed(session, loans, books, groups)).get();
+            System.out.printf("%nLoan history of %,d loans of %,d books (%s in %.1f s)%n", loans, books,
+                seeded ? "seeded" : "opened", (System.nanoTime() - started) / 1e9);
+
+            BorrowedTogether recommender = new BorrowedTogether(data, config);
+            started = System.nanoTime();
+            BorrowedTogether.Pairs pairs = data.submit(null, recommender::readPairs).get();
+            print("read pairs", (System.nanoTime() - started) / 1e6, String.format("%,d pairs", pairs.count));
+            for (int t : threads > 1 ? new int[]{1, threads} : new int[]{1}) {
+                recommender = new BorrowedTogether(data, 10, 2, 500, t);
+                double best = Double.MAX_VALUE;
+                for (int i = 0; i < iterations; i++) {
+                    System.gc();
+                    started = System.nanoTime();
+                    recommender.build(pairs);
+                    best = Math.min(best, (System.nanoTime() - started) / 1e6);
+                }
+                print("build, " + t + (t == 1 ? " thread" : " threads"), best,
+                    String.format("%,d books with neighbours", recommender.books()));
+            }
+
+            int per = books / groups;
+            long sameGroup = 0;
+            long kept = 0;
+            long[] lookups = new long[books];
+            for (int bookId = 1; bookId <= books; bookId++) {
+                long lookupStarted = System.nanoTime();
+                int[] related = recommender.related(bookId, 10);
+                lookups[bookId - 1] = System.nanoTime() - lookupStarted;
+                for (int other : related) {
+                    if ((other - 1) / per == (bookId - 1) / per) {
+                        sameGroup++;
+                    }
+                }
+                kept += related.length;
+            }
+            Arrays.sort(lookups);
+            System.out.printf("%-28s %10.2f us p50, %.2f us p99%n", "related()",
+                lookups[books / 2] / 1e3, lookups[books * 99 / 100] / 1e3);
+            System.out.printf("%-28s %9.1f %%   of %,d%n", "neighbours in own group",
+                100.0 * sameGroup / Math.max(1, kept), kept);
+
+            // New loans by users who already have history, so each touches ten rows or so
+            Random random = new Random(7);
+            int users = loans / 10;
+            long[] updates = new long[1000];
+            for (int i = 0; i < updates.length; i++) {
+                int userId = 1 + random.nextInt(users);
+                Loan loan = new Loan(-1 - i, 1 + random.nextInt(books), null, userId, null,
+                    null, null, null, Loan.BORROWED, 0);
+                long updateStarted = System.nanoTime();
+                recommender.catalogChanged(new CatalogChange(CatalogChange.Table.LOANS,
+                    CatalogChange.Kind.INSERTED, loan.id, loan, false));
+                recommender.flush().get();
+                updates[i] = System.nanoTime() - updateStarted;
+            }
+            Arrays.sort(updates);
+            System.out.printf("%-28s %10.2f ms p50, %.2f ms p99%n", "new loan, rows recomputed",
+                updates[updates.length / 2] / 1e6, updates[updates.length * 99 / 100] / 1e6);
+            recommender.stop();
+        } finally {
+            data.shutdown();
+        }
+    }
+
+    // Returned loans straight into loan_archive; false if already seeded
+    static boolean seed(SqlSession session, int loans, int books, int groups) throws SQLException {
+        try (ResultSet rs = session.statement().executeQuery("SELECT COUNT(*) FROM loan_archive")) {
+            if (rs.next() && rs.getInt(1) > 0) {
+                return false;
+            }
+        }
+        Random random = new Random(loans);
+        int per = books / groups;
+        int users = loans / 10;
+        LocalDate today = LocalDate.now();
+        Connection conn = session.connection();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO loan_archive (borrow_id, book_id, user_id, borrow_date, due_date, return_date, status) " +
+                "VALUES (?, ?, ?, ?, ?, ?, 'RETURNED')")) {
+            for (int i = 0; i < loans; i++) {
+                int userId = 1 + i % users;
+                int group = userId % groups;
+                double r = random.nextDouble();
+                int bookId = random.nextInt(5) > 0
+                    ? 1 + group * per + (int) (per * r * r)
+                    : 1 + random.nextInt(books);
+                LocalDate borrowed = today.minusDays(30 + random.nextInt(1000));
+                pstmt.setInt(1, i + 1);
+                pstmt.setInt(2, bookId);
+                pstmt.setInt(3, userId);
+                pstmt.setDate(4, Date.valueOf(borrowed));
+                pstmt.setDate(5, Date.valueOf(borrowed.plusDays(14)));
+                pstmt.setDate(6, Date.valueOf(borrowed.plusDays(7 + random.nextInt(14))));
+                pstmt.addBatch();
+                if ((i + 1) % 1000 == 0) {
+                    pstmt.executeBatch();
+                }
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    private static void print(String name, double millis, String note) {
+        System.out.printf("%-28s %10.1f ms   %s%n", name, millis, note);
+    }
+}
+
+// EXPLAIN plans and latency of the hot borrowed_books queries against
+// LibraryBenchmark's catalogs in bench.dataDir (seeding any that are missing):
+//
+//   java -cp .:h2.jar -Dbench.sizes=100000,1000000 QueryPlanBenchmark
+//
+// The queries are the SQL the app runs: the return lookups by book and user
+// and by copy, the Borrowed Books tab's count, page and offset probe, the
+// open loans the overdue tracker loads and the returned loans the archiver
+// moves. Each plan must read borrowed_books through the idx_borrowed_* index
+// named beside it, and each query's p99 over bench.iterations runs (default
+// 500, after bench.warmup of 200), with parameters drawn from the open loans,
+// must be within bench.planBudgetMillis (default 50). The locking reads are
+// timed without FOR UPDATE: H2 takes its row locks one by one, which would
+// swamp the read being measured. Every query is printed; the run fails at the
+// end if any missed its index or its budget.
+class QueryPlanBenchmark {
+    private interface Binder {
+        void bind(PreparedStatement pstmt, int i) throws SQLException;
+    }
+
+    private static final class Query {
+        final String name;
+        final String index;
+        final String sql;
+        final Binder binder;
+
+        Query(String name, String index, String sql, Binder binder) {
+            this.name = name;
+            this.index = index;
+            this.sql = sql;
+            this.binder = binder;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        String dataDir = base.get("bench.dataDir", "bench-data");
+        int warmup = base.getInt("bench.warmup", 200);
+        int iterations = base.getInt("bench.iterations", 500);
+        double budgetMillis = base.getInt("bench.planBudgetMillis", 50);
+        List<String> failures = new ArrayList<>();
+        for (String size : base.get("bench.sizes", "100000").split(",")) {
+            run(Integer.parseInt(size.trim()), dataDir, warmup, iterations, budgetMillis, failures);
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Query plan check failed: " + String.join(", ", failures));
+        }
+    }
+
+    private static void run(int books, String dataDir, int warmup, int iterations, double budgetMillis,
+                            List<String> failures) throws Exception {
+        Path dir = Paths.get(dataDir, String.valueOf(books));
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("storage.dataDir", dir.toString());
+        LibraryConfig config = LibraryConfig.of(props);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            dataAccess.migrateSchema().get();
+            dataAccess.submit(null, session -> LibraryBenchmark.seed(session, books, Math.max(1, books / 10))).get();
+            // borrow_id, book_id, user_id, copy_id of every open loan
+            int[][] open = dataAccess.submit(null, session -> {
+                List<int[]> loans = new ArrayList<>();
+                try (ResultSet rs = session.statement().executeQuery(
+                        "SELECT borrow_id, book_id, user_id, copy_id FROM borrowed_books WHERE status='BORROWED'")) {
+                    while (rs.next()) {
+                        loans.add(new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)});
+                    }
+                }
+                return loans.toArray(new int[0][]);
+            }).get();
+            if (open.length == 0) {
+                throw new IllegalStateException("Benchmark setup failed: no open loans in the catalog");
+            }
+            int n = open.length;
+            Date cutoff = Date.valueOf(LocalDate.now().minusDays(365));
+            SqlPageSource borrowed = (SqlPageSource) dataAccess.borrowedPages();
+            List<Query> queries = Arrays.asList(
+                new Query("return lookup", "idx_borrowed_book_user_status", LibraryDataAccess.FIND_LOANS_SQL,
+                    (pstmt, i) -> {
+                        pstmt.setInt(1, open[i % n][1]);
+                        pstmt.setInt(2, open[i % n][2]);
+                    }),
+                new Query("return by copy", "idx_borrowed_copy_status", LibraryDataAccess.COPY_LOAN_SQL,
+                    (pstmt, i) -> pstmt.setInt(1, open[i % n][3])),
+                new Query("borrowed count", "idx_borrowed_status", borrowed.countSql, (pstmt, i) -> { }),
+                new Query("borrowed page", "idx_borrowed_status", borrowed.pageSql,
+                    (pstmt, i) -> {
+                        pstmt.setInt(1, open[i % n][0]);
+                        pstmt.setInt(2, 200);
+                    }),
+                new Query("borrowed probe", "idx_borrowed_status", borrowed.keyAtSql,
+                    (pstmt, i) -> pstmt.setInt(1, i % n)),
+                new Query("open loans", "idx_borrowed_status", LibraryDataAccess.OPEN_LOANS_SQL,
+                    (pstmt, i) -> {
+                        pstmt.setInt(1, open[i % n][0]);
+                        pstmt.setInt(2, 1000);
+                    }),
+                new Query("archivable loans", "idx_borrowed_status", LibraryDataAccess.ARCHIVABLE_LOANS_SQL,
+                    (pstmt, i) -> {
+                        pstmt.setInt(1, open[i % n][0]);
+                        pstmt.setDate(2, cutoff);
+                        pstmt.setInt(3, 500);
+                    }));
+
+            System.out.printf("%nCatalog of %d books, %d open loans (budget p99 %.0f ms)%n", books, n, budgetMillis);
+            System.out.printf("%-18s %-30s %-7s %9s %9s  %s%n", "query", "index", "plan", "p50 ms", "p99 ms", "budget");
+            for (Query query : queries) {
+                String plan = dataAccess.submit(null, session -> {
+                    PreparedStatement pstmt = session.prepare("EXPLAIN " + query.sql);
+                    query.binder.bind(pstmt, 0);
+                    StringBuilder text = new StringBuilder();
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        int columns = rs.getMetaData().getColumnCount();
+                        while (rs.next()) {
+                            for (int c = 1; c <= columns; c++) {
+                                text.append(rs.getString(c)).append(' ');
+                            }
+                        }
+                    }
+                    return text.toString();
+                }).get();
+                LatencyHistogram latency = new LatencyHistogram();
+                dataAccess.submit(null, session -> {
+                    PreparedStatement pstmt = session.prepare(query.sql.replace(" FOR UPDATE", ""));
+                    for (int i = 0; i < warmup + iterations; i++) {
+                        long started = System.nanoTime();
+                        query.binder.bind(pstmt, i);
+                        try (ResultSet rs = pstmt.executeQuery()) {
+                            while (rs.next()) {
+                                // read every row, as the caller would
+                            }
+                        }
+                        if (i >= warmup) {
+                            latency.recordNanos(System.nanoTime() - started);
+                        }
+                    }
+                    return null;
+                }).get();
+                boolean indexed = plan.toLowerCase(Locale.ROOT).contains(query.index);
+                LatencySnapshot snapshot = latency.snapshot();
+                boolean inBudget = snapshot.millis(0.99) <= budgetMillis;
+                System.out.printf("%-18s %-30s %-7s %9.3f %9.3f  %s%n", query.name, query.index,
+                    indexed ? "ok" : "MISSED", snapshot.millis(0.5), snapshot.millis(0.99),
+                    inBudget ? "ok" : "OVER");
+                if (!indexed) {
+                    System.out.println("    " + plan.replaceAll("\\s+", " ").trim());
+                    failures.add(books + " books: " + query.name + " does not use " + query.index);
+                }
+                if (!inBudget) {
+                    failures.add(books + " books: " + query.name + " over budget");
+                }
+            }
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+}
+
+// Hundreds of desks checking out and returning the same few titles at once
+// against an in-memory database, to show the copy counts hold:
+//
+//   java -cp .:h2.jar -Dbench.stressThreads=400 CheckoutBenchmark
+//
+// First bench.stressThreads checkouts (default 200), one per thread, are
+// released together on bench.stressTitles titles (default 10) of
+// bench.stressCopies copies each (default 3): exactly one per copy may
+// succeed. Then the threads churn for bench.stressRounds rounds each (default
+// 50), returning a loan or checking out another title at random. After each
+// phase every book's available_quantity must be at least 0 and equal its
+// total less its open loans, its ON_LOAN copies must match its open loans,
+// and the open loans must be the checkouts less the returns that succeeded.
+// Operations turned away because the data access queue was full are counted
+// and left out. The run fails on any disagreement.
+class CheckoutBenchmark {
+    private static final String DRIFT_SQL =
+        "SELECT COUNT(*) FROM books b WHERE b.available_quantity < 0 " +
+        "OR b.available_quantity <> b.total_quantity - " +
+        "(SELECT COUNT(*) FROM borrowed_books l WHERE l.book_id = b.book_id AND l.status='BORROWED') " +
+        "OR (SELECT COUNT(*) FROM copies c WHERE c.book_id = b.book_id AND c.status='ON_LOAN') <> " +
+        "(SELECT COUNT(*) FROM borrowed_books l WHERE l.book_id = b.book_id AND l.status='BORROWED')";
+    private static final String COUNTS_SQL =
+        "SELECT (SELECT MIN(available_quantity) FROM books), " +
+        "(SELECT COUNT(*) FROM borrowed_books WHERE status='BORROWED'), " +
+        "(SELECT COUNT(*) FROM copies WHERE status='ON_LOAN'), " +
+        "(SELECT COUNT(*) FROM borrowed_books l JOIN copies c ON c.copy_id = l.copy_id " +
+        "WHERE l.status='BORROWED' AND c.status <> 'ON_LOAN')";
+
+    // Operations the data access turned away with its queue full
+    private static final AtomicInteger busy = new AtomicInteger();
+
+    private interface Task {
+        void run(int thread, Random random) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int titles = base.getInt("bench.stressTitles", 10);
+        int copies = base.getInt("bench.stressCopies", 3);
+        int threads = base.getInt("bench.stressThreads", 200);
+        int rounds = base.getInt("bench.stressRounds", 50);
+
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("db.url", "jdbc:h2:mem:checkout-bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+            "DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        props.setProperty("pool.maxSize", base.get("pool.maxSize", "16"));
+        LibraryConfig config = LibraryConfig.of(props);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(100000));
+        try {
+            dataAccess.migrateSchema().get();
+            // One user per thread, so nobody's own loans stand in their way
+            dataAccess.submit(null, session -> HoldBenchmark.seed(session, titles, copies, threads)).get();
+            System.out.printf("%d titles x %d copies, %d threads%n", titles, copies, threads);
+            System.out.printf("%-16s %9s %9s %9s %9s %9s%n", "operation", "ops", "p50 ms", "p90 ms", "p99 ms", "max ms");
+
+            // Every thread after the same copies at the same moment
+            LatencyHistogram rush = new LatencyHistogram();
+            AtomicInteger lent = new AtomicInteger();
+            List<ConcurrentLinkedQueue<Integer>> borrowers = new ArrayList<>();
+            for (int t = 0; t < titles; t++) {
+                borrowers.add(new ConcurrentLinkedQueue<>());
+            }
+            runTogether(threads, (thread, random) -> {
+                int bookId = 1 + thread % titles;
+                if (timed(rush, dataAccess.checkoutBook(bookId, thread + 1)) == LoanResult.Status.OK) {
+                    lent.incrementAndGet();
+                    borrowers.get(bookId - 1).add(thread + 1);
+                }
+            });
+            print("rushCheckout", rush);
+            int expected = Math.min(threads - busy.get(), titles * copies);
+            System.out.printf("Checkouts that got a copy: %d of %d copies (%s)%n", lent.get(), titles * copies,
+                lent.get() == expected ? "one per copy" : "WRONG");
+            boolean consistent = lent.get() == expected & check(dataAccess, "after the rush", lent.get());
+
+            // Checkouts and returns on the same rows, the open loans moving both ways
+            LatencyHistogram checkouts = new LatencyHistogram();
+            LatencyHistogram returns = new LatencyHistogram();
+            AtomicInteger failedReturns = new AtomicInteger();
+            runTogether(threads, (thread, random) -> {
+                for (int round = 0; round < rounds; round++) {
+                    int bookId = 1 + random.nextInt(titles);
+                    Integer userId = random.nextBoolean() ? borrowers.get(bookId - 1).poll() : null;
+                    if (userId != null) {
+                        LoanResult.Status status = timed(returns, dataAccess.returnBook(bookId, userId));
+                        if (status == LoanResult.Status.OK) {
+                            lent.decrementAndGet();
+                        } else if (status == null) {
+                            borrowers.get(bookId - 1).add(userId);   // still out; return it later
+                        } else {
+                            failedReturns.incrementAndGet();
+                        }
+                    } else if (timed(checkouts, dataAccess.checkoutBook(bookId, thread + 1)) == LoanResult.Status.OK) {
+                        lent.incrementAndGet();
+                        borrowers.get(bookId - 1).add(thread + 1);
+                    }
+                }
+            });
+            print("checkoutBook", checkouts);
+            print("returnBook", returns);
+            System.out.printf("Failed returns of an open loan: %d, operations turned away as busy: %d%n",
+                failedReturns.get(), busy.get());
+            consistent &= failedReturns.get() == 0 & check(dataAccess, "after the churn", lent.get());
+            if (!consistent) {
+                throw new IllegalStateException("Benchmark failed: copy counts drifted under concurrent checkouts");
+            }
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+
+    // Prints the counts against the loans the threads saw succeed; true if they all agree
+    private static boolean check(LibraryDataAccess dataAccess, String when, int open) throws Exception {
+        int[] counts = dataAccess.submit(null, session -> {
+            int[] values = new int[5];
+            try (ResultSet rs = session.statement().executeQuery(COUNTS_SQL)) {
+                rs.next();
+                for (int i = 0; i < 4; i++) {
+                    values[i] = rs.getInt(i + 1);
+                }
+            }
+            try (ResultSet rs = session.statement().executeQuery(DRIFT_SQL)) {
+                values[4] = rs.next() ? rs.getInt(1) : -1;
+            }
+            return values;
+        }).get();
+        boolean agree = counts[0] >= 0 && counts[1] == open && counts[2] == open && counts[3] == 0 && counts[4] == 0;
+        System.out.printf("%nOpen loans %s: %d, copies on loan %d, expected %d; lowest available %d, " +
+            "open loans on a copy not on loan %d, books whose counts drifted %d (%s)%n",
+            when, counts[1], counts[2], open, counts[0], counts[3], counts[4], agree ? "consistent" : "INCONSISTENT");
+        return agree;
+    }
+
+    // Runs the task once on each of count threads, all released at the same moment
+    private static void runTogether(int count, Task task) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(count);
+        CountDownLatch ready = new CountDownLatch(count);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int thread = i;
+            running.add(workers.submit(() -> {
+                Random random = new Random(thread);
+                ready.countDown();
+                go.await();
+                task.run(thread, random);
+                return null;
+            }));
+        }
+        try {
+            ready.await();
+            go.countDown();
+            for (Future<?> future : running) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // The outcome, or null if the operation was turned away without running
+    private static LoanResult.Status timed(LatencyHistogram recorder, CompletableFuture<LoanResult> call)
+            throws Exception {
+        long start = System.nanoTime();
+        LoanResult result;
+        try {
+            result = call.get();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof SQLTransientConnectionException)) {
+                throw e;
+            }
+            busy.incrementAndGet();
+            return null;
+        }
+        recorder.recordNanos(System.nanoTime() - start);
+        return result.status;
+    }
+
+    private static void print(String name, LatencyHistogram latency) {
+        LatencySnapshot snapshot = latency.snapshot();
+        System.out.printf("%-16s %9d %9.3f %9.3f %9.3f %9.3f%n", name, snapshot.count,
+            snapshot.millis(0.5), snapshot.millis(0.9), snapshot.millis(0.99), snapshot.maxMillis());
+    }
+}
+
+// Two desks on one in-memory database, the second following the first through
+// its ChangeFeed, to show every committed change reaches the other client:
+//
+//   java -cp .:h2.jar FeedBenchmark
+//
+// The first desk adds, edits and deletes a book; each must reach the second
+// desk's cache, and its listeners, within bench.feedWaitMillis (default
+// 10000). Then a change log seq is taken by a transaction left open while the
+// first desk commits a later one: the later change must arrive without
+// waiting, the open one must still arrive once it commits, and a seq rolled
+// back must hold the feed's position up no longer than feed.holeTimeoutMillis
+// (bench.feedHoleMillis, default 1000). The run fails if any change is missed.
+class FeedBenchmark {
+    private static final String URL =
+        "jdbc:h2:mem:feed-bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int pollMillis = base.getInt("bench.feedPollMillis", 50);
+        int holeMillis = base.getInt("bench.feedHoleMillis", 1000);
+        long waitMillis = base.getInt("bench.feedWaitMillis", 10000);
+
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("db.url", URL);
+        props.setProperty("feed.pollMillis", String.valueOf(pollMillis));
+        props.setProperty("feed.holeTimeoutMillis", String.valueOf(holeMillis));
+        LibraryConfig config = LibraryConfig.of(props);
+        StorageBackend backend = StorageBackend.fromConfig(config);
+        LibraryDataAccess writer = new LibraryDataAccess(new ConnectionPool(config, backend), new CatalogCache(1000));
+        LibraryDataAccess reader = new LibraryDataAccess(new ConnectionPool(config, backend), new CatalogCache(1000));
+        ChangeFeed feed = new ChangeFeed(reader, config);
+        BlockingQueue<CatalogChange> heard = new LinkedBlockingQueue<>();
+        reader.catalog().addListener(CatalogChange.Table.BOOKS, heard::add);
+        try (Connection other = DriverManager.getConnection(URL, backend.user(config), backend.password(config))) {
+            writer.migrateSchema().get();
+            feed.start().get();
+            System.out.printf("Feed polling every %d ms, gaps given up after %d ms%n", pollMillis, holeMillis);
+
+            int id = writer.addBook("Feed test", "Author", "979-0000000001", 1).get();
+            CatalogChange change = await(heard, id, waitMillis, "insert");
+            expect(change.kind == CatalogChange.Kind.INSERTED && reader.catalog().book(id) != null &&
+                "Feed test".equals(reader.catalog().book(id).title), "insert arrived as " + change.kind);
+
+            writer.updateBook(id, "Feed test, revised", "Author", "979-0000000001", 1).get();
+            change = await(heard, id, waitMillis, "update");
+            expect(change.kind == CatalogChange.Kind.UPDATED &&
+                "Feed test, revised".equals(reader.catalog().book(id).title), "update arrived as " + change.kind);
+
+            writer.deleteBook(id).get();
+            change = await(heard, id, waitMillis, "delete");
+            expect(change.kind == CatalogChange.Kind.DELETED && reader.catalog().book(id) == null,
+                "delete arrived as " + change.kind);
+
+            // A seq taken first and committed last: the change behind it is not held up
+            // waiting for it, and is not skipped once it lands
+            int kept = writer.addBook("Kept", "Author", "979-0000000002", 1).get();
+            await(heard, kept, waitMillis, "setup insert");
+            other.setAutoCommit(false);
+            int late = insertBook(other, "Committed late", "979-0000000003");
+            writer.updateBook(kept, "Kept, after a gap", "Author", "979-0000000002", 1).get();
+            await(heard, kept, waitMillis, "update above an open seq");
+            Thread.sleep(4L * pollMillis);   // open across a few polls, well within the gap timeout
+            other.commit();
+            change = await(heard, late, waitMillis, "insert committed late");
+            expect(change.kind == CatalogChange.Kind.INSERTED && reader.catalog().book(late) != null,
+                "late insert arrived as " + change.kind);
+
+            // A seq rolled back never fills; the feed gives up on it and moves on
+            insertBook(other, "Rolled back", "979-0000000004");
+            writer.updateBook(kept, "Kept, after a rollback", "Author", "979-0000000002", 1).get();
+            long last = lastSeq(other);
+            other.rollback();
+            await(heard, kept, waitMillis, "update above a rolled back seq");
+            expect("Kept, after a rollback".equals(reader.catalog().book(kept).title), "update above the gap");
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(holeMillis + waitMillis);
+            while (feed.position() < last && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            expect(feed.position() >= last, "feed position stuck at " + feed.position() + " below the gap");
+            System.out.printf("Gap left by the rollback passed after %d ms%n",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            other.setAutoCommit(true);
+
+            writer.updateBook(kept, "Kept, after the gap closed", "Author", "979-0000000002", 1).get();
+            await(heard, kept, waitMillis, "update after the gap");
+            expect("Kept, after the gap closed".equals(reader.catalog().book(kept).title), "update after the gap");
+            System.out.println("Every change reached the second desk (consistent)");
+        } finally {
+            feed.stop();
+            reader.shutdown();
+            writer.shutdown();
+        }
+    }
+
+    // Waits for the next change to the book with this ID, skipping changes to others
+    private static CatalogChange await(BlockingQueue<CatalogChange> heard, int id, long waitMillis, String what)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            CatalogChange change = heard.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            expect(change != null, what + " of book " + id + " never reached the second desk");
+            if (change.id == id) {
+                System.out.printf("%-32s %6.1f ms%n", what, (System.nanoTime() - start) / 1e6);
+                return change;
+            }
+        }
+    }
+
+    // As another client would, logging the insert in the same transaction
+    private static int insertBook(Connection conn, String title, String isbn) throws SQLException {
+        int id;
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO books (title, author, isbn, total_quantity, available_quantity) VALUES (?, ?, ?, 0, 0)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, title);
+            pstmt.setString(2, "Author");
+            pstmt.setString(3, isbn);
+            pstmt.executeUpdate();
+            try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                rs.next();
+                id = rs.getInt(1);
+            }
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO change_log (table_name, change_kind, row_id, origin) VALUES ('BOOKS', 'INSERTED', ?, ?)")) {
+            pstmt.setInt(1, id);
+            pstmt.setString(2, "feed-bench");
+            pstmt.executeUpdate();
+        }
+        return id;
+    }
+
+    private static long lastSeq(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(seq) FROM change_log")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Benchmark failed: " + what);
+        }
+    }
+}
+
+// Two rebuilds of loan_counts at once while desks keep checking out and
+// returning, against an in-memory database:
+//
+//   java -cp .:h2.jar BackfillBenchmark
+//
+// bench.backfillLoans returned loans (default 50000) are seeded over the
+// last bench.backfillDays days (default 60), and those returned more than 30
+// days ago are moved to loan_archive. loan_counts is left without them. Then
+// bench.backfillDesks threads (default 8) check out and return at random
+// while two CirculationBackfill runs of bench.backfillThreads threads each
+// (default 4) rebuild the counts. Once everything has stopped, every
+// loan_counts row must equal a recount of borrowed_books and loan_archive.
+// The run fails on any difference. Start it well before midnight: a desk
+// counting across the day change is not a fault.
+class BackfillBenchmark {
+    private static final String LOANS_SQL =
+        "SELECT book_id, user_id, borrow_date, due_date, return_date FROM borrowed_books UNION ALL " +
+        "SELECT book_id, user_id, borrow_date, due_date, return_date FROM loan_archive";
+    private static final String COUNTS_SQL =
+        "SELECT subject, period, period_start, subject_id, checkouts, returns, late_returns FROM loan_counts";
+    private static final int ARCHIVE_BATCH = 5000;
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig base = LibraryConfig.load();
+        int loans = base.getInt("bench.backfillLoans", 50000);
+        int days = base.getInt("bench.backfillDays", 60);
+        int desks = base.getInt("bench.backfillDesks", 8);
+        int threads = base.getInt("bench.backfillThreads", 4);
+        int titles = base.getInt("bench.backfillTitles", 2000);
+
+        Properties props = new Properties();
+        props.setProperty("storage.backend", "embedded");
+        props.setProperty("db.url", "jdbc:h2:mem:backfill-bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+            "DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        props.setProperty("pool.maxSize", base.get("pool.maxSize", "16"));
+        LibraryConfig config = LibraryConfig.of(props);
+        LibraryDataAccess dataAccess = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            dataAccess.migrateSchema().get();
+            long started = System.nanoTime();
+            dataAccess.submit(null, session -> HoldBenchmark.seed(session, titles, 2, desks + 1000)).get();
+            dataAccess.submit(null, session -> seedLoans(session, loans, days, titles, desks + 1000)).get();
+            LocalDate today = LocalDate.now();
+            int archived = 0;
+            int afterId = 0;
+            while (true) {
+                List<Integer> moved = dataAccess.archiveLoans(today.minusDays(30), afterId, ARCHIVE_BATCH).get();
+                archived += moved.size();
+                if (moved.size() < ARCHIVE_BATCH) {
+                    break;
+                }
+                afterId = moved.get(moved.size() - 1);
+            }
+            System.out.printf("%,d returned loans over %d days, %,d of them archived (seeded in %.1f s)%n",
+                loans, days, archived, (System.nanoTime() - started) / 1e9);
+
+            // Each desk has a user of its own and holds at most one loan at a time
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicInteger operations = new AtomicInteger();
+            AtomicInteger busy = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, desks));
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < desks; i++) {
+                int userId = i + 1;
+                running.add(workers.submit(() -> {
+                    Random random = new Random(userId);
+                    int held = 0;
+                    while (!stop.get()) {
+                        int bookId = held != 0 ? held : 1 + random.nextInt(titles);
+                        try {
+                            LoanResult result = held != 0
+                                ? dataAccess.returnBook(bookId, userId).get()
+                                : dataAccess.checkoutBook(bookId, userId).get();
+                            if (result.status == LoanResult.Status.OK) {
+                                held = held != 0 ? 0 : bookId;
+                            }
+                            operations.incrementAndGet();
+                        } catch (ExecutionException e) {
+                            if (!(e.getCause() instanceof SQLTransientConnectionException)) {
+                                throw e;
+                            }
+                            busy.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            LatencyHistogram runs = new LatencyHistogram();
+            long[] counted = new long[2];
+            try {
+                Thread.sleep(200);   // the desks get going first
+                List<CompletableFuture<Long>> backfills = new ArrayList<>();
+                long[] begun = new long[2];
+                for (int i = 0; i < 2; i++) {
+                    begun[i] = System.nanoTime();
+                    backfills.add(new CirculationBackfill(dataAccess, Clock.systemDefaultZone(), threads).start());
+                }
+                for (int i = 0; i < 2; i++) {
+                    counted[i] = backfills.get(i).get();
+                    runs.recordNanos(System.nanoTime() - begun[i]);
+                }
+                Thread.sleep(200);   // and keep on after
+            } finally {
+                stop.set(true);
+                workers.shutdown();
+                for (Future<?> future : running) {
+                    future.get();
+                }
+            }
+            LatencySnapshot snapshot = runs.snapshot();
+            System.out.printf("Two backfills of %d threads counted %,d and %,d loans, the slower in %.0f ms%n",
+                threads, counted[0], counted[1], snapshot.maxMillis());
+            System.out.printf("Desk checkouts and returns meanwhile: %,d, turned away as busy: %d%n",
+                operations.get(), busy.get());
+
+            int[] differences = dataAccess.submit(null, BackfillBenchmark::compare).get();
+            System.out.printf("%nloan_counts rows: %,d recounted, %,d differ (%s)%n", differences[0], differences[1],
+                differences[1] == 0 ? "consistent" : "INCONSISTENT");
+            if (differences[1] != 0) {
+                throw new IllegalStateException("Benchmark failed: loan_counts disagrees with the loan history");
+            }
+        } finally {
+            dataAccess.shutdown();
+        }
+    }
+
+    // Returned loans straight into borrowed_books, a few days to three weeks
+    // long and all back by yesterday, some late
+    private static boolean seedLoans(SqlSession session, int loans, int days, int books, int users)
+            throws SQLException {
+        Random random = new Random(loans);
+        LocalDate today = LocalDate.now();
+        Connection conn = session.connection();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO borrowed_books (book_id, user_id, borrow_date, due_date, return_date, status) " +
+                "VALUES (?, ?, ?, ?, ?, 'RETURNED')")) {
+            for (int i = 0; i < loans; i++) {
+                LocalDate borrowed = today.minusDays(2 + random.nextInt(days));
+                LocalDate returned = borrowed.plusDays(3 + random.nextInt(19));
+                if (!returned.isBefore(today)) {
+                    returned = today.minusDays(1);
+                }
+                pstmt.setInt(1, 1 + random.nextInt(books));
+                pstmt.setInt(2, 1 + random.nextInt(users));
+                pstmt.setDate(3, Date.valueOf(borrowed));
+                pstmt.setDate(4, Date.valueOf(borrowed.plusDays(LibraryDataAccess.LOAN_DAYS)));
+                pstmt.setDate(5, Date.valueOf(returned));
+                pstmt.addBatch();
+                if ((i + 1) % 1000 == 0) {
+                    pstmt.executeBatch();
+                }
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    // Recounts every loan, today's included, and sets it against loan_counts;
+    // returns the rows recounted and how many rows differ either way
+    private static int[] compare(SqlSession session) throws SQLException {
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        LoanCounts recount = new LoanCounts();
+        try (ResultSet rs = session.statement().executeQuery(LOANS_SQL)) {
+            while (rs.next()) {
+                recount.loan(rs.getInt(1), rs.getInt(2), localDate(rs.getDate(3)),
+                    localDate(rs.getDate(4)), localDate(rs.getDate(5)), tomorrow);
+            }
+        }
+        LoanCounts stored = new LoanCounts();
+        try (ResultSet rs = session.statement().executeQuery(COUNTS_SQL)) {
+            while (rs.next()) {
+                LoanCounts.Key key = new LoanCounts.Key(rs.getString(1), rs.getString(2),
+                    rs.getDate(3).toLocalDate(), rs.getInt(4));
+                for (int column = 0; column < 3; column++) {
+                    stored.add(key, column, rs.getInt(5 + column));
+                }
+            }
+        }
+        int differ = 0;
+        for (Map.Entry<LoanCounts.Key, int[]> entry : recount.sorted()) {
+            differ += differs(entry.getKey(), entry.getValue(), stored.get(entry.getKey()), differ);
+        }
+        for (Map.Entry<LoanCounts.Key, int[]> entry : stored.sorted()) {
+            if (recount.get(entry.getKey()) == null) {
+                differ += differs(entry.getKey(), null, entry.getValue(), differ);
+            }
+        }
+        return new int[]{recount.size(), differ};
+    }
+
+    // 1 if the row's counts differ, printing the first few; a missing row counts nothing
+    private static int differs(LoanCounts.Key key, int[] recounted, int[] stored, int before) {
+        int[] none = new int[3];
+        if (Arrays.equals(recounted == null ? none : recounted, stored == null ? none : stored)) {
+            return 0;
+        }
+        if (before < 5) {
+            System.out.printf("  %s %s %s %d: recounted %s, stored %s%n", key.subject, key.period, key.start, key.id,
+                Arrays.toString(recounted == null ? none : recounted), Arrays.toString(stored == null ? none : stored));
+        }
+        return 1;
+    }
+
+    private static LocalDate localDate(Date date) {
+        return date == null ? null : date.toLocalDate();
+    }
+}
@@ -0,0 +1,429 @@
+import javax.swing.SwingUtilities;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+class Book {
+    final int id;
+    final String title;
+    final String author;
+    final String isbn;
+    final int totalQuantity;
+    final int availableQuantity;
+
+    Book(int id, String title, String author, String isbn, int totalQuantity, int availableQuantity) {
+        this.id = id;
+        this.title = title;
+        this.author = author;
+        this.isbn = isbn;
+        this.totalQuantity = totalQuantity;
+        this.availableQuantity = availableQuantity;
+    }
+
+    static Book from(ResultSet rs) throws SQLException {
+        return new Book(rs.getInt("book_id"), rs.getString("title"), rs.getString("author"),
+            rs.getString("isbn"), rs.getInt("total_quantity"), rs.getInt("available_quantity"));
+    }
+
+    Object[] toRow() {
+        return new Object[]{id, title, author, isbn, totalQuantity, availableQuantity};
+    }
+}
+
+class User {
+    final int id;
+    final String name;
+    final String email;
+    final String phone;
+
+    User(int id, String name, String email, String phone) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.phone = phone;
+    }
+
+    static User from(ResultSet rs) throws SQLException {
+        return new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+            rs.getString("phone"));
+    }
+
+    Object[] toRow() {
+        return new Object[]{id, name, email, phone};
+    }
+}
+
+// A borrow record, with the book title and user name the Borrowed Books tab shows
+class Loan {
+    static final String BORROWED = "BORROWED";
+    static final String RETURNED = "RETURNED";
+
+    final int id;
+    final int bookId;
+    final String title;
+    final int userId;
+    final String userName;
+    final Date borrowDate;
+    final Date dueDate;
+    final Date returnDate;
+    final String status;
+    final int copyId;
+
+    Loan(int id, int bookId, String title, int userId, String userName,
+         Date borrowDate, Date dueDate, Date returnDate, String status, int copyId) {
+        this.id = id;
+        this.bookId = bookId;
+        this.title = title;
+        this.userId = userId;
+        this.userName = userName;
+        this.borrowDate = borrowDate;
+        this.dueDate = dueDate;
+        this.returnDate = returnDate;
+        this.status = status;
+        this.copyId = copyId;
+    }
+
+    static Loan from(ResultSet rs) throws SQLException {
+        return new Loan(rs.getInt("borrow_id"), rs.getInt("book_id"), rs.getString("title"),
+            rs.getInt("user_id"), rs.getString("name"), rs.getDate("borrow_date"),
+            rs.getDate("due_date"), rs.getDate("return_date"), rs.getString("status"), rs.getInt("copy_id"));
+    }
+
+    Object[] toRow() {
+        return new Object[]{id, bookId, title, userId, userName, borrowDate, dueDate, status};
+    }
+}
+
+// A place in a book's hold queue. WAITING holds are served oldest first; a
+// READY one has copyId set aside until readyUntil.
+class Hold {
+    static final String WAITING = "WAITING";
+    static final String READY = "READY";
+    static final String FULFILLED = "FULFILLED";
+    static final String CANCELLED = "CANCELLED";
+    static final String EXPIRED = "EXPIRED";
+
+    final int id;
+    final int bookId;
+    final int userId;
+    final String status;
+    final Timestamp placedAt;
+    final Date readyUntil;
+    final int copyId;   // 0 until a copy is set aside
+
+    Hold(int id, int bookId, int userId, String status, Timestamp placedAt, Date readyUntil, int copyId) {
+        this.id = id;
+        this.bookId = bookId;
+        this.userId = userId;
+        this.status = status;
+        this.placedAt = placedAt;
+        this.readyUntil = readyUntil;
+        this.copyId = copyId;
+    }
+
+    static Hold from(ResultSet rs) throws SQLException {
+        return new Hold(rs.getInt("hold_id"), rs.getInt("book_id"), rs.getInt("user_id"),
+            rs.getString("status"), rs.getTimestamp("placed_at"), rs.getDate("ready_until"), rs.getInt("copy_id"));
+    }
+
+    // Still in the queue: waiting, or ready for pickup
+    boolean active() {
+        return WAITING.equals(status) || READY.equals(status);
+    }
+
+    Object[] toRow() {
+        return new Object[]{id, bookId, userId, status, placedAt, readyUntil};
+    }
+}
+
+// One barcoded copy of a book. SHELVED copies are the book's available count,
+// and every copy but WITHDRAWN ones its total.
+class Copy {
+    static final String SHELVED = "SHELVED";
+    static final String ON_LOAN = "ON_LOAN";
+    static final String ON_HOLD = "ON_HOLD";   // set aside for a READY hold
+    static final String WITHDRAWN = "WITHDRAWN";
+
+    final int id;
+    final int bookId;
+    final String barcode;
+    final String status;
+    final String location;
+
+    Copy(int id, int bookId, String barcode, String status, String location) {
+        this.id = id;
+        this.bookId = bookId;
+        this.barcode = barcode;
+        this.status = status;
+        this.location = location;
+    }
+
+    static Copy from(ResultSet rs) throws SQLException {
+        return new Copy(rs.getInt("copy_id"), rs.getInt("book_id"), rs.getString("barcode"),
+            rs.getString("status"), rs.getString("location"));
+    }
+
+    Object[] toRow() {
+        return new Object[]{id, bookId, barcode, status, location};
+    }
+}
+
+// One row inserted, updated or deleted. RELOAD means the change could not be
+// pinned to rows and views of the table should re-read it. Remote changes were
+// made by another client and picked up from the change log.
+class CatalogChange {
+    enum Table { BOOKS, USERS, LOANS, HOLDS }
+    enum Kind { INSERTED, UPDATED, DELETED, RELOAD }
+
+    final Table table;
+    final Kind kind;
+    final int id;
+    final Object record;   // Book, User, Loan or Hold; null for DELETED and RELOAD
+    final boolean remote;
+
+    CatalogChange(Table table, Kind kind, int id, Object record, boolean remote) {
+        this.table = table;
+        this.kind = kind;
+        this.id = id;
+        this.record = record;
+        this.remote = remote;
+    }
+
+    static CatalogChange inserted(Book book) {
+        return new CatalogChange(Table.BOOKS, Kind.INSERTED, book.id, book, false);
+    }
+
+    static CatalogChange updated(Book book) {
+        return new CatalogChange(Table.BOOKS, Kind.UPDATED, book.id, book, false);
+    }
+
+    static CatalogChange inserted(User user) {
+        return new CatalogChange(Table.USERS, Kind.INSERTED, user.id, user, false);
+    }
+
+    static CatalogChange updated(User user) {
+        return new CatalogChange(Table.USERS, Kind.UPDATED, user.id, user, false);
+    }
+
+    static CatalogChange inserted(Loan loan) {
+        return new CatalogChange(Table.LOANS, Kind.INSERTED, loan.id, loan, false);
+    }
+
+    static CatalogChange updated(Loan loan) {
+        return new CatalogChange(Table.LOANS, Kind.UPDATED, loan.id, loan, false);
+    }
+
+    static CatalogChange inserted(Hold hold) {
+        return new CatalogChange(Table.HOLDS, Kind.INSERTED, hold.id, hold, false);
+    }
+
+    static CatalogChange updated(Hold hold) {
+        return new CatalogChange(Table.HOLDS, Kind.UPDATED, hold.id, hold, false);
+    }
+
+    static CatalogChange deleted(Table table, int id) {
+        return new CatalogChange(table, Kind.DELETED, id, null, false);
+    }
+
+    static CatalogChange reload(Table table) {
+        return new CatalogChange(table, Kind.RELOAD, -1, null, false);
+    }
+
+    // The record as a table row, or null
+    Object[] row() {
+        if (record instanceof Book) {
+            return ((Book) record).toRow();
+        }
+        if (record instanceof User) {
+            return ((User) record).toRow();
+        }
+        if (record instanceof Hold) {
+            return ((Hold) record).toRow();
+        }
+        return record instanceof Loan ? ((Loan) record).toRow() : null;
+    }
+}
+
+interface CatalogListener {
+    // Called on the thread that committed the change
+    void catalogChanged(CatalogChange change);
+}
+
+// Records by ID, bounded to about maxRecords. Entries live in a young and an
+// old generation; when the young one fills up the old one is dropped
+// wholesale, so recently used records stay without per-entry LRU bookkeeping.
+// Each entry keeps the change-log seq of the change that wrote it, and deletes
+// leave an empty entry with theirs, so a late, older change cannot undo a newer one.
+class RecordCache<T> {
+    private final int generationSize;
+    private IntObjectMap<Entry<T>> young = new IntObjectMap<>();
+    private IntObjectMap<Entry<T>> old = new IntObjectMap<>();
+
+    private static final class Entry<T> {
+        final T record;   // null once deleted
+        final long seq;
+
+        Entry(T record, long seq) {
+            this.record = record;
+            this.seq = seq;
+        }
+    }
+
+    RecordCache(int maxRecords) {
+        this.generationSize = Math.max(1, maxRecords / 2);
+    }
+
+    synchronized T get(int id) {
+        Entry<T> entry = entry(id);
+        return entry == null ? null : entry.record;
+    }
+
+    // Stores record (null for a delete) unless a newer change is already here
+    synchronized boolean put(int id, T record, long seq) {
+        Entry<T> entry = entry(id);
+        if (entry != null && entry.seq > seq) {
+            return false;
+        }
+        store(id, new Entry<>(record, seq));
+        return true;
+    }
+
+    // Stores a record read by a query if nothing is cached for it yet
+    synchronized void fill(int id, T record) {
+        if (entry(id) == null) {
+            store(id, new Entry<>(record, 0));
+        }
+    }
+
+    synchronized int size() {
+        return young.size() + old.size();
+    }
+
+    private Entry<T> entry(int id) {
+        Entry<T> entry = young.get(id);
+        if (entry == null) {
+            entry = old.remove(id);
+            if (entry != null) {
+                store(id, entry);
+            }
+        }
+        return entry;
+    }
+
+    private void store(int id, Entry<T> entry) {
+        young.put(id, entry);
+        old.remove(id);
+        if (young.size() >= generationSize) {
+            old = young;
+            young = new IntObjectMap<>();
+        }
+    }
+}
+
+// Write-through cache of the rows the app has read or written. LibraryDataAccess
+// applies its own changes after each commit, ChangeFeed those of other clients;
+// either way listeners hear which rows changed.
+//
+// Changes are ordered by change-log seq. A write holds its rows' locks while it
+// logs, so a later write to the same row always logs a higher seq.
+class CatalogCache {
+    private final RecordCache<Book> books;
+    private final RecordCache<User> users;
+    private final RecordCache<Loan> loans;
+    private final RecordCache<Hold> holds;
+    private final Map<CatalogChange.Table, List<CatalogListener>> listeners =
+        new EnumMap<>(CatalogChange.Table.class);
+
+    CatalogCache(int maxRecords) {
+        books = new RecordCache<>(maxRecords);
+        users = new RecordCache<>(maxRecords);
+        loans = new RecordCache<>(maxRecords);
+        holds = new RecordCache<>(maxRecords);
+        for (CatalogChange.Table table : CatalogChange.Table.values()) {
+            listeners.put(table, new CopyOnWriteArrayList<>());
+        }
+    }
+
+    void addListener(CatalogChange.Table table, CatalogListener listener) {
+        listeners.get(table).add(listener);
+    }
+
+    // Same as addListener, but the listener runs on the EDT
+    void addEdtListener(CatalogChange.Table table, CatalogListener listener) {
+        addListener(table, change -> SwingUtilities.invokeLater(() -> listener.catalogChanged(change)));
+    }
+
+    Book book(int id) {
+        return books.get(id);
+    }
+
+    User user(int id) {
+        return users.get(id);
+    }
+
+    Loan loan(int id) {
+        return loans.get(id);
+    }
+
+    Hold hold(int id) {
+        return holds.get(id);
+    }
+
+    // Records read by queries; these raise no events
+    Book cache(Book book) {
+        books.fill(book.id, book);
+        return book;
+    }
+
+    User cache(User user) {
+        users.fill(user.id, user);
+        return user;
+    }
+
+    Loan cache(Loan loan) {
+        loans.fill(loan.id, loan);
+        return loan;
+    }
+
+    // A committed change, with the seq it was logged at (or one above): updates
+    // the cached record and tells the listeners, unless a newer change to the
+    // same record got here first. Listeners hear changes in seq order.
+    synchronized void apply(CatalogChange change, long seq) {
+        boolean newer;
+        switch (change.table) {
+            case BOOKS:
+                newer = change.kind == CatalogChange.Kind.RELOAD ||
+                    books.put(change.id, (Book) change.record, seq);
+                break;
+            case USERS:
+                newer = change.kind == CatalogChange.Kind.RELOAD ||
+                    users.put(change.id, (User) change.record, seq);
+                break;
+            case HOLDS:
+                newer = change.kind == CatalogChange.Kind.RELOAD ||
+                    holds.put(change.id, (Hold) change.record, seq);
+                break;
+            default:
+                newer = change.kind == CatalogChange.Kind.RELOAD ||
+                    loans.put(change.id, (Loan) change.record, seq);
+        }
+        if (newer) {
+            publish(change);
+        }
+    }
+
+    private void publish(CatalogChange change) {
+        for (CatalogListener listener : listeners.get(change.table)) {
+            try {
+                listener.catalogChanged(change);
+            } catch (RuntimeException e) {
+                LibraryMetrics.report("A catalog listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.Arrays;
+
+// Open-addressing hash maps keyed by primitive int, for per-row structures
+// where boxed Integer keys would dominate the heap. Integer.MIN_VALUE is
+// reserved as the empty-slot marker. Not thread-safe.
+class IntObjectMap<V> {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    IntObjectMap() {
+        this(16);
+    }
+
+    IntObjectMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+            if (keys[i] == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Reserved key");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            if (keys[i] == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+        V old = (V) values[i];
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    // Visits every entry; the map must not be modified meanwhile
+    @SuppressWarnings("unchecked")
+    void forEach(IntObjectConsumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+interface IntObjectConsumer<V> {
+    void accept(int key, V value);
+}
+
+class IntFloatMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private float[] values;
+    private int size;
+
+    IntFloatMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new float[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    float get(int key) {
+        int i = indexOf(key);
+        return i < 0 ? 0f : values[i];
+    }
+
+    // Keeps the larger of the existing and the given value
+    void putMax(int key, float value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        for (int i = IntObjectMap.mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = Math.max(values[i], value);
+                return;
+            }
+            if (keys[i] == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    void forEach(IntFloatConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private int indexOf(int key) {
+        int mask = keys.length - 1;
+        for (int i = IntObjectMap.mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        float[] oldValues = values;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new float[capacity];
+        size = 0;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                putMax(oldKeys[j], oldValues[j]);
+            }
+        }
+    }
+}
+
+interface IntFloatConsumer {
+    void accept(int key, float value);
+}
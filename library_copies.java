@@ -0,0 +1,210 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Barcode to copy for the scanner, so a hot item resolves without a round
+// trip. Bounded like RecordCache, two generations with the older dropped
+// whole when the younger fills, but reads take no lock: a read racing a
+// swap at worst misses and falls back to the unique-index lookup.
+//
+// Only a copy's identity (ID, book, barcode) is relied on from here. Its
+// status is read again, under lock, by whatever moves the copy.
+class BarcodeIndex {
+    private final int generationSize;
+    private volatile Map<String, Copy> young = new ConcurrentHashMap<>();
+    private volatile Map<String, Copy> old = new ConcurrentHashMap<>();
+
+    BarcodeIndex(int maxCopies) {
+        this.generationSize = Math.max(1, maxCopies / 2);
+    }
+
+    Copy get(String barcode) {
+        Copy copy = young.get(barcode);
+        if (copy == null) {
+            copy = old.get(barcode);
+            if (copy != null) {
+                put(copy);
+            }
+        }
+        return copy;
+    }
+
+    synchronized void put(Copy copy) {
+        young.put(copy.barcode, copy);
+        if (young.size() >= generationSize) {
+            old = young;
+            young = new ConcurrentHashMap<>();
+        }
+    }
+}
+
+// Inserting copies, shared by the repository, the import and the backfill
+final class CopyRows {
+    static final String INSERT_SQL = "INSERT INTO copies (book_id, barcode, status, location) VALUES (?, ?, ?, ?)";
+
+    private CopyRows() {
+    }
+
+    // Barcode for a copy the library has not labelled itself: <book_id>-<n>
+    static String generatedBarcode(int bookId, int n) {
+        return bookId + "-" + n;
+    }
+
+    static void add(PreparedStatement insert, int bookId, String barcode, String status, String location)
+            throws SQLException {
+        insert.setInt(1, bookId);
+        insert.setString(2, barcode);
+        insert.setString(3, status);
+        insert.setString(4, location);
+        insert.addBatch();
+    }
+
+    // Runs the batched rows of an insert prepared with generated keys and
+    // returns their copy IDs in order
+    static int[] execute(PreparedStatement insert, int rows) throws SQLException {
+        insert.executeBatch();
+        int[] ids = new int[rows];
+        int n = 0;
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            while (keys.next() && n < rows) {
+                ids[n++] = keys.getInt(1);
+            }
+        }
+        if (n != rows) {
+            throw new SQLException("Expected " + rows + " copy IDs from the driver, got " + n);
+        }
+        return ids;
+    }
+}
+
+// Gives every book without copies its copies: one ON_LOAN per open loan, one
+// ON_HOLD per READY hold and the rest of total_quantity SHELVED, with
+// generated barcodes. The counters are then rewritten from the copies, which
+// also settles any drift between them. Runs once as a schema migration and
+// after the benchmarks seed their catalogs, a page of books at a time, in the
+// caller's transaction.
+final class CopyBackfill {
+    private static final int PAGE_SIZE = 1000;
+
+    private CopyBackfill() {
+    }
+
+    // Returns how many copies were created
+    static long run(Connection conn) throws SQLException {
+        long created = 0;
+        int afterId = 0;
+        try (PreparedStatement books = conn.prepareStatement(
+                 "SELECT book_id, total_quantity FROM books WHERE book_id > ? ORDER BY book_id LIMIT ?");
+             PreparedStatement withCopies = conn.prepareStatement(
+                 "SELECT DISTINCT book_id FROM copies WHERE book_id BETWEEN ? AND ?");
+             PreparedStatement loans = conn.prepareStatement(
+                 "SELECT borrow_id, book_id FROM borrowed_books " +
+                 "WHERE book_id BETWEEN ? AND ? AND status='BORROWED' AND copy_id IS NULL");
+             PreparedStatement holds = conn.prepareStatement(
+                 "SELECT hold_id, book_id FROM holds WHERE book_id BETWEEN ? AND ? AND status='READY' AND copy_id IS NULL");
+             PreparedStatement insert = conn.prepareStatement(CopyRows.INSERT_SQL, Statement.RETURN_GENERATED_KEYS);
+             PreparedStatement loanCopy = conn.prepareStatement("UPDATE borrowed_books SET copy_id=? WHERE borrow_id=?");
+             PreparedStatement holdCopy = conn.prepareStatement("UPDATE holds SET copy_id=? WHERE hold_id=?");
+             PreparedStatement counts = conn.prepareStatement(
+                 "UPDATE books SET total_quantity=?, available_quantity=? WHERE book_id=?")) {
+            while (true) {
+                List<int[]> page = new ArrayList<>();   // {book_id, total_quantity}
+                books.setInt(1, afterId);
+                books.setInt(2, PAGE_SIZE);
+                try (ResultSet rs = books.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(new int[]{rs.getInt(1), rs.getInt(2)});
+                    }
+                }
+                if (page.isEmpty()) {
+                    return created;
+                }
+                int first = page.get(0)[0];
+                afterId = page.get(page.size() - 1)[0];
+
+                Set<Integer> done = new HashSet<>();
+                withCopies.setInt(1, first);
+                withCopies.setInt(2, afterId);
+                try (ResultSet rs = withCopies.executeQuery()) {
+                    while (rs.next()) {
+                        done.add(rs.getInt(1));
+                    }
+                }
+                Map<Integer, List<Integer>> openLoans = byBook(loans, first, afterId);
+                Map<Integer, List<Integer>> readyHolds = byBook(holds, first, afterId);
+
+                // What each inserted copy is for: a loan, a hold, or 0 for the shelf
+                List<Integer> loanOf = new ArrayList<>();
+                List<Integer> holdOf = new ArrayList<>();
+                for (int[] book : page) {
+                    int bookId = book[0];
+                    if (done.contains(bookId)) {
+                        continue;
+                    }
+                    List<Integer> lent = openLoans.getOrDefault(bookId, new ArrayList<>());
+                    List<Integer> held = readyHolds.getOrDefault(bookId, new ArrayList<>());
+                    int shelved = Math.max(0, book[1] - lent.size() - held.size());
+                    int n = 0;
+                    for (int borrowId : lent) {
+                        CopyRows.add(insert, bookId, CopyRows.generatedBarcode(bookId, ++n), Copy.ON_LOAN, null);
+                        loanOf.add(borrowId);
+                        holdOf.add(0);
+                    }
+                    for (int holdId : held) {
+                        CopyRows.add(insert, bookId, CopyRows.generatedBarcode(bookId, ++n), Copy.ON_HOLD, null);
+                        loanOf.add(0);
+                        holdOf.add(holdId);
+                    }
+                    for (int i = 0; i < shelved; i++) {
+                        CopyRows.add(insert, bookId, CopyRows.generatedBarcode(bookId, ++n), Copy.SHELVED, null);
+                        loanOf.add(0);
+                        holdOf.add(0);
+                    }
+                    counts.setInt(1, n);
+                    counts.setInt(2, shelved);
+                    counts.setInt(3, bookId);
+                    counts.addBatch();
+                }
+                if (loanOf.isEmpty()) {
+                    counts.executeBatch();
+                    continue;
+                }
+                int[] ids = CopyRows.execute(insert, loanOf.size());
+                for (int i = 0; i < ids.length; i++) {
+                    if (loanOf.get(i) != 0) {
+                        loanCopy.setInt(1, ids[i]);
+                        loanCopy.setInt(2, loanOf.get(i));
+                        loanCopy.addBatch();
+                    } else if (holdOf.get(i) != 0) {
+                        holdCopy.setInt(1, ids[i]);
+                        holdCopy.setInt(2, holdOf.get(i));
+                        holdCopy.addBatch();
+                    }
+                }
+                loanCopy.executeBatch();
+                holdCopy.executeBatch();
+                counts.executeBatch();
+                created += ids.length;
+            }
+        }
+    }
+
+    // Row IDs from a (row_id, book_id) query over a book range, grouped by book
+    private static Map<Integer, List<Integer>> byBook(PreparedStatement query, int first, int last)
+            throws SQLException {
+        Map<Integer, List<Integer>> rows = new HashMap<>();
+        query.setInt(1, first);
+        query.setInt(2, last);
+        try (ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                rows.computeIfAbsent(rs.getInt(2), id -> new ArrayList<>()).add(rs.getInt(1));
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,2147 @@
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+// The catalog operations the UI needs, independent of where the data is stored.
+// Writes complete once committed, after the cache and its listeners have seen them.
+interface LibraryRepository {
+    CatalogCache catalog();
+
+    // Creates or upgrades the schema; completes with the version it is at
+    CompletableFuture<Integer> migrateSchema();
+
+    PageSource bookPages();
+
+    PageSource searchBookPages(String search);
+
+    PageSource bookIdPages(int[] ids);
+
+    PageSource userPages();
+
+    PageSource searchUserPages(String search);
+
+    PageSource userIdPages(int[] ids);
+
+    PageSource borrowedPages();
+
+    CompletableFuture<Integer> addBook(String title, String author, String isbn, int qty);
+
+    CompletableFuture<Integer> updateBook(int bookId, String title, String author, String isbn, int qty);
+
+    CompletableFuture<Integer> deleteBook(int bookId);
+
+    CompletableFuture<Integer> addUser(String name, String email, String phone);
+
+    CompletableFuture<Integer> updateUser(int userId, String name, String email, String phone);
+
+    CompletableFuture<Integer> deleteUser(int userId);
+
+    CompletableFuture<LoanResult> checkoutBook(int bookId, int userId);
+
+    CompletableFuture<LoanResult> returnBook(int bookId, int userId);
+
+    CompletableFuture<List<LoanResult>> checkoutBooks(List<LoanRequest> items);
+
+    CompletableFuture<List<LoanResult>> returnBooks(List<LoanRequest> items);
+
+    // Checks out the copy with this barcode, if it is on the shelf or set aside for the user
+    CompletableFuture<LoanResult> checkoutCopy(String barcode, int userId);
+
+    // Closes the open loan of the copy with this barcode, whoever has it
+    CompletableFuture<LoanResult> returnCopy(String barcode);
+
+    // The copy with this barcode, or null. Hot barcodes resolve from memory
+    // without a round trip, so the status may be as last read.
+    CompletableFuture<Copy> resolveBarcode(String barcode);
+
+    // Every copy of the book, withdrawn ones included, in copy_id order
+    CompletableFuture<List<Copy>> copies(int bookId);
+
+    // Adds a copy; a null or blank barcode gets a generated one. Completes
+    // with the copy, or null if there is no such book.
+    CompletableFuture<Copy> addCopy(int bookId, String barcode, String location);
+
+    // Takes a shelved copy out of circulation; completes with it, or null if
+    // it is not on the shelf
+    CompletableFuture<Copy> withdrawCopy(int copyId);
+
+    CompletableFuture<List<ImportRow>> importBooks(List<ImportRow> rows);
+
+    // Streams whole tables to sink in key order; completes with the rows sent.
+    // With snapshot every table is read as of the same moment.
+    CompletableFuture<Long> exportTables(List<ExportTable> tables, boolean snapshot, RowSink sink);
+
+    // Open loans after afterId in borrow_id order, without title or user name
+    CompletableFuture<List<Loan>> openLoans(int afterId, int limit);
+
+    // Adds notices to the outbox; one of each kind per loan is kept
+    CompletableFuture<Void> recordNotices(List<LoanNotice> notices);
+
+    // Moves up to limit loans returned before returnedBefore, after afterId in
+    // borrow_id order, from borrowed_books to loan_archive; completes with
+    // their IDs
+    CompletableFuture<List<Integer>> archiveLoans(LocalDate returnedBefore, int afterId, int limit);
+
+    // The user's loans below beforeId, open, returned and archived alike,
+    // newest first
+    CompletableFuture<List<Loan>> userLoanHistory(int userId, int beforeId, int limit);
+
+    // The book's loans below beforeId, newest first, from both tables
+    CompletableFuture<List<Loan>> bookLoanHistory(int bookId, int beforeId, int limit);
+
+    // The topK most borrowed books today, this week and this month, the topK
+    // busiest borrowers this month and the last days days' circulation
+    CompletableFuture<CirculationReport> circulationReport(int days, int topK);
+
+    // Applies checkouts and returns taken down in a desk's LoanJournal, in
+    // order, on the dates they happened. Results line up with entries; an
+    // entry applied before (by key) is null and is not applied again.
+    CompletableFuture<List<LoanResult>> replayJournal(List<JournalEntry> entries);
+
+    // Journal entries that could not be applied and are not yet settled, newest first
+    CompletableFuture<List<JournalEntry>> journalConflicts(int limit);
+
+    // Marks a conflict as dealt with by hand; completes with whether it was one
+    CompletableFuture<Boolean> settleJournalConflict(String key);
+
+    // Joins the book's hold queue, unless a copy is free to check out now
+    CompletableFuture<HoldResult> placeHold(int bookId, int userId);
+
+    // Takes a hold out of its queue; completes with it, or null if it was not
+    // waiting or ready. A copy set aside for it goes to the next in line.
+    CompletableFuture<Hold> cancelHold(int holdId);
+
+    // Ends the READY holds not picked up by their ready_until date; completes
+    // with how many
+    CompletableFuture<Integer> expireHolds(LocalDate today);
+
+    // Waiting and ready holds after afterId in hold_id order
+    CompletableFuture<List<Hold>> activeHolds(int afterId, int limit);
+}
+
+// Open loans as kept in memory (the overdue tracker follows them all). What
+// it knows can be behind the database, so a loan found here is tried first
+// and a miss, or a loan found closed, goes to the database.
+interface OpenLoanLookup {
+    OpenLoanLookup NONE = new OpenLoanLookup() {
+        @Override
+        public Loan openLoanOfCopy(int copyId) {
+            return null;
+        }
+
+        @Override
+        public Loan openLoan(int bookId, int userId) {
+            return null;
+        }
+    };
+
+    Loan openLoanOfCopy(int copyId);
+
+    // The user's oldest open loan of the book
+    Loan openLoan(int bookId, int userId);
+}
+
+// JDBC implementation of LibraryRepository for every StorageBackend; the SQL is
+// common to MySQL and H2's MySQL mode. Runs every database round trip off the
+// Swing EDT. Reads can be keyed by the view they populate, so a newer
+// load/search cancels the one still running.
+class LibraryDataAccess implements LibraryRepository {
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+    static final int LOAN_DAYS = 14;
+    private static final int PICKUP_DAYS = 3;
+    private static final int IN_LIST_SIZE = 500;
+    private static final String IN_LIST = String.join(", ", Collections.nCopies(IN_LIST_SIZE, "?"));
+    private static final int EXPORT_FETCH_SIZE = 1000;
+    private static final int BARCODE_INDEX_SIZE = 100000;
+
+    private static final String BOOK_SELECT =
+        "SELECT book_id, title, author, isbn, total_quantity, available_quantity";
+    private static final String USER_SELECT =
+        "SELECT user_id, name, email, phone";
+    private static final String LOAN_SELECT =
+        "SELECT bb.borrow_id, bb.book_id, b.title, bb.user_id, u.name, " +
+        "bb.borrow_date, bb.due_date, bb.return_date, bb.status, bb.copy_id";
+    private static final String LOAN_FROM =
+        "FROM borrowed_books bb " +
+        "JOIN books b ON bb.book_id = b.book_id " +
+        "JOIN users u ON bb.user_id = u.user_id";
+
+    private static final String INSERT_BOOK_SQL =
+        "INSERT INTO books (title, author, isbn, total_quantity, available_quantity) " +
+        "VALUES (?, ?, ?, ?, ?)";
+    private static final String TAKE_COPY_SQL =
+        "UPDATE books SET available_quantity = available_quantity - 1 " +
+        "WHERE book_id=? AND available_quantity > 0";
+    private static final String UNDO_RELEASE_SQL =
+        "UPDATE books SET available_quantity = available_quantity - 1 WHERE book_id=?";
+    private static final String RELEASE_COPY_SQL =
+        "UPDATE books SET available_quantity = available_quantity + 1 WHERE book_id=?";
+    private static final String INSERT_LOAN_SQL =
+        "INSERT INTO borrowed_books (book_id, copy_id, user_id, borrow_date, due_date, status) " +
+        "VALUES (?, ?, ?, ?, ?, 'BORROWED')";
+    static final String FIND_LOANS_SQL =
+        "SELECT borrow_id, copy_id FROM borrowed_books " +
+        "WHERE book_id=? AND user_id=? AND status='BORROWED' ORDER BY borrow_id FOR UPDATE";
+    static final String COPY_LOAN_SQL =
+        "SELECT borrow_id FROM borrowed_books WHERE copy_id=? AND status='BORROWED' FOR UPDATE";
+    private static final String INSERT_CHANGE_SQL =
+        "INSERT INTO change_log (table_name, change_kind, row_id, origin) VALUES (?, ?, ?, ?)";
+    // Sorting on status as well, though it is fixed, lets H2 see that
+    // idx_borrowed_status is already in order and stop at LIMIT
+    static final String OPEN_LOANS_SQL =
+        "SELECT borrow_id, book_id, user_id, due_date, copy_id FROM borrowed_books " +
+        "WHERE status='BORROWED' AND borrow_id > ? ORDER BY status, borrow_id LIMIT ?";
+    private static final String INSERT_NOTICE_SQL =
+        "INSERT IGNORE INTO loan_notices (borrow_id, user_id, kind, due_date, fine_cents) VALUES (?, ?, ?, ?, ?)";
+    static final String ARCHIVABLE_LOANS_SQL =
+        "SELECT borrow_id FROM borrowed_books WHERE status='RETURNED' AND borrow_id > ? AND return_date < ? " +
+        "ORDER BY status, borrow_id LIMIT ? FOR UPDATE";
+    private static final String ARCHIVE_COLUMNS =
+        "borrow_id, book_id, copy_id, user_id, borrow_date, due_date, return_date, status";
+    // Each table's newest matches, then the newest of both. Sorting on the
+    // fixed column too lets MySQL read the index backwards and stop at LIMIT
+    // (H2 only reads indexes forwards, so it sorts the one user's or book's
+    // loans). Titles and names are left joined: archived loans can outlive
+    // their book or user.
+    private static final String HISTORY_SQL =
+        "SELECT l.borrow_id, l.book_id, b.title, l.user_id, u.name, " +
+        "l.borrow_date, l.due_date, l.return_date, l.status, l.copy_id FROM %1$s l " +
+        "LEFT JOIN books b ON l.book_id = b.book_id LEFT JOIN users u ON l.user_id = u.user_id " +
+        "WHERE l.%2$s=? AND l.borrow_id < ? ORDER BY l.%2$s DESC, l.borrow_id DESC LIMIT ?";
+    private static final String USER_HISTORY_SQL = historySql("user_id");
+    private static final String BOOK_HISTORY_SQL = historySql("book_id");
+    private static final String CLOSE_LOAN_SQL =
+        "UPDATE borrowed_books SET return_date=?, status='RETURNED' " +
+        "WHERE borrow_id=? AND status='BORROWED'";
+
+    private static final String JOURNAL_APPLIED_SQL =
+        "SELECT outcome FROM desk_journal WHERE op_key=?";
+    private static final String INSERT_JOURNAL_SQL =
+        "INSERT INTO desk_journal (op_key, kind, book_id, user_id, barcode, occurred_at, outcome, detail) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String JOURNAL_CONFLICTS_SQL =
+        "SELECT op_key, kind, book_id, user_id, barcode, occurred_at, outcome, detail FROM desk_journal " +
+        "WHERE outcome IN ('UNAVAILABLE', 'NOT_FOUND', 'REJECTED') ORDER BY occurred_at DESC LIMIT ?";
+
+    private static final String HOLD_SELECT =
+        "SELECT hold_id, book_id, user_id, status, placed_at, ready_until, copy_id FROM holds";
+    private static final String LOCK_BOOK_SQL =
+        "SELECT available_quantity FROM books WHERE book_id=? FOR UPDATE";
+    private static final String SET_ASIDE_SQL =
+        "UPDATE books SET available_quantity = available_quantity - ? WHERE book_id=?";
+    private static final String INSERT_HOLD_SQL =
+        "INSERT INTO holds (book_id, user_id, status) VALUES (?, ?, 'WAITING')";
+    private static final String NEXT_HOLDS_SQL =
+        "SELECT hold_id FROM holds WHERE book_id=? AND status='WAITING' " +
+        "ORDER BY book_id, status, hold_id LIMIT ? FOR UPDATE";
+    private static final String READY_HOLD_SQL =
+        "UPDATE holds SET status='READY', ready_until=?, copy_id=? WHERE hold_id=?";
+    private static final String FIND_READY_HOLD_SQL =
+        "SELECT hold_id FROM holds WHERE book_id=? AND status='READY' AND user_id=? " +
+        "ORDER BY book_id, status, hold_id LIMIT 1 FOR UPDATE";
+    private static final String END_HOLD_SQL =
+        "UPDATE holds SET status=? WHERE hold_id=?";
+    private static final String USER_HOLD_SQL =
+        "SELECT hold_id FROM holds WHERE book_id=? AND user_id=? AND status IN ('WAITING', 'READY')";
+    private static final String QUEUE_POSITION_SQL =
+        "SELECT COUNT(*) FROM holds WHERE book_id=? AND status='WAITING' AND hold_id <= ?";
+    private static final String ACTIVE_HOLDS_SQL = HOLD_SELECT +
+        " WHERE status IN ('WAITING', 'READY') AND hold_id > ? ORDER BY hold_id LIMIT ?";
+    private static final String EXPIRED_HOLDS_SQL =
+        "SELECT hold_id FROM holds WHERE status='READY' AND ready_until < ? ORDER BY hold_id";
+
+    private static final String COPY_SELECT =
+        "SELECT copy_id, book_id, barcode, status, location FROM copies";
+    private static final String SHELVED_COPIES_SQL =
+        "SELECT copy_id FROM copies WHERE book_id=? AND status='SHELVED' " +
+        "ORDER BY book_id, status, copy_id LIMIT ? FOR UPDATE";
+    private static final String LOCK_COPY_SQL =
+        "SELECT status FROM copies WHERE copy_id=? FOR UPDATE";
+    private static final String COPY_STATUS_SQL =
+        "UPDATE copies SET status=? WHERE copy_id=?";
+    private static final String COUNT_COPIES_SQL =
+        "SELECT COUNT(*) FROM copies WHERE book_id=?";
+    // Copies added (positive) or withdrawn (negative), all of them from the shelf
+    private static final String SHELF_COUNTS_SQL =
+        "UPDATE books SET total_quantity = total_quantity + ?, available_quantity = available_quantity + ? " +
+        "WHERE book_id=?";
+
+    private final ConnectionPool pool;
+    private final LibraryMetrics metrics;
+    private final CatalogCache cache;
+    private final String origin = UUID.randomUUID().toString();
+    private final ThreadPoolExecutor executor;
+    private final Map<String, PendingQuery<?>> latest = new ConcurrentHashMap<>();
+    private final BarcodeIndex barcodes = new BarcodeIndex(BARCODE_INDEX_SIZE);
+    private volatile IntPredicate borrowingBlocked = userId -> false;
+    private volatile OpenLoanLookup openLoans = OpenLoanLookup.NONE;
+
+    LibraryDataAccess(ConnectionPool pool, CatalogCache cache) {
+        this.pool = pool;
+        this.metrics = pool.instruments();
+        this.cache = cache;
+
+        // One worker per pooled connection; extra work queues here rather than in the pool
+        int workers = pool.maxSize();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                Thread t = new Thread(r, "library-db-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public CatalogCache catalog() {
+        return cache;
+    }
+
+    // Tags this client's rows in the change log
+    String origin() {
+        return origin;
+    }
+
+    StorageBackend backend() {
+        return pool.backend();
+    }
+
+    PoolMetrics poolMetrics() {
+        return pool.metrics();
+    }
+
+    LibraryMetrics metrics() {
+        return metrics;
+    }
+
+    // Checked before every checkout; a blocked user's checkouts come back BLOCKED
+    void setBorrowingBlocked(IntPredicate blocked) {
+        this.borrowingBlocked = blocked;
+    }
+
+    // Asked first for the loan a return closes, before borrowed_books is
+    void setOpenLoans(OpenLoanLookup lookup) {
+        this.openLoans = lookup;
+    }
+
+    // Runs work on a worker thread. A non-null key supersedes the previous
+    // query submitted with the same key. The work is metered as the named
+    // operation; work submitted without a name is metered as "query".
+    <T> CompletableFuture<T> submit(String key, SqlWork<T> work) {
+        return submit(key, "query", work);
+    }
+
+    <T> CompletableFuture<T> submit(String key, String operation, SqlWork<T> work) {
+        PendingQuery<T> query = new PendingQuery<>(metrics.operation(operation), work);
+        if (key != null) {
+            PendingQuery<?> previous = latest.put(key, query);
+            if (previous != null) {
+                previous.supersede();
+            }
+        }
+        try {
+            executor.execute(query);
+        } catch (RejectedExecutionException e) {
+            SQLException busy = new SQLTransientConnectionException("Database is busy, please try again");
+            metrics.operationFailed(query.meter, busy);
+            query.completeExceptionally(busy);
+        }
+        return query;
+    }
+
+    // Delivers the outcome on the EDT. Cancelled or superseded queries are dropped.
+    static <T> void onEdt(CompletableFuture<T> future, Consumer<? super T> onSuccess,
+                          Consumer<? super Throwable> onError) {
+        future.whenComplete((value, error) -> SwingUtilities.invokeLater(() -> {
+            if (future.isCancelled() ||
+                    (future instanceof PendingQuery && ((PendingQuery<?>) future).superseded)) {
+                return;
+            }
+            if (error != null) {
+                onError.accept(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error);
+            } else {
+                onSuccess.accept(value);
+            }
+        }));
+    }
+
+    // A session on the calling thread, for jobs that run their own threads
+    // (see CirculationBackfill); closing it returns the connection
+    SqlSession openSession() throws SQLException {
+        return new SqlSession(pool, pool.borrow());
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    @Override
+    public CompletableFuture<Integer> migrateSchema() {
+        return submit(null, "migrateSchema", session -> new SchemaMigrator(pool.backend()).migrate(session.connection()));
+    }
+
+    @Override
+    public PageSource bookPages() {
+        return new SqlPageSource(BOOK_SELECT, "FROM books", null, "book_id",
+            this::bookRow);
+    }
+
+    @Override
+    public PageSource searchBookPages(String search) {
+        String searchPattern = "%" + search + "%";
+        return new SqlPageSource(BOOK_SELECT, "FROM books",
+            "(title LIKE ? OR author LIKE ? OR isbn LIKE ?)", "book_id",
+            this::bookRow, searchPattern, searchPattern, searchPattern);
+    }
+
+    // Search hits, hydrated by ID in ranked order
+    @Override
+    public PageSource bookIdPages(int[] ids) {
+        return new IdListPageSource(ids, BOOK_SELECT + " FROM books", "book_id",
+            this::bookRow);
+    }
+
+    @Override
+    public PageSource userPages() {
+        return new SqlPageSource(USER_SELECT, "FROM users", null, "user_id",
+            this::userRow);
+    }
+
+    @Override
+    public PageSource searchUserPages(String search) {
+        String searchPattern = "%" + search + "%";
+        return new SqlPageSource(USER_SELECT, "FROM users",
+            "(name LIKE ? OR email LIKE ? OR phone LIKE ?)", "user_id",
+            this::userRow, searchPattern, searchPattern, searchPattern);
+    }
+
+    @Override
+    public PageSource userIdPages(int[] ids) {
+        return new IdListPageSource(ids, USER_SELECT + " FROM users", "user_id",
+            this::userRow);
+    }
+
+    @Override
+    public PageSource borrowedPages() {
+        return new SqlPageSource(LOAN_SELECT, LOAN_FROM, "bb.status = 'BORROWED'", "bb.borrow_id",
+            rs -> cache.cache(Loan.from(rs)).toRow())
+            .filteredBy(row -> Loan.BORROWED.equals(row[7]));
+    }
+
+    // Returns the new book's ID
+    @Override
+    public CompletableFuture<Integer> addBook(String title, String author, String isbn, int qty) {
+        return submit(null, "addBook", session -> writeTransaction(session, (s, changes) -> {
+            PreparedStatement pstmt = s.prepareReturningKeys(INSERT_BOOK_SQL);
+            pstmt.setString(1, title);
+            pstmt.setString(2, author);
+            pstmt.setString(3, isbn);
+            pstmt.setInt(4, qty);
+            pstmt.setInt(5, qty);
+            pstmt.executeUpdate();
+            int bookId = generatedKey(pstmt);
+            insertCopies(s, bookId, qty, null, null);
+            changes.add(CatalogChange.inserted(new Book(bookId, title, author, isbn, qty, qty)));
+            return bookId;
+        }));
+    }
+
+    // A new total adds generated copies, which go to waiting holds first, or
+    // withdraws shelved ones; copies out on loan or set aside cannot be
+    // withdrawn from here.
+    @Override
+    public CompletableFuture<Integer> updateBook(int bookId, String title, String author, String isbn, int qty) {
+        return submit(null, "updateBook", session -> writeTransaction(session, (s, changes) -> {
+            int available = lockBook(s, bookId);
+            if (available < 0) {
+                return 0;
+            }
+            int change = qty - readBook(s, bookId).totalQuantity;
+            if (-change > available) {
+                throw new IllegalArgumentException("Only " + available + " copies are on the shelf to withdraw");
+            }
+            PreparedStatement pstmt = s.prepare(
+                "UPDATE books SET title=?, author=?, isbn=? WHERE book_id=?");
+            pstmt.setString(1, title);
+            pstmt.setString(2, author);
+            pstmt.setString(3, isbn);
+            pstmt.setInt(4, bookId);
+            int count = pstmt.executeUpdate();
+            if (change > 0) {
+                int[] copyIds = insertCopies(s, bookId, change, null, null);
+                shelfCounts(s, bookId, change);
+                allocateCopies(s, bookId, copyIds, LocalDate.now(), changes);
+            } else if (change < 0) {
+                PreparedStatement findStmt = s.prepare(SHELVED_COPIES_SQL);
+                findStmt.setInt(1, bookId);
+                findStmt.setInt(2, -change);
+                PreparedStatement withdrawStmt = s.prepare(COPY_STATUS_SQL);
+                try (ResultSet rs = findStmt.executeQuery()) {
+                    while (rs.next()) {
+                        withdrawStmt.setString(1, Copy.WITHDRAWN);
+                        withdrawStmt.setInt(2, rs.getInt(1));
+                        withdrawStmt.addBatch();
+                    }
+                }
+                withdrawStmt.executeBatch();
+                shelfCounts(s, bookId, change);
+            }
+            changes.add(CatalogChange.updated(readBook(s, bookId)));
+            return count;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Integer> deleteBook(int bookId) {
+        return submit(null, "deleteBook", session -> writeTransaction(session, (s, changes) -> {
+            // A book with loans or holds on record still fails on their foreign keys
+            PreparedStatement copiesStmt = s.prepare("DELETE FROM copies WHERE book_id=?");
+            copiesStmt.setInt(1, bookId);
+            copiesStmt.executeUpdate();
+            PreparedStatement pstmt = s.prepare("DELETE FROM books WHERE book_id=?");
+            pstmt.setInt(1, bookId);
+            int count = pstmt.executeUpdate();
+            if (count > 0) {
+                changes.add(CatalogChange.deleted(CatalogChange.Table.BOOKS, bookId));
+            }
+            return count;
+        }));
+    }
+
+    // Returns the new user's ID
+    @Override
+    public CompletableFuture<Integer> addUser(String name, String email, String phone) {
+        return submit(null, "addUser", session -> writeTransaction(session, (s, changes) -> {
+            PreparedStatement pstmt = s.prepareReturningKeys(
+                "INSERT INTO users (name, email, phone) VALUES (?, ?, ?)");
+            pstmt.setString(1, name);
+            pstmt.setString(2, email);
+            pstmt.setString(3, phone);
+            pstmt.executeUpdate();
+            int userId = generatedKey(pstmt);
+            changes.add(CatalogChange.inserted(new User(userId, name, email, phone)));
+            return userId;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Integer> updateUser(int userId, String name, String email, String phone) {
+        return submit(null, "updateUser", session -> writeTransaction(session, (s, changes) -> {
+            PreparedStatement pstmt = s.prepare(
+                "UPDATE users SET name=?, email=?, phone=? WHERE user_id=?");
+            pstmt.setString(1, name);
+            pstmt.setString(2, email);
+            pstmt.setString(3, phone);
+            pstmt.setInt(4, userId);
+            int count = pstmt.executeUpdate();
+            if (count > 0) {
+                changes.add(CatalogChange.updated(new User(userId, name, email, phone)));
+            }
+            return count;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Integer> deleteUser(int userId) {
+        return submit(null, "deleteUser", session -> writeTransaction(session, (s, changes) -> {
+            PreparedStatement pstmt = s.prepare("DELETE FROM users WHERE user_id=?");
+            pstmt.setInt(1, userId);
+            int count = pstmt.executeUpdate();
+            if (count > 0) {
+                changes.add(CatalogChange.deleted(CatalogChange.Table.USERS, userId));
+            }
+            return count;
+        }));
+    }
+
+    // Takes a copy with a conditional decrement, so two desks can never both get
+    // the last one, and records the loan in the same transaction; the
+    // decrement also locks the book row, under which the lowest shelved copy
+    // is picked. Copies set aside for holds are not counted as available. A
+    // user with a READY hold on the book gets the copy set aside for them,
+    // and the count taken from the shelf goes back (no hold can be waiting
+    // while a copy is there).
+    @Override
+    public CompletableFuture<LoanResult> checkoutBook(int bookId, int userId) {
+        if (borrowingBlocked.test(userId)) {
+            return CompletableFuture.completedFuture(LoanResult.BLOCKED);
+        }
+        return submit(null, "checkoutBook", session -> writeTransaction(session, (s, changes) ->
+            checkoutBook(s, bookId, userId, LocalDate.now(), changes)));
+    }
+
+    private LoanResult checkoutBook(SqlSession s, int bookId, int userId, LocalDate today,
+                                    List<CatalogChange> changes) throws SQLException {
+        PreparedStatement updateStmt = s.prepare(TAKE_COPY_SQL);
+        updateStmt.setInt(1, bookId);
+        boolean taken = updateStmt.executeUpdate() > 0;
+        Hold claimed = claimHold(s, bookId, userId, changes);
+        if (claimed == null && !taken) {
+            return bookExists(s, bookId) ? LoanResult.UNAVAILABLE : LoanResult.NOT_FOUND;
+        }
+        int copyId;
+        if (claimed != null) {
+            copyId = claimed.copyId;
+            if (taken) {
+                PreparedStatement releaseStmt = s.prepare(RELEASE_COPY_SQL);
+                releaseStmt.setInt(1, bookId);
+                releaseStmt.executeUpdate();
+            }
+        } else {
+            copyId = shelvedCopy(s, bookId);
+        }
+        setCopyStatus(s, copyId, Copy.ON_LOAN);
+        return lend(s, bookId, copyId, userId, claimed, today, changes);
+    }
+
+    // Locks the book row before the copy, as every other path does. A
+    // shelved copy is lent (and a READY hold the user has on the book is
+    // fulfilled, its set-aside copy going back on the shelf); a copy set
+    // aside is lent only to the user whose hold it is waiting for.
+    @Override
+    public CompletableFuture<LoanResult> checkoutCopy(String barcode, int userId) {
+        if (borrowingBlocked.test(userId)) {
+            return CompletableFuture.completedFuture(LoanResult.BLOCKED);
+        }
+        return submit(null, "checkoutCopy", session -> writeTransaction(session, (s, changes) ->
+            checkoutCopy(s, barcode, userId, LocalDate.now(), changes)));
+    }
+
+    private LoanResult checkoutCopy(SqlSession s, String barcode, int userId, LocalDate today,
+                                    List<CatalogChange> changes) throws SQLException {
+        Copy copy = findCopy(s, barcode);
+        if (copy == null || !userExists(s, userId)) {
+            return LoanResult.NOT_FOUND;
+        }
+        lockBook(s, copy.bookId);
+        String status = copyStatus(s, copy.id);
+        Hold ready = readyHold(s, copy.bookId, userId);
+        boolean setAsideForUser = ready != null && ready.copyId == copy.id;
+        if (!Copy.SHELVED.equals(status) && !setAsideForUser) {
+            return LoanResult.UNAVAILABLE;
+        }
+        if (Copy.SHELVED.equals(status)) {
+            PreparedStatement takeStmt = s.prepare(TAKE_COPY_SQL);
+            takeStmt.setInt(1, copy.bookId);
+            if (takeStmt.executeUpdate() == 0) {
+                return LoanResult.UNAVAILABLE;   // the count says none on the shelf; lend nothing, as checkoutBook
+            }
+            if (ready != null) {
+                setCopyStatus(s, ready.copyId, Copy.SHELVED);
+                PreparedStatement releaseStmt = s.prepare(RELEASE_COPY_SQL);
+                releaseStmt.setInt(1, copy.bookId);
+                releaseStmt.executeUpdate();
+            }
+        }
+        Hold claimed = ready == null ? null : fulfilHold(s, ready.id, changes);
+        setCopyStatus(s, copy.id, Copy.ON_LOAN);
+        return lend(s, copy.bookId, copy.id, userId, claimed, today, changes);
+    }
+
+    // Inserts the loan of a copy already marked ON_LOAN, lent on today
+    private LoanResult lend(SqlSession s, int bookId, int copyId, int userId, Hold claimed,
+                            LocalDate today, List<CatalogChange> changes) throws SQLException {
+        LocalDate dueDate = today.plusDays(LOAN_DAYS);
+        PreparedStatement borrowStmt = s.prepareReturningKeys(INSERT_LOAN_SQL);
+        borrowStmt.setInt(1, bookId);
+        borrowStmt.setInt(2, copyId);
+        borrowStmt.setInt(3, userId);
+        borrowStmt.setDate(4, Date.valueOf(today));
+        borrowStmt.setDate(5, Date.valueOf(dueDate));
+        borrowStmt.executeUpdate();
+        LoanCounts counts = new LoanCounts();
+        counts.checkout(bookId, userId, today);
+        counts.write(s, pool.backend());
+        LoanResult result = LoanResult.ok(dueDate, readLoan(s, generatedKey(borrowStmt)),
+            readBook(s, bookId), claimed);
+        addLoanChanges(changes, Collections.singletonList(result), true);
+        return result;
+    }
+
+    // Locks the book row first, like checkout, so the two never deadlock on lock
+    // order. The returned copy goes to the oldest waiting hold, if there is one,
+    // before the lock is let go.
+    @Override
+    public CompletableFuture<LoanResult> returnBook(int bookId, int userId) {
+        return submit(null, "returnBook", session -> writeTransaction(session, (s, changes) ->
+            returnBook(s, bookId, userId, LocalDate.now(), changes)));
+    }
+
+    private LoanResult returnBook(SqlSession s, int bookId, int userId, LocalDate today,
+                                  List<CatalogChange> changes) throws SQLException {
+        PreparedStatement updateBookStmt = s.prepare(RELEASE_COPY_SQL);
+        updateBookStmt.setInt(1, bookId);
+        if (updateBookStmt.executeUpdate() == 0) {
+            return LoanResult.NOT_FOUND;
+        }
+
+        Loan known = openLoans.openLoan(bookId, userId);
+        if (known != null && closeLoanRow(s, known.id, today)) {
+            return closeLoan(s, bookId, known.id, known.copyId, today, changes);
+        }
+
+        // Find active borrow record
+        PreparedStatement findStmt = s.prepare(FIND_LOANS_SQL);
+        findStmt.setInt(1, bookId);
+        findStmt.setInt(2, userId);
+        ResultSet rs = findStmt.executeQuery();
+        if (!rs.next()) {
+            s.connection().rollback();
+            return LoanResult.NOT_FOUND;
+        }
+        int borrowId = rs.getInt("borrow_id");
+        int copyId = rs.getInt("copy_id");
+        rs.close();
+
+        if (!closeLoanRow(s, borrowId, today)) {
+            s.connection().rollback();
+            return LoanResult.NOT_FOUND;
+        }
+        return closeLoan(s, bookId, borrowId, copyId, today, changes);
+    }
+
+    // Needs no user: the copy's open loan is closed, whoever has it
+    @Override
+    public CompletableFuture<LoanResult> returnCopy(String barcode) {
+        return submit(null, "returnCopy", session -> writeTransaction(session, (s, changes) ->
+            returnCopy(s, barcode, LocalDate.now(), changes)));
+    }
+
+    private LoanResult returnCopy(SqlSession s, String barcode, LocalDate today,
+                                  List<CatalogChange> changes) throws SQLException {
+        Copy copy = findCopy(s, barcode);
+        if (copy == null) {
+            return LoanResult.NOT_FOUND;
+        }
+        PreparedStatement updateBookStmt = s.prepare(RELEASE_COPY_SQL);
+        updateBookStmt.setInt(1, copy.bookId);
+        updateBookStmt.executeUpdate();
+        Loan known = openLoans.openLoanOfCopy(copy.id);
+        if (known != null && closeLoanRow(s, known.id, today)) {
+            return closeLoan(s, copy.bookId, known.id, copy.id, today, changes);
+        }
+        PreparedStatement findStmt = s.prepare(COPY_LOAN_SQL);
+        findStmt.setInt(1, copy.id);
+        int borrowId;
+        try (ResultSet rs = findStmt.executeQuery()) {
+            if (!rs.next()) {
+                s.connection().rollback();
+                return LoanResult.NOT_FOUND;
+            }
+            borrowId = rs.getInt(1);
+        }
+        closeLoanRow(s, borrowId, today);
+        return closeLoan(s, copy.bookId, borrowId, copy.id, today, changes);
+    }
+
+    // Marks the loan returned today, if it is still open
+    private static boolean closeLoanRow(SqlSession s, int borrowId, LocalDate today) throws SQLException {
+        PreparedStatement pstmt = s.prepare(CLOSE_LOAN_SQL);
+        pstmt.setDate(1, Date.valueOf(today));
+        pstmt.setInt(2, borrowId);
+        return pstmt.executeUpdate() > 0;
+    }
+
+    // After a loan is closed on today and its count released: the copy goes to
+    // the oldest waiting hold or back on the shelf
+    private LoanResult closeLoan(SqlSession s, int bookId, int borrowId, int copyId, LocalDate today,
+                                 List<CatalogChange> changes) throws SQLException {
+        List<Hold> allocated = allocateCopies(s, bookId, new int[]{copyId}, today, changes);
+        LoanResult result = LoanResult.ok(null, readLoan(s, borrowId), readBook(s, bookId),
+            allocated.isEmpty() ? null : allocated.get(0));
+        countReturns(s, Collections.singletonList(result));
+        addLoanChanges(changes, Collections.singletonList(result), false);
+        return result;
+    }
+
+    // Checks out a stack of items in one transaction with batched writes.
+    // Results line up with items; an unknown book or user is NOT_FOUND, and
+    // a user with too many overdue loans BLOCKED.
+    @Override
+    public CompletableFuture<List<LoanResult>> checkoutBooks(List<LoanRequest> items) {
+        return submit(null, "checkoutBooks", session -> writeTransaction(session, (s, changes) -> {
+            LoanResult[] results = new LoanResult[items.size()];
+            Map<Integer, Boolean> knownUsers = new HashMap<>();
+            List<Integer> batched = new ArrayList<>();
+            PreparedStatement updateStmt = s.prepare(TAKE_COPY_SQL);
+            for (int i = 0; i < items.size(); i++) {
+                LoanRequest item = items.get(i);
+                Boolean known = knownUsers.get(item.userId);
+                if (known == null) {
+                    known = userExists(s, item.userId);
+                    knownUsers.put(item.userId, known);
+                }
+                if (!known) {
+                    results[i] = LoanResult.NOT_FOUND;
+                    continue;
+                }
+                if (borrowingBlocked.test(item.userId)) {
+                    results[i] = LoanResult.BLOCKED;
+                    continue;
+                }
+                updateStmt.setInt(1, item.bookId);
+                updateStmt.addBatch();
+                batched.add(i);
+            }
+            int[] counts = executeBatch(s, updateStmt, batched.size(),
+                k -> updateStmt.setInt(1, items.get(batched.get(k)).bookId));
+
+            LocalDate today = LocalDate.now();
+            LocalDate dueDate = today.plusDays(LOAN_DAYS);
+            PreparedStatement borrowStmt = s.prepareReturningKeys(INSERT_LOAN_SQL);
+            List<Integer> taken = new ArrayList<>();
+            Hold[] claimed = new Hold[items.size()];
+            List<Integer> putBack = new ArrayList<>();
+            for (int k = 0; k < counts.length; k++) {
+                int i = batched.get(k);
+                LoanRequest item = items.get(i);
+                claimed[i] = claimHold(s, item.bookId, item.userId, changes);
+                if (claimed[i] == null && counts[k] == 0) {
+                    results[i] = bookExists(s, item.bookId) ? LoanResult.UNAVAILABLE : LoanResult.NOT_FOUND;
+                    continue;
+                }
+                if (claimed[i] != null && counts[k] > 0) {
+                    putBack.add(item.bookId);
+                }
+                // Marked at once so the next item for the same book picks another copy
+                int copyId = claimed[i] != null ? claimed[i].copyId : shelvedCopy(s, item.bookId);
+                setCopyStatus(s, copyId, Copy.ON_LOAN);
+                borrowStmt.setInt(1, item.bookId);
+                borrowStmt.setInt(2, copyId);
+                borrowStmt.setInt(3, item.userId);
+                borrowStmt.setDate(4, Date.valueOf(today));
+                borrowStmt.setDate(5, Date.valueOf(dueDate));
+                borrowStmt.addBatch();
+                taken.add(i);
+            }
+            // Shelf copies taken by users who collected a hold instead
+            if (!putBack.isEmpty()) {
+                PreparedStatement releaseStmt = s.prepare(RELEASE_COPY_SQL);
+                for (int bookId : putBack) {
+                    releaseStmt.setInt(1, bookId);
+                    releaseStmt.addBatch();
+                }
+                releaseStmt.executeBatch();
+            }
+            if (taken.isEmpty()) {
+                return Arrays.asList(results);
+            }
+            borrowStmt.executeBatch();
+            LoanCounts loanCounts = new LoanCounts();
+            for (int i : taken) {
+                loanCounts.checkout(items.get(i).bookId, items.get(i).userId, today);
+            }
+            loanCounts.write(s, pool.backend());
+
+            // Keys of a batch come back in order where the driver reports them;
+            // without them the loans are left for views to re-read
+            List<Integer> borrowIds = generatedKeys(borrowStmt);
+            Map<Integer, Book> books = new HashMap<>();
+            for (int t = 0; t < taken.size(); t++) {
+                int i = taken.get(t);
+                int bookId = items.get(i).bookId;
+                Loan loan = borrowIds.size() == taken.size() ? readLoan(s, borrowIds.get(t)) : null;
+                if (!books.containsKey(bookId)) {
+                    books.put(bookId, readBook(s, bookId));
+                }
+                results[i] = LoanResult.ok(dueDate, loan, books.get(bookId), claimed[i]);
+            }
+            List<LoanResult> all = Arrays.asList(results);
+            addLoanChanges(changes, all, true);
+            return all;
+        }));
+    }
+
+    // Returns a stack of items in one transaction with batched writes.
+    // Results line up with items; an item with no open loan is NOT_FOUND.
+    // Returned copies go to waiting holds as in returnBook.
+    @Override
+    public CompletableFuture<List<LoanResult>> returnBooks(List<LoanRequest> items) {
+        return submit(null, "returnBooks", session -> writeTransaction(session, (s, changes) -> {
+            LoanResult[] results = new LoanResult[items.size()];
+            PreparedStatement updateBookStmt = s.prepare(RELEASE_COPY_SQL);
+            for (LoanRequest item : items) {
+                updateBookStmt.setInt(1, item.bookId);
+                updateBookStmt.addBatch();
+            }
+            int[] counts = executeBatch(s, updateBookStmt, items.size(),
+                k -> updateBookStmt.setInt(1, items.get(k).bookId));
+
+            Set<Integer> closing = new HashSet<>();
+            int[] borrowIds = new int[items.size()];
+            int[] copyIds = new int[items.size()];
+            List<Integer> noLoan = new ArrayList<>();
+            PreparedStatement findStmt = s.prepare(FIND_LOANS_SQL);
+            PreparedStatement updateBorrowStmt = s.prepare(CLOSE_LOAN_SQL);
+            Date today = Date.valueOf(LocalDate.now());
+            for (int i = 0; i < items.size(); i++) {
+                LoanRequest item = items.get(i);
+                borrowIds[i] = -1;
+                if (counts[i] == 0) {
+                    results[i] = LoanResult.NOT_FOUND;
+                    continue;
+                }
+                findStmt.setInt(1, item.bookId);
+                findStmt.setInt(2, item.userId);
+                int borrowId = -1;
+                try (ResultSet rs = findStmt.executeQuery()) {
+                    // The same pair may appear twice in one stack; close a different loan each time
+                    while (rs.next() && borrowId < 0) {
+                        if (closing.add(rs.getInt("borrow_id"))) {
+                            borrowId = rs.getInt("borrow_id");
+                            copyIds[i] = rs.getInt("copy_id");
+                        }
+                    }
+                }
+                if (borrowId < 0) {
+                    results[i] = LoanResult.NOT_FOUND;
+                    noLoan.add(item.bookId);
+                    continue;
+                }
+                borrowIds[i] = borrowId;
+                updateBorrowStmt.setDate(1, today);
+                updateBorrowStmt.setInt(2, borrowId);
+                updateBorrowStmt.addBatch();
+            }
+            if (!closing.isEmpty()) {
+                updateBorrowStmt.executeBatch();
+            }
+
+            // Undo the increment for items that turned out to have no open loan
+            if (!noLoan.isEmpty()) {
+                PreparedStatement undoStmt = s.prepare(UNDO_RELEASE_SQL);
+                for (int bookId : noLoan) {
+                    undoStmt.setInt(1, bookId);
+                    undoStmt.addBatch();
+                }
+                undoStmt.executeBatch();
+            }
+
+            Map<Integer, List<Integer>> returned = new LinkedHashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                if (borrowIds[i] >= 0) {
+                    returned.computeIfAbsent(items.get(i).bookId, id -> new ArrayList<>()).add(copyIds[i]);
+                }
+            }
+            Map<Integer, Iterator<Hold>> allocated = new HashMap<>();
+            for (Map.Entry<Integer, List<Integer>> entry : returned.entrySet()) {
+                int[] copies = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+                allocated.put(entry.getKey(), allocateCopies(s, entry.getKey(), copies, today.toLocalDate(), changes)
+                    .iterator());
+            }
+
+            Map<Integer, Book> books = new HashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                if (borrowIds[i] < 0) {
+                    continue;
+                }
+                int bookId = items.get(i).bookId;
+                if (!books.containsKey(bookId)) {
+                    books.put(bookId, readBook(s, bookId));
+                }
+                Iterator<Hold> holds = allocated.get(bookId);
+                results[i] = LoanResult.ok(null, readLoan(s, borrowIds[i]), books.get(bookId),
+                    holds.hasNext() ? holds.next() : null);
+            }
+            List<LoanResult> all = Arrays.asList(results);
+            countReturns(s, all);
+            addLoanChanges(changes, all, false);
+            return all;
+        }));
+    }
+
+    // Adds the loans just closed to the circulation counts; a loan returned
+    // after its due date is also a late return
+    private void countReturns(SqlSession s, List<LoanResult> results) throws SQLException {
+        LoanCounts counts = new LoanCounts();
+        for (LoanResult result : results) {
+            if (result.status == LoanResult.Status.OK && result.loan != null) {
+                Loan loan = result.loan;
+                counts.returned(loan.bookId, loan.userId, loan.returnDate.toLocalDate(),
+                    loan.dueDate != null && loan.returnDate.after(loan.dueDate));
+            }
+        }
+        counts.write(s, pool.backend());
+    }
+
+    private static void addLoanChanges(List<CatalogChange> changes, List<LoanResult> results,
+                                       boolean checkout) {
+        Set<Integer> books = new HashSet<>();
+        boolean loansUnknown = false;
+        for (LoanResult result : results) {
+            if (result.status != LoanResult.Status.OK) {
+                continue;
+            }
+            if (result.book != null && books.add(result.book.id)) {
+                changes.add(CatalogChange.updated(result.book));
+            }
+            if (result.loan == null) {
+                loansUnknown = true;
+            } else {
+                changes.add(checkout ? CatalogChange.inserted(result.loan) : CatalogChange.updated(result.loan));
+            }
+        }
+        if (loansUnknown) {
+            changes.add(CatalogChange.reload(CatalogChange.Table.LOANS));
+        }
+    }
+
+    // Adds, in one transaction, the books whose ISBN is not in the catalog yet
+    // and returns the rows skipped as duplicates, including repeats within
+    // rows. Rows without an ISBN are always added. Each book gets quantity shelved copies.
+    @Override
+    public CompletableFuture<List<ImportRow>> importBooks(List<ImportRow> rows) {
+        return submit(null, "importBooks", session -> writeTransaction(session, (s, changes) -> {
+            Set<String> isbns = existingIsbns(s, rows);
+            List<ImportRow> added = new ArrayList<>(rows.size());
+            List<ImportRow> duplicates = new ArrayList<>();
+            for (ImportRow row : rows) {
+                if (row.isbn == null || isbns.add(row.isbn)) {
+                    added.add(row);
+                } else {
+                    duplicates.add(row);
+                }
+            }
+            if (added.isEmpty()) {
+                return duplicates;
+            }
+            PreparedStatement pstmt = s.prepareReturningKeys(INSERT_BOOK_SQL);
+            for (ImportRow row : added) {
+                pstmt.setString(1, row.title);
+                pstmt.setString(2, row.author);
+                pstmt.setString(3, row.isbn);
+                pstmt.setInt(4, row.quantity);
+                pstmt.setInt(5, row.quantity);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            // Every book gets its copies, so the keys are needed here
+            List<Integer> bookIds = generatedKeys(pstmt);
+            if (bookIds.size() != added.size()) {
+                throw new SQLException("The driver did not report the new book IDs, so copies cannot be added");
+            }
+            PreparedStatement copyStmt = s.prepare(CopyRows.INSERT_SQL);
+            for (int i = 0; i < added.size(); i++) {
+                ImportRow row = added.get(i);
+                int bookId = bookIds.get(i);
+                for (int n = 1; n <= row.quantity; n++) {
+                    CopyRows.add(copyStmt, bookId, CopyRows.generatedBarcode(bookId, n), Copy.SHELVED, null);
+                }
+                changes.add(CatalogChange.inserted(new Book(bookId, row.title, row.author,
+                    row.isbn, row.quantity, row.quantity)));
+            }
+            copyStmt.executeBatch();
+            return duplicates;
+        }));
+    }
+
+    private static Set<String> existingIsbns(SqlSession session, List<ImportRow> rows) throws SQLException {
+        List<String> isbns = new ArrayList<>();
+        for (ImportRow row : rows) {
+            if (row.isbn != null) {
+                isbns.add(row.isbn);
+            }
+        }
+        Set<String> existing = new HashSet<>();
+        for (int from = 0; from < isbns.size(); from += IN_LIST_SIZE) {
+            List<String> part = isbns.subList(from, Math.min(isbns.size(), from + IN_LIST_SIZE));
+            // Padded with the last ISBN so every chunk is the one cached statement
+            PreparedStatement pstmt = session.prepare("SELECT isbn FROM books WHERE isbn IN (" + IN_LIST + ")");
+            for (int i = 0; i < IN_LIST_SIZE; i++) {
+                pstmt.setString(i + 1, part.get(Math.min(i, part.size() - 1)));
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString(1));
+                }
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public CompletableFuture<List<Loan>> openLoans(int afterId, int limit) {
+        return submit(null, "openLoans", session -> {
+            PreparedStatement pstmt = session.prepare(OPEN_LOANS_SQL);
+            pstmt.setInt(1, afterId);
+            pstmt.setInt(2, limit);
+            List<Loan> loans = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    loans.add(new Loan(rs.getInt(1), rs.getInt(2), null, rs.getInt(3), null,
+                        null, rs.getDate(4), null, Loan.BORROWED, rs.getInt(5)));
+                }
+            }
+            return loans;
+        });
+    }
+
+    // INSERT IGNORE skips notices another client has already recorded
+    @Override
+    public CompletableFuture<Void> recordNotices(List<LoanNotice> notices) {
+        return submit(null, "recordNotices", session -> inTransaction(session, s -> {
+            PreparedStatement pstmt = s.prepare(INSERT_NOTICE_SQL);
+            for (LoanNotice notice : notices) {
+                pstmt.setInt(1, notice.borrowId);
+                pstmt.setInt(2, notice.userId);
+                pstmt.setString(3, notice.kind.name());
+                pstmt.setDate(4, Date.valueOf(notice.dueDate));
+                pstmt.setInt(5, notice.fineCents);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            return null;
+        }));
+    }
+
+    // One short transaction per chunk. Rows are picked through the returned
+    // end of idx_borrowed_status and moved by ID, so only the returned loans
+    // moving are locked and checkouts and returns carry on meanwhile. Nothing
+    // goes to the change log: a returned loan does not change by moving, and
+    // the lists desks keep show open loans only. INSERT IGNORE lets a chunk
+    // race another client's archiver harmlessly.
+    @Override
+    public CompletableFuture<List<Integer>> archiveLoans(LocalDate returnedBefore, int afterId, int limit) {
+        return submit(null, "archiveLoans", session -> inTransaction(session, s -> {
+            PreparedStatement findStmt = s.prepare(ARCHIVABLE_LOANS_SQL);
+            findStmt.setInt(1, afterId);
+            findStmt.setDate(2, Date.valueOf(returnedBefore));
+            findStmt.setInt(3, limit);
+            List<Integer> ids = new ArrayList<>();
+            try (ResultSet rs = findStmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+            for (int from = 0; from < ids.size(); from += IN_LIST_SIZE) {
+                List<Integer> part = ids.subList(from, Math.min(ids.size(), from + IN_LIST_SIZE));
+                // Padded with the last ID so every chunk reuses the same two cached statements
+                String in = "borrow_id IN (" + IN_LIST + ")";
+                PreparedStatement copyStmt = s.prepare("INSERT IGNORE INTO loan_archive (" + ARCHIVE_COLUMNS + ") " +
+                    "SELECT " + ARCHIVE_COLUMNS + " FROM borrowed_books WHERE " + in);
+                PreparedStatement deleteStmt = s.prepare(
+                    "DELETE FROM borrowed_books WHERE status='RETURNED' AND " + in);
+                for (int i = 0; i < IN_LIST_SIZE; i++) {
+                    int id = part.get(Math.min(i, part.size() - 1));
+                    copyStmt.setInt(i + 1, id);
+                    deleteStmt.setInt(i + 1, id);
+                }
+                copyStmt.executeUpdate();
+                deleteStmt.executeUpdate();
+            }
+            return ids;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<Loan>> userLoanHistory(int userId, int beforeId, int limit) {
+        return submit(null, "userLoanHistory", session -> loanHistory(session, USER_HISTORY_SQL, userId, beforeId, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<Loan>> bookLoanHistory(int bookId, int beforeId, int limit) {
+        return submit(null, "bookLoanHistory", session -> loanHistory(session, BOOK_HISTORY_SQL, bookId, beforeId, limit));
+    }
+
+    // Read from the circulation counts, never the loan history
+    @Override
+    public CompletableFuture<CirculationReport> circulationReport(int days, int topK) {
+        return submit("reports", "circulationReport", session ->
+            CirculationReport.read(session, LocalDate.now(), days, topK));
+    }
+
+    // Each entry is its own transaction, with its desk_journal row written in
+    // it, so a conflict or failure leaves the entries before it applied and
+    // a later replay of an applied entry finds the row and skips it. Entries
+    // are not checked against the overdue block: the desk did that when the
+    // loan was made. A constraint violation is either the same entry applied
+    // at that moment by another replay (a desk restored from a copy of its
+    // journal) or a real refusal, such as a user deleted since; the latter is
+    // recorded as REJECTED so it cannot hold up the entries behind it. Any
+    // other error ends the batch, to be tried again.
+    @Override
+    public CompletableFuture<List<LoanResult>> replayJournal(List<JournalEntry> entries) {
+        return submit(null, "replayJournal", session -> {
+            List<LoanResult> results = new ArrayList<>();
+            for (JournalEntry entry : entries) {
+                LoanResult result;
+                try {
+                    result = writeTransaction(session, (s, changes) -> replay(s, entry, changes));
+                } catch (SQLIntegrityConstraintViolationException | SQLDataException e) {
+                    result = inTransaction(session, s -> journalApplied(s, entry) ? null
+                        : recordJournalEntry(s, entry, LoanResult.NOT_FOUND, "REJECTED", e.getMessage()));
+                }
+                results.add(result);
+            }
+            return results;
+        });
+    }
+
+    private LoanResult replay(SqlSession s, JournalEntry entry, List<CatalogChange> changes) throws SQLException {
+        if (journalApplied(s, entry)) {
+            return null;
+        }
+        LocalDate day = entry.day();
+        LoanResult result;
+        switch (entry.kind) {
+            case CHECKOUT_BOOK:
+                result = checkoutBook(s, entry.bookId, entry.userId, day, changes);
+                break;
+            case CHECKOUT_COPY:
+                result = checkoutCopy(s, entry.barcode, entry.userId, day, changes);
+                break;
+            case RETURN_BOOK:
+                result = returnBook(s, entry.bookId, entry.userId, day, changes);
+                break;
+            default:
+                result = returnCopy(s, entry.barcode, day, changes);
+        }
+        return recordJournalEntry(s, entry, result, result.status.name(), null);
+    }
+
+    private static boolean journalApplied(SqlSession s, JournalEntry entry) throws SQLException {
+        PreparedStatement appliedStmt = s.prepare(JOURNAL_APPLIED_SQL);
+        appliedStmt.setString(1, entry.key);
+        try (ResultSet rs = appliedStmt.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    private static LoanResult recordJournalEntry(SqlSession s, JournalEntry entry, LoanResult result,
+                                                 String outcome, String detail) throws SQLException {
+        PreparedStatement recordStmt = s.prepare(INSERT_JOURNAL_SQL);
+        recordStmt.setString(1, entry.key);
+        recordStmt.setString(2, entry.kind.name());
+        recordStmt.setInt(3, entry.bookId);
+        recordStmt.setInt(4, entry.userId);
+        recordStmt.setString(5, entry.barcode);
+        recordStmt.setTimestamp(6, new Timestamp(entry.occurredAt));
+        recordStmt.setString(7, outcome);
+        if (detail != null) {
+            detail = detail.split("\n", 2)[0];   // the message, not the statement drivers append
+            detail = detail.length() <= 255 ? detail : detail.substring(0, 255);
+        }
+        recordStmt.setString(8, detail);
+        recordStmt.executeUpdate();
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<List<JournalEntry>> journalConflicts(int limit) {
+        return submit("journalConflicts", "journalConflicts", session -> {
+            PreparedStatement pstmt = session.prepare(JOURNAL_CONFLICTS_SQL);
+            pstmt.setInt(1, limit);
+            List<JournalEntry> conflicts = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    conflicts.add(JournalEntry.from(rs));
+                }
+            }
+            return conflicts;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> settleJournalConflict(String key) {
+        return submit(null, "settleJournalConflict", session -> {
+            PreparedStatement pstmt = session.prepare(
+                "UPDATE desk_journal SET outcome='SETTLED' WHERE op_key=? AND outcome IN ('UNAVAILABLE', 'NOT_FOUND', 'REJECTED')");
+            pstmt.setString(1, key);
+            return pstmt.executeUpdate() > 0;
+        });
+    }
+
+    // Both tables are read by one statement, so a loan being archived
+    // meanwhile is seen in exactly one of them
+    private static List<Loan> loanHistory(SqlSession session, String sql, int id, int beforeId, int limit)
+            throws SQLException {
+        PreparedStatement pstmt = session.prepare(sql);
+        for (int branch = 0; branch < 2; branch++) {
+            pstmt.setInt(branch * 3 + 1, id);
+            pstmt.setInt(branch * 3 + 2, beforeId);
+            pstmt.setInt(branch * 3 + 3, limit);
+        }
+        pstmt.setInt(7, limit);
+        List<Loan> loans = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                loans.add(Loan.from(rs));
+            }
+        }
+        return loans;
+    }
+
+    private static String historySql(String column) {
+        return "(" + String.format(HISTORY_SQL, "borrowed_books", column) + ") UNION ALL (" +
+            String.format(HISTORY_SQL, "loan_archive", column) + ") ORDER BY borrow_id DESC LIMIT ?";
+    }
+
+    // The book row is locked before the queue is read, as on return, so a
+    // copy coming back either is seen as available here or finds this hold
+    // waiting; it cannot slip past both.
+    @Override
+    public CompletableFuture<HoldResult> placeHold(int bookId, int userId) {
+        if (borrowingBlocked.test(userId)) {
+            return CompletableFuture.completedFuture(HoldResult.BLOCKED);
+        }
+        return submit(null, "placeHold", session -> writeTransaction(session, (s, changes) -> {
+            int available = lockBook(s, bookId);
+            if (available < 0 || !userExists(s, userId)) {
+                return HoldResult.NOT_FOUND;
+            }
+            if (available > 0) {
+                return HoldResult.AVAILABLE;
+            }
+            PreparedStatement findStmt = s.prepare(USER_HOLD_SQL);
+            findStmt.setInt(1, bookId);
+            findStmt.setInt(2, userId);
+            int holdId = -1;
+            try (ResultSet rs = findStmt.executeQuery()) {
+                if (rs.next()) {
+                    holdId = rs.getInt(1);
+                }
+            }
+            if (holdId >= 0) {
+                Hold hold = readHold(s, holdId);
+                return new HoldResult(HoldResult.Status.ALREADY_HELD, hold, queuePosition(s, hold));
+            }
+
+            PreparedStatement insertStmt = s.prepareReturningKeys(INSERT_HOLD_SQL);
+            insertStmt.setInt(1, bookId);
+            insertStmt.setInt(2, userId);
+            insertStmt.executeUpdate();
+            Hold hold = readHold(s, generatedKey(insertStmt));
+            changes.add(CatalogChange.inserted(hold));
+            return new HoldResult(HoldResult.Status.PLACED, hold, queuePosition(s, hold));
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Hold> cancelHold(int holdId) {
+        return submit(null, "cancelHold", session -> writeTransaction(session, (s, changes) ->
+            endHold(s, holdId, Hold.CANCELLED, Hold::active, LocalDate.now(), changes)));
+    }
+
+    @Override
+    public CompletableFuture<Integer> expireHolds(LocalDate today) {
+        Date date = Date.valueOf(today);
+        return submit(null, "expireHolds", session -> writeTransaction(session, (s, changes) -> {
+            PreparedStatement pstmt = s.prepare(EXPIRED_HOLDS_SQL);
+            pstmt.setDate(1, date);
+            List<Integer> holdIds = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    holdIds.add(rs.getInt(1));
+                }
+            }
+            int expired = 0;
+            for (int holdId : holdIds) {
+                // Checked again under the lock: it may have been picked up since
+                if (endHold(s, holdId, Hold.EXPIRED, hold -> Hold.READY.equals(hold.status) &&
+                        hold.readyUntil.before(date), today, changes) != null) {
+                    expired++;
+                }
+            }
+            return expired;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<Hold>> activeHolds(int afterId, int limit) {
+        return submit(null, "activeHolds", session -> {
+            PreparedStatement pstmt = session.prepare(ACTIVE_HOLDS_SQL);
+            pstmt.setInt(1, afterId);
+            pstmt.setInt(2, limit);
+            List<Hold> holds = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    holds.add(Hold.from(rs));
+                }
+            }
+            return holds;
+        });
+    }
+
+    // Sets just-returned copies of a book aside for its oldest waiting holds,
+    // one each, and takes those back off available_quantity; the rest are
+    // shelved. The caller holds the book row's lock and has already counted
+    // the copies as available, so a copy set aside is never on the shelf as
+    // far as another desk can tell. A hold's pickup window runs from today,
+    // the day the copies came back.
+    private static List<Hold> allocateCopies(SqlSession s, int bookId, int[] copyIds, LocalDate today,
+                                             List<CatalogChange> changes) throws SQLException {
+        PreparedStatement findStmt = s.prepare(NEXT_HOLDS_SQL);
+        findStmt.setInt(1, bookId);
+        findStmt.setInt(2, copyIds.length);
+        List<Integer> holdIds = new ArrayList<>();
+        try (ResultSet rs = findStmt.executeQuery()) {
+            while (rs.next()) {
+                holdIds.add(rs.getInt(1));
+            }
+        }
+        PreparedStatement statusStmt = s.prepare(COPY_STATUS_SQL);
+        for (int i = 0; i < copyIds.length; i++) {
+            statusStmt.setString(1, i < holdIds.size() ? Copy.ON_HOLD : Copy.SHELVED);
+            statusStmt.setInt(2, copyIds[i]);
+            statusStmt.addBatch();
+        }
+        statusStmt.executeBatch();
+        if (holdIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        PreparedStatement readyStmt = s.prepare(READY_HOLD_SQL);
+        Date readyUntil = Date.valueOf(today.plusDays(PICKUP_DAYS));
+        for (int i = 0; i < holdIds.size(); i++) {
+            readyStmt.setDate(1, readyUntil);
+            readyStmt.setInt(2, copyIds[i]);
+            readyStmt.setInt(3, holdIds.get(i));
+            readyStmt.addBatch();
+        }
+        readyStmt.executeBatch();
+        PreparedStatement setAsideStmt = s.prepare(SET_ASIDE_SQL);
+        setAsideStmt.setInt(1, holdIds.size());
+        setAsideStmt.setInt(2, bookId);
+        setAsideStmt.executeUpdate();
+
+        List<Hold> holds = new ArrayList<>(holdIds.size());
+        for (int holdId : holdIds) {
+            Hold hold = readHold(s, holdId);
+            holds.add(hold);
+            changes.add(CatalogChange.updated(hold));
+        }
+        return holds;
+    }
+
+    // Fulfils the user's READY hold on the book, if any; the copy set aside
+    // for it is the one the loan takes
+    private static Hold claimHold(SqlSession s, int bookId, int userId,
+                                  List<CatalogChange> changes) throws SQLException {
+        Hold ready = readyHold(s, bookId, userId);
+        return ready == null ? null : fulfilHold(s, ready.id, changes);
+    }
+
+    // Locks and reads the user's READY hold on the book, or returns null
+    private static Hold readyHold(SqlSession s, int bookId, int userId) throws SQLException {
+        PreparedStatement findStmt = s.prepare(FIND_READY_HOLD_SQL);
+        findStmt.setInt(1, bookId);
+        findStmt.setInt(2, userId);
+        int holdId;
+        try (ResultSet rs = findStmt.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            holdId = rs.getInt(1);
+        }
+        return readHold(s, holdId);
+    }
+
+    private static Hold fulfilHold(SqlSession s, int holdId, List<CatalogChange> changes) throws SQLException {
+        PreparedStatement endStmt = s.prepare(END_HOLD_SQL);
+        endStmt.setString(1, Hold.FULFILLED);
+        endStmt.setInt(2, holdId);
+        endStmt.executeUpdate();
+        Hold hold = readHold(s, holdId);
+        changes.add(CatalogChange.updated(hold));
+        return hold;
+    }
+
+    // Moves a hold to status if it still passes check once its book is locked.
+    // A copy set aside for it goes to the next waiting hold, or back on the shelf.
+    private static Hold endHold(SqlSession s, int holdId, String status, Predicate<Hold> check,
+                                LocalDate today, List<CatalogChange> changes) throws SQLException {
+        Hold hold = readHold(s, holdId);
+        if (hold == null) {
+            return null;
+        }
+        lockBook(s, hold.bookId);
+        PreparedStatement lockStmt = s.prepare(HOLD_SELECT + " WHERE hold_id=? FOR UPDATE");
+        lockStmt.setInt(1, holdId);
+        try (ResultSet rs = lockStmt.executeQuery()) {
+            hold = rs.next() ? Hold.from(rs) : null;
+        }
+        if (hold == null || !check.test(hold)) {
+            return null;
+        }
+        PreparedStatement endStmt = s.prepare(END_HOLD_SQL);
+        endStmt.setString(1, status);
+        endStmt.setInt(2, holdId);
+        endStmt.executeUpdate();
+        if (Hold.READY.equals(hold.status)) {
+            PreparedStatement releaseStmt = s.prepare(RELEASE_COPY_SQL);
+            releaseStmt.setInt(1, hold.bookId);
+            releaseStmt.executeUpdate();
+            allocateCopies(s, hold.bookId, new int[]{hold.copyId}, today, changes);
+            changes.add(CatalogChange.updated(readBook(s, hold.bookId)));
+        }
+        Hold ended = readHold(s, holdId);
+        changes.add(CatalogChange.updated(ended));
+        return ended;
+    }
+
+    // Locks the book's row; returns its available count, or -1 if there is no such book
+    private static int lockBook(SqlSession s, int bookId) throws SQLException {
+        PreparedStatement pstmt = s.prepare(LOCK_BOOK_SQL);
+        pstmt.setInt(1, bookId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : -1;
+        }
+    }
+
+    // 1 for the next hold to be served; 0 once a copy is ready
+    private static int queuePosition(SqlSession s, Hold hold) throws SQLException {
+        if (!Hold.WAITING.equals(hold.status)) {
+            return 0;
+        }
+        PreparedStatement pstmt = s.prepare(QUEUE_POSITION_SQL);
+        pstmt.setInt(1, hold.bookId);
+        pstmt.setInt(2, hold.id);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Copy> resolveBarcode(String barcode) {
+        Copy cached = barcodes.get(barcode);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return submit(null, "resolveBarcode", session -> findCopy(session, barcode));
+    }
+
+    @Override
+    public CompletableFuture<List<Copy>> copies(int bookId) {
+        return submit(null, "copies", session -> {
+            PreparedStatement pstmt = session.prepare(COPY_SELECT + " WHERE book_id=? ORDER BY copy_id");
+            pstmt.setInt(1, bookId);
+            List<Copy> copies = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    copies.add(Copy.from(rs));
+                }
+            }
+            return copies;
+        });
+    }
+
+    // A new copy is returned stock as far as holds go: the oldest waiting one gets it
+    @Override
+    public CompletableFuture<Copy> addCopy(int bookId, String barcode, String location) {
+        return submit(null, "addCopy", session -> writeTransaction(session, (s, changes) -> {
+            if (lockBook(s, bookId) < 0) {
+                return null;
+            }
+            int[] copyIds = insertCopies(s, bookId, 1, barcode, location);
+            shelfCounts(s, bookId, 1);
+            allocateCopies(s, bookId, copyIds, LocalDate.now(), changes);
+            changes.add(CatalogChange.updated(readBook(s, bookId)));
+            return readCopy(s, copyIds[0]);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Copy> withdrawCopy(int copyId) {
+        return submit(null, "withdrawCopy", session -> writeTransaction(session, (s, changes) -> {
+            Copy copy = readCopy(s, copyId);
+            if (copy == null) {
+                return null;
+            }
+            lockBook(s, copy.bookId);
+            if (!Copy.SHELVED.equals(copyStatus(s, copyId))) {
+                return null;
+            }
+            setCopyStatus(s, copyId, Copy.WITHDRAWN);
+            shelfCounts(s, copy.bookId, -1);
+            changes.add(CatalogChange.updated(readBook(s, copy.bookId)));
+            return readCopy(s, copyId);
+        }));
+    }
+
+    // The copy with this barcode: from memory when it is hot, otherwise by
+    // the unique index, one point query
+    private Copy findCopy(SqlSession s, String barcode) throws SQLException {
+        Copy copy = barcodes.get(barcode);
+        if (copy != null) {
+            return copy;
+        }
+        PreparedStatement pstmt = s.prepare(COPY_SELECT + " WHERE barcode=?");
+        pstmt.setString(1, barcode);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            copy = rs.next() ? Copy.from(rs) : null;
+        }
+        if (copy != null) {
+            barcodes.put(copy);
+        }
+        return copy;
+    }
+
+    // Locks the copy's row and returns its status, or null if there is no such copy
+    private static String copyStatus(SqlSession s, int copyId) throws SQLException {
+        PreparedStatement pstmt = s.prepare(LOCK_COPY_SQL);
+        pstmt.setInt(1, copyId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private static void setCopyStatus(SqlSession s, int copyId, String status) throws SQLException {
+        PreparedStatement pstmt = s.prepare(COPY_STATUS_SQL);
+        pstmt.setString(1, status);
+        pstmt.setInt(2, copyId);
+        pstmt.executeUpdate();
+    }
+
+    // Locks and returns the lowest shelved copy of a book whose row the caller
+    // has locked and counted one off
+    private static int shelvedCopy(SqlSession s, int bookId) throws SQLException {
+        PreparedStatement pstmt = s.prepare(SHELVED_COPIES_SQL);
+        pstmt.setInt(1, bookId);
+        pstmt.setInt(2, 1);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        }
+        throw new SQLException("Book " + bookId + " counts a copy available but none is on the shelf");
+    }
+
+    // Inserts count SHELVED copies of a locked book and returns their IDs; the
+    // caller moves the counts. A blank barcode is generated from the book's
+    // copy count.
+    private static int[] insertCopies(SqlSession s, int bookId, int count, String barcode, String location)
+            throws SQLException {
+        if (count <= 0) {
+            return new int[0];
+        }
+        int existing = 0;
+        if (barcode == null || barcode.trim().isEmpty()) {
+            PreparedStatement countStmt = s.prepare(COUNT_COPIES_SQL);
+            countStmt.setInt(1, bookId);
+            try (ResultSet rs = countStmt.executeQuery()) {
+                existing = rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+        PreparedStatement pstmt = s.prepareReturningKeys(CopyRows.INSERT_SQL);
+        for (int n = 1; n <= count; n++) {
+            String code = barcode == null || barcode.trim().isEmpty()
+                ? CopyRows.generatedBarcode(bookId, existing + n) : barcode.trim();
+            CopyRows.add(pstmt, bookId, code, Copy.SHELVED, location);
+        }
+        return CopyRows.execute(pstmt, count);
+    }
+
+    private static void shelfCounts(SqlSession s, int bookId, int copies) throws SQLException {
+        PreparedStatement pstmt = s.prepare(SHELF_COUNTS_SQL);
+        pstmt.setInt(1, copies);
+        pstmt.setInt(2, copies);
+        pstmt.setInt(3, bookId);
+        pstmt.executeUpdate();
+    }
+
+    static Copy readCopy(SqlSession session, int copyId) throws SQLException {
+        PreparedStatement pstmt = session.prepare(COPY_SELECT + " WHERE copy_id=?");
+        pstmt.setInt(1, copyId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? Copy.from(rs) : null;
+        }
+    }
+
+    // Rows are handed over one at a time from a forward-only result, so a
+    // table of any size passes through in constant memory. The snapshot is a
+    // read-only transaction; the connection's isolation is put back after.
+    @Override
+    public CompletableFuture<Long> exportTables(List<ExportTable> tables, boolean snapshot, RowSink sink) {
+        return submit(null, "exportTables", session -> {
+            Connection conn = session.connection();
+            int isolation = conn.getTransactionIsolation();
+            if (snapshot) {
+                pool.backend().beginSnapshot(conn);
+            }
+            try {
+                long rows = 0;
+                for (ExportTable table : tables) {
+                    rows += exportTable(session, table, sink);
+                }
+                return rows;
+            } finally {
+                if (snapshot) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                    conn.setTransactionIsolation(isolation);
+                }
+            }
+        });
+    }
+
+    private long exportTable(SqlSession session, ExportTable table, RowSink sink) throws SQLException {
+        Statement stmt = session.statement();
+        stmt.setFetchSize(pool.backend().streamingFetchSize(EXPORT_FETCH_SIZE));
+        try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table.tableName + " ORDER BY " + table.key)) {
+            ResultSetMetaData meta = rs.getMetaData();
+            List<String> columns = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                columns.add(meta.getColumnLabel(i).toLowerCase(Locale.ROOT));
+            }
+            Object[] values = new Object[columns.size()];
+            long rows = 0;
+            sink.begin(table, columns);
+            while (rs.next()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                sink.row(values);
+                rows++;
+            }
+            sink.end(table, rows);
+            return rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (CancellationException e) {
+            // A streaming MySQL result would otherwise be read to the end on close
+            session.cancel();
+            throw e;
+        }
+    }
+
+    // Runs work as one transaction that also appends its changes to the
+    // change log, so other clients see exactly what committed. Once committed
+    // the changes go to the cache.
+    private <T> T writeTransaction(SqlSession session, WriteWork<T> work) throws SQLException {
+        List<CatalogChange> changes = new ArrayList<>();
+        long[] seq = new long[1];
+        T result = inTransaction(session, s -> {
+            changes.clear();   // a retried attempt starts over
+            T value = work.run(s, changes);
+            if (!changes.isEmpty()) {
+                PreparedStatement logStmt = s.prepare(INSERT_CHANGE_SQL);
+                for (CatalogChange change : changes) {
+                    logStmt.setString(1, change.table.name());
+                    logStmt.setString(2, change.kind.name());
+                    logStmt.setInt(3, change.id);
+                    logStmt.setString(4, origin);
+                    logStmt.addBatch();
+                }
+                logStmt.executeBatch();
+                // At or above every seq just logged, and below any later write to these rows
+                try (ResultSet rs = s.statement().executeQuery("SELECT MAX(seq) FROM change_log")) {
+                    seq[0] = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            return value;
+        });
+        for (CatalogChange change : changes) {
+            cache.apply(change, seq[0]);
+        }
+        return result;
+    }
+
+    private interface WriteWork<T> {
+        T run(SqlSession session, List<CatalogChange> changes) throws SQLException;
+    }
+
+    // Some drivers answer SUCCESS_NO_INFO for batched updates; the statements
+    // are then rolled back and re-run one by one so every row count is known.
+    private static int[] executeBatch(SqlSession session, PreparedStatement pstmt, int size,
+                                      BatchBinder binder) throws SQLException {
+        if (size == 0) {
+            return new int[0];
+        }
+        int[] counts = pstmt.executeBatch();
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                session.connection().rollback();
+                counts = new int[size];
+                for (int k = 0; k < size; k++) {
+                    binder.bind(k);
+                    counts[k] = pstmt.executeUpdate();
+                }
+                break;
+            }
+        }
+        return counts;
+    }
+
+    private interface BatchBinder {
+        void bind(int index) throws SQLException;
+    }
+
+    private static int generatedKey(Statement stmt) throws SQLException {
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            return keys.next() ? keys.getInt(1) : -1;
+        }
+    }
+
+    private static List<Integer> generatedKeys(Statement stmt) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            while (keys.next()) {
+                ids.add(keys.getInt(1));
+            }
+        } catch (SQLFeatureNotSupportedException e) {
+            // driver cannot report batch keys
+        }
+        return ids;
+    }
+
+    private static boolean bookExists(SqlSession session, int bookId) throws SQLException {
+        PreparedStatement pstmt = session.prepare("SELECT 1 FROM books WHERE book_id=?");
+        pstmt.setInt(1, bookId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    private static boolean userExists(SqlSession session, int userId) throws SQLException {
+        PreparedStatement pstmt = session.prepare("SELECT 1 FROM users WHERE user_id=?");
+        pstmt.setInt(1, userId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    // Runs work as one transaction, retrying it from the start on deadlock,
+    // serialization failure or lock wait timeout.
+    <T> T inTransaction(SqlSession session, SqlWork<T> work) throws SQLException {
+        Connection conn = session.connection();
+        conn.setAutoCommit(false);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    T result = work.run(session);
+                    conn.commit();
+                    return result;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    if (attempt >= MAX_TRANSACTION_ATTEMPTS || !isRetryable(e)) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(ThreadLocalRandom.current().nextInt(5, 20) * attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    boolean isRetryable(SQLException e) {
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            String state = cur.getSQLState();
+            if (cur instanceof SQLTransactionRollbackException ||
+                    (state != null && state.startsWith("40")) ||
+                    pool.backend().isLockFailure(cur)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object[] bookRow(ResultSet rs) throws SQLException {
+        return cache.cache(Book.from(rs)).toRow();
+    }
+
+    private Object[] userRow(ResultSet rs) throws SQLException {
+        return cache.cache(User.from(rs)).toRow();
+    }
+
+    static Book readBook(SqlSession session, int bookId) throws SQLException {
+        PreparedStatement pstmt = session.prepare(BOOK_SELECT + " FROM books WHERE book_id=?");
+        pstmt.setInt(1, bookId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? Book.from(rs) : null;
+        }
+    }
+
+    static User readUser(SqlSession session, int userId) throws SQLException {
+        PreparedStatement pstmt = session.prepare(USER_SELECT + " FROM users WHERE user_id=?");
+        pstmt.setInt(1, userId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? User.from(rs) : null;
+        }
+    }
+
+    static Hold readHold(SqlSession session, int holdId) throws SQLException {
+        PreparedStatement pstmt = session.prepare(HOLD_SELECT + " WHERE hold_id=?");
+        pstmt.setInt(1, holdId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? Hold.from(rs) : null;
+        }
+    }
+
+    static Loan readLoan(SqlSession session, int borrowId) throws SQLException {
+        PreparedStatement pstmt = session.prepare(LOAN_SELECT + " " + LOAN_FROM + " WHERE bb.borrow_id=?");
+        pstmt.setInt(1, borrowId);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? Loan.from(rs) : null;
+        }
+    }
+
+    // Metered from submit to result under its operation's name. The session
+    // is closed, and its connection back in the pool, before the result is
+    // handed on.
+    private final class PendingQuery<T> extends CompletableFuture<T> implements Runnable {
+        private final Meter meter;
+        private final SqlWork<T> work;
+        private final long submitted = System.nanoTime();
+        private volatile SqlSession session;
+        private volatile boolean superseded;
+
+        PendingQuery(Meter meter, SqlWork<T> work) {
+            this.meter = meter;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            metrics.queueWait().recordNanos(System.nanoTime() - submitted);
+            T result = null;
+            Throwable failure = null;
+            SqlTrace trace = null;
+            try (SqlSession s = new SqlSession(pool, pool.borrow())) {
+                session = s;
+                if (superseded) {
+                    return;
+                }
+                trace = s.trace();
+                result = work.run(s);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                session = null;
+            }
+            if (superseded) {
+                cancel(false);
+                return;
+            }
+            metrics.operationFinished(meter, System.nanoTime() - submitted, trace, failure);
+            if (failure != null) {
+                completeExceptionally(failure);
+            } else {
+                complete(result);
+            }
+        }
+
+        void supersede() {
+            superseded = true;
+            cancel(false);
+            SqlSession s = session;
+            if (s != null) {
+                // Statement.cancel() may itself be a network round trip
+                CompletableFuture.runAsync(s::cancel);
+            }
+        }
+    }
+}
+
+interface SqlWork<T> {
+    T run(SqlSession session) throws SQLException;
+}
+
+// One unit of work on a borrowed pooled connection. Prepared statements come
+// from the connection's cache; their result sets are closed, ad-hoc statements
+// are closed, and the connection goes back to the pool when the work finishes.
+// cancel() aborts whichever statement is running. The statements run and rows
+// read are counted in trace().
+class SqlSession implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final PooledConnection pooled;
+    private final SqlTrace trace = new SqlTrace();
+    private final List<Statement> statements = new ArrayList<>();
+    private final List<PreparedStatement> cached = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    SqlSession(ConnectionPool pool, PooledConnection pooled) {
+        this.pool = pool;
+        this.pooled = pooled;
+        pooled.trace(trace);
+    }
+
+    SqlTrace trace() {
+        return trace;
+    }
+
+    Connection connection() {
+        return pooled.connection();
+    }
+
+    Statement statement() throws SQLException {
+        checkCancelled();
+        Statement stmt = pooled.createStatement();
+        synchronized (this) {
+            statements.add(stmt);
+        }
+        return stmt;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, false);
+    }
+
+    // A statement whose getGeneratedKeys() reports the AUTO_INCREMENT IDs it inserts
+    PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        return prepare(sql, true);
+    }
+
+    private PreparedStatement prepare(String sql, boolean returnKeys) throws SQLException {
+        checkCancelled();
+        PreparedStatement ps = pooled.prepareCached(sql, returnKeys);
+        synchronized (this) {
+            cached.add(ps);
+        }
+        return ps;
+    }
+
+    void checkCancelled() throws SQLException {
+        if (cancelled) {
+            throw new SQLException("Query cancelled");
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        List<Statement> running = new ArrayList<>(statements);
+        running.addAll(cached);
+        for (Statement stmt : running) {
+            try {
+                stmt.cancel();
+            } catch (SQLException ignored) {
+                // statement already finished
+            }
+        }
+    }
+
+    private static boolean isClosed(Connection conn) {
+        try {
+            return conn.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        // A connection the database dropped has nothing left to tidy; the pool throws it away
+        boolean alive = !isClosed(pooled.connection());
+        for (Statement stmt : statements) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                if (alive) {
+                    LibraryMetrics.report("Closing a statement failed", e);
+                }
+            }
+        }
+        for (PreparedStatement ps : cached) {
+            try {
+                ResultSet rs = ps.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                ps.clearParameters();
+            } catch (SQLException e) {
+                if (alive) {
+                    LibraryMetrics.report("Resetting a cached statement failed", e);
+                }
+            }
+        }
+        statements.clear();
+        cached.clear();
+        pooled.trace(null);
+        // Some drivers keep a cancel pending and apply it to the connection's
+        // next statement, so a cancelled session's connection is not reused
+        if (cancelled) {
+            pool.discard(pooled);
+        } else {
+            pool.release(pooled);
+        }
+    }
+}
+
+class LoanRequest {
+    final int bookId;
+    final int userId;
+
+    LoanRequest(int bookId, int userId) {
+        this.bookId = bookId;
+        this.userId = userId;
+    }
+}
+
+class LoanResult {
+    enum Status { OK, UNAVAILABLE, NOT_FOUND, BLOCKED, QUEUED }
+
+    static final LoanResult UNAVAILABLE = new LoanResult(Status.UNAVAILABLE, null, null, null, null);
+    static final LoanResult NOT_FOUND = new LoanResult(Status.NOT_FOUND, null, null, null, null);
+    static final LoanResult BLOCKED = new LoanResult(Status.BLOCKED, null, null, null, null);   // too many overdue loans
+
+    final Status status;
+    final LocalDate dueDate;
+    final Loan loan;   // the loan as committed; null if it could not be read back
+    final Book book;   // the book's counts after the change
+    final Hold hold;   // checkout: the hold it fulfilled; return: the hold the copy went to
+
+    private LoanResult(Status status, LocalDate dueDate, Loan loan, Book book, Hold hold) {
+        this.status = status;
+        this.dueDate = dueDate;
+        this.loan = loan;
+        this.book = book;
+        this.hold = hold;
+    }
+
+    static LoanResult ok(LocalDate dueDate, Loan loan, Book book, Hold hold) {
+        return new LoanResult(Status.OK, dueDate, loan, book, hold);
+    }
+
+    // Taken down in the desk's journal and not yet applied; a checkout has its due date
+    static LoanResult queued(LocalDate dueDate) {
+        return new LoanResult(Status.QUEUED, dueDate, null, null, null);
+    }
+}
+
+class HoldResult {
+    enum Status { PLACED, ALREADY_HELD, AVAILABLE, NOT_FOUND, BLOCKED }
+
+    static final HoldResult AVAILABLE = new HoldResult(Status.AVAILABLE, null, 0);   // check a copy out instead
+    static final HoldResult NOT_FOUND = new HoldResult(Status.NOT_FOUND, null, 0);
+    static final HoldResult BLOCKED = new HoldResult(Status.BLOCKED, null, 0);
+
+    final Status status;
+    final Hold hold;      // the new hold, or the one the user already had
+    final int position;   // 1 for next in line; 0 once a copy is ready
+
+    HoldResult(Status status, Hold hold, int position) {
+        this.status = status;
+        this.hold = hold;
+        this.position = position;
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+// The tables an export can hold, each read in primary key order
+enum ExportTable {
+    BOOKS("books", "book_id"),
+    USERS("users", "user_id"),
+    LOANS("borrowed_books", "borrow_id"),
+    ARCHIVED_LOANS("loan_archive", "borrow_id"),
+    NOTICES("loan_notices", "notice_id"),
+    HOLDS("holds", "hold_id"),
+    COPIES("copies", "copy_id");
+
+    final String tableName;
+    final String key;
+
+    ExportTable(String tableName, String key) {
+        this.tableName = tableName;
+        this.key = key;
+    }
+}
+
+enum ExportFormat {
+    CSV("csv"),
+    JSONL("jsonl");   // one JSON object per line
+
+    final String extension;
+
+    ExportFormat(String extension) {
+        this.extension = extension;
+    }
+}
+
+// Receives exported rows one table at a time. values is reused for the next
+// row, so it must be written out, not kept.
+interface RowSink {
+    void begin(ExportTable table, List<String> columns) throws IOException;
+
+    void row(Object[] values) throws IOException;
+
+    void end(ExportTable table, long rows) throws IOException;
+}
+
+// How far an export has got
+class ExportProgress {
+    final ExportTable table;
+    final long tableRows;
+    final long rows;
+    final long elapsedNanos;
+    final boolean tableDone;
+
+    ExportProgress(ExportTable table, long tableRows, long rows, long elapsedNanos, boolean tableDone) {
+        this.table = table;
+        this.tableRows = tableRows;
+        this.rows = rows;
+        this.elapsedNanos = elapsedNanos;
+        this.tableDone = tableDone;
+    }
+
+    double rowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+    }
+
+    String summary() {
+        return String.format("%s: %,d rows, %,d in all (%,.0f rows/s)",
+            table.tableName, tableRows, rows, rowsPerSecond());
+    }
+}
+
+// Writes each ExportTable (loan history, notices, holds and copies included) to its own file in a
+// directory, as CSV or JSON Lines and optionally gzipped. Rows stream from the
+// database through a small buffer into the file's channel, so the heap needed
+// is the same for a thousand loans or fifty million. Each file is written as
+// <name>.part and renamed once complete and forced to disk; a failed or
+// cancelled export leaves no file that looks finished.
+//
+// A snapshot export reads every table in one read-only transaction, so loans
+// never refer to a book the books file lacks. On MySQL the transaction holds
+// back purging of old row versions while it runs, which is why it is a choice.
+//
+// Run headless for nightly backups; each run writes a new dated directory:
+//
+//   java -Dexport.format=jsonl -Dexport.gzip=true CatalogExport backups
+class CatalogExport implements RowSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int PROGRESS_EVERY = 10000;
+
+    private final LibraryRepository repository;
+    private final ExportFormat format;
+    private final boolean gzip;
+    private final boolean snapshot;
+    private final List<Path> written = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+    private char[] chars = new char[256];
+    private volatile boolean cancelled;
+
+    private Path dir;
+    private Consumer<ExportProgress> onProgress;
+    private long started;
+    private long rows;
+    private long tableRows;
+    private ExportTable table;
+    private Path part;
+    private FileChannel channel;
+    private GZIPOutputStream compressor;
+    private Writer out;
+    private List<String> columns;
+
+    CatalogExport(LibraryRepository repository, ExportFormat format, boolean gzip, boolean snapshot) {
+        this.repository = repository;
+        this.format = format;
+        this.gzip = gzip;
+        this.snapshot = snapshot;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        ExportFormat format = ExportFormat.valueOf(config.get("export.format", "csv").trim().toUpperCase(Locale.ROOT));
+        boolean gzip = Boolean.parseBoolean(config.get("export.gzip", "true"));
+        boolean snapshot = Boolean.parseBoolean(config.get("export.snapshot", "true"));
+        Path dir = Paths.get(args.length > 0 ? args[0] : "backups",
+            "library-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+
+        LibraryDataAccess data = new LibraryDataAccess(
+            new ConnectionPool(config, StorageBackend.fromConfig(config)), new CatalogCache(0));
+        try {
+            CatalogExport export = new CatalogExport(data, format, gzip, snapshot);
+            List<Path> files = export.start(dir, progress -> {
+                if (progress.tableDone || progress.tableRows % 1000000 == 0) {
+                    LibraryMetrics.note(progress.summary());
+                }
+            }).get();
+            for (Path file : files) {
+                LibraryMetrics.note("Wrote " + file + " (" + String.format("%,d", Files.size(file)) + " bytes)");
+            }
+        } finally {
+            data.shutdown();
+        }
+    }
+
+    static List<ExportTable> tables() {
+        return Collections.unmodifiableList(Arrays.asList(ExportTable.values()));
+    }
+
+    // Stops at the next row; files not finished yet are removed
+    void cancel() {
+        cancelled = true;
+    }
+
+    // Completes with the files written. onProgress is called on the database
+    // thread every few thousand rows and at the end of each table.
+    CompletableFuture<List<Path>> start(Path dir, Consumer<ExportProgress> onProgress) {
+        this.dir = dir;
+        this.onProgress = onProgress;
+        this.started = System.nanoTime();
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            CompletableFuture<List<Path>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return repository.exportTables(tables(), snapshot, this).handle((count, error) -> {
+            if (error != null) {
+                discardPart();
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return Collections.unmodifiableList(new ArrayList<>(written));
+        });
+    }
+
+    static Path fileFor(Path dir, ExportTable table, ExportFormat format, boolean gzip) {
+        return dir.resolve(table.tableName + "." + format.extension + (gzip ? ".gz" : ""));
+    }
+
+    @Override
+    public void begin(ExportTable table, List<String> columns) throws IOException {
+        this.table = table;
+        this.columns = columns;
+        tableRows = 0;
+        part = Paths.get(fileFor(dir, table, format, gzip) + ".part");
+        channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream stream = Channels.newOutputStream(channel);
+        if (gzip) {
+            stream = compressor = new GZIPOutputStream(stream, BUFFER_SIZE);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        if (format == ExportFormat.CSV) {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(RecordReader.quote(columns.get(i)));
+            }
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public void row(Object[] values) throws IOException {
+        if (cancelled) {
+            throw new CancellationException("Export cancelled");
+        }
+        line.setLength(0);
+        if (format == ExportFormat.CSV) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                if (values[i] != null) {
+                    line.append(RecordReader.quote(values[i].toString()));
+                }
+            }
+        } else {
+            line.append('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                Json.writeString(line, columns.get(i));
+                line.append(':');
+                if (values[i] == null) {
+                    line.append("null");
+                } else if (values[i] instanceof Number) {
+                    line.append(values[i]);
+                } else {
+                    Json.writeString(line, values[i].toString());
+                }
+            }
+            line.append('}');
+        }
+        line.append('\n');
+        // Copied into a reused array; Writer.append(line) would make a String per row
+        if (chars.length < line.length()) {
+            chars = new char[Math.max(line.length(), chars.length * 2)];
+        }
+        line.getChars(0, line.length(), chars, 0);
+        out.write(chars, 0, line.length());
+        rows++;
+        if (++tableRows % PROGRESS_EVERY == 0) {
+            onProgress.accept(new ExportProgress(table, tableRows, rows, System.nanoTime() - started, false));
+        }
+    }
+
+    @Override
+    public void end(ExportTable table, long count) throws IOException {
+        out.flush();
+        if (compressor != null) {
+            compressor.finish();
+        }
+        channel.force(true);
+        out.close();
+        compressor = null;
+        Path file = fileFor(dir, table, format, gzip);
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        written.add(file);
+        part = null;
+        onProgress.accept(new ExportProgress(table, tableRows, rows, System.nanoTime() - started, true));
+    }
+
+    private void discardPart() {
+        if (part == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // the file is deleted either way
+        }
+        try {
+            Files.deleteIfExists(part);
+        } catch (IOException e) {
+            LibraryMetrics.report("Deleting a partial export file failed", e);
+        }
+        part = null;
+        compressor = null;
+    }
+}
@@ -0,0 +1,247 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Tails the change log so changes committed by other clients reach this
+// client's cache, and through it the open tables. Each poll is one range scan
+// on the primary key; rows this client wrote are skipped, as they were applied
+// when they committed.
+//
+// Sequence numbers are handed out at insert but become visible at commit, so a
+// lower seq can appear after a higher one. Everything at or below floor is
+// settled; above it the feed remembers which seqs it has applied and waits up
+// to feed.holeTimeoutMillis for the gaps to fill (a rolled back insert never does).
+class ChangeFeed {
+    private static final String TAIL_SQL =
+        "SELECT seq, table_name, change_kind, row_id, origin FROM change_log " +
+        "WHERE seq > ? ORDER BY seq LIMIT ?";
+    private static final int MAX_TRACKED_GAP = 1000;
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LibraryDataAccess dataAccess;
+    private final int pollMillis;
+    private final int batchSize;
+    private final long holeTimeoutNanos;
+    private final int retainedChanges;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "library-feed");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Only touched by the poll, which runs on one worker at a time
+    private long floor;
+    private final TreeSet<Long> seen = new TreeSet<>();
+    private final Map<Long, Long> holes = new HashMap<>();
+    private long lastPrune = System.nanoTime();
+    private boolean more;
+    private boolean failing;
+    // Every change logged at or below this has reached the cache
+    private volatile long applied;
+
+    ChangeFeed(LibraryDataAccess dataAccess, LibraryConfig config) {
+        this.dataAccess = dataAccess;
+        this.pollMillis = config.getInt("feed.pollMillis", 500);
+        this.batchSize = config.getInt("feed.batchSize", 1000);
+        this.holeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getInt("feed.holeTimeoutMillis", 10000));
+        this.retainedChanges = config.getInt("feed.retainedChanges", 100000);
+    }
+
+    // Starts from the current end of the log; tables loaded afterwards are up to date
+    CompletableFuture<Void> start() {
+        return dataAccess.submit(null, "startFeed", session -> {
+            try (ResultSet rs = session.statement().executeQuery("SELECT MAX(seq) FROM change_log")) {
+                floor = rs.next() ? rs.getLong(1) : 0;
+            }
+            applied = floor;
+            poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+            return null;
+        });
+    }
+
+    void stop() {
+        poller.shutdownNow();
+    }
+
+    // The change log position this client is up to: every change logged at or
+    // below it has been applied
+    long position() {
+        return applied;
+    }
+
+    private void poll() {
+        try {
+            do {
+                Map<CatalogChange, Long> changes = dataAccess.submit(null, "pollChanges", this::pollOnce).get();
+                for (Map.Entry<CatalogChange, Long> entry : changes.entrySet()) {
+                    dataAccess.catalog().apply(entry.getKey(), entry.getValue());
+                }
+                applied = floor;
+            } while (more);
+            failing = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Try again next interval; only report the first failure in a row
+            if (!failing) {
+                LibraryMetrics.report("Polling the change log failed", e.getCause());
+            }
+            failing = true;
+        }
+    }
+
+    // Reads the log past floor and returns the other clients' changes, with
+    // their records read back, mapped to the last seq logged for each. Sets
+    // more if a full batch moved floor on. Nothing is marked as seen until
+    // all its reads have succeeded.
+    private Map<CatalogChange, Long> pollOnce(SqlSession session) throws SQLException {
+        prune(session);
+        long start = floor;
+        int rows = 0;
+        List<Long> fresh = new ArrayList<>();
+        Map<Long, CatalogChange.Kind> changed = new LinkedHashMap<>();
+        Map<Long, Long> lastSeqs = new HashMap<>();
+        Set<CatalogChange.Table> reloads = EnumSet.noneOf(CatalogChange.Table.class);
+        PreparedStatement pstmt = session.prepare(TAIL_SQL);
+        pstmt.setLong(1, floor);
+        pstmt.setInt(2, batchSize);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                rows++;
+                long seq = rs.getLong(1);
+                if (seen.contains(seq)) {
+                    continue;
+                }
+                fresh.add(seq);
+                if (dataAccess.origin().equals(rs.getString(5))) {
+                    continue;
+                }
+                CatalogChange.Table table = CatalogChange.Table.valueOf(rs.getString(2));
+                CatalogChange.Kind kind = CatalogChange.Kind.valueOf(rs.getString(3));
+                if (kind == CatalogChange.Kind.RELOAD) {
+                    reloads.add(table);
+                } else {
+                    long key = ((long) table.ordinal() << 32) | (rs.getInt(4) & 0xFFFFFFFFL);
+                    merge(changed, key, kind);
+                    lastSeqs.put(key, seq);
+                }
+            }
+        }
+        if (!fresh.isEmpty() && logPruned(session, Math.min(fresh.get(0), seen.isEmpty() ? Long.MAX_VALUE : seen.first()))) {
+            reloads.addAll(EnumSet.allOf(CatalogChange.Table.class));
+        }
+
+        Map<CatalogChange, Long> changes = new LinkedHashMap<>();
+        for (Map.Entry<Long, CatalogChange.Kind> entry : changed.entrySet()) {
+            CatalogChange.Table table = CatalogChange.Table.values()[(int) (entry.getKey() >>> 32)];
+            if (reloads.contains(table)) {
+                continue;
+            }
+            int id = (int) (long) entry.getKey();
+            CatalogChange.Kind kind = entry.getValue();
+            Object record = kind == CatalogChange.Kind.DELETED ? null : read(session, table, id);
+            if (record == null && kind == CatalogChange.Kind.INSERTED) {
+                continue;   // inserted and deleted since
+            }
+            changes.put(new CatalogChange(table,
+                record == null ? CatalogChange.Kind.DELETED : kind, id, record, true),
+                lastSeqs.get(entry.getKey()));
+        }
+        for (CatalogChange.Table table : reloads) {
+            changes.put(new CatalogChange(table, CatalogChange.Kind.RELOAD, -1, null, true), floor);
+        }
+
+        seen.addAll(fresh);
+        holes.keySet().removeAll(fresh);
+        settle();
+        more = rows == batchSize && floor > start;
+        return changes;
+    }
+
+    // Folds several log rows for one record into the change a client needs
+    private static void merge(Map<Long, CatalogChange.Kind> changed, long key, CatalogChange.Kind kind) {
+        CatalogChange.Kind earlier = changed.get(key);
+        if (earlier == CatalogChange.Kind.INSERTED && kind == CatalogChange.Kind.DELETED) {
+            changed.remove(key);
+        } else if (earlier != CatalogChange.Kind.INSERTED) {
+            changed.put(key, kind);
+        }
+    }
+
+    private static Object read(SqlSession session, CatalogChange.Table table, int id) throws SQLException {
+        switch (table) {
+            case BOOKS:
+                return LibraryDataAccess.readBook(session, id);
+            case USERS:
+                return LibraryDataAccess.readUser(session, id);
+            case HOLDS:
+                return LibraryDataAccess.readHold(session, id);
+            default:
+                return LibraryDataAccess.readLoan(session, id);
+        }
+    }
+
+    // A gap right above floor whose rows are gone from the log means this client
+    // fell further behind than feed.retainedChanges; it has to reload.
+    private boolean logPruned(SqlSession session, long lowest) throws SQLException {
+        if (floor == 0 || lowest == floor + 1 || holes.containsKey(floor + 1)) {
+            return false;
+        }
+        try (ResultSet rs = session.statement().executeQuery("SELECT MIN(seq) FROM change_log")) {
+            return rs.next() && rs.getLong(1) > floor + 1;
+        }
+    }
+
+    // Records new gaps and moves floor up past applied seqs and expired gaps
+    private void settle() {
+        long now = System.nanoTime();
+        long prev = floor;
+        for (long seq : seen) {
+            if (seq - prev - 1 <= MAX_TRACKED_GAP) {
+                for (long hole = prev + 1; hole < seq; hole++) {
+                    holes.putIfAbsent(hole, now);
+                }
+            }
+            prev = seq;
+        }
+        while (true) {
+            long next = floor + 1;
+            Long noticed = holes.get(next);
+            if (seen.remove(next)) {
+                floor = next;
+            } else if (noticed != null && now - noticed > holeTimeoutNanos) {
+                holes.remove(next);
+                floor = next;
+            } else if (noticed == null && !seen.isEmpty()) {
+                floor = seen.first() - 1;   // too wide to track; treat as settled
+            } else {
+                break;
+            }
+        }
+    }
+
+    // Keeps the log to about feed.retainedChanges rows
+    private void prune(SqlSession session) throws SQLException {
+        long now = System.nanoTime();
+        if (now - lastPrune < PRUNE_INTERVAL_NANOS || floor <= retainedChanges) {
+            return;
+        }
+        lastPrune = now;
+        PreparedStatement pstmt = session.prepare("DELETE FROM change_log WHERE seq <= ?");
+        pstmt.setLong(1, floor - retainedChanges);
+        pstmt.executeUpdate();
+    }
+}
@@ -0,0 +1,183 @@
+import java.sql.Date;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Every book's hold queue, waiting and ready holds in hold_id order, kept in
+// memory from the holds table and its changes so screens and the API can show
+// a queue without asking the database. Queues are skip lists in a concurrent
+// map: reads never lock, and only one writer (the change that moved a hold,
+// or the startup load) touches them at a time.
+//
+// Allocation itself happens in the database: a return sets its copy aside for
+// the oldest waiting hold in the same transaction, under the book row's lock,
+// and this view follows the change. READY holds not collected by their
+// ready_until date are expired every holds.expiryCheckMillis, passing the copy on.
+class HoldQueues implements CatalogListener {
+    private static final int LOAD_PAGE_SIZE = 5000;
+
+    private final LibraryRepository repository;
+    private final Clock clock;
+    private final int expiryCheckMillis;
+    private final Map<Integer, ConcurrentSkipListMap<Integer, Hold>> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "library-holds");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    // Holds ended while a load is paging, so a page read earlier cannot bring them back
+    private Set<Integer> endedDuringLoad;
+    private int loadGeneration;
+
+    HoldQueues(LibraryRepository repository, LibraryConfig config) {
+        this(repository, Clock.systemDefaultZone(), config.getInt("holds.expiryCheckMillis", 600000));
+    }
+
+    HoldQueues(LibraryRepository repository, Clock clock, int expiryCheckMillis) {
+        this.repository = repository;
+        this.clock = clock;
+        this.expiryCheckMillis = expiryCheckMillis;
+    }
+
+    // Starts following hold changes, loads the active holds and starts
+    // checking pickups; completes once the load is done
+    CompletableFuture<Void> start() {
+        repository.catalog().addListener(CatalogChange.Table.HOLDS, this);
+        return reload().thenRun(() ->
+            ticker.scheduleWithFixedDelay(this::expire, expiryCheckMillis, expiryCheckMillis, TimeUnit.MILLISECONDS));
+    }
+
+    void stop() {
+        ticker.shutdownNow();
+    }
+
+    // The book's waiting and ready holds, oldest first
+    List<Hold> queue(int bookId) {
+        Map<Integer, Hold> queue = queues.get(bookId);
+        return queue == null ? Collections.emptyList() : new ArrayList<>(queue.values());
+    }
+
+    // Holds still waiting for a copy of the book
+    int waiting(int bookId) {
+        Map<Integer, Hold> queue = queues.get(bookId);
+        int count = 0;
+        if (queue != null) {
+            for (Hold hold : queue.values()) {
+                if (Hold.WAITING.equals(hold.status)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Copies set aside and waiting to be collected, across all books
+    int ready() {
+        int count = 0;
+        for (Map<Integer, Hold> queue : queues.values()) {
+            for (Hold hold : queue.values()) {
+                if (Hold.READY.equals(hold.status)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void catalogChanged(CatalogChange change) {
+        synchronized (this) {
+            switch (change.kind) {
+                case INSERTED:
+                case UPDATED:
+                    Hold hold = (Hold) change.record;
+                    if (hold.active()) {
+                        put(hold);
+                    } else {
+                        remove(hold.bookId, hold.id);
+                    }
+                    break;
+                case DELETED:
+                    for (Integer bookId : queues.keySet()) {
+                        remove(bookId, change.id);
+                    }
+                    break;
+                default:
+                    reload();
+            }
+        }
+    }
+
+    // Asks the database to expire pickups only when a ready hold here is past its date
+    void expire() {
+        Date today = Date.valueOf(LocalDate.now(clock));
+        for (Map<Integer, Hold> queue : queues.values()) {
+            for (Hold hold : queue.values()) {
+                if (Hold.READY.equals(hold.status) && hold.readyUntil.before(today)) {
+                    repository.expireHolds(today.toLocalDate()).exceptionally(e -> {
+                        LibraryMetrics.report("Expiring holds failed", e);
+                        return null;
+                    });
+                    return;
+                }
+            }
+        }
+    }
+
+    // Clears everything and loads the active holds afresh
+    private synchronized CompletableFuture<Void> reload() {
+        queues.clear();
+        endedDuringLoad = new HashSet<>();
+        int generation = ++loadGeneration;
+        return loadFrom(0, generation);
+    }
+
+    private CompletableFuture<Void> loadFrom(int afterId, int generation) {
+        return repository.activeHolds(afterId, LOAD_PAGE_SIZE).thenCompose(page -> {
+            synchronized (this) {
+                if (generation != loadGeneration) {
+                    return CompletableFuture.completedFuture(null);   // a newer reload took over
+                }
+                for (Hold hold : page) {
+                    Map<Integer, Hold> queue = queues.get(hold.bookId);
+                    if ((queue == null || !queue.containsKey(hold.id)) && !endedDuringLoad.contains(hold.id)) {
+                        put(hold);
+                    }
+                }
+                if (page.size() < LOAD_PAGE_SIZE) {
+                    endedDuringLoad = null;
+                }
+            }
+            return page.size() < LOAD_PAGE_SIZE
+                ? CompletableFuture.completedFuture(null)
+                : loadFrom(page.get(page.size() - 1).id, generation);
+        });
+    }
+
+    private void put(Hold hold) {
+        queues.computeIfAbsent(hold.bookId, id -> new ConcurrentSkipListMap<>()).put(hold.id, hold);
+    }
+
+    private void remove(int bookId, int holdId) {
+        if (endedDuringLoad != null) {
+            endedDuringLoad.add(holdId);
+        }
+        ConcurrentSkipListMap<Integer, Hold> queue = queues.get(bookId);
+        if (queue != null && queue.remove(holdId) != null && queue.isEmpty()) {
+            queues.remove(bookId, queue);
+        }
+    }
+}
@@ -0,0 +1,716 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JSON over HTTP for the web catalog and kiosks, answered by the same
+// LibraryService as the desk app. Runs without a display:
+//
+//   java -cp .:mysql-connector-j.jar LibraryServer
+//
+//   GET  /api/books?q=&offset=&limit=   all books by ID, or search hits best first
+//   GET  /api/books/related?bookId=&offset=&limit=   books borrowed together with it, best first
+//   GET  /api/users?q=&offset=&limit=
+//   GET  /api/loans?offset=&limit=      books currently borrowed
+//   GET  /api/loans/history?userId=&before=&limit=   a user's loans, newest first, archived ones too;
+//                                       or ?bookId= for a book's
+//   POST /api/books       {"title", "author", "isbn", "quantity"}
+//   POST /api/users       {"name", "email", "phone"}
+//   POST /api/checkouts   {"bookId", "userId"} or {"barcode", "userId"}
+//   POST /api/returns     {"bookId", "userId"} or {"barcode"}
+//   GET  /api/copies?barcode=           one copy, for a scanner; or ?bookId= for all of a book's
+//   POST /api/copies      {"bookId", "barcode", "location"}   barcode and location optional
+//   POST /api/copies/withdraw {"copyId"}
+//   GET  /api/holds?bookId=             the book's hold queue, oldest first
+//   POST /api/holds       {"bookId", "userId"}
+//   POST /api/holds/cancel {"holdId"}
+//   GET  /metrics                       operation latency and counts, Prometheus text format
+//
+// Lists answer {"total": n, "items": [...]}. Errors answer {"error": message}
+// with 400 for bad input, 404 for unknown books, users or barcodes, 409 for
+// conflicts (no copy left, duplicate ISBN, email or barcode) and 503 when the
+// database is saturated.
+class LibraryServer {
+    private static final String[] BOOK_FIELDS =
+        {"id", "title", "author", "isbn", "totalQuantity", "availableQuantity"};
+    private static final String[] USER_FIELDS = {"id", "name", "email", "phone"};
+    private static final String[] LOAN_FIELDS =
+        {"id", "bookId", "title", "userId", "userName", "borrowDate", "dueDate", "status"};
+    private static final String[] HOLD_FIELDS =
+        {"id", "bookId", "userId", "status", "placedAt", "readyUntil"};
+    private static final String[] COPY_FIELDS = {"id", "bookId", "barcode", "status", "location"};
+
+    private final LibraryService service;
+    private final HttpServer server;
+    private final ThreadPoolExecutor handlers;
+    private final int defaultLimit;
+    private final int maxLimit;
+
+    // Thrown by handlers for a response other than 200
+    private static final class HttpError extends RuntimeException {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface Handler {
+        Object handle(HttpExchange exchange) throws Exception;
+    }
+
+    LibraryServer(LibraryService service, LibraryConfig config) throws IOException {
+        this.service = service;
+        this.defaultLimit = config.getInt("table.pageSize", 200);
+        this.maxLimit = config.getInt("http.maxPageSize", 1000);
+        // The JDK server writes headers and body separately; with Nagle on, every
+        // keep-alive response then waits out the client's delayed ACK (~40 ms).
+        // Read once, when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(config.get("http.host", "0.0.0.0"),
+            config.getInt("http.port", 8080)), config.getInt("http.backlog", 256));
+
+        // Handlers mostly wait on the database, so a fixed number of them is
+        // enough; when its queue is full LibraryDataAccess fails fast and the
+        // request gets a 503
+        int threads = config.getInt("http.threads", 32);
+        AtomicInteger threadCount = new AtomicInteger();
+        handlers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "library-http-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        server.setExecutor(handlers);
+
+        route("/api/books", this::books);
+        route("/api/books/related", this::relatedBooks);
+        route("/api/users", this::users);
+        route("/api/loans", this::loans);
+        route("/api/loans/history", this::loanHistory);
+        route("/api/checkouts", exchange -> loan(exchange, true));
+        route("/api/returns", exchange -> loan(exchange, false));
+        route("/api/holds", this::holds);
+        route("/api/holds/cancel", this::cancelHold);
+        route("/api/copies", this::copies);
+        route("/api/copies/withdraw", this::withdrawCopy);
+        server.createContext("/metrics", this::metrics);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        LibraryService service = new LibraryService(config);
+        service.start().get();
+        LibraryServer server = new LibraryServer(service, config);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            service.stop();
+        }));
+        LibraryMetrics.note("Library API listening on port " + server.port());
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(1);
+        handlers.shutdownNow();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private Object books(HttpExchange exchange) throws Exception {
+        if (isPost(exchange)) {
+            Map<String, Object> body = readBody(exchange);
+            int id = await(service.data().addBook(text(body, "title"), text(body, "author"),
+                text(body, "isbn"), number(body, "quantity")));
+            return object("id", id);
+        }
+        String q = queryParams(exchange).get("q");
+        return list(exchange, q == null || q.trim().isEmpty()
+            ? service.data().bookPages() : service.search().findBooks(q.trim()), BOOK_FIELDS);
+    }
+
+    // Ranked from memory; only the page's books are read
+    private Object relatedBooks(HttpExchange exchange) throws Exception {
+        int bookId = param(queryParams(exchange), "bookId", -1);
+        if (bookId < 0) {
+            throw new HttpError(400, "Give bookId");
+        }
+        return list(exchange, service.data().bookIdPages(service.related().related(bookId, maxLimit)), BOOK_FIELDS);
+    }
+
+    private Object users(HttpExchange exchange) throws Exception {
+        if (isPost(exchange)) {
+            Map<String, Object> body = readBody(exchange);
+            int id = await(service.data().addUser(text(body, "name"), text(body, "email"),
+                optionalText(body, "phone")));
+            return object("id", id);
+        }
+        String q = queryParams(exchange).get("q");
+        return list(exchange, q == null || q.trim().isEmpty()
+            ? service.data().userPages() : service.search().findUsers(q.trim()), USER_FIELDS);
+    }
+
+    private Object loans(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "GET");
+        return list(exchange, service.data().borrowedPages(), LOAN_FIELDS);
+    }
+
+    // Paged by borrow ID rather than offset: "before" is the last ID of the
+    // previous page, and is absent from the answer after the last page
+    private Object loanHistory(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "GET");
+        Map<String, String> params = queryParams(exchange);
+        int userId = param(params, "userId", -1);
+        int bookId = param(params, "bookId", -1);
+        int before = param(params, "before", Integer.MAX_VALUE);
+        int limit = param(params, "limit", defaultLimit);
+        if ((userId < 0) == (bookId < 0) || limit < 1 || limit > maxLimit) {
+            throw new HttpError(400, "Give userId or bookId, and limit between 1 and " + maxLimit);
+        }
+        List<Loan> loans = await(userId >= 0
+            ? service.data().userLoanHistory(userId, before, limit)
+            : service.data().bookLoanHistory(bookId, before, limit));
+        List<Object> items = new ArrayList<>(loans.size());
+        for (Loan loan : loans) {
+            Map<String, Object> item = item(loan.toRow(), LOAN_FIELDS);
+            item.put("returnDate", loan.returnDate);
+            items.add(item);
+        }
+        Map<String, Object> response = object("items", items);
+        if (loans.size() == limit) {
+            response.put("before", loans.get(loans.size() - 1).id);
+        }
+        return response;
+    }
+
+    private Object loan(HttpExchange exchange, boolean checkout) throws Exception {
+        requireMethod(exchange, "POST");
+        Map<String, Object> body = readBody(exchange);
+        String barcode = optionalText(body, "barcode");
+        LoanResult result;
+        if (barcode != null) {
+            result = await(checkout
+                ? service.data().checkoutCopy(barcode, number(body, "userId"))
+                : service.data().returnCopy(barcode));
+        } else {
+            int bookId = number(body, "bookId");
+            int userId = number(body, "userId");
+            result = await(checkout
+                ? service.data().checkoutBook(bookId, userId)
+                : service.data().returnBook(bookId, userId));
+        }
+        switch (result.status) {
+            case OK:
+                Map<String, Object> response = object("status", result.status.name());
+                response.put("loanId", result.loan == null ? null : result.loan.id);
+                response.put("copyId", result.loan == null ? null : result.loan.copyId);
+                if (checkout) {
+                    response.put("dueDate", result.dueDate.toString());
+                }
+                // Checkout: the hold collected; return: the hold the copy is now set aside for
+                response.put("holdId", result.hold == null ? null : result.hold.id);
+                return response;
+            case UNAVAILABLE:
+                throw new HttpError(409, barcode != null ? "Copy is not available" : "Book is not available");
+            case BLOCKED:
+                throw new HttpError(403, "User has too many overdue books");
+            default:
+                throw new HttpError(404, !checkout ? "No active borrow record found"
+                    : barcode != null ? "Copy or user not found" : "Book or user not found");
+        }
+    }
+
+    // Queues are read from memory, so they may trail another desk's change by a poll
+    private Object holds(HttpExchange exchange) throws Exception {
+        if (!isPost(exchange)) {
+            requireMethod(exchange, "GET");
+            List<Object> items = new ArrayList<>();
+            for (Hold hold : service.holds().queue(param(queryParams(exchange), "bookId", -1))) {
+                items.add(item(hold.toRow(), HOLD_FIELDS));
+            }
+            Map<String, Object> response = object("total", items.size());
+            response.put("items", items);
+            return response;
+        }
+        Map<String, Object> body = readBody(exchange);
+        HoldResult result = await(service.data().placeHold(number(body, "bookId"), number(body, "userId")));
+        switch (result.status) {
+            case PLACED:
+            case ALREADY_HELD:
+                Map<String, Object> response = object("status", result.status.name());
+                response.put("holdId", result.hold.id);
+                response.put("position", result.position);
+                response.put("readyUntil", result.hold.readyUntil);
+                return response;
+            case AVAILABLE:
+                throw new HttpError(409, "A copy is available; check it out instead");
+            case BLOCKED:
+                throw new HttpError(403, "User has too many overdue books");
+            default:
+                throw new HttpError(404, "Book or user not found");
+        }
+    }
+
+    private Object cancelHold(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "POST");
+        Hold hold = await(service.data().cancelHold(number(readBody(exchange), "holdId")));
+        if (hold == null) {
+            throw new HttpError(404, "No waiting or ready hold with this ID");
+        }
+        return object("status", hold.status);
+    }
+
+    private Object copies(HttpExchange exchange) throws Exception {
+        if (isPost(exchange)) {
+            Map<String, Object> body = readBody(exchange);
+            Copy copy = await(service.data().addCopy(number(body, "bookId"), optionalText(body, "barcode"),
+                optionalText(body, "location")));
+            if (copy == null) {
+                throw new HttpError(404, "Book not found");
+            }
+            return item(copy.toRow(), COPY_FIELDS);
+        }
+        requireMethod(exchange, "GET");
+        Map<String, String> params = queryParams(exchange);
+        String barcode = params.get("barcode");
+        if (barcode != null) {
+            Copy copy = await(service.data().resolveBarcode(barcode.trim()));
+            if (copy == null) {
+                throw new HttpError(404, "No copy with this barcode");
+            }
+            return item(copy.toRow(), COPY_FIELDS);
+        }
+        List<Object> items = new ArrayList<>();
+        for (Copy copy : await(service.data().copies(param(params, "bookId", -1)))) {
+            items.add(item(copy.toRow(), COPY_FIELDS));
+        }
+        Map<String, Object> response = object("total", items.size());
+        response.put("items", items);
+        return response;
+    }
+
+    private Object withdrawCopy(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "POST");
+        Copy copy = await(service.data().withdrawCopy(number(readBody(exchange), "copyId")));
+        if (copy == null) {
+            throw new HttpError(409, "Only a copy on the shelf can be withdrawn");
+        }
+        return object("status", copy.status);
+    }
+
+    // Prometheus text rather than JSON, so outside route()
+    private void metrics(HttpExchange exchange) throws IOException {
+        byte[] bytes = service.data().metrics().prometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Object list(HttpExchange exchange, PageSource source, String[] fields) throws Exception {
+        requireMethod(exchange, "GET");
+        Map<String, String> params = queryParams(exchange);
+        int offset = param(params, "offset", 0);
+        int limit = param(params, "limit", defaultLimit);
+        if (offset < 0 || limit < 1 || limit > maxLimit) {
+            throw new HttpError(400, "offset must be >= 0 and limit between 1 and " + maxLimit);
+        }
+        Page page = await(service.page(source, offset, limit));
+        List<Object> items = new ArrayList<>(page.rows.size());
+        for (Object[] row : page.rows) {
+            items.add(item(row, fields));
+        }
+        Map<String, Object> response = object("total", page.total);
+        response.put("items", items);
+        return response;
+    }
+
+    private static Map<String, Object> item(Object[] row, String[] fields) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            item.put(fields[i], row[i]);
+        }
+        return item;
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            int status = 200;
+            Object response;
+            try {
+                if (!exchange.getRequestURI().getPath().equals(path)) {
+                    throw new HttpError(404, "Not found");
+                }
+                response = handler.handle(exchange);
+            } catch (Exception e) {
+                status = statusOf(e);
+                // Constraint messages quote SQL; the only ones reachable here are duplicates
+                response = object("error", e instanceof SQLIntegrityConstraintViolationException
+                    ? "A book with this ISBN or a user with this email already exists"
+                    : e.getMessage() == null ? e.toString() : e.getMessage());
+                if (status == 500) {
+                    LibraryMetrics.report(path + " failed", e);
+                }
+            }
+            byte[] bytes = Json.write(response).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+    }
+
+    private static int statusOf(Exception e) {
+        if (e instanceof HttpError) {
+            return ((HttpError) e).status;
+        }
+        if (e instanceof IllegalArgumentException) {   // includes NumberFormatException
+            return 400;
+        }
+        if (e instanceof SQLIntegrityConstraintViolationException) {
+            return 409;
+        }
+        if (e instanceof SQLTransientException) {
+            return 503;
+        }
+        return 500;
+    }
+
+    // The result of a data-access call, with its own exception rethrown
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private static boolean isPost(HttpExchange exchange) {
+        return "POST".equals(exchange.getRequestMethod());
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!method.equals(exchange.getRequestMethod())) {
+            throw new HttpError(405, exchange.getRequestMethod() + " is not supported here");
+        }
+    }
+
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return Json.parseObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> queryParams(HttpExchange exchange) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            params.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static int param(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static String text(Map<String, Object> body, String name) {
+        String value = optionalText(body, name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new HttpError(400, name + " is required");
+        }
+        return value;
+    }
+
+    private static String optionalText(Map<String, Object> body, String name) {
+        Object value = body.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    private static int number(Map<String, Object> body, String name) {
+        Object value = body.get(name);
+        if (!(value instanceof Number)) {
+            throw new HttpError(400, name + " must be a number");
+        }
+        return ((Number) value).intValue();
+    }
+
+    private static Map<String, Object> object(String name, Object value) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put(name, value);
+        return object;
+    }
+}
+
+// Just enough JSON for the API: objects, arrays, strings, numbers, booleans
+// and null. Dates and other values are written as their string form.
+final class Json {
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(out, value);
+        return out.toString();
+    }
+
+    private static void write(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, entry.getKey().toString());
+                out.append(':');
+                write(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(out, item);
+            }
+            out.append(']');
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    static void writeString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    // Throws IllegalArgumentException unless text is a single JSON object
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseObject(String text) {
+        Json parser = new Json(text);
+        Object value = parser.value();
+        parser.skipSpace();
+        if (!(value instanceof Map) || parser.pos != text.length()) {
+            throw new IllegalArgumentException("Request body must be a JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private Object value() {
+        skipSpace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end of JSON");
+        }
+        char c = text.charAt(pos);
+        if (c == '{') {
+            pos++;
+            Map<String, Object> object = new LinkedHashMap<>();
+            skipSpace();
+            if (peek('}')) {
+                return object;
+            }
+            do {
+                skipSpace();
+                expect('"');
+                String name = string();
+                skipSpace();
+                expect(':');
+                object.put(name, value());
+                skipSpace();
+            } while (peek(','));
+            expect('}');
+            return object;
+        }
+        if (c == '[') {
+            pos++;
+            List<Object> array = new ArrayList<>();
+            skipSpace();
+            if (peek(']')) {
+                return array;
+            }
+            do {
+                array.add(value());
+                skipSpace();
+            } while (peek(','));
+            expect(']');
+            return array;
+        }
+        if (c == '"') {
+            pos++;
+            return string();
+        }
+        if (text.startsWith("true", pos)) {
+            pos += 4;
+            return Boolean.TRUE;
+        }
+        if (text.startsWith("false", pos)) {
+            pos += 5;
+            return Boolean.FALSE;
+        }
+        if (text.startsWith("null", pos)) {
+            pos += 4;
+            return null;
+        }
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        String number = text.substring(start, pos);
+        if (number.isEmpty()) {
+            throw error("Unexpected character '" + c + "'");
+        }
+        return number.matches("-?\\d{1,18}") ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+    }
+
+    // Reads the rest of a string whose opening quote has been consumed
+    private String string() {
+        StringBuilder s = new StringBuilder();
+        while (pos < text.length()) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return s.toString();
+            }
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+            if (pos >= text.length()) {
+                break;
+            }
+            char escaped = text.charAt(pos++);
+            switch (escaped) {
+                case 'b':
+                    s.append('\b');
+                    break;
+                case 'f':
+                    s.append('\f');
+                    break;
+                case 'n':
+                    s.append('\n');
+                    break;
+                case 'r':
+                    s.append('\r');
+                    break;
+                case 't':
+                    s.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw error("Bad unicode escape");
+                    }
+                    s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    s.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private boolean peek(char c) {
+        if (pos < text.length() && text.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!peek(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
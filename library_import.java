@@ -0,0 +1,539 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// One book read from an import file
+class ImportRow {
+    final long line;
+    final String title;
+    final String author;
+    final String isbn;   // null when the file gives none
+    final int quantity;
+
+    ImportRow(long line, String title, String author, String isbn, int quantity) {
+        this.line = line;
+        this.title = title;
+        this.author = author;
+        this.isbn = isbn;
+        this.quantity = quantity;
+    }
+}
+
+// How far an import has got; every count covers committed chunks only
+class ImportProgress {
+    final long bytesRead;
+    final long totalBytes;
+    final long rows;
+    final long added;
+    final long duplicates;
+    final long rejected;
+    final long elapsedNanos;
+
+    ImportProgress(long bytesRead, long totalBytes, long rows, long added, long duplicates,
+                   long rejected, long elapsedNanos) {
+        this.bytesRead = bytesRead;
+        this.totalBytes = totalBytes;
+        this.rows = rows;
+        this.added = added;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    int percent() {
+        return totalBytes == 0 ? 100 : (int) Math.min(100, bytesRead * 100 / totalBytes);
+    }
+
+    double rowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+    }
+
+    String summary() {
+        return String.format("%,d rows: %,d added, %,d duplicates, %,d rejected (%,.0f rows/s)",
+            rows, added, duplicates, rejected, rowsPerSecond());
+    }
+}
+
+// Loads books from a CSV file without holding more than a few chunks of it in
+// memory. A reader thread splits the file into records and hands chunks of
+// import.batchSize to import.parserThreads parsers; a writer thread takes the
+// parsed chunks in file order and commits each as one transaction. The queue
+// between them holds a fixed number of chunks, so a slow database holds the
+// reader back.
+//
+// The file needs title and author columns; isbn and quantity are optional
+// (quantity defaults to 1). With a header row the columns can come in any order,
+// otherwise they are taken as title, author, isbn, quantity. Books whose ISBN
+// is already in the catalog, earlier in the file included, are skipped. Rows
+// that cannot be loaded are listed in <file>.rejects.csv and the import goes on.
+class CatalogImport {
+    private static final Chunk END = new Chunk(new ArrayList<>(), new ArrayList<>(), 0);
+    private static final int MAX_DUPLICATE_RETRIES = 3;
+    private static final String[] COLUMNS = {"title", "author", "isbn", "quantity"};
+    private static final int[] MAX_LENGTHS = {200, 100, 20};   // title, author, isbn as in the schema
+
+    private final LibraryRepository repository;
+    private final int batchSize;
+    private final int parserThreads;
+    private volatile boolean cancelled;
+
+    // Records from the file, still as text
+    private static final class Chunk {
+        final List<String> records;
+        final List<Long> lines;
+        final long bytesRead;   // input consumed when the chunk was cut
+        final List<ImportRow> rows = new ArrayList<>();
+        final List<String> rejections = new ArrayList<>();   // lines for the rejects file
+        final int[] columns;
+
+        Chunk(List<String> records, List<Long> lines, long bytesRead, int... columns) {
+            this.records = records;
+            this.lines = lines;
+            this.bytesRead = bytesRead;
+            this.columns = columns;
+        }
+    }
+
+    CatalogImport(LibraryRepository repository, LibraryConfig config) {
+        this.repository = repository;
+        this.batchSize = config.getInt("import.batchSize", 1000);
+        this.parserThreads = config.getInt("import.parserThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    static Path rejectsFile(Path file) {
+        return Paths.get(file + ".rejects.csv");
+    }
+
+    // Stops after the chunk being written; what has committed stays
+    void cancel() {
+        cancelled = true;
+    }
+
+    // onProgress is called on the writer thread after every chunk
+    CompletableFuture<ImportProgress> start(Path file, Consumer<ImportProgress> onProgress) {
+        CompletableFuture<ImportProgress> result = new CompletableFuture<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads, r -> {
+            Thread t = new Thread(r, "library-import-parser-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        BlockingQueue<Future<Chunk>> parsed = new ArrayBlockingQueue<>(parserThreads * 2);
+
+        Thread reader = new Thread(() -> read(file, parsers, parsed), "library-import-reader");
+        Thread writer = new Thread(() -> {
+            try {
+                result.complete(write(file, parsed, onProgress));
+            } catch (Throwable e) {
+                cancelled = true;
+                result.completeExceptionally(e instanceof ExecutionException ? e.getCause() : e);
+            } finally {
+                parsers.shutdownNow();
+            }
+        }, "library-import-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+        return result;
+    }
+
+    private void read(Path file, ExecutorService parsers, BlockingQueue<Future<Chunk>> parsed) {
+        try (CountingInputStream counter = new CountingInputStream(Files.newInputStream(file));
+             BufferedReader in = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8))) {
+            RecordReader records = new RecordReader(in);
+            String first = records.next();
+            if (first != null && first.startsWith("\uFEFF")) {
+                first = first.substring(1);
+            }
+            int[] columns = columnsOf(first);
+            List<String> chunk = new ArrayList<>(batchSize);
+            List<Long> lines = new ArrayList<>(batchSize);
+            List<String> unclosed = new ArrayList<>();
+            if (first != null && columns == null) {
+                columns = new int[]{0, 1, 2, 3};
+                chunk.add(first);
+                lines.add(1L);
+            }
+            while (!cancelled) {
+                long line = records.line() + 1;
+                String record = records.next();
+                if (record != null && records.unclosed()) {
+                    unclosed.add(rejection(line, "a quoted field is not closed", record));
+                } else if (record != null) {
+                    chunk.add(record);
+                    lines.add(line);
+                }
+                int taken = chunk.size() + unclosed.size();
+                if (taken == batchSize || (record == null && taken > 0)) {
+                    Chunk next = new Chunk(chunk, lines, counter.count(), columns);
+                    next.rejections.addAll(unclosed);
+                    enqueue(parsed, parsers.submit(() -> parse(next)));
+                    chunk = new ArrayList<>(batchSize);
+                    lines = new ArrayList<>(batchSize);
+                    unclosed = new ArrayList<>();
+                }
+                if (record == null) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<Chunk> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            enqueue(parsed, failed);
+        } finally {
+            enqueue(parsed, CompletableFuture.completedFuture(END));
+        }
+    }
+
+    // Waits for room in the queue unless the import has been stopped
+    private void enqueue(BlockingQueue<Future<Chunk>> parsed, Future<Chunk> chunk) {
+        try {
+            while (!cancelled && !parsed.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                // writer is behind
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The header's column positions, or null if the first record is not a header
+    private static int[] columnsOf(String header) {
+        if (header == null) {
+            return null;
+        }
+        List<String> names = RecordReader.split(header);
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i).trim().toLowerCase(Locale.ROOT).replace(' ', '_');
+            if (name.equals("total_quantity") || name.equals("copies") || name.equals("qty")) {
+                name = "quantity";
+            }
+            positions.putIfAbsent(name, i);
+        }
+        if (!positions.containsKey("title")) {
+            return null;
+        }
+        int[] columns = new int[COLUMNS.length];
+        for (int c = 0; c < COLUMNS.length; c++) {
+            columns[c] = positions.getOrDefault(COLUMNS[c], -1);
+        }
+        return columns;
+    }
+
+    private static Chunk parse(Chunk chunk) {
+        for (int i = 0; i < chunk.records.size(); i++) {
+            String record = chunk.records.get(i);
+            long line = chunk.lines.get(i);
+            try {
+                ImportRow row = parseRow(line, RecordReader.split(record), chunk.columns);
+                if (row != null) {
+                    chunk.rows.add(row);
+                }
+            } catch (IllegalArgumentException e) {
+                chunk.rejections.add(rejection(line, e.getMessage(), record));
+            }
+        }
+        return chunk;
+    }
+
+    private static ImportRow parseRow(long line, List<String> fields, int[] columns) {
+        String[] values = new String[COLUMNS.length];
+        boolean blank = true;
+        for (int c = 0; c < COLUMNS.length; c++) {
+            String value = columns[c] >= 0 && columns[c] < fields.size() ? fields.get(columns[c]).trim() : "";
+            values[c] = value.isEmpty() ? null : value;
+            blank &= value.isEmpty();
+        }
+        if (blank) {
+            return null;   // empty line
+        }
+        for (int c = 0; c < MAX_LENGTHS.length; c++) {
+            if (c < 2 && values[c] == null) {
+                throw new IllegalArgumentException(COLUMNS[c] + " is missing");
+            }
+            if (values[c] != null && values[c].length() > MAX_LENGTHS[c]) {
+                throw new IllegalArgumentException(COLUMNS[c] + " is longer than " + MAX_LENGTHS[c] + " characters");
+            }
+        }
+        int quantity = 1;
+        if (values[3] != null) {
+            try {
+                quantity = Integer.parseInt(values[3]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("quantity is not a whole number");
+            }
+            if (quantity < 0) {
+                throw new IllegalArgumentException("quantity is negative");
+            }
+        }
+        return new ImportRow(line, values[0], values[1], values[2], quantity);
+    }
+
+    private ImportProgress write(Path file, BlockingQueue<Future<Chunk>> parsed,
+                                 Consumer<ImportProgress> onProgress) throws Exception {
+        long started = System.nanoTime();
+        long totalBytes = Files.size(file);
+        long rows = 0, added = 0, duplicates = 0, rejected = 0, bytesRead = 0;
+        Path rejectsFile = rejectsFile(file);
+        Files.deleteIfExists(rejectsFile);
+        BufferedWriter rejects = null;
+        try {
+            while (!cancelled) {
+                Chunk chunk = parsed.take().get();
+                if (chunk == END) {
+                    break;
+                }
+                List<String> rejections = new ArrayList<>(chunk.rejections);
+                List<ImportRow> skipped = chunk.rows.isEmpty() ? chunk.rows : insert(chunk.rows);
+                for (ImportRow row : skipped) {
+                    rejections.add(rejection(row.line, "ISBN " + row.isbn + " is already in the catalog", asRecord(row)));
+                }
+                rows += chunk.rows.size() + chunk.rejections.size();
+                added += chunk.rows.size() - skipped.size();
+                duplicates += skipped.size();
+                rejected += chunk.rejections.size();
+                bytesRead = chunk.bytesRead;
+                if (!rejections.isEmpty()) {
+                    if (rejects == null) {
+                        rejects = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8);
+                        rejects.write("line,reason,record\n");
+                    }
+                    for (String rejection : rejections) {
+                        rejects.write(rejection);
+                    }
+                }
+                onProgress.accept(new ImportProgress(bytesRead, totalBytes, rows, added, duplicates,
+                    rejected, System.nanoTime() - started));
+            }
+        } finally {
+            if (rejects != null) {
+                rejects.close();
+            }
+        }
+        return new ImportProgress(cancelled ? bytesRead : totalBytes, totalBytes, rows, added, duplicates,
+            rejected, System.nanoTime() - started);
+    }
+
+    // Another desk may add one of the ISBNs between the duplicate check and the
+    // insert; the chunk is then tried again and the check catches it
+    private List<ImportRow> insert(List<ImportRow> rows) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return repository.importBooks(rows).get();
+            } catch (ExecutionException e) {
+                if (attempt >= MAX_DUPLICATE_RETRIES || !isDuplicateKey(e.getCause())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isDuplicateKey(Throwable e) {
+        for (Throwable cur = e; cur != null; cur = cur.getCause()) {
+            if (cur instanceof SQLException) {
+                for (SQLException sql = (SQLException) cur; sql != null; sql = sql.getNextException()) {
+                    if (sql.getSQLState() != null && sql.getSQLState().startsWith("23")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // A skipped row in the header's column order, so it can be fixed and re-imported
+    private static String asRecord(ImportRow row) {
+        return RecordReader.quote(row.title) + "," + RecordReader.quote(row.author) + "," +
+            RecordReader.quote(row.isbn) + "," + row.quantity;
+    }
+
+    private static String rejection(long line, String reason, String record) {
+        return line + "," + RecordReader.quote(reason) + "," + RecordReader.quote(record) + "\n";
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
+
+// Splits CSV text into records. A quote at the start of a field opens a
+// quoted field, which may span lines; anywhere else a quote is just a
+// character, as in 12" Vinyl Care. A quoted field still open after MAX_LINES
+// lines or MAX_CHARS characters, or at the end of the file, is taken to be a
+// stray quote: its first line comes back alone, marked unclosed(), and
+// reading goes on from the line after it.
+class RecordReader {
+    static final int MAX_LINES = 100;
+    static final int MAX_CHARS = 1 << 16;
+
+    private final BufferedReader in;
+    private final ArrayDeque<String> pushedBack = new ArrayDeque<>();
+    private long line;
+    private boolean unclosed;
+    // Where the text scanned so far leaves off
+    private boolean quoted, fieldStart;
+
+    RecordReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    // Number of lines consumed so far
+    long line() {
+        return line;
+    }
+
+    // Whether the last record returned opened a quoted field it never closed
+    boolean unclosed() {
+        return unclosed;
+    }
+
+    String next() throws IOException {
+        unclosed = false;
+        String text = readLine();
+        if (text == null) {
+            return null;
+        }
+        quoted = false;
+        fieldStart = true;
+        scan(text);
+        if (!quoted) {
+            return text;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(text);
+        int length = text.length();
+        while (quoted) {
+            String more = readLine();
+            if (more == null) {
+                break;
+            }
+            lines.add(more);
+            length += 1 + more.length();
+            if (lines.size() > MAX_LINES || length > MAX_CHARS) {
+                break;
+            }
+            scan(more);
+        }
+        if (quoted) {
+            for (int i = lines.size() - 1; i > 0; i--) {
+                pushedBack.push(lines.get(i));
+            }
+            line -= lines.size() - 1;
+            unclosed = true;
+            return text;
+        }
+        return String.join("\n", lines);
+    }
+
+    private String readLine() throws IOException {
+        String text = pushedBack.isEmpty() ? in.readLine() : pushedBack.pop();
+        if (text != null) {
+            line++;
+        }
+        return text;
+    }
+
+    // Moves the quote state on over one more line of the record
+    private void scan(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    continue;
+                }
+                if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == ',') {
+                fieldStart = true;
+            } else if (c == '"' && fieldStart) {
+                quoted = true;
+                fieldStart = false;
+            } else if (c != ' ' && c != '\t') {
+                fieldStart = false;
+            }
+        }
+    }
+
+    static List<String> split(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean fieldStart = true;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"' && fieldStart) {
+                quoted = true;
+                fieldStart = false;
+                field.setLength(0);
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                fieldStart = true;
+            } else {
+                field.append(c);
+                fieldStart &= c == ' ' || c == '\t';
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
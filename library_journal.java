@@ -0,0 +1,567 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
+
+// A checkout or return as taken down at a desk
+class JournalEntry {
+    enum Kind { CHECKOUT_BOOK, CHECKOUT_COPY, RETURN_BOOK, RETURN_COPY }
+
+    final String key;   // the desk's ID and seq; unique across desks
+    final long seq;
+    final Kind kind;
+    final long occurredAt;   // epoch millis at the desk
+    final int bookId;   // 0 when a copy is named by barcode
+    final int userId;   // 0 for RETURN_COPY
+    final String barcode;   // null unless a copy is named
+    final String outcome;   // LoanResult status or REJECTED once applied centrally; null before
+    final String detail;   // why it was REJECTED
+
+    JournalEntry(String key, long seq, Kind kind, long occurredAt, int bookId, int userId,
+                 String barcode, String outcome, String detail) {
+        this.key = key;
+        this.seq = seq;
+        this.kind = kind;
+        this.occurredAt = occurredAt;
+        this.bookId = bookId;
+        this.userId = userId;
+        this.barcode = barcode;
+        this.outcome = outcome;
+        this.detail = detail;
+    }
+
+    // A row of desk_journal: op_key, kind, book_id, user_id, barcode, occurred_at, outcome, detail
+    static JournalEntry from(ResultSet rs) throws SQLException {
+        return new JournalEntry(rs.getString(1), 0, Kind.valueOf(rs.getString(2)), rs.getTimestamp(6).getTime(),
+            rs.getInt(3), rs.getInt(4), rs.getString(5), rs.getString(7), rs.getString(8));
+    }
+
+    LocalDateTime time() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(occurredAt), ZoneId.systemDefault());
+    }
+
+    // The date it happened on at the desk, which the loan is dated by
+    LocalDate day() {
+        return time().toLocalDate();
+    }
+}
+
+// This desk's checkouts and returns, kept in a memory-mapped file from the
+// moment they are made until JournalReplayer has applied them centrally. An
+// append is on disk (forced) before it returns, so it survives the process
+// or the machine stopping.
+//
+// The file is a header and then records back to back. The header holds the
+// desk's ID, the seq of the first record and the last seq applied; it sits
+// in one disk sector, so it is never half written. Each record is its length
+// and CRC, then seq, time, kind, book, user and barcode. Opening scans the
+// records in seq order and stops at the first that is torn or out of
+// sequence. Once everything is applied the records start again from the top,
+// so the file only fills while the database stays out of reach.
+class LoanJournal implements AutoCloseable {
+    private static final int MAGIC = 0x4C4D534A;   // "LMSJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_CRC = 40;
+    private static final int RECORD_HEADER = 8;
+    private static final int FIXED_PAYLOAD = 27;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final UUID deskId;
+    private final ArrayDeque<JournalEntry> pending = new ArrayDeque<>();
+    private long firstSeq;
+    private long replayedSeq;
+    private long nextSeq;
+    private int end;
+
+    private LoanJournal(Path file, FileChannel channel, FileLock lock, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+        this.buffer = buffer;
+        if (buffer.getInt(0) == 0) {
+            deskId = UUID.randomUUID();
+            firstSeq = 1;
+            replayedSeq = 0;
+            writeHeader();
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(bytes(0, HEADER_CRC));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+                    buffer.getInt(HEADER_CRC) != (int) crc.getValue()) {
+                throw new IOException("Unsupported or damaged journal " + file);
+            }
+            deskId = new UUID(buffer.getLong(8), buffer.getLong(16));
+            firstSeq = buffer.getLong(24);
+            replayedSeq = buffer.getLong(32);
+        }
+        nextSeq = firstSeq;
+        end = HEADER_SIZE;
+        JournalEntry entry;
+        while ((entry = read(end, nextSeq)) != null) {
+            if (entry.seq > replayedSeq) {
+                pending.add(entry);
+            }
+            end += RECORD_HEADER + buffer.getInt(end);
+            nextSeq++;
+        }
+    }
+
+    // Opens the journal, creating it capacity bytes long if there is none.
+    // One process at a time: a second open fails while the first has it.
+    static LoanJournal open(Path file, int capacity) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Journal " + file + " is open in another process");
+            }
+            long size = Math.max(capacity, channel.size());
+            return new LoanJournal(file, channel, lock, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    String deskId() {
+        return deskId.toString();
+    }
+
+    Path file() {
+        return file;
+    }
+
+    // Takes down one operation; bookId and userId are 0 where not known
+    synchronized JournalEntry append(JournalEntry.Kind kind, int bookId, int userId, String barcode,
+                                     long occurredAt) throws IOException {
+        JournalEntry entry = write(kind, bookId, userId, barcode, occurredAt);
+        buffer.force();
+        return entry;
+    }
+
+    // Takes down a batch of books for checkout or return with one force. The
+    // batch is refused whole if it does not fit, so none of it is written.
+    synchronized List<JournalEntry> appendAll(JournalEntry.Kind kind, List<LoanRequest> items,
+                                              long occurredAt) throws IOException {
+        if (end + (long) items.size() * (RECORD_HEADER + FIXED_PAYLOAD) > buffer.capacity()) {
+            throw full();
+        }
+        List<JournalEntry> entries = new ArrayList<>(items.size());
+        for (LoanRequest item : items) {
+            entries.add(write(kind, item.bookId, item.userId, null, occurredAt));
+        }
+        buffer.force();
+        return entries;
+    }
+
+    private JournalEntry write(JournalEntry.Kind kind, int bookId, int userId, String barcode,
+                               long occurredAt) throws IOException {
+        byte[] code = barcode == null ? new byte[0] : barcode.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_PAYLOAD + code.length;
+        if ((long) end + RECORD_HEADER + length > buffer.capacity()) {
+            throw full();
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(end + RECORD_HEADER);
+        record.putLong(nextSeq).putLong(occurredAt).put((byte) kind.ordinal())
+            .putInt(bookId).putInt(userId).putShort((short) code.length).put(code);
+        CRC32 crc = new CRC32();
+        crc.update(bytes(end + RECORD_HEADER, length));
+        buffer.putInt(end + 4, (int) crc.getValue());
+        buffer.putInt(end, length);
+        JournalEntry entry = new JournalEntry(deskId + "-" + nextSeq, nextSeq, kind, occurredAt,
+            bookId, userId, barcode, null, null);
+        pending.add(entry);
+        end += RECORD_HEADER + length;
+        nextSeq++;
+        return entry;
+    }
+
+    private IOException full() {
+        return new IOException("Journal " + file + " is full; " + pending.size() +
+            " checkouts and returns are waiting for the database");
+    }
+
+    // The record at offset if it is whole and has this seq, else null
+    private JournalEntry read(int offset, long seq) {
+        if (offset + RECORD_HEADER > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length < FIXED_PAYLOAD || length > buffer.capacity() - offset - RECORD_HEADER) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes(offset + RECORD_HEADER, length));
+        ByteBuffer record = bytes(offset + RECORD_HEADER, length);
+        if (buffer.getInt(offset + 4) != (int) crc.getValue() || record.getLong() != seq) {
+            return null;
+        }
+        long occurredAt = record.getLong();
+        JournalEntry.Kind kind = JournalEntry.Kind.values()[record.get()];
+        int bookId = record.getInt();
+        int userId = record.getInt();
+        byte[] code = new byte[record.getShort()];
+        record.get(code);
+        return new JournalEntry(deskId + "-" + seq, seq, kind, occurredAt, bookId, userId,
+            code.length == 0 ? null : new String(code, StandardCharsets.UTF_8), null, null);
+    }
+
+    private ByteBuffer bytes(int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice();
+    }
+
+    // Up to limit entries not yet applied, oldest first
+    synchronized List<JournalEntry> pending(int limit) {
+        List<JournalEntry> entries = new ArrayList<>(Math.min(limit, pending.size()));
+        for (JournalEntry entry : pending) {
+            if (entries.size() == limit) {
+                break;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    synchronized int waiting() {
+        return pending.size();
+    }
+
+    // Records that every entry up to seq has been applied
+    synchronized void replayed(long seq) {
+        while (!pending.isEmpty() && pending.peek().seq <= seq) {
+            pending.poll();
+        }
+        replayedSeq = seq;
+        if (pending.isEmpty()) {
+            firstSeq = nextSeq;
+            end = HEADER_SIZE;
+        }
+        writeHeader();
+        buffer.force();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, deskId.getMostSignificantBits());
+        buffer.putLong(16, deskId.getLeastSignificantBits());
+        buffer.putLong(24, firstSeq);
+        buffer.putLong(32, replayedSeq);
+        CRC32 crc = new CRC32();
+        crc.update(bytes(0, HEADER_CRC));
+        buffer.putInt(HEADER_CRC, (int) crc.getValue());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        lock.release();
+        channel.close();
+    }
+}
+
+// Applies a desk's LoanJournal to the database, journal.batchSize entries to
+// a round trip, as soon as entries are appended and every
+// journal.retryMillis while the database cannot be reached. Entries carry
+// their key, so one applied just before a crash is skipped when it comes
+// round again, even by a second replayer working through an old copy of the
+// journal. Entries the database turns down (the last copy already lent, a
+// loan already returned, a user deleted) are recorded as conflicts for
+// staff to settle; they do not hold up the rest.
+class JournalReplayer {
+    private final LibraryRepository repository;
+    private final LoanJournal journal;
+    private final int batchSize;
+    private final int retryMillis;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "library-journal");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean migrated;
+    private volatile Throwable lastError;
+
+    JournalReplayer(LibraryRepository repository, LoanJournal journal, LibraryConfig config) {
+        this(repository, journal, config.getInt("journal.batchSize", 100), config.getInt("journal.retryMillis", 5000));
+    }
+
+    JournalReplayer(LibraryRepository repository, LoanJournal journal, int batchSize, int retryMillis) {
+        this.repository = repository;
+        this.journal = journal;
+        this.batchSize = batchSize;
+        this.retryMillis = retryMillis;
+    }
+
+    void start() {
+        ticker.scheduleWithFixedDelay(this::tick, 0, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        ticker.shutdownNow();
+    }
+
+    // Replays now rather than at the next retry; called after each append
+    void wake() {
+        if (woken.compareAndSet(false, true)) {
+            ticker.execute(() -> {
+                woken.set(false);
+                tick();
+            });
+        }
+    }
+
+    // Called on the replayer's thread whenever waiting(), online() or conflicts() may have changed
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    int waiting() {
+        return journal.waiting();
+    }
+
+    // False from a failed replay until the next one gets through
+    boolean online() {
+        return lastError == null;
+    }
+
+    Throwable lastError() {
+        return lastError;
+    }
+
+    // Entries turned down since this desk started
+    int conflicts() {
+        return conflicts.get();
+    }
+
+    // Applies everything waiting; returns how many were applied now rather than before
+    int replay() throws InterruptedException, ExecutionException {
+        if (!migrated) {
+            repository.migrateSchema().get();
+            migrated = true;
+        }
+        int applied = 0;
+        while (true) {
+            List<JournalEntry> batch = journal.pending(batchSize);
+            if (batch.isEmpty()) {
+                return applied;
+            }
+            List<LoanResult> results = repository.replayJournal(batch).get();
+            journal.replayed(batch.get(batch.size() - 1).seq);
+            for (LoanResult result : results) {
+                if (result == null) {
+                    continue;
+                }
+                applied++;
+                if (result.status != LoanResult.Status.OK) {
+                    conflicts.incrementAndGet();
+                }
+            }
+            lastError = null;
+            fire();
+        }
+    }
+
+    private void tick() {
+        try {
+            replay();
+            if (lastError != null) {
+                lastError = null;
+                fire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();   // stopping
+        } catch (ExecutionException e) {
+            boolean wasOnline = lastError == null;
+            lastError = e.getCause();
+            if (wasOnline) {
+                LibraryMetrics.report("Replaying the journal failed", e.getCause());   // tried again every retryMillis
+            }
+            fire();
+        }
+    }
+
+    private void fire() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
+
+// Checkout and return as a desk makes them. Without a journal they go to
+// the repository as they are. With one, each is taken down in the journal
+// and answered QUEUED (a checkout with its due date) as soon as it is on
+// local disk, and the replayer applies it centrally after. The overdue
+// block is checked here, against what the desk last heard from the
+// database; the replayed checkout is not checked again.
+class DeskLoans implements AutoCloseable {
+    private final LibraryRepository repository;
+    private final LoanJournal journal;
+    private final JournalReplayer replayer;
+    private final IntPredicate blocked;
+    private final ExecutorService appender;
+
+    DeskLoans(LibraryRepository repository, LoanJournal journal, JournalReplayer replayer, IntPredicate blocked) {
+        this.repository = repository;
+        this.journal = journal;
+        this.replayer = replayer;
+        this.blocked = blocked;
+        this.appender = journal == null ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "library-journal-append");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    boolean journaling() {
+        return journal != null;
+    }
+
+    // Null unless journaling
+    JournalReplayer replayer() {
+        return replayer;
+    }
+
+    CompletableFuture<LoanResult> checkoutBook(int bookId, int userId) {
+        if (journal == null) {
+            return repository.checkoutBook(bookId, userId);
+        }
+        return checkout(JournalEntry.Kind.CHECKOUT_BOOK, bookId, userId, null);
+    }
+
+    CompletableFuture<LoanResult> checkoutCopy(String barcode, int userId) {
+        if (journal == null) {
+            return repository.checkoutCopy(barcode, userId);
+        }
+        return checkout(JournalEntry.Kind.CHECKOUT_COPY, 0, userId, barcode);
+    }
+
+    CompletableFuture<LoanResult> returnBook(int bookId, int userId) {
+        if (journal == null) {
+            return repository.returnBook(bookId, userId);
+        }
+        return append(JournalEntry.Kind.RETURN_BOOK, bookId, userId, null, null);
+    }
+
+    CompletableFuture<LoanResult> returnCopy(String barcode) {
+        if (journal == null) {
+            return repository.returnCopy(barcode);
+        }
+        return append(JournalEntry.Kind.RETURN_COPY, 0, 0, barcode, null);
+    }
+
+    CompletableFuture<List<LoanResult>> checkoutBooks(List<LoanRequest> items) {
+        if (journal == null) {
+            return repository.checkoutBooks(items);
+        }
+        LocalDate dueDate = LocalDate.now().plusDays(LibraryDataAccess.LOAN_DAYS);
+        List<LoanResult> results = new ArrayList<>();
+        List<LoanRequest> allowed = new ArrayList<>();
+        for (LoanRequest item : items) {
+            boolean ok = !blocked.test(item.userId);
+            results.add(ok ? LoanResult.queued(dueDate) : LoanResult.BLOCKED);
+            if (ok) {
+                allowed.add(item);
+            }
+        }
+        return appendAll(JournalEntry.Kind.CHECKOUT_BOOK, allowed, results);
+    }
+
+    CompletableFuture<List<LoanResult>> returnBooks(List<LoanRequest> items) {
+        if (journal == null) {
+            return repository.returnBooks(items);
+        }
+        return appendAll(JournalEntry.Kind.RETURN_BOOK, items,
+            new ArrayList<>(Collections.nCopies(items.size(), LoanResult.queued(null))));
+    }
+
+    private CompletableFuture<LoanResult> checkout(JournalEntry.Kind kind, int bookId, int userId, String barcode) {
+        if (blocked.test(userId)) {
+            return CompletableFuture.completedFuture(LoanResult.BLOCKED);
+        }
+        return append(kind, bookId, userId, barcode, LocalDate.now().plusDays(LibraryDataAccess.LOAN_DAYS));
+    }
+
+    private CompletableFuture<LoanResult> append(JournalEntry.Kind kind, int bookId, int userId,
+                                                 String barcode, LocalDate dueDate) {
+        long now = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                journal.append(kind, bookId, userId, barcode, now);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            replayer.wake();
+            return LoanResult.queued(dueDate);
+        }, appender);
+    }
+
+    private CompletableFuture<List<LoanResult>> appendAll(JournalEntry.Kind kind, List<LoanRequest> items,
+                                                          List<LoanResult> results) {
+        long now = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                journal.appendAll(kind, items, now);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            replayer.wake();
+            return results;
+        }, appender);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            appender.shutdown();
+            try {
+                appender.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives a running LibraryServer with a mix of kiosk and catalog traffic from
+// a number of client threads and reports sustained requests per second with
+// latency percentiles per request kind:
+//
+//   java -Dload.url=http://localhost:8080 -Dload.threads=32 LibraryLoadTest
+//
+// Settings (system properties): load.url, load.threads (default 16),
+// load.seconds (default 30), load.warmupSeconds (default 5). The mix is 50%
+// book searches, 15% user searches, 15% book list pages, 10% borrowed list
+// pages and 10% a checkout followed by its return, so the catalog ends as it
+// started. Search terms and IDs come from the server's first pages of books
+// and users.
+class LibraryLoadTest {
+    private final String baseUrl;
+    private final List<String> bookTerms = new ArrayList<>();
+    private final List<String> userTerms = new ArrayList<>();
+    private final List<Integer> bookIds = new ArrayList<>();
+    private final List<Integer> userIds = new ArrayList<>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LibraryLoadTest(String baseUrl) {
+        this.baseUrl = baseUrl;
+        for (String kind : new String[]{"searchBooks", "searchUsers", "listBooks", "listLoans", "checkout", "return"}) {
+            latencies.put(kind, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryConfig config = LibraryConfig.load();
+        LibraryLoadTest test = new LibraryLoadTest(config.get("load.url", "http://localhost:8080"));
+        test.sample();
+        test.run(config.getInt("load.threads", 16), config.getInt("load.warmupSeconds", 5),
+            config.getInt("load.seconds", 30));
+    }
+
+    // Collects words and IDs to build requests from
+    private void sample() throws IOException {
+        String books = get("/api/books?limit=500");
+        String users = get("/api/users?limit=500");
+        for (Object item : items(books)) {
+            Map<?, ?> book = (Map<?, ?>) item;
+            bookIds.add(((Number) book.get("id")).intValue());
+            addTerms(bookTerms, (String) book.get("title"));
+            addTerms(bookTerms, (String) book.get("author"));
+        }
+        for (Object item : items(users)) {
+            Map<?, ?> user = (Map<?, ?>) item;
+            userIds.add(((Number) user.get("id")).intValue());
+            addTerms(userTerms, (String) user.get("name"));
+        }
+        if (bookIds.isEmpty() || userIds.isEmpty()) {
+            throw new IllegalStateException("The server needs some books and users to test with");
+        }
+    }
+
+    private void run(int threads, int warmupSeconds, int seconds) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::client, "load-" + i);
+            t.setDaemon(true);
+            clients.add(t);
+            t.start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        requests.set(0);
+        errors.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Thread t : clients) {
+            t.join(5000);
+        }
+
+        System.out.printf("%d clients for %.0f s: %d requests, %.0f requests/s, %d errors%n",
+            threads, elapsed, requests.get(), requests.get() / elapsed, errors.get());
+        System.out.printf("%-12s %9s %9s %9s %9s %9s%n", "request", "count", "req/s", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencySnapshot latency = entry.getValue().snapshot();
+            System.out.printf("%-12s %9d %9.0f %9.2f %9.2f %9.2f%n", entry.getKey(), latency.count,
+                latency.count / elapsed, latency.millis(0.5), latency.millis(0.99), latency.maxMillis());
+        }
+    }
+
+    private void client() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            int roll = random.nextInt(100);
+            try {
+                if (roll < 50) {
+                    timed("searchBooks", "GET", "/api/books?limit=50&q=" + query(bookTerms, random), null);
+                } else if (roll < 65) {
+                    timed("searchUsers", "GET", "/api/users?limit=50&q=" + query(userTerms, random), null);
+                } else if (roll < 80) {
+                    timed("listBooks", "GET", "/api/books?offset=" + random.nextInt(1000) + "&limit=50", null);
+                } else if (roll < 90) {
+                    timed("listLoans", "GET", "/api/loans?limit=50", null);
+                } else {
+                    String body = "{\"bookId\":" + pick(bookIds, random) + ",\"userId\":" + pick(userIds, random) + "}";
+                    if (timed("checkout", "POST", "/api/checkouts", body) == 200) {
+                        timed("return", "POST", "/api/returns", body);
+                    }
+                }
+            } catch (IOException e) {
+                if (measuring) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Sends one request and records it; 409 (no copy left) is an expected answer
+    private int timed(String kind, String method, String path, String body) throws IOException {
+        long start = System.nanoTime();
+        int status = send(method, path, body, null);
+        if (measuring) {
+            latencies.get(kind).recordNanos(System.nanoTime() - start);
+            requests.incrementAndGet();
+            if (status != 200 && status != 409) {
+                errors.incrementAndGet();
+            }
+        }
+        return status;
+    }
+
+    private int send(String method, String path, String body, ByteArrayOutputStream response) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = conn.getResponseCode();
+        // Reading the body to the end lets the connection be reused
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            for (int n; in != null && (n = in.read(buffer)) > 0; ) {
+                if (response != null) {
+                    response.write(buffer, 0, n);
+                }
+            }
+        }
+        return status;
+    }
+
+    private String get(String path) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int status = send("GET", path, null, response);
+        if (status != 200) {
+            throw new IOException("GET " + path + " answered " + status);
+        }
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<?> items(String json) {
+        return (List<?>) Json.parseObject(json).get("items");
+    }
+
+    private static void addTerms(List<String> terms, String text) {
+        if (text != null) {
+            terms.addAll(SearchIndex.tokenize(text));
+        }
+    }
+
+    // One or two terms, the last cut short as if still being typed
+    private static String query(List<String> terms, Random random) throws IOException {
+        if (terms.isEmpty()) {
+            return "a";
+        }
+        String last = pick(terms, random);
+        String q = last.substring(0, Math.max(1, Math.min(last.length(), 2 + random.nextInt(4))));
+        if (random.nextBoolean()) {
+            q = pick(terms, random) + " " + q;
+        }
+        return URLEncoder.encode(q, "UTF-8");
+    }
+
+    private static <T> T pick(List<T> list, Random random) {
+        return list.get(random.nextInt(list.size()));
+    }
+}
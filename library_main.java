@@ -1,34 +1,89 @@
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
-import java.sql.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class LibraryManagementSystem extends JFrame {
-    private Connection conn;
+    private LibraryConfig config;
+    private LibraryDataAccess dataAccess;
+    private CatalogSearch catalogSearch;
+    private LibraryService service;
+    private DeskLoans desk;
     private JTabbedPane tabbedPane;
+    private final List<Supplier<JPanel>> tabBuilders = new ArrayList<>();
+    private boolean started, starting;
+    private Path snapshotFile;
+    private BookSnapshot snapshot;
     
     // Book Management Components
     private JTable bookTable;
-    private DefaultTableModel bookTableModel;
+    private PagedTableModel bookTableModel;
     private JTextField txtBookId, txtTitle, txtAuthor, txtISBN, txtQuantity;
+    private JLabel lblBookRelated;
     private JTextField searchBookField;
+    private LiveSearch bookLiveSearch;
+    private LatencyStats bookSearchLatency = new LatencyStats(TimeUnit.MINUTES.toNanos(1));
+    private JLabel lblBookSearchLatency;
+    private JButton btnImportBooks;
+    private JProgressBar importProgressBar;
+    private JLabel lblImportStatus;
+    private CatalogImport catalogImport;
     
     // User Management Components
     private JTable userTable;
-    private DefaultTableModel userTableModel;
+    private PagedTableModel userTableModel;
     private JTextField txtUserId, txtUserName, txtEmail, txtPhone;
     private JTextField searchUserField;
+    private LiveSearch userLiveSearch;
+    private LatencyStats userSearchLatency = new LatencyStats(TimeUnit.MINUTES.toNanos(1));
+    private JLabel lblUserSearchLatency;
     
     // Checkout Components
-    private JTextField txtCheckoutBookId, txtCheckoutUserId;
+    private JTextField txtCheckoutBarcode, txtCheckoutBookId, txtCheckoutUserId;
+    private JLabel lblCheckoutCopy, lblCheckoutRelated;
+    private DefaultListModel<String> patronLoansModel;
+    private JTextArea txtCheckoutBatch;
+    private JLabel lblJournal;
     private JTable checkoutTable;
-    private DefaultTableModel checkoutTableModel;
+    private PagedTableModel checkoutTableModel;
     
     // Return Components
-    private JTextField txtReturnBookId, txtReturnUserId;
+    private JTextField txtReturnBarcode, txtReturnBookId, txtReturnUserId;
+    private JTextArea txtReturnBatch;
+    
+    // Borrowed Books Components
+    private JLabel lblOverdue;
+    
+    // Export Components
+    private JButton btnExport;
+    private JLabel lblExportStatus;
+    
+    // Reports Components
+    private DefaultTableModel topBooksModel, topUsersModel, daysModel;
+    private JComboBox<String> cmbReportPeriod;
+    private JLabel lblReport;
+    private JButton btnRebuildCounts;
+    private CirculationReport report;
+    
+    // Diagnostics Components
+    private DefaultTableModel operationsModel, statementsModel;
+    private JLabel lblDiagnostics;
+    private JTextArea txtEvents;
+    private CatalogExport catalogExport;
     
     public LibraryManagementSystem() {
         setTitle("Library Management System");
@@ -39,72 +94,106 @@ public class LibraryManagementSystem extends JFrame {
         // Initialize database connection
         initDatabase();
         
-        // Create tabbed pane
+        // Create tabbed pane; each tab is built when first shown, Books straight away
         tabbedPane = new JTabbedPane();
-        tabbedPane.addTab("Books", createBooksPanel());
-        tabbedPane.addTab("Users", createUsersPanel());
-        tabbedPane.addTab("Checkout", createCheckoutPanel());
-        tabbedPane.addTab("Return", createReturnPanel());
-        tabbedPane.addTab("Borrowed Books", createBorrowedBooksPanel());
+        addTab("Books", this::createBooksPanel);
+        addTab("Users", this::createUsersPanel);
+        addTab("Checkout", this::createCheckoutPanel);
+        addTab("Return", this::createReturnPanel);
+        addTab("Borrowed Books", this::createBorrowedBooksPanel);
+        addTab("Reports", this::createReportsPanel);
+        addTab("Diagnostics", this::createDiagnosticsPanel);
+        tabbedPane.addChangeListener(e -> buildTab(tabbedPane.getSelectedIndex()));
+        buildTab(0);
         
         add(tabbedPane);
         
-        // Load initial data
-        loadBooks();
-        loadUsers();
-        loadBorrowedBooks();
+        // With journal.enabled: the count of checkouts and returns waiting for
+        // the database, and a start once it can be reached
+        if (desk.journaling()) {
+            desk.replayer().addListener(() -> SwingUtilities.invokeLater(() -> {
+                showJournal();
+                if (!started && !starting && desk.replayer().online()) {
+                    startService();
+                }
+            }));
+        }
+        
+        startService();
     }
     
-    private void initDatabase() {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            conn = DriverManager.getConnection(
-                "jdbc:mysql://localhost:3306/library_db", 
-                "root", 
-                "password"
-            );
-            createTables();
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, 
-                "Database connection failed: " + e.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
+    private void addTab(String title, Supplier<JPanel> builder) {
+        tabbedPane.addTab(title, new JPanel());
+        tabBuilders.add(builder);
+    }
+    
+    private void buildTab(int index) {
+        Supplier<JPanel> builder = index < 0 ? null : tabBuilders.set(index, null);
+        if (builder != null) {
+            tabbedPane.setComponentAt(index, builder.get());
         }
     }
     
-    private void createTables() {
-        try {
-            Statement stmt = conn.createStatement();
-            
-            // Books table
-            stmt.execute("CREATE TABLE IF NOT EXISTS books (" +
-                "book_id INT PRIMARY KEY AUTO_INCREMENT," +
-                "title VARCHAR(200) NOT NULL," +
-                "author VARCHAR(100) NOT NULL," +
-                "isbn VARCHAR(20) UNIQUE," +
-                "total_quantity INT DEFAULT 0," +
-                "available_quantity INT DEFAULT 0)");
-            
-            // Users table
-            stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
-                "user_id INT PRIMARY KEY AUTO_INCREMENT," +
-                "name VARCHAR(100) NOT NULL," +
-                "email VARCHAR(100) UNIQUE," +
-                "phone VARCHAR(15))");
-            
-            // Borrowed books table
-            stmt.execute("CREATE TABLE IF NOT EXISTS borrowed_books (" +
-                "borrow_id INT PRIMARY KEY AUTO_INCREMENT," +
-                "book_id INT," +
-                "user_id INT," +
-                "borrow_date DATE," +
-                "due_date DATE," +
-                "return_date DATE," +
-                "status VARCHAR(20) DEFAULT 'BORROWED'," +
-                "FOREIGN KEY (book_id) REFERENCES books(book_id)," +
-                "FOREIGN KEY (user_id) REFERENCES users(user_id))");
-            
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // Connect and load initial data in the background so the window shows immediately.
+    // The change feed starts first so nothing committed meanwhile is missed. Tabs
+    // not built yet load when they are. A desk with a journal goes on taking
+    // checkouts and returns without the database, and starts again when the
+    // replayer next gets through.
+    private void startService() {
+        starting = true;
+        LibraryDataAccess.onEdt(service.start(), ok -> {
+            started = true;
+            starting = false;
+            loadBooks();
+            if (userTableModel != null) {
+                loadUsers();
+            }
+            if (checkoutTableModel != null) {
+                loadBorrowedBooks();
+            }
+            syncSnapshot();
+        }, e -> {
+            starting = false;
+            if (desk.journaling()) {
+                showJournal();
+            } else {
+                JOptionPane.showMessageDialog(this, 
+                    "Database connection failed: " + e.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+    
+    private void initDatabase() {
+        // Backend and connection settings come from library.properties; connecting happens on the first query
+        // This window is one client of the service; the HTTP API (LibraryServer) is another
+        config = LibraryConfig.load();
+        service = new LibraryService(config);
+        dataAccess = service.data();
+        desk = service.desk();
+        catalogSearch = service.search();
+        Runtime.getRuntime().addShutdownHook(new Thread(service::saveSearch));
+        
+        // The Books tab shows the local snapshot (snapshot.file) until the database answers
+        String file = config.get("snapshot.file", "books.snap");
+        if (!file.isEmpty()) {
+            snapshotFile = Paths.get(file);
+            try {
+                snapshot = BookSnapshot.open(snapshotFile);
+            } catch (IOException e) {
+                LibraryMetrics.report("Opening the book snapshot failed", e);
+            }
+        }
+        
+        // EDT stalls are detected from here on; metrics.port > 0 also serves /metrics locally
+        new EdtWatchdog(dataAccess.metrics(), config).start();
+        int metricsPort = config.getInt("metrics.port", 0);
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(dataAccess.metrics(), config.get("metrics.host", "127.0.0.1"), metricsPort).start();
+            } catch (IOException e) {
+                LibraryMetrics.report("Serving /metrics failed", e);
+            }
         }
     }
     
@@ -118,21 +207,36 @@ public class LibraryManagementSystem extends JFrame {
         searchBookField = new JTextField(20);
         searchPanel.add(searchBookField);
         JButton btnSearch = new JButton("Search");
-        btnSearch.addActionListener(e -> searchBooks());
+        btnSearch.addActionListener(e -> searchBooks(System.nanoTime()));
         searchPanel.add(btnSearch);
         
         JButton btnRefresh = new JButton("Refresh");
         btnRefresh.addActionListener(e -> loadBooks());
         searchPanel.add(btnRefresh);
         
+        // Search as you type; the label shows keystroke-to-rows latency
+        bookLiveSearch = new LiveSearch(searchBookField, debounceMillis(),
+            () -> searchBooks(bookLiveSearch.lastKeystroke()));
+        lblBookSearchLatency = new JLabel();
+        searchPanel.add(lblBookSearchLatency);
+        
+        // Bulk import from CSV; progress shows here while it runs
+        btnImportBooks = new JButton("Import CSV...");
+        btnImportBooks.addActionListener(e -> importBooks());
+        searchPanel.add(btnImportBooks);
+        importProgressBar = new JProgressBar(0, 100);
+        importProgressBar.setStringPainted(true);
+        importProgressBar.setVisible(false);
+        searchPanel.add(importProgressBar);
+        lblImportStatus = new JLabel();
+        searchPanel.add(lblImportStatus);
+        
         // Table
         String[] columns = {"ID", "Title", "Author", "ISBN", "Total Qty", "Available Qty"};
-        bookTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        bookTableModel = createTableModel("books", CatalogChange.Table.BOOKS, columns, "loading books");
+        if (snapshot != null) {
+            bookTableModel.setSource(snapshot.pages());
+        }
         bookTable = new JTable(bookTableModel);
         JScrollPane scrollPane = new JScrollPane(bookTable);
         
@@ -156,6 +260,8 @@ public class LibraryManagementSystem extends JFrame {
         addFormField(formPanel, gbc, 2, "Author:", txtAuthor);
         addFormField(formPanel, gbc, 3, "ISBN:", txtISBN);
         addFormField(formPanel, gbc, 4, "Quantity:", txtQuantity);
+        lblBookRelated = new JLabel(" ");
+        addFormField(formPanel, gbc, 5, "Borrowed together:", lblBookRelated);
         
         // Buttons
         JPanel buttonPanel = new JPanel(new FlowLayout());
@@ -163,29 +269,38 @@ public class LibraryManagementSystem extends JFrame {
         JButton btnUpdate = new JButton("Update Book");
         JButton btnDelete = new JButton("Delete Book");
         JButton btnClear = new JButton("Clear");
+        JButton btnCopies = new JButton("Copies...");
+        JButton btnBookHistory = new JButton("History...");
         
         btnAdd.addActionListener(e -> addBook());
         btnUpdate.addActionListener(e -> updateBook());
         btnDelete.addActionListener(e -> deleteBook());
         btnClear.addActionListener(e -> clearBookForm());
+        btnCopies.addActionListener(e -> showCopies());
+        btnBookHistory.addActionListener(e -> showLoanHistory(txtBookId, "book", dataAccess::bookLoanHistory));
         
         buttonPanel.add(btnAdd);
         buttonPanel.add(btnUpdate);
         buttonPanel.add(btnDelete);
         buttonPanel.add(btnClear);
+        buttonPanel.add(btnCopies);
+        buttonPanel.add(btnBookHistory);
         
+        gbc.gridy = 6;
         formPanel.add(buttonPanel, gbc);
         
         // Table click listener
         bookTable.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 int row = bookTable.getSelectedRow();
-                if (row != -1) {
-                    txtBookId.setText(bookTable.getValueAt(row, 0).toString());
-                    txtTitle.setText(bookTable.getValueAt(row, 1).toString());
-                    txtAuthor.setText(bookTable.getValueAt(row, 2).toString());
-                    txtISBN.setText(bookTable.getValueAt(row, 3).toString());
-                    txtQuantity.setText(bookTable.getValueAt(row, 4).toString());
+                Object[] book = row == -1 ? null : bookTableModel.rowAt(row);
+                if (book != null) {
+                    txtBookId.setText(book[0].toString());
+                    txtTitle.setText(book[1].toString());
+                    txtAuthor.setText(book[2].toString());
+                    txtISBN.setText(book[3].toString());
+                    txtQuantity.setText(book[4].toString());
+                    lblBookRelated.setText(relatedTitles((Integer) book[0]));
                 }
             }
         });
@@ -207,21 +322,22 @@ public class LibraryManagementSystem extends JFrame {
         searchUserField = new JTextField(20);
         searchPanel.add(searchUserField);
         JButton btnSearch = new JButton("Search");
-        btnSearch.addActionListener(e -> searchUsers());
+        btnSearch.addActionListener(e -> searchUsers(System.nanoTime()));
         searchPanel.add(btnSearch);
         
         JButton btnRefresh = new JButton("Refresh");
         btnRefresh.addActionListener(e -> loadUsers());
         searchPanel.add(btnRefresh);
         
+        // Search as you type; the label shows keystroke-to-rows latency
+        userLiveSearch = new LiveSearch(searchUserField, debounceMillis(),
+            () -> searchUsers(userLiveSearch.lastKeystroke()));
+        lblUserSearchLatency = new JLabel();
+        searchPanel.add(lblUserSearchLatency);
+        
         // Table
         String[] columns = {"ID", "Name", "Email", "Phone"};
-        userTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        userTableModel = createTableModel("users", CatalogChange.Table.USERS, columns, "loading users");
         userTable = new JTable(userTableModel);
         JScrollPane scrollPane = new JScrollPane(userTable);
         
@@ -250,16 +366,19 @@ public class LibraryManagementSystem extends JFrame {
         JButton btnUpdate = new JButton("Update User");
         JButton btnDelete = new JButton("Delete User");
         JButton btnClear = new JButton("Clear");
+        JButton btnUserHistory = new JButton("History...");
         
         btnAdd.addActionListener(e -> addUser());
         btnUpdate.addActionListener(e -> updateUser());
         btnDelete.addActionListener(e -> deleteUser());
         btnClear.addActionListener(e -> clearUserForm());
+        btnUserHistory.addActionListener(e -> showLoanHistory(txtUserId, "user", dataAccess::userLoanHistory));
         
         buttonPanel.add(btnAdd);
         buttonPanel.add(btnUpdate);
         buttonPanel.add(btnDelete);
         buttonPanel.add(btnClear);
+        buttonPanel.add(btnUserHistory);
         
         formPanel.add(buttonPanel, gbc);
         
@@ -267,11 +386,12 @@ public class LibraryManagementSystem extends JFrame {
         userTable.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 int row = userTable.getSelectedRow();
-                if (row != -1) {
-                    txtUserId.setText(userTable.getValueAt(row, 0).toString());
-                    txtUserName.setText(userTable.getValueAt(row, 1).toString());
-                    txtEmail.setText(userTable.getValueAt(row, 2).toString());
-                    txtPhone.setText(userTable.getValueAt(row, 3).toString());
+                Object[] user = row == -1 ? null : userTableModel.rowAt(row);
+                if (user != null) {
+                    txtUserId.setText(user[0].toString());
+                    txtUserName.setText(user[1].toString());
+                    txtEmail.setText(user[2].toString());
+                    txtPhone.setText(user[3].toString());
                 }
             }
         });
@@ -280,6 +400,9 @@ public class LibraryManagementSystem extends JFrame {
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.add(formPanel, BorderLayout.SOUTH);
         
+        if (started) {
+            loadUsers();
+        }
         return panel;
     }
     
@@ -298,19 +421,71 @@ public class LibraryManagementSystem extends JFrame {
         panel.add(title, gbc);
         
         gbc.gridwidth = 1;
+        txtCheckoutBarcode = new JTextField(15);
         txtCheckoutBookId = new JTextField(15);
         txtCheckoutUserId = new JTextField(15);
         
-        addFormField(panel, gbc, 1, "Book ID:", txtCheckoutBookId);
-        addFormField(panel, gbc, 2, "User ID:", txtCheckoutUserId);
+        // A scanned barcode (scanners end with Enter) names the copy and its book;
+        // when one is entered, checkout lends that copy
+        txtCheckoutBarcode.addActionListener(e -> resolveCheckoutBarcode());
+        lblCheckoutCopy = new JLabel(" ");
+        addFormField(panel, gbc, 1, "Barcode:", txtCheckoutBarcode);
+        addFormField(panel, gbc, 2, "", lblCheckoutCopy);
+        addFormField(panel, gbc, 3, "Book ID:", txtCheckoutBookId);
+        
+        // Other books the book's borrowers took, to suggest at the desk
+        lblCheckoutRelated = new JLabel(" ");
+        addFormField(panel, gbc, 4, "Borrowed together:", lblCheckoutRelated);
+        LiveSearch.onEdit(txtCheckoutBookId, this::showCheckoutRelated);
+        addFormField(panel, gbc, 5, "User ID:", txtCheckoutUserId);
+        
+        // The patron's open loans as the User ID is entered, kept current as loans change
+        patronLoansModel = new DefaultListModel<>();
+        JList<String> patronLoans = new JList<>(patronLoansModel);
+        patronLoans.setVisibleRowCount(4);
+        addFormField(panel, gbc, 6, "On loan:", new JScrollPane(patronLoans));
+        LiveSearch.onEdit(txtCheckoutUserId, this::showPatronLoans);
+        dataAccess.catalog().addEdtListener(CatalogChange.Table.LOANS, change -> showPatronLoans());
         
         JButton btnCheckout = new JButton("Checkout Book");
         btnCheckout.addActionListener(e -> checkoutBook());
         gbc.gridx = 0;
-        gbc.gridy = 3;
+        gbc.gridy = 7;
         gbc.gridwidth = 2;
         panel.add(btnCheckout, gbc);
         
+        // Joins the queue for a book with no copy on the shelf
+        JButton btnPlaceHold = new JButton("Place Hold");
+        btnPlaceHold.addActionListener(e -> placeHold());
+        gbc.gridy = 8;
+        panel.add(btnPlaceHold, gbc);
+        
+        // Batch checkout: one "Book ID" (for the User ID above) or "Book ID,User ID" per line
+        gbc.gridwidth = 1;
+        txtCheckoutBatch = new JTextArea(6, 15);
+        addFormField(panel, gbc, 9, "Batch (Book ID[,User ID]):", new JScrollPane(txtCheckoutBatch));
+        
+        JButton btnCheckoutAll = new JButton("Checkout All");
+        btnCheckoutAll.addActionListener(e -> checkoutBooks());
+        gbc.gridx = 0;
+        gbc.gridy = 10;
+        gbc.gridwidth = 2;
+        panel.add(btnCheckoutAll, gbc);
+        
+        // With journal.enabled: checkouts and returns waiting for the database,
+        // and those it turned down for staff to settle
+        if (desk.journaling()) {
+            lblJournal = new JLabel(" ");
+            JButton btnConflicts = new JButton("Journal Conflicts...");
+            btnConflicts.addActionListener(e -> showJournalConflicts());
+            JPanel journalPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            journalPanel.add(lblJournal);
+            journalPanel.add(btnConflicts);
+            gbc.gridy = 11;
+            panel.add(journalPanel, gbc);
+            showJournal();
+        }
+        
         return panel;
     }
     
@@ -329,19 +504,36 @@ public class LibraryManagementSystem extends JFrame {
         panel.add(title, gbc);
         
         gbc.gridwidth = 1;
+        txtReturnBarcode = new JTextField(15);
         txtReturnBookId = new JTextField(15);
         txtReturnUserId = new JTextField(15);
         
-        addFormField(panel, gbc, 1, "Book ID:", txtReturnBookId);
-        addFormField(panel, gbc, 2, "User ID:", txtReturnUserId);
+        // A scanned barcode is enough on its own: Enter returns the copy. So is
+        // a Book ID, when only one user has the book out
+        txtReturnBarcode.addActionListener(e -> returnBook());
+        addFormField(panel, gbc, 1, "Barcode:", txtReturnBarcode);
+        addFormField(panel, gbc, 2, "Book ID:", txtReturnBookId);
+        addFormField(panel, gbc, 3, "User ID:", txtReturnUserId);
         
         JButton btnReturn = new JButton("Return Book");
         btnReturn.addActionListener(e -> returnBook());
         gbc.gridx = 0;
-        gbc.gridy = 3;
+        gbc.gridy = 4;
         gbc.gridwidth = 2;
         panel.add(btnReturn, gbc);
         
+        // Batch return: one "Book ID" (for the User ID above) or "Book ID,User ID" per line
+        gbc.gridwidth = 1;
+        txtReturnBatch = new JTextArea(6, 15);
+        addFormField(panel, gbc, 5, "Batch (Book ID[,User ID]):", new JScrollPane(txtReturnBatch));
+        
+        JButton btnReturnAll = new JButton("Return All");
+        btnReturnAll.addActionListener(e -> returnBooks());
+        gbc.gridx = 0;
+        gbc.gridy = 6;
+        gbc.gridwidth = 2;
+        panel.add(btnReturnAll, gbc);
+        
         return panel;
     }
     
@@ -351,29 +543,240 @@ public class LibraryManagementSystem extends JFrame {
         
         String[] columns = {"Borrow ID", "Book ID", "Book Title", "User ID", "User Name", 
                            "Borrow Date", "Due Date", "Status"};
-        checkoutTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        checkoutTableModel = createTableModel("borrowed", CatalogChange.Table.LOANS, columns, "loading borrowed books");
         checkoutTable = new JTable(checkoutTableModel);
         JScrollPane scrollPane = new JScrollPane(checkoutTable);
         
         JButton btnRefresh = new JButton("Refresh");
         btnRefresh.addActionListener(e -> loadBorrowedBooks());
         
+        // Export of all tables, loan history included, for reports and backups
+        lblExportStatus = new JLabel();
+        btnExport = new JButton("Export...");
+        btnExport.addActionListener(e -> exportTables());
+        
+        // Overdue totals, kept current as loans change and fall due
+        lblOverdue = new JLabel();
+        showOverdue();
+        service.overdue().addListener(notice -> SwingUtilities.invokeLater(this::showOverdue));
+        dataAccess.catalog().addEdtListener(CatalogChange.Table.LOANS, change -> showOverdue());
+        
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        topPanel.add(lblOverdue);
+        topPanel.add(lblExportStatus);
+        topPanel.add(btnExport);
         topPanel.add(btnRefresh);
         
         panel.add(topPanel, BorderLayout.NORTH);
         panel.add(scrollPane, BorderLayout.CENTER);
         
+        if (started) {
+            loadBorrowedBooks();
+        }
+        return panel;
+    }
+    
+    // Most borrowed books and busiest users, and daily circulation against
+    // stock; read from the circulation counts whenever the tab is shown
+    private JPanel createReportsPanel() {
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        String[] ranked = {"ID", "Name", "Checkouts", "Returns", "Late Returns"};
+        topBooksModel = new DefaultTableModel(ranked, 0);
+        topUsersModel = new DefaultTableModel(ranked, 0);
+        daysModel = new DefaultTableModel(new String[]{"Day", "Checkouts", "Returns", "Late Returns", 
+            "On Loan", "Utilization %"}, 0);
+        JTable topBooksTable = new JTable(topBooksModel);
+        topBooksTable.setDefaultEditor(Object.class, null);
+        JTable topUsersTable = new JTable(topUsersModel);
+        topUsersTable.setDefaultEditor(Object.class, null);
+        JTable daysTable = new JTable(daysModel);
+        daysTable.setDefaultEditor(Object.class, null);
+        
+        cmbReportPeriod = new JComboBox<>(new String[]{"Today", "This Week", "This Month"});
+        cmbReportPeriod.setSelectedIndex(2);
+        cmbReportPeriod.addActionListener(e -> showTopBooks());
+        JPanel booksPanel = new JPanel(new BorderLayout(5, 5));
+        JPanel booksHeader = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        booksHeader.add(new JLabel("Most borrowed books"));
+        booksHeader.add(cmbReportPeriod);
+        booksPanel.add(booksHeader, BorderLayout.NORTH);
+        booksPanel.add(new JScrollPane(topBooksTable), BorderLayout.CENTER);
+        
+        JPanel usersPanel = new JPanel(new BorderLayout(5, 5));
+        usersPanel.add(new JLabel("Most active users this month"), BorderLayout.NORTH);
+        usersPanel.add(new JScrollPane(topUsersTable), BorderLayout.CENTER);
+        
+        JSplitPane ranking = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, booksPanel, usersPanel);
+        ranking.setResizeWeight(0.5);
+        JSplitPane tables = new JSplitPane(JSplitPane.VERTICAL_SPLIT, ranking, new JScrollPane(daysTable));
+        tables.setResizeWeight(0.5);
+        
+        lblReport = new JLabel();
+        JButton btnRefresh = new JButton("Refresh");
+        btnRefresh.addActionListener(e -> loadReport());
+        
+        // Recounts closed days from the loan history, for after restores or
+        // imports; current days keep counting meanwhile
+        btnRebuildCounts = new JButton("Rebuild Counts");
+        btnRebuildCounts.addActionListener(e -> rebuildCounts());
+        
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        topPanel.add(lblReport);
+        topPanel.add(btnRebuildCounts);
+        topPanel.add(btnRefresh);
+        
+        panel.add(topPanel, BorderLayout.NORTH);
+        panel.add(tables, BorderLayout.CENTER);
+        
+        tabbedPane.addChangeListener(e -> {
+            if (tabbedPane.getSelectedComponent() == panel) {
+                loadReport();
+            }
+        });
+        loadReport();   // built as it is first shown
+        return panel;
+    }
+    
+    private void loadReport() {
+        LibraryDataAccess.onEdt(
+            dataAccess.circulationReport(config.getInt("reports.days", 30), config.getInt("reports.topK", 10)),
+            this::showReport, showError("loading report"));
+    }
+    
+    private void showReport(CirculationReport report) {
+        this.report = report;
+        showTopBooks();
+        showRanked(topUsersModel, report.usersThisMonth);
+        
+        daysModel.setRowCount(0);
+        for (CirculationReport.Day day : report.days) {
+            daysModel.addRow(new Object[]{day.day, day.checkouts, day.returns, day.lateReturns, day.onLoan, 
+                percent(day.onLoan, report.copies)});
+        }
+        lblReport.setText(String.format("%,d copies, %,d available, %,d on loan (%s%%)", 
+            report.copies, report.available, report.onLoan, percent(report.onLoan, report.copies)));
+    }
+    
+    private void showTopBooks() {
+        if (report == null) {
+            return;
+        }
+        int period = cmbReportPeriod.getSelectedIndex();
+        showRanked(topBooksModel, period == 0 ? report.booksToday 
+            : period == 1 ? report.booksThisWeek : report.booksThisMonth);
+    }
+    
+    private static void showRanked(DefaultTableModel model, List<CirculationReport.Ranked> ranked) {
+        model.setRowCount(0);
+        for (CirculationReport.Ranked row : ranked) {
+            model.addRow(new Object[]{row.id, row.name == null ? "(deleted)" : row.name, 
+                row.checkouts, row.returns, row.lateReturns});
+        }
+    }
+    
+    private static String percent(int part, int whole) {
+        return whole == 0 ? "-" : String.format("%.1f", part * 100.0 / whole);
+    }
+    
+    private void rebuildCounts() {
+        btnRebuildCounts.setEnabled(false);
+        long started = System.nanoTime();
+        LibraryDataAccess.onEdt(new CirculationBackfill(dataAccess, config).start(), loans -> {
+            btnRebuildCounts.setEnabled(true);
+            loadReport();
+            JOptionPane.showMessageDialog(this, String.format("Counted %,d loans in %.1f s", loans, 
+                (System.nanoTime() - started) / 1e9));
+        }, e -> {
+            btnRebuildCounts.setEnabled(true);
+            showError("rebuilding counts").accept(e);
+        });
+    }
+    
+    // Live latency per operation and per SQL statement over the recent window,
+    // slowest first, refreshed while the tab is showing
+    private JPanel createDiagnosticsPanel() {
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        operationsModel = new DefaultTableModel(new String[]{"Operation", "Calls", "Errors", 
+            "p50 ms", "p99 ms", "Max ms", "Statements/call", "Rows/call"}, 0);
+        statementsModel = new DefaultTableModel(new String[]{"Statement", "Executions", "Errors", 
+            "p50 ms", "p99 ms", "Total s", "Rows"}, 0);
+        JTable operationsTable = new JTable(operationsModel);
+        operationsTable.setDefaultEditor(Object.class, null);
+        JTable statementsTable = new JTable(statementsModel);
+        statementsTable.setDefaultEditor(Object.class, null);
+        statementsTable.getColumnModel().getColumn(0).setPreferredWidth(500);
+        JSplitPane tables = new JSplitPane(JSplitPane.VERTICAL_SPLIT, 
+            new JScrollPane(operationsTable), new JScrollPane(statementsTable));
+        tables.setResizeWeight(0.5);
+        
+        lblDiagnostics = new JLabel();
+        txtEvents = new JTextArea(6, 80);
+        txtEvents.setEditable(false);
+        
+        panel.add(lblDiagnostics, BorderLayout.NORTH);
+        panel.add(tables, BorderLayout.CENTER);
+        panel.add(new JScrollPane(txtEvents), BorderLayout.SOUTH);
+        
+        new Timer(1000, e -> {
+            if (tabbedPane.getSelectedComponent() == panel) {
+                showDiagnostics();
+            }
+        }).start();
         return panel;
     }
     
+    private void showDiagnostics() {
+        LibraryMetrics metrics = dataAccess.metrics();
+        
+        List<Object[]> rows = new ArrayList<>();
+        for (Meter meter : metrics.operations()) {
+            LatencySnapshot recent = meter.latency.recent();
+            double calls = Math.max(1, meter.latency.count());
+            rows.add(new Object[]{meter.name, meter.latency.count(), meter.errors.sum(), 
+                millis(recent.millis(0.5)), millis(recent.millis(0.99)), millis(recent.maxMillis()), 
+                String.format("%.1f", meter.statements.sum() / calls), String.format("%.1f", meter.rows.sum() / calls), 
+                recent.millis(0.99)});
+        }
+        // Slowest first; the last column is the sort key and is not shown
+        rows.sort((a, b) -> Double.compare((Double) b[8], (Double) a[8]));
+        operationsModel.setRowCount(0);
+        for (Object[] row : rows) {
+            operationsModel.addRow(Arrays.copyOf(row, 8));
+        }
+        
+        rows.clear();
+        for (Meter meter : metrics.statements()) {
+            LatencySnapshot recent = meter.latency.recent();
+            rows.add(new Object[]{meter.name, meter.latency.count(), meter.errors.sum(), 
+                millis(recent.millis(0.5)), millis(recent.millis(0.99)), 
+                String.format("%.1f", meter.latency.totalSeconds()), meter.rows.sum(), meter.latency.totalSeconds()});
+        }
+        rows.sort((a, b) -> Double.compare((Double) b[7], (Double) a[7]));
+        statementsModel.setRowCount(0);
+        for (Object[] row : rows) {
+            statementsModel.addRow(Arrays.copyOf(row, 7));
+        }
+        
+        PoolMetrics pool = metrics.pool();
+        lblDiagnostics.setText(String.format(
+            "Pool: %d active, %d idle, %d waiting, wait p99 %s ms   Queue wait p99 %s ms   EDT lag p99 %s ms, %d stalls", 
+            pool.active, pool.idle, pool.waiting, millis(metrics.poolWait().recent().millis(0.99)), 
+            millis(metrics.queueWait().recent().millis(0.99)), millis(metrics.edtLag().recent().millis(0.99)), 
+            metrics.edtStalls()));
+        txtEvents.setText(String.join("\n", LibraryMetrics.recentEvents()));
+        txtEvents.setCaretPosition(0);
+    }
+    
+    private static String millis(double millis) {
+        return String.format(millis < 10 ? "%.2f" : "%.0f", millis);
+    }
+    
     private void addFormField(JPanel panel, GridBagConstraints gbc, int row, 
-                             String label, JTextField field) {
+                             String label, JComponent field) {
         gbc.gridx = 0;
         gbc.gridy = row;
         panel.add(new JLabel(label), gbc);
@@ -382,88 +785,56 @@ public class LibraryManagementSystem extends JFrame {
         panel.add(field, gbc);
     }
     
+    // The model follows committed changes to its table row by row
+    private PagedTableModel createTableModel(String name, CatalogChange.Table table,
+                                             String[] columns, String action) {
+        PagedTableModel model = new PagedTableModel(dataAccess, name, columns,
+            config.getInt("table.pageSize", 200), config.getInt("table.cachedPages", 50),
+            showError(action));
+        dataAccess.catalog().addEdtListener(table, model);
+        return model;
+    }
+    
     private void loadBooks() {
-        bookTableModel.setRowCount(0);
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM books");
-            while (rs.next()) {
-                bookTableModel.addRow(new Object[]{
-                    rs.getInt("book_id"),
-                    rs.getString("title"),
-                    rs.getString("author"),
-                    rs.getString("isbn"),
-                    rs.getInt("total_quantity"),
-                    rs.getInt("available_quantity")
-                });
-            }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error loading books: " + e.getMessage());
-        }
+        bookTableModel.setSource(dataAccess.bookPages());
     }
     
     private void loadUsers() {
-        userTableModel.setRowCount(0);
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM users");
-            while (rs.next()) {
-                userTableModel.addRow(new Object[]{
-                    rs.getInt("user_id"),
-                    rs.getString("name"),
-                    rs.getString("email"),
-                    rs.getString("phone")
-                });
-            }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error loading users: " + e.getMessage());
-        }
+        userTableModel.setSource(dataAccess.userPages());
     }
     
     private void loadBorrowedBooks() {
-        checkoutTableModel.setRowCount(0);
-        try {
-            String query = "SELECT bb.borrow_id, bb.book_id, b.title, bb.user_id, u.name, " +
-                          "bb.borrow_date, bb.due_date, bb.status " +
-                          "FROM borrowed_books bb " +
-                          "JOIN books b ON bb.book_id = b.book_id " +
-                          "JOIN users u ON bb.user_id = u.user_id " +
-                          "WHERE bb.status = 'BORROWED'";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                checkoutTableModel.addRow(new Object[]{
-                    rs.getInt("borrow_id"),
-                    rs.getInt("book_id"),
-                    rs.getString("title"),
-                    rs.getInt("user_id"),
-                    rs.getString("name"),
-                    rs.getDate("borrow_date"),
-                    rs.getDate("due_date"),
-                    rs.getString("status")
-                });
-            }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error loading borrowed books: " + e.getMessage());
+        checkoutTableModel.setSource(dataAccess.borrowedPages());
+    }
+    
+    // Brings the snapshot up to date in the background, for the next start:
+    // only books changed since it was taken are read
+    private void syncSnapshot() {
+        if (snapshotFile == null) {
+            return;
         }
+        BookSnapshot.sync(dataAccess, snapshotFile, snapshot).whenComplete((updated, e) -> {
+            if (e != null) {
+                LibraryMetrics.report("Syncing the book snapshot failed", e);
+            } else {
+                SwingUtilities.invokeLater(() -> snapshot = updated);
+            }
+        });
+    }
+    
+    private Consumer<Throwable> showError(String action) {
+        return e -> JOptionPane.showMessageDialog(this, "Error " + action + ": " + e.getMessage());
     }
     
     private void addBook() {
         try {
-            String sql = "INSERT INTO books (title, author, isbn, total_quantity, available_quantity) " +
-                        "VALUES (?, ?, ?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, txtTitle.getText());
-            pstmt.setString(2, txtAuthor.getText());
-            pstmt.setString(3, txtISBN.getText());
             int qty = Integer.parseInt(txtQuantity.getText());
-            pstmt.setInt(4, qty);
-            pstmt.setInt(5, qty);
-            pstmt.executeUpdate();
-            
-            JOptionPane.showMessageDialog(this, "Book added successfully!");
-            clearBookForm();
-            loadBooks();
+            LibraryDataAccess.onEdt(
+                dataAccess.addBook(txtTitle.getText(), txtAuthor.getText(), txtISBN.getText(), qty),
+                bookId -> {
+                    JOptionPane.showMessageDialog(this, "Book added successfully!");
+                    clearBookForm();
+                }, showError("adding book"));
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error adding book: " + e.getMessage());
         }
@@ -471,19 +842,14 @@ public class LibraryManagementSystem extends JFrame {
     
     private void updateBook() {
         try {
-            String sql = "UPDATE books SET title=?, author=?, isbn=?, total_quantity=? " +
-                        "WHERE book_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, txtTitle.getText());
-            pstmt.setString(2, txtAuthor.getText());
-            pstmt.setString(3, txtISBN.getText());
-            pstmt.setInt(4, Integer.parseInt(txtQuantity.getText()));
-            pstmt.setInt(5, Integer.parseInt(txtBookId.getText()));
-            pstmt.executeUpdate();
-            
-            JOptionPane.showMessageDialog(this, "Book updated successfully!");
-            clearBookForm();
-            loadBooks();
+            int bookId = Integer.parseInt(txtBookId.getText());
+            int qty = Integer.parseInt(txtQuantity.getText());
+            LibraryDataAccess.onEdt(
+                dataAccess.updateBook(bookId, txtTitle.getText(), txtAuthor.getText(), txtISBN.getText(), qty),
+                count -> {
+                    JOptionPane.showMessageDialog(this, "Book updated successfully!");
+                    clearBookForm();
+                }, showError("updating book"));
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error updating book: " + e.getMessage());
         }
@@ -495,14 +861,11 @@ public class LibraryManagementSystem extends JFrame {
                 "Are you sure you want to delete this book?", 
                 "Confirm Delete", JOptionPane.YES_NO_OPTION);
             if (confirm == JOptionPane.YES_OPTION) {
-                String sql = "DELETE FROM books WHERE book_id=?";
-                PreparedStatement pstmt = conn.prepareStatement(sql);
-                pstmt.setInt(1, Integer.parseInt(txtBookId.getText()));
-                pstmt.executeUpdate();
-                
-                JOptionPane.showMessageDialog(this, "Book deleted successfully!");
-                clearBookForm();
-                loadBooks();
+                int bookId = Integer.parseInt(txtBookId.getText());
+                LibraryDataAccess.onEdt(dataAccess.deleteBook(bookId), count -> {
+                    JOptionPane.showMessageDialog(this, "Book deleted successfully!");
+                    clearBookForm();
+                }, showError("deleting book"));
             }
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error deleting book: " + e.getMessage());
@@ -510,35 +873,23 @@ public class LibraryManagementSystem extends JFrame {
     }
     
     private void addUser() {
-        try {
-            String sql = "INSERT INTO users (name, email, phone) VALUES (?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, txtUserName.getText());
-            pstmt.setString(2, txtEmail.getText());
-            pstmt.setString(3, txtPhone.getText());
-            pstmt.executeUpdate();
-            
-            JOptionPane.showMessageDialog(this, "User added successfully!");
-            clearUserForm();
-            loadUsers();
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Error adding user: " + e.getMessage());
-        }
+        LibraryDataAccess.onEdt(
+            dataAccess.addUser(txtUserName.getText(), txtEmail.getText(), txtPhone.getText()),
+            userId -> {
+                JOptionPane.showMessageDialog(this, "User added successfully!");
+                clearUserForm();
+            }, showError("adding user"));
     }
     
     private void updateUser() {
         try {
-            String sql = "UPDATE users SET name=?, email=?, phone=? WHERE user_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, txtUserName.getText());
-            pstmt.setString(2, txtEmail.getText());
-            pstmt.setString(3, txtPhone.getText());
-            pstmt.setInt(4, Integer.parseInt(txtUserId.getText()));
-            pstmt.executeUpdate();
-            
-            JOptionPane.showMessageDialog(this, "User updated successfully!");
-            clearUserForm();
-            loadUsers();
+            int userId = Integer.parseInt(txtUserId.getText());
+            LibraryDataAccess.onEdt(
+                dataAccess.updateUser(userId, txtUserName.getText(), txtEmail.getText(), txtPhone.getText()),
+                count -> {
+                    JOptionPane.showMessageDialog(this, "User updated successfully!");
+                    clearUserForm();
+                }, showError("updating user"));
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error updating user: " + e.getMessage());
         }
@@ -550,14 +901,11 @@ public class LibraryManagementSystem extends JFrame {
                 "Are you sure you want to delete this user?", 
                 "Confirm Delete", JOptionPane.YES_NO_OPTION);
             if (confirm == JOptionPane.YES_OPTION) {
-                String sql = "DELETE FROM users WHERE user_id=?";
-                PreparedStatement pstmt = conn.prepareStatement(sql);
-                pstmt.setInt(1, Integer.parseInt(txtUserId.getText()));
-                pstmt.executeUpdate();
-                
-                JOptionPane.showMessageDialog(this, "User deleted successfully!");
-                clearUserForm();
-                loadUsers();
+                int userId = Integer.parseInt(txtUserId.getText());
+                LibraryDataAccess.onEdt(dataAccess.deleteUser(userId), count -> {
+                    JOptionPane.showMessageDialog(this, "User deleted successfully!");
+                    clearUserForm();
+                }, showError("deleting user"));
             }
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error deleting user: " + e.getMessage());
@@ -565,158 +913,527 @@ public class LibraryManagementSystem extends JFrame {
     }
     
     private void checkoutBook() {
+        try {
+            String barcode = txtCheckoutBarcode.getText().trim();
+            int bookId = barcode.isEmpty() ? Integer.parseInt(txtCheckoutBookId.getText()) : 0;
+            int userId = Integer.parseInt(txtCheckoutUserId.getText());
+            
+            LibraryDataAccess.onEdt(barcode.isEmpty() ? desk.checkoutBook(bookId, userId)
+                : desk.checkoutCopy(barcode, userId), result -> {
+                switch (result.status) {
+                    case QUEUED:
+                        JOptionPane.showMessageDialog(this, 
+                            "Book checked out on this desk.\nDue date: " + result.dueDate.format(DateTimeFormatter.ISO_DATE));
+                        txtCheckoutBarcode.setText("");
+                        lblCheckoutCopy.setText(" ");
+                        txtCheckoutBookId.setText("");
+                        txtCheckoutUserId.setText("");
+                        break;
+                    case OK:
+                        JOptionPane.showMessageDialog(this, 
+                            "Book checked out successfully!\nDue date: " + result.dueDate.format(DateTimeFormatter.ISO_DATE) +
+                            (result.hold == null ? "" : "\nHold #" + result.hold.id + " collected."));
+                        txtCheckoutBarcode.setText("");
+                        lblCheckoutCopy.setText(" ");
+                        txtCheckoutBookId.setText("");
+                        txtCheckoutUserId.setText("");
+                        break;
+                    case UNAVAILABLE:
+                        if (!barcode.isEmpty()) {
+                            JOptionPane.showMessageDialog(this, "This copy is on loan, set aside for another hold or withdrawn.");
+                            break;
+                        }
+                        int waiting = service.holds().waiting(bookId);
+                        if (JOptionPane.showConfirmDialog(this, "Book is not available!" +
+                                (waiting > 0 ? " " + waiting + " already waiting." : "") +
+                                "\nPlace a hold for this user?", "Not Available",
+                                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                            placeHold();
+                        }
+                        break;
+                    case BLOCKED:
+                        JOptionPane.showMessageDialog(this, "User has " + service.overdue().overdueCount(userId) +
+                            " overdue books (fines so far: " + OverduePolicy.money(service.overdue().fineCents(userId)) +
+                            ") and cannot borrow until they are returned.");
+                        break;
+                    default:
+                        JOptionPane.showMessageDialog(this, barcode.isEmpty() ? "Book not found!" : "Copy or user not found!");
+                }
+            }, showError("checking out book"));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error checking out book: " + e.getMessage());
+        }
+    }
+    
+    private void placeHold() {
         try {
             int bookId = Integer.parseInt(txtCheckoutBookId.getText());
             int userId = Integer.parseInt(txtCheckoutUserId.getText());
             
-            // Check availability
-            String checkSql = "SELECT available_quantity FROM books WHERE book_id=?";
-            PreparedStatement checkStmt = conn.prepareStatement(checkSql);
-            checkStmt.setInt(1, bookId);
-            ResultSet rs = checkStmt.executeQuery();
+            LibraryDataAccess.onEdt(dataAccess.placeHold(bookId, userId), result -> {
+                switch (result.status) {
+                    case PLACED:
+                    case ALREADY_HELD:
+                        JOptionPane.showMessageDialog(this, (result.status == HoldResult.Status.PLACED
+                            ? "Hold #" + result.hold.id + " placed." : "User already holds this book (hold #" + result.hold.id + ").") +
+                            (result.position == 0 ? "\nA copy is ready to collect until " + result.hold.readyUntil + "."
+                                : "\nPosition in queue: " + result.position));
+                        txtCheckoutBookId.setText("");
+                        txtCheckoutUserId.setText("");
+                        break;
+                    case AVAILABLE:
+                        JOptionPane.showMessageDialog(this, "A copy is available; check it out instead.");
+                        break;
+                    case BLOCKED:
+                        JOptionPane.showMessageDialog(this, "User has " + service.overdue().overdueCount(userId) +
+                            " overdue books and cannot place holds until they are returned.");
+                        break;
+                    default:
+                        JOptionPane.showMessageDialog(this, "Book or user not found!");
+                }
+            }, showError("placing hold"));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error placing hold: " + e.getMessage());
+        }
+    }
+    
+    private void returnBook() {
+        try {
+            String barcode = txtReturnBarcode.getText().trim();
+            if (barcode.isEmpty() && txtReturnUserId.getText().trim().isEmpty()) {
+                List<Loan> out = service.overdue().bookLoans(Integer.parseInt(txtReturnBookId.getText().trim()));
+                if (out.size() != 1) {
+                    JOptionPane.showMessageDialog(this, out.isEmpty() ? "No open loan of this book is known here; enter the User ID."
+                        : out.size() + " users have this book out; enter the User ID.");
+                    return;
+                }
+                txtReturnUserId.setText(String.valueOf(out.get(0).userId));
+            }
+            CompletableFuture<LoanResult> returned = barcode.isEmpty()
+                ? desk.returnBook(Integer.parseInt(txtReturnBookId.getText()), Integer.parseInt(txtReturnUserId.getText()))
+                : desk.returnCopy(barcode);
             
-            if (rs.next()) {
-                int available = rs.getInt("available_quantity");
-                if (available > 0) {
-                    // Insert borrow record
-                    LocalDate today = LocalDate.now();
-                    LocalDate dueDate = today.plusDays(14);
-                    
-                    String borrowSql = "INSERT INTO borrowed_books (book_id, user_id, borrow_date, due_date, status) " +
-                                      "VALUES (?, ?, ?, ?, 'BORROWED')";
-                    PreparedStatement borrowStmt = conn.prepareStatement(borrowSql);
-                    borrowStmt.setInt(1, bookId);
-                    borrowStmt.setInt(2, userId);
-                    borrowStmt.setDate(3, Date.valueOf(today));
-                    borrowStmt.setDate(4, Date.valueOf(dueDate));
-                    borrowStmt.executeUpdate();
-                    
-                    // Update available quantity
-                    String updateSql = "UPDATE books SET available_quantity = available_quantity - 1 WHERE book_id=?";
-                    PreparedStatement updateStmt = conn.prepareStatement(updateSql);
-                    updateStmt.setInt(1, bookId);
-                    updateStmt.executeUpdate();
-                    
-                    JOptionPane.showMessageDialog(this, 
-                        "Book checked out successfully!\nDue date: " + dueDate.format(DateTimeFormatter.ISO_DATE));
-                    txtCheckoutBookId.setText("");
-                    txtCheckoutUserId.setText("");
-                    loadBooks();
-                    loadBorrowedBooks();
+            LibraryDataAccess.onEdt(returned, result -> {
+                if (result.status == LoanResult.Status.QUEUED) {
+                    // Which hold the copy goes to is settled when the return is replayed
+                    int waiting = barcode.isEmpty() ? service.holds().waiting(Integer.parseInt(txtReturnBookId.getText())) : 0;
+                    JOptionPane.showMessageDialog(this, "Book returned on this desk." + (waiting == 0 ? ""
+                        : "\n" + waiting + " holds are waiting for this book: keep the copy at the desk."));
+                    txtReturnBarcode.setText("");
+                    txtReturnBookId.setText("");
+                    txtReturnUserId.setText("");
+                } else if (result.status == LoanResult.Status.OK) {
+                    JOptionPane.showMessageDialog(this, "Book returned successfully!" + (result.hold == null ? ""
+                        : "\nSet this copy aside for hold #" + result.hold.id + " (User " + result.hold.userId +
+                          "), to collect by " + result.hold.readyUntil + "."));
+                    txtReturnBarcode.setText("");
+                    txtReturnBookId.setText("");
+                    txtReturnUserId.setText("");
                 } else {
-                    JOptionPane.showMessageDialog(this, "Book is not available!");
+                    JOptionPane.showMessageDialog(this, "No active borrow record found!");
                 }
-            } else {
-                JOptionPane.showMessageDialog(this, "Book not found!");
+            }, showError("returning book"));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error returning book: " + e.getMessage());
+        }
+    }
+    
+    // Shows which book a scanned copy belongs to and fills in its Book ID
+    private void resolveCheckoutBarcode() {
+        String barcode = txtCheckoutBarcode.getText().trim();
+        if (barcode.isEmpty()) {
+            return;
+        }
+        LibraryDataAccess.onEdt(dataAccess.resolveBarcode(barcode), copy -> {
+            if (!barcode.equals(txtCheckoutBarcode.getText().trim())) {
+                return;   // another item was scanned meanwhile
+            }
+            if (copy == null) {
+                lblCheckoutCopy.setText("Unknown barcode");
+                return;
             }
+            lblCheckoutCopy.setText(bookTitle(copy.bookId) + " (copy " + copy.id + ")");
+            txtCheckoutBookId.setText(String.valueOf(copy.bookId));
+        }, showError("looking up barcode"));
+    }
+    
+    // From the overdue tracker, which follows every open loan: no query
+    private void showPatronLoans() {
+        patronLoansModel.clear();
+        int userId;
+        try {
+            userId = Integer.parseInt(txtCheckoutUserId.getText().trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        LocalDate today = LocalDate.now();
+        for (Loan loan : service.overdue().userLoans(userId)) {
+            LocalDate due = loan.dueDate.toLocalDate();
+            patronLoansModel.addElement(bookTitle(loan.bookId) + "  due " + due +
+                (service.overdue().policy().overdueFrom(due).isAfter(today) ? "" : "  OVERDUE"));
+        }
+    }
+    
+    private void showCheckoutRelated() {
+        try {
+            lblCheckoutRelated.setText(relatedTitles(Integer.parseInt(txtCheckoutBookId.getText().trim())));
+        } catch (NumberFormatException e) {
+            lblCheckoutRelated.setText(" ");
+        }
+    }
+    
+    // The first few books borrowed together with this one, from memory
+    private String relatedTitles(int bookId) {
+        StringBuilder titles = new StringBuilder();
+        for (int id : service.related().related(bookId, 3)) {
+            titles.append(titles.length() == 0 ? "" : "; ").append(bookTitle(id));
+        }
+        return titles.length() == 0 ? " " : titles.toString();
+    }
+    
+    // The title from the catalog cache or the snapshot, without a query
+    private String bookTitle(int bookId) {
+        Book book = dataAccess.catalog().book(bookId);
+        if (book != null) {
+            return book.title;
+        }
+        Object[] row = snapshot == null ? null : snapshot.book(bookId);
+        return row == null ? "Book " + bookId : (String) row[1];
+    }
+    
+    // Lists the selected book's copies, with adding and withdrawing
+    private void showCopies() {
+        int bookId;
+        try {
+            bookId = Integer.parseInt(txtBookId.getText());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Select a book first.");
+            return;
+        }
+        DefaultListModel<String> rows = new DefaultListModel<>();
+        List<Copy> shown = new ArrayList<>();
+        JList<String> list = new JList<>(rows);
+        list.setVisibleRowCount(12);
+        Runnable refresh = () -> LibraryDataAccess.onEdt(dataAccess.copies(bookId), copies -> {
+            rows.clear();
+            shown.clear();
+            shown.addAll(copies);
+            for (Copy copy : copies) {
+                rows.addElement(copy.barcode + "  " + copy.status + (copy.location == null ? "" : "  " + copy.location));
+            }
+        }, showError("loading copies"));
+        
+        JButton btnAddCopy = new JButton("Add Copy...");
+        btnAddCopy.addActionListener(e -> {
+            JTextField barcode = new JTextField(15);
+            JTextField location = new JTextField(15);
+            JPanel fields = new JPanel(new GridLayout(0, 2));
+            fields.add(new JLabel("Barcode (blank to generate):"));
+            fields.add(barcode);
+            fields.add(new JLabel("Location:"));
+            fields.add(location);
+            if (JOptionPane.showConfirmDialog(list, fields, "Add Copy", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+                String where = location.getText().trim();
+                LibraryDataAccess.onEdt(dataAccess.addCopy(bookId, barcode.getText(), where.isEmpty() ? null : where),
+                    copy -> refresh.run(), showError("adding copy"));
+            }
+        });
+        JButton btnWithdraw = new JButton("Withdraw");
+        btnWithdraw.addActionListener(e -> {
+            int index = list.getSelectedIndex();
+            if (index < 0) {
+                return;
+            }
+            LibraryDataAccess.onEdt(dataAccess.withdrawCopy(shown.get(index).id), copy -> {
+                if (copy == null) {
+                    JOptionPane.showMessageDialog(list, "Only a copy on the shelf can be withdrawn.");
+                }
+                refresh.run();
+            }, showError("withdrawing copy"));
+        });
+        
+        JPanel buttons = new JPanel(new FlowLayout());
+        buttons.add(btnAddCopy);
+        buttons.add(btnWithdraw);
+        JPanel content = new JPanel(new BorderLayout(5, 5));
+        content.add(new JScrollPane(list), BorderLayout.CENTER);
+        content.add(buttons, BorderLayout.SOUTH);
+        refresh.run();
+        JOptionPane.showMessageDialog(this, content, "Copies of book " + bookId, JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    // Every loan of the selected book or user, archived ones included, newest
+    // first; Older fetches the next page
+    private void showLoanHistory(JTextField idField, String kind, LoanHistory history) {
+        int id;
+        try {
+            id = Integer.parseInt(idField.getText());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Select a " + kind + " first.");
+            return;
+        }
+        int pageSize = config.getInt("table.pageSize", 200);
+        DefaultTableModel rows = new DefaultTableModel(new String[]{"Borrow ID", "Book ID", "Book Title", 
+            "User ID", "User Name", "Borrow Date", "Due Date", "Return Date", "Status"}, 0);
+        JTable table = new JTable(rows);
+        table.setDefaultEditor(Object.class, null);
+        JButton btnOlder = new JButton("Older");
+        int[] before = {Integer.MAX_VALUE};
+        Runnable more = () -> {
+            btnOlder.setEnabled(false);
+            LibraryDataAccess.onEdt(history.page(id, before[0], pageSize), loans -> {
+                for (Loan loan : loans) {
+                    rows.addRow(new Object[]{loan.id, loan.bookId, loan.title, loan.userId, loan.userName, 
+                        loan.borrowDate, loan.dueDate, loan.returnDate, loan.status});
+                }
+                if (!loans.isEmpty()) {
+                    before[0] = loans.get(loans.size() - 1).id;
+                }
+                btnOlder.setEnabled(loans.size() == pageSize);
+            }, showError("loading loan history"));
+        };
+        btnOlder.addActionListener(e -> more.run());
+        
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(850, 350));
+        JPanel content = new JPanel(new BorderLayout(5, 5));
+        content.add(scrollPane, BorderLayout.CENTER);
+        content.add(btnOlder, BorderLayout.SOUTH);
+        more.run();
+        JOptionPane.showMessageDialog(this, content, "Loan history of " + kind + " " + id, JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private interface LoanHistory {
+        CompletableFuture<List<Loan>> page(int id, int beforeId, int limit);
+    }
+    
+    private void checkoutBooks() {
+        try {
+            List<LoanRequest> items = LibraryService.parseLoanRequests(txtCheckoutBatch.getText(), txtCheckoutUserId.getText());
+            LibraryDataAccess.onEdt(desk.checkoutBooks(items), results -> {
+                showBatchResults("checked out", items, results);
+                txtCheckoutBatch.setText("");
+            }, showError("checking out books"));
         } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Error checking out book: " + e.getMessage());
+            JOptionPane.showMessageDialog(this, "Error checking out books: " + e.getMessage());
         }
     }
     
-    private void returnBook() {
+    private void returnBooks() {
         try {
-            int bookId = Integer.parseInt(txtReturnBookId.getText());
-            int userId = Integer.parseInt(txtReturnUserId.getText());
-            
-            // Find active borrow record
-            String findSql = "SELECT borrow_id FROM borrowed_books " +
-                           "WHERE book_id=? AND user_id=? AND status='BORROWED'";
-            PreparedStatement findStmt = conn.prepareStatement(findSql);
-            findStmt.setInt(1, bookId);
-            findStmt.setInt(2, userId);
-            ResultSet rs = findStmt.executeQuery();
-            
-            if (rs.next()) {
-                LocalDate today = LocalDate.now();
-                
-                // Update borrow record
-                String updateBorrowSql = "UPDATE borrowed_books SET return_date=?, status='RETURNED' " +
-                                        "WHERE borrow_id=?";
-                PreparedStatement updateBorrowStmt = conn.prepareStatement(updateBorrowSql);
-                updateBorrowStmt.setDate(1, Date.valueOf(today));
-                updateBorrowStmt.setInt(2, rs.getInt("borrow_id"));
-                updateBorrowStmt.executeUpdate();
-                
-                // Update available quantity
-                String updateBookSql = "UPDATE books SET available_quantity = available_quantity + 1 WHERE book_id=?";
-                PreparedStatement updateBookStmt = conn.prepareStatement(updateBookSql);
-                updateBookStmt.setInt(1, bookId);
-                updateBookStmt.executeUpdate();
-                
-                JOptionPane.showMessageDialog(this, "Book returned successfully!");
-                txtReturnBookId.setText("");
-                txtReturnUserId.setText("");
-                loadBooks();
-                loadBorrowedBooks();
+            List<LoanRequest> items = LibraryService.parseLoanRequests(txtReturnBatch.getText(), txtReturnUserId.getText());
+            LibraryDataAccess.onEdt(desk.returnBooks(items), results -> {
+                showBatchResults("returned", items, results);
+                txtReturnBatch.setText("");
+            }, showError("returning books"));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error returning books: " + e.getMessage());
+        }
+    }
+    
+    private void showBatchResults(String action, List<LoanRequest> items, List<LoanResult> results) {
+        int done = 0;
+        StringBuilder problems = new StringBuilder();
+        StringBuilder setAside = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            LoanResult result = results.get(i);
+            LoanRequest item = items.get(i);
+            if (result.status == LoanResult.Status.OK || result.status == LoanResult.Status.QUEUED) {
+                done++;
+                if (result.hold != null && action.equals("returned")) {
+                    setAside.append("\nBook ").append(item.bookId).append(": set aside for User ")
+                        .append(result.hold.userId).append(" (hold #").append(result.hold.id).append(")");
+                }
             } else {
-                JOptionPane.showMessageDialog(this, "No active borrow record found!");
+                problems.append("\nBook ").append(item.bookId).append(" / User ").append(item.userId)
+                    .append(result.status == LoanResult.Status.UNAVAILABLE ? ": not available"
+                        : result.status == LoanResult.Status.BLOCKED ? ": user has too many overdue books"
+                        : ": not found");
             }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Error returning book: " + e.getMessage());
         }
+        JOptionPane.showMessageDialog(this, 
+            done + " of " + results.size() + " books " + action + "." + problems +
+            (setAside.length() == 0 ? "" : "\n\nCopies for holds:" + setAside));
     }
     
-    private void searchBooks() {
+    private void showJournal() {
+        if (lblJournal == null) {
+            return;   // Checkout tab not built yet
+        }
+        JournalReplayer replayer = desk.replayer();
+        Throwable error = replayer.lastError();
+        lblJournal.setText("Journal: " + replayer.waiting() + " waiting for the database" +
+            (error == null ? "" : " (unreachable: " + error.getMessage() + ")") +
+            (replayer.conflicts() == 0 ? "" : ", " + replayer.conflicts() + " conflicts"));
+    }
+    
+    // Journaled checkouts and returns the database turned down, such as a
+    // checkout of a book whose last copy was already lent. Settle marks one
+    // as dealt with once the loan or the shelf has been put right by hand.
+    private void showJournalConflicts() {
+        DefaultTableModel rows = new DefaultTableModel(new String[]{"Key", "Kind", "Book ID", "User ID", 
+            "Barcode", "When", "Outcome", "Detail"}, 0);
+        JTable table = new JTable(rows);
+        table.setDefaultEditor(Object.class, null);
+        List<JournalEntry> shown = new ArrayList<>();
+        Runnable refresh = () -> LibraryDataAccess.onEdt(dataAccess.journalConflicts(config.getInt("table.pageSize", 200)), 
+            conflicts -> {
+                shown.clear();
+                shown.addAll(conflicts);
+                rows.setRowCount(0);
+                for (JournalEntry entry : conflicts) {
+                    rows.addRow(new Object[]{entry.key, entry.kind, entry.bookId == 0 ? "" : entry.bookId, 
+                        entry.userId == 0 ? "" : entry.userId, entry.barcode, 
+                        entry.time(), entry.outcome, entry.detail});
+                }
+            }, showError("loading journal conflicts"));
+        
+        JButton btnSettle = new JButton("Settle");
+        btnSettle.addActionListener(e -> {
+            int index = table.getSelectedRow();
+            if (index < 0) {
+                return;
+            }
+            LibraryDataAccess.onEdt(dataAccess.settleJournalConflict(shown.get(index).key), 
+                settled -> refresh.run(), showError("settling conflict"));
+        });
+        
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(850, 300));
+        JPanel content = new JPanel(new BorderLayout(5, 5));
+        content.add(scrollPane, BorderLayout.CENTER);
+        content.add(btnSettle, BorderLayout.SOUTH);
+        refresh.run();
+        JOptionPane.showMessageDialog(this, content, "Journal conflicts", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private int debounceMillis() {
+        return config.getInt("search.debounceMillis", 40);
+    }
+    
+    private void searchBooks(long startedAt) {
+        bookLiveSearch.cancelPending();
         String search = searchBookField.getText().trim();
         if (search.isEmpty()) {
             loadBooks();
             return;
         }
         
-        bookTableModel.setRowCount(0);
-        try {
-            String sql = "SELECT * FROM books WHERE title LIKE ? OR author LIKE ? OR isbn LIKE ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            String searchPattern = "%" + search + "%";
-            pstmt.setString(1, searchPattern);
-            pstmt.setString(2, searchPattern);
-            pstmt.setString(3, searchPattern);
-            
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                bookTableModel.addRow(new Object[]{
-                    rs.getInt("book_id"),
-                    rs.getString("title"),
-                    rs.getString("author"),
-                    rs.getString("isbn"),
-                    rs.getInt("total_quantity"),
-                    rs.getInt("available_quantity")
-                });
-            }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error searching books: " + e.getMessage());
-        }
+        LibraryDataAccess.onEdt(catalogSearch.searchBooks(search),
+            source -> bookTableModel.setSource(source, () -> {
+                bookSearchLatency.recordNanos(System.nanoTime() - startedAt);
+                lblBookSearchLatency.setText(bookSearchLatency.recent().summary());
+            }), showError("searching books"));
     }
     
-    private void searchUsers() {
+    private void searchUsers(long startedAt) {
+        userLiveSearch.cancelPending();
         String search = searchUserField.getText().trim();
         if (search.isEmpty()) {
             loadUsers();
             return;
         }
         
-        userTableModel.setRowCount(0);
-        try {
-            String sql = "SELECT * FROM users WHERE name LIKE ? OR email LIKE ? OR phone LIKE ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            String searchPattern = "%" + search + "%";
-            pstmt.setString(1, searchPattern);
-            pstmt.setString(2, searchPattern);
-            pstmt.setString(3, searchPattern);
-            
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                userTableModel.addRow(new Object[]{
-                    rs.getInt("user_id"),
-                    rs.getString("name"),
-                    rs.getString("email"),
-                    rs.getString("phone")
-                });
+        LibraryDataAccess.onEdt(catalogSearch.searchUsers(search),
+            source -> userTableModel.setSource(source, () -> {
+                userSearchLatency.recordNanos(System.nanoTime() - startedAt);
+                lblUserSearchLatency.setText(userSearchLatency.recent().summary());
+            }), showError("searching users"));
+    }
+    
+    // Starts an import, or cancels the one running; chunks already committed stay
+    private void importBooks() {
+        if (catalogImport != null) {
+            catalogImport.cancel();
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("CSV files", "csv", "txt"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path file = chooser.getSelectedFile().toPath();
+        CatalogImport running = new CatalogImport(dataAccess, config);
+        catalogImport = running;
+        btnImportBooks.setText("Cancel Import");
+        importProgressBar.setValue(0);
+        importProgressBar.setVisible(true);
+        LibraryDataAccess.onEdt(running.start(file, progress -> SwingUtilities.invokeLater(() -> {
+            if (catalogImport == running) {
+                importProgressBar.setValue(progress.percent());
+                lblImportStatus.setText(progress.summary());
             }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error searching users: " + e.getMessage());
+        })), progress -> {
+            finishImport();
+            lblImportStatus.setText(progress.summary());
+            JOptionPane.showMessageDialog(this, "Import finished: " + progress.summary() +
+                (progress.duplicates + progress.rejected > 0
+                    ? "\nSkipped rows are listed in " + CatalogImport.rejectsFile(file) : ""));
+        }, e -> {
+            finishImport();
+            showError("importing books").accept(e);
+        });
+    }
+    
+    private void finishImport() {
+        catalogImport = null;
+        btnImportBooks.setText("Import CSV...");
+        importProgressBar.setVisible(false);
+    }
+    
+    // Starts an export of every table, or cancels the one running
+    private void exportTables() {
+        if (catalogExport != null) {
+            catalogExport.cancel();
+            return;
+        }
+        JComboBox<ExportFormat> format = new JComboBox<>(ExportFormat.values());
+        JCheckBox gzip = new JCheckBox("Compress (gzip)", true);
+        JCheckBox snapshot = new JCheckBox("All tables as of one moment (for backups)", true);
+        JPanel options = new JPanel(new GridLayout(0, 1));
+        options.add(format);
+        options.add(gzip);
+        options.add(snapshot);
+        if (JOptionPane.showConfirmDialog(this, options, "Export", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showDialog(this, "Export Here") != JFileChooser.APPROVE_OPTION) {
+            return;
         }
+        CatalogExport running = new CatalogExport(dataAccess, (ExportFormat) format.getSelectedItem(),
+            gzip.isSelected(), snapshot.isSelected());
+        catalogExport = running;
+        btnExport.setText("Cancel Export");
+        LibraryDataAccess.onEdt(running.start(chooser.getSelectedFile().toPath(),
+            progress -> SwingUtilities.invokeLater(() -> {
+                if (catalogExport == running) {
+                    lblExportStatus.setText(progress.summary());
+                }
+            })), files -> {
+            finishExport();
+            JOptionPane.showMessageDialog(this, "Exported " + files.size() + " files to " +
+                chooser.getSelectedFile() + "\n" + lblExportStatus.getText());
+        }, e -> {
+            finishExport();
+            if (e instanceof CancellationException) {
+                lblExportStatus.setText("Export cancelled");
+            } else {
+                showError("exporting").accept(e);
+            }
+        });
+    }
+    
+    private void finishExport() {
+        catalogExport = null;
+        btnExport.setText("Export...");
+    }
+    
+    private void showOverdue() {
+        OverdueTracker overdue = service.overdue();
+        lblOverdue.setText(overdue.overdueLoans() == 0 ? "No overdue loans"
+            : "Overdue: " + overdue.overdueLoans() + " loans, " + overdue.overdueUsers() + " users");
     }
     
     private void clearBookForm() {
@@ -725,6 +1442,7 @@ public class LibraryManagementSystem extends JFrame {
         txtAuthor.setText("");
         txtISBN.setText("");
         txtQuantity.setText("");
+        lblBookRelated.setText(" ");
         bookTable.clearSelection();
     }
     
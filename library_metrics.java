@@ -0,0 +1,702 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Latency histogram in the manner of HdrHistogram: microsecond values fall in
+// log-linear buckets, 64 to each power of two, so a value is read back within
+// 1/64 of itself whatever its size, in fixed memory. Recording is one atomic
+// increment and takes no lock.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final long MAX_MICROS = (1L << 36) - 1;   // about 19 hours
+    static final int BUCKETS = index(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long micros) {
+        counts.incrementAndGet(index(Math.max(0, Math.min(micros, MAX_MICROS))));
+    }
+
+    void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    // Everything recorded so far
+    LatencySnapshot snapshot() {
+        long[] into = new long[BUCKETS];
+        addTo(into);
+        return new LatencySnapshot(into);
+    }
+
+    void addTo(long[] into) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] += counts.get(i);
+        }
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (micros >>> shift);
+    }
+
+    // The largest value that falls in the bucket
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        long sub = index - ((long) shift << SUB_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+}
+
+// Percentiles read from a histogram's counts
+final class LatencySnapshot {
+    private final long[] counts;
+    final long count;
+
+    LatencySnapshot(long[] counts) {
+        this.counts = counts;
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        this.count = total;
+    }
+
+    // The value at or below which the given fraction of recordings fall, in milliseconds
+    double millis(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return LatencyHistogram.highestValue(i) / 1000.0;
+            }
+        }
+        return maxMillis();
+    }
+
+    double maxMillis() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return LatencyHistogram.highestValue(i) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    String summary() {
+        return String.format("p50 %.0f ms, p99 %.0f ms", millis(0.5), millis(0.99));
+    }
+}
+
+// Count and total since startup, and a histogram of the recent window for
+// percentiles: recordings go to the current window's histogram, which after
+// metrics.windowSeconds becomes the previous one. Percentiles are read over
+// both, so they always cover between one and two windows.
+final class LatencyStats {
+    private final long windowNanos;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private volatile LatencyHistogram current = new LatencyHistogram();
+    private volatile LatencyHistogram previous = new LatencyHistogram();
+    private volatile long windowStart = System.nanoTime();
+
+    LatencyStats(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    void recordNanos(long nanos) {
+        long micros = nanos / 1000;
+        count.increment();
+        totalMicros.add(micros);
+        window().record(micros);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double totalSeconds() {
+        return totalMicros.sum() / 1e6;
+    }
+
+    LatencySnapshot recent() {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        window();
+        previous.addTo(counts);
+        current.addTo(counts);
+        return new LatencySnapshot(counts);
+    }
+
+    private LatencyHistogram window() {
+        if (System.nanoTime() - windowStart >= windowNanos) {
+            rotate();
+        }
+        return current;
+    }
+
+    private synchronized void rotate() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < windowNanos) {
+            return;   // another thread rotated first
+        }
+        previous = elapsed < 2 * windowNanos ? current : new LatencyHistogram();
+        current = new LatencyHistogram();
+        windowStart = now;
+    }
+}
+
+// Latency, errors and work done by one repository operation or one SQL statement
+final class Meter {
+    final String name;
+    final LatencyStats latency;
+    final LongAdder errors = new LongAdder();
+    final LongAdder statements = new LongAdder();
+    final LongAdder rows = new LongAdder();
+
+    Meter(String name, long windowNanos) {
+        this.name = name;
+        this.latency = new LatencyStats(windowNanos);
+    }
+}
+
+// Statements run and rows read by one SqlSession, credited to its operation
+final class SqlTrace {
+    int statements;
+    long rows;
+}
+
+// Every database operation, timed. LibraryDataAccess meters each repository
+// operation from submit to result, with the statements it ran and rows it
+// read; the pool's statements are wrapped so each distinct SQL statement is
+// metered as well; queue and pool waits and the Swing EDT's lag have their
+// own histograms. Failures, EDT stalls and what report() and note() are
+// given are kept as recent events, one list for the process; the last two
+// also go to the "library" logger.
+// Read by the Diagnostics tab, JMX (MetricsMBean) and the Prometheus text
+// served by MetricsEndpoint and LibraryServer at /metrics.
+class LibraryMetrics {
+    private static final int MAX_STATEMENTS = 100;
+    private static final int MAX_SQL_KEYS = 2000;
+    private static final int MAX_EVENTS = 50;
+    private static final String OTHER_STATEMENTS = "(other statements)";
+    private static final DateTimeFormatter EVENT_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final Logger LOG = Logger.getLogger("library");
+    private static final Deque<String> EVENTS = new ArrayDeque<>();
+    private static final LongAdder PROBLEMS = new LongAdder();
+
+    private final long windowNanos;
+    private final Supplier<PoolMetrics> pool;
+    private final Map<String, Meter> operations = new ConcurrentHashMap<>();
+    private final Map<String, Meter> statements = new ConcurrentHashMap<>();
+    // SQL text as prepared to its statement's meter; IN lists of every length share one
+    private final Map<String, Meter> bySql = new ConcurrentHashMap<>();
+    private final LatencyStats queueWait;
+    private final LatencyStats poolWait;
+    private final LatencyStats edtLag;
+    private final LongAdder edtStalls = new LongAdder();
+
+    LibraryMetrics(LibraryConfig config, Supplier<PoolMetrics> pool) {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(config.getInt("metrics.windowSeconds", 60));
+        this.pool = pool;
+        this.queueWait = new LatencyStats(windowNanos);
+        this.poolWait = new LatencyStats(windowNanos);
+        this.edtLag = new LatencyStats(windowNanos);
+    }
+
+    Meter operation(String name) {
+        return operations.computeIfAbsent(name, n -> new Meter(n, windowNanos));
+    }
+
+    Meter statement(String sql) {
+        Meter meter = bySql.get(sql);
+        if (meter == null) {
+            String key = sql.replaceAll("\\?(\\s*,\\s*\\?)+", "?, ...").replaceAll("\\s+", " ").trim();
+            meter = statements.get(key);
+            if (meter == null) {
+                meter = statements.size() < MAX_STATEMENTS
+                    ? statements.computeIfAbsent(key, k -> new Meter(k, windowNanos))
+                    : statements.computeIfAbsent(OTHER_STATEMENTS, k -> new Meter(k, windowNanos));
+            }
+            if (bySql.size() < MAX_SQL_KEYS) {
+                bySql.put(sql, meter);
+            }
+        }
+        return meter;
+    }
+
+    Collection<Meter> operations() {
+        return new TreeMap<>(operations).values();
+    }
+
+    Collection<Meter> statements() {
+        return new TreeMap<>(statements).values();
+    }
+
+    LatencyStats queueWait() {
+        return queueWait;
+    }
+
+    LatencyStats poolWait() {
+        return poolWait;
+    }
+
+    LatencyStats edtLag() {
+        return edtLag;
+    }
+
+    long edtStalls() {
+        return edtStalls.sum();
+    }
+
+    PoolMetrics pool() {
+        return pool.get();
+    }
+
+    void operationFinished(Meter meter, long nanos, SqlTrace trace, Throwable failure) {
+        meter.latency.recordNanos(nanos);
+        if (trace != null) {
+            meter.statements.add(trace.statements);
+            meter.rows.add(trace.rows);
+        }
+        if (failure != null) {
+            operationFailed(meter, failure);
+        }
+    }
+
+    void operationFailed(Meter meter, Throwable failure) {
+        meter.errors.increment();
+        event(meter.name + " failed: " + (failure.getMessage() == null ? failure.toString() : failure.getMessage()));
+    }
+
+    void edtStalled(long nanos, StackTraceElement[] stuckAt) {
+        edtStalls.increment();
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < Math.min(stuckAt.length, 4); i++) {
+            where.append(i == 0 ? " at " : " < ").append(stuckAt[i]);
+        }
+        String event = "EDT blocked for " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms" + where;
+        event(event);
+        LOG.warning(event);
+    }
+
+    // A failure outside any metered operation: a background task, a listener,
+    // a resource that would not close. The stack trace goes to the logger.
+    static void report(String what, Throwable failure) {
+        PROBLEMS.increment();
+        event(what + ": " + (failure.getMessage() == null ? failure.toString() : failure.getMessage()));
+        LOG.log(Level.WARNING, what, failure);
+    }
+
+    // Something done worth knowing about, such as a tool's result
+    static void note(String text) {
+        event(text);
+        LOG.info(text);
+    }
+
+    static long problems() {
+        return PROBLEMS.sum();
+    }
+
+    // Newest first
+    static List<String> recentEvents() {
+        synchronized (EVENTS) {
+            return new ArrayList<>(EVENTS);
+        }
+    }
+
+    private static void event(String text) {
+        synchronized (EVENTS) {
+            EVENTS.addFirst(LocalTime.now().format(EVENT_TIME) + "  " + text);
+            if (EVENTS.size() > MAX_EVENTS) {
+                EVENTS.removeLast();
+            }
+        }
+    }
+
+    // A pooled prepared statement that meters its executions. The statement
+    // stays cached with its connection, so the trace is looked up per call.
+    PreparedStatement instrument(PreparedStatement ps, String sql, Supplier<SqlTrace> trace) {
+        return (PreparedStatement) Proxy.newProxyInstance(LibraryMetrics.class.getClassLoader(),
+            new Class<?>[]{PreparedStatement.class}, new StatementProbe(ps, statement(sql), trace));
+    }
+
+    // An ad-hoc statement, metered by the SQL passed to each execute
+    Statement instrument(Statement stmt, Supplier<SqlTrace> trace) {
+        return (Statement) Proxy.newProxyInstance(LibraryMetrics.class.getClassLoader(),
+            new Class<?>[]{Statement.class}, new StatementProbe(stmt, null, trace));
+    }
+
+    // Times execute*() calls and hands back result sets that count their rows
+    private final class StatementProbe implements InvocationHandler {
+        private final Object target;
+        private final Meter meter;
+        private final Supplier<SqlTrace> trace;
+
+        StatementProbe(Object target, Meter meter, Supplier<SqlTrace> trace) {
+            this.target = target;
+            this.meter = meter;
+            this.trace = trace;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().startsWith("execute")) {
+                return call(target, method, args);
+            }
+            Meter m = meter != null ? meter
+                : args != null && args.length > 0 && args[0] instanceof String ? statement((String) args[0])
+                : statement("(unknown)");
+            SqlTrace t = trace.get();
+            if (t != null) {
+                t.statements++;
+            }
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = call(target, method, args);
+            } catch (SQLException e) {
+                m.errors.increment();
+                throw e;
+            } finally {
+                m.latency.recordNanos(System.nanoTime() - start);
+            }
+            if (result instanceof ResultSet) {
+                return new CountingResultSet((ResultSet) result, m, t);
+            }
+            return result;
+        }
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Prometheus text exposition format. Quantiles are over the recent window;
+    // sums and counts are since startup.
+    String prometheus() {
+        StringBuilder out = new StringBuilder();
+        header(out, "library_operation_seconds", "summary", "Repository operations, from submit to result");
+        for (Meter meter : operations()) {
+            summary(out, "library_operation_seconds", label("operation", meter.name), meter.latency);
+        }
+        header(out, "library_operation_errors_total", "counter", "Repository operations that failed");
+        for (Meter meter : operations()) {
+            sample(out, "library_operation_errors_total", label("operation", meter.name), meter.errors.sum());
+        }
+        header(out, "library_operation_statements_total", "counter", "SQL statements run by repository operations");
+        for (Meter meter : operations()) {
+            sample(out, "library_operation_statements_total", label("operation", meter.name), meter.statements.sum());
+        }
+        header(out, "library_operation_rows_total", "counter", "Rows read by repository operations");
+        for (Meter meter : operations()) {
+            sample(out, "library_operation_rows_total", label("operation", meter.name), meter.rows.sum());
+        }
+        header(out, "library_statement_seconds", "summary", "SQL statement executions");
+        for (Meter meter : statements()) {
+            summary(out, "library_statement_seconds", label("statement", meter.name), meter.latency);
+        }
+        header(out, "library_statement_errors_total", "counter", "SQL statement executions that failed");
+        for (Meter meter : statements()) {
+            sample(out, "library_statement_errors_total", label("statement", meter.name), meter.errors.sum());
+        }
+        header(out, "library_statement_rows_total", "counter", "Rows read from SQL statement results");
+        for (Meter meter : statements()) {
+            sample(out, "library_statement_rows_total", label("statement", meter.name), meter.rows.sum());
+        }
+        header(out, "library_queue_wait_seconds", "summary", "Time operations waited for a database worker");
+        summary(out, "library_queue_wait_seconds", "", queueWait);
+        header(out, "library_pool_wait_seconds", "summary", "Time workers waited for a pooled connection");
+        summary(out, "library_pool_wait_seconds", "", poolWait);
+        PoolMetrics p = pool();
+        header(out, "library_pool_connections", "gauge", "Pooled connections by state");
+        sample(out, "library_pool_connections", label("state", "active"), p.active);
+        sample(out, "library_pool_connections", label("state", "idle"), p.idle);
+        header(out, "library_pool_waiting", "gauge", "Workers waiting for a pooled connection");
+        sample(out, "library_pool_waiting", "", p.waiting);
+        header(out, "library_pool_created_total", "counter", "Connections opened by the pool");
+        sample(out, "library_pool_created_total", "", p.created);
+        header(out, "library_edt_lag_seconds", "summary", "Delay before the Swing event thread ran a posted task");
+        summary(out, "library_edt_lag_seconds", "", edtLag);
+        header(out, "library_edt_stalls_total", "counter", "Times the Swing event thread was blocked past metrics.edtStallMillis");
+        sample(out, "library_edt_stalls_total", "", edtStalls.sum());
+        header(out, "library_problems_total", "counter", "Failures reported outside repository operations");
+        sample(out, "library_problems_total", "", problems());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyStats stats) {
+        LatencySnapshot recent = stats.recent();
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            String quantile = "quantile=\"" + q + "\"";
+            out.append(name).append('{').append(labels.isEmpty() ? quantile : labels + "," + quantile).append("} ")
+               .append(String.format(Locale.ROOT, "%.6f", recent.millis(q) / 1000)).append('\n');
+        }
+        String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braced).append(' ')
+           .append(String.format(Locale.ROOT, "%.6f", stats.totalSeconds())).append('\n');
+        out.append(name).append("_count").append(braced).append(' ').append(stats.count()).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+}
+
+// The metrics over JMX, one read-only attribute per figure: for each
+// operation <name>.calls, .errors, .p50Millis, .p99Millis and .maxMillis
+// over the recent window, then the pool, queue and EDT, the count of
+// problems reported and the recent events.
+class MetricsMBean implements DynamicMBean {
+    private final LibraryMetrics metrics;
+
+    MetricsMBean(LibraryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Registers with the platform MBean server as library:type=Metrics, or
+    // with the instance appended when another service in this JVM has that name
+    static ObjectName register(LibraryMetrics metrics, String instance) throws JMException {
+        MetricsMBean bean = new MetricsMBean(metrics);
+        try {
+            ObjectName name = new ObjectName("library:type=Metrics");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return name;
+        } catch (InstanceAlreadyExistsException e) {
+            ObjectName name = new ObjectName("library:type=Metrics,instance=" + ObjectName.quote(instance));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return name;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {
+            // already gone
+        }
+    }
+
+    private Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Meter meter : metrics.operations()) {
+            LatencySnapshot recent = meter.latency.recent();
+            values.put(meter.name + ".calls", meter.latency.count());
+            values.put(meter.name + ".errors", meter.errors.sum());
+            values.put(meter.name + ".p50Millis", recent.millis(0.5));
+            values.put(meter.name + ".p99Millis", recent.millis(0.99));
+            values.put(meter.name + ".maxMillis", recent.maxMillis());
+        }
+        PoolMetrics pool = metrics.pool();
+        values.put("pool.active", (long) pool.active);
+        values.put("pool.idle", (long) pool.idle);
+        values.put("pool.waiting", (long) pool.waiting);
+        values.put("pool.waitP99Millis", metrics.poolWait().recent().millis(0.99));
+        values.put("queue.waitP99Millis", metrics.queueWait().recent().millis(0.99));
+        values.put("edt.lagP99Millis", metrics.edtLag().recent().millis(0.99));
+        values.put("edt.stalls", metrics.edtStalls());
+        values.put("problems", LibraryMetrics.problems());
+        values.put("events", LibraryMetrics.recentEvents().toArray(new String[0]));
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> e : values().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Library operation latency, pool and EDT metrics, and recent events",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}
+
+// Serves the Prometheus text at http://<metrics.host>:<metrics.port>/metrics
+// for a desk app, which has no LibraryServer to serve it
+class MetricsEndpoint {
+    private final HttpServer server;
+
+    MetricsEndpoint(LibraryMetrics metrics, String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
+
+// Posts an empty task to the Swing EDT every metrics.edtProbeMillis and times
+// how long it waits to run. Every wait goes into the EDT lag histogram; one
+// longer than metrics.edtStallMillis is a stall, and the EDT's stack is taken
+// while it is still stuck so the stall is recorded with what blocked it.
+class EdtWatchdog {
+    private final LibraryMetrics metrics;
+    private final long probeMillis;
+    private final long stallMillis;
+    private final Thread thread;
+    private volatile Thread edt;
+
+    EdtWatchdog(LibraryMetrics metrics, LibraryConfig config) {
+        this.metrics = metrics;
+        this.probeMillis = config.getInt("metrics.edtProbeMillis", 100);
+        this.stallMillis = config.getInt("metrics.edtStallMillis", 250);
+        this.thread = new Thread(this::probe, "library-edt-watchdog");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        thread.interrupt();
+    }
+
+    private void probe() {
+        try {
+            while (true) {
+                CountDownLatch ran = new CountDownLatch(1);
+                long[] ranAt = new long[1];
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater(() -> {
+                    edt = Thread.currentThread();
+                    ranAt[0] = System.nanoTime();
+                    ran.countDown();
+                });
+                StackTraceElement[] stuckAt = null;
+                if (!ran.await(stallMillis, TimeUnit.MILLISECONDS)) {
+                    Thread t = edt;
+                    stuckAt = t == null ? new StackTraceElement[0] : t.getStackTrace();
+                    ran.await();
+                }
+                long lag = ranAt[0] - posted;
+                metrics.edtLag().recordNanos(lag);
+                if (stuckAt != null) {
+                    metrics.edtStalled(lag, stuckAt);
+                }
+                Thread.sleep(probeMillis);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+}
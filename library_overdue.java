@@ -0,0 +1,468 @@
+import java.sql.Date;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// A reminder or fine for one loan, as written to the loan_notices outbox
+class LoanNotice {
+    enum Kind { NEAR_DUE, OVERDUE, FINE }
+
+    final Kind kind;
+    final int borrowId;
+    final int userId;
+    final int bookId;
+    final LocalDate dueDate;
+    final int fineCents;   // FINE only: charged when the loan came back late
+
+    LoanNotice(Kind kind, int borrowId, int userId, int bookId, LocalDate dueDate, int fineCents) {
+        this.kind = kind;
+        this.borrowId = borrowId;
+        this.userId = userId;
+        this.bookId = bookId;
+        this.dueDate = dueDate;
+        this.fineCents = fineCents;
+    }
+}
+
+// The overdue.* settings
+class OverduePolicy {
+    final int graceDays;         // days after the due date before a loan counts as overdue
+    final int nearDueDays;       // days before the due date the reminder goes out
+    final int finePerDayCents;
+    final int maxFineCents;      // per loan
+    final int blockAt;           // overdue loans that stop a user borrowing; 0 never blocks
+
+    OverduePolicy(LibraryConfig config) {
+        this.graceDays = config.getInt("overdue.graceDays", 0);
+        this.nearDueDays = config.getInt("overdue.nearDueDays", 2);
+        this.finePerDayCents = config.getInt("overdue.finePerDayCents", 25);
+        this.maxFineCents = config.getInt("overdue.maxFineCents", 1000);
+        this.blockAt = config.getInt("overdue.blockAt", 3);
+    }
+
+    // First day the loan is overdue
+    LocalDate overdueFrom(LocalDate dueDate) {
+        return dueDate.plusDays(graceDays + 1);
+    }
+
+    // Charged per day from the due date, once past the grace days
+    int fineCents(LocalDate dueDate, LocalDate on) {
+        long late = ChronoUnit.DAYS.between(dueDate, on);
+        if (late <= graceDays) {
+            return 0;
+        }
+        return (int) Math.min(maxFineCents, late * finePerDayCents);
+    }
+
+    static String money(int cents) {
+        return String.format("%d.%02d", cents / 100, cents % 100);
+    }
+}
+
+// Follows every open loan's due date without scanning borrowed_books. Loans
+// wait in day buckets keyed by their next deadline: the reminder day, then
+// the first overdue day. A tick takes only the buckets that have come due,
+// so its work is the loans changing state that day, not the loans open.
+//
+// Open loans are loaded a page at a time through the open-loan index when
+// the tracker starts; after that the catalog's loan changes, this client's
+// and other clients' alike, keep the buckets current. Notices collect in
+// memory and go to the loan_notices outbox in one batch per tick; a batch
+// that fails is retried on the next tick.
+//
+// Overdue loans are also kept per user, so overdueCount and blocks, which
+// every checkout asks, are a hash lookup. So are the open loans by copy,
+// user and book: a return tries the loan found here before it queries, and
+// the desk lists a patron's loans without going to the database.
+class OverdueTracker implements CatalogListener, OpenLoanLookup {
+    private static final int LOAD_PAGE_SIZE = 5000;
+
+    private enum Stage { NEAR_DUE, OVERDUE, DONE }
+
+    private static final class Entry {
+        final int borrowId;
+        final int userId;
+        final int bookId;
+        final int copyId;   // 0 for a loan with no copy recorded
+        final LocalDate dueDate;
+        Stage stage;
+        long bucket;   // epoch day of the next deadline, while stage is not DONE
+
+        Entry(Loan loan) {
+            this.borrowId = loan.id;
+            this.userId = loan.userId;
+            this.bookId = loan.bookId;
+            this.copyId = loan.copyId;
+            this.dueDate = loan.dueDate.toLocalDate();
+        }
+
+        Loan toLoan() {
+            return new Loan(borrowId, bookId, null, userId, null, null, Date.valueOf(dueDate), null,
+                Loan.BORROWED, copyId);
+        }
+    }
+
+    private final LibraryRepository repository;
+    private final OverduePolicy policy;
+    private final Clock clock;
+    private final int tickMillis;
+    private final List<Consumer<LoanNotice>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "library-overdue");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    private final IntObjectMap<Entry> loans = new IntObjectMap<>();
+    private final TreeMap<Long, IntObjectMap<Entry>> buckets = new TreeMap<>();
+    private final IntObjectMap<List<Entry>> overdueByUser = new IntObjectMap<>();
+    private final IntObjectMap<Entry> byCopy = new IntObjectMap<>();
+    private final IntObjectMap<List<Entry>> byUser = new IntObjectMap<>();
+    private final IntObjectMap<List<Entry>> byBook = new IntObjectMap<>();
+    private int overdueLoans;
+    private List<LoanNotice> outbox = new ArrayList<>();
+    private boolean flushing;
+    // Loans closed while a load is paging, so a page read earlier cannot reopen them
+    private IntObjectMap<Boolean> closedDuringLoad;
+    private int loadGeneration;
+
+    OverdueTracker(LibraryRepository repository, LibraryConfig config) {
+        this(repository, new OverduePolicy(config), Clock.systemDefaultZone(),
+            config.getInt("overdue.tickMillis", 60000));
+    }
+
+    OverdueTracker(LibraryRepository repository, OverduePolicy policy, Clock clock, int tickMillis) {
+        this.repository = repository;
+        this.policy = policy;
+        this.clock = clock;
+        this.tickMillis = tickMillis;
+    }
+
+    OverduePolicy policy() {
+        return policy;
+    }
+
+    // Hears every notice as it is scheduled, on the thread that scheduled it
+    void addListener(Consumer<LoanNotice> listener) {
+        listeners.add(listener);
+    }
+
+    // Starts following loan changes, loads the open loans and starts ticking;
+    // completes once the load is done
+    CompletableFuture<Void> start() {
+        repository.catalog().addListener(CatalogChange.Table.LOANS, this);
+        return reload().thenRun(() ->
+            ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS));
+    }
+
+    // Stops ticking and sends what is waiting in the outbox
+    void stop() {
+        ticker.shutdownNow();
+        try {
+            flush().get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LibraryMetrics.report("Sending the last notices failed", e);
+        }
+    }
+
+    synchronized int overdueCount(int userId) {
+        List<Entry> overdue = overdueByUser.get(userId);
+        return overdue == null ? 0 : overdue.size();
+    }
+
+    boolean blocks(int userId) {
+        return policy.blockAt > 0 && overdueCount(userId) >= policy.blockAt;
+    }
+
+    // What the user's overdue loans would be charged if returned today
+    synchronized int fineCents(int userId) {
+        List<Entry> overdue = overdueByUser.get(userId);
+        int cents = 0;
+        if (overdue != null) {
+            LocalDate today = LocalDate.now(clock);
+            for (Entry entry : overdue) {
+                cents += policy.fineCents(entry.dueDate, today);
+            }
+        }
+        return cents;
+    }
+
+    synchronized int overdueLoans() {
+        return overdueLoans;
+    }
+
+    synchronized int overdueUsers() {
+        return overdueByUser.size();
+    }
+
+    synchronized int openLoans() {
+        return loans.size();
+    }
+
+    @Override
+    public synchronized Loan openLoanOfCopy(int copyId) {
+        Entry entry = byCopy.get(copyId);
+        return entry == null ? null : entry.toLoan();
+    }
+
+    @Override
+    public synchronized Loan openLoan(int bookId, int userId) {
+        List<Entry> entries = byUser.get(userId);
+        Entry oldest = null;
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.bookId == bookId && (oldest == null || entry.borrowId < oldest.borrowId)) {
+                    oldest = entry;
+                }
+            }
+        }
+        return oldest == null ? null : oldest.toLoan();
+    }
+
+    // The user's open loans, oldest first, without title or user name
+    synchronized List<Loan> userLoans(int userId) {
+        return toLoans(byUser.get(userId));
+    }
+
+    // Who has the book out, oldest loan first
+    synchronized List<Loan> bookLoans(int bookId) {
+        return toLoans(byBook.get(bookId));
+    }
+
+    private static List<Loan> toLoans(List<Entry> entries) {
+        List<Loan> result = new ArrayList<>();
+        if (entries != null) {
+            for (Entry entry : entries) {
+                result.add(entry.toLoan());
+            }
+            result.sort(Comparator.comparingInt(loan -> loan.id));
+        }
+        return result;
+    }
+
+    @Override
+    public void catalogChanged(CatalogChange change) {
+        List<LoanNotice> notices = new ArrayList<>();
+        synchronized (this) {
+            Loan loan = (Loan) change.record;
+            switch (change.kind) {
+                case INSERTED:
+                case UPDATED:
+                    close(change.id, Loan.RETURNED.equals(loan.status) ? loan.returnDate : null, notices);
+                    if (Loan.BORROWED.equals(loan.status) && loan.dueDate != null) {
+                        open(loan, notices);
+                    }
+                    break;
+                case DELETED:
+                    close(change.id, null, notices);
+                    break;
+                default:
+                    reload();
+            }
+        }
+        publish(notices);
+    }
+
+    // Moves the loans whose deadline has arrived on, then sends what is waiting
+    void tick() {
+        List<LoanNotice> notices = new ArrayList<>();
+        synchronized (this) {
+            long today = LocalDate.now(clock).toEpochDay();
+            // advance files entries under later days, so each bucket is taken off first
+            Map.Entry<Long, IntObjectMap<Entry>> due;
+            while ((due = buckets.firstEntry()) != null && due.getKey() <= today) {
+                buckets.pollFirstEntry();
+                due.getValue().forEach((id, entry) -> advance(entry, today, notices));
+            }
+        }
+        publish(notices);
+        flush();
+    }
+
+    // Clears everything and loads the open loans afresh
+    private synchronized CompletableFuture<Void> reload() {
+        loans.clear();
+        buckets.clear();
+        overdueByUser.clear();
+        byCopy.clear();
+        byUser.clear();
+        byBook.clear();
+        overdueLoans = 0;
+        closedDuringLoad = new IntObjectMap<>();
+        int generation = ++loadGeneration;
+        return loadFrom(0, generation);
+    }
+
+    private CompletableFuture<Void> loadFrom(int afterId, int generation) {
+        return repository.openLoans(afterId, LOAD_PAGE_SIZE).thenCompose(page -> {
+            List<LoanNotice> notices = new ArrayList<>();
+            synchronized (this) {
+                if (generation != loadGeneration) {
+                    return CompletableFuture.completedFuture(null);   // a newer reload took over
+                }
+                for (Loan loan : page) {
+                    if (!loans.containsKey(loan.id) && !closedDuringLoad.containsKey(loan.id)) {
+                        open(loan, notices);
+                    }
+                }
+                if (page.size() < LOAD_PAGE_SIZE) {
+                    closedDuringLoad = null;
+                }
+            }
+            publish(notices);
+            return page.size() < LOAD_PAGE_SIZE
+                ? CompletableFuture.completedFuture(null)
+                : loadFrom(page.get(page.size() - 1).id, generation);
+        });
+    }
+
+    private void open(Loan loan, List<LoanNotice> notices) {
+        Entry entry = new Entry(loan);
+        loans.put(entry.borrowId, entry);
+        if (entry.copyId != 0) {
+            byCopy.put(entry.copyId, entry);
+        }
+        file(byUser, entry.userId, entry);
+        file(byBook, entry.bookId, entry);
+        entry.stage = Stage.NEAR_DUE;
+        advance(entry, LocalDate.now(clock).toEpochDay(), notices);
+    }
+
+    // Sends the notices for every deadline already passed, then files the
+    // entry under its next one
+    private void advance(Entry entry, long today, List<LoanNotice> notices) {
+        if (entry.stage == Stage.NEAR_DUE) {
+            long remindOn = entry.dueDate.minusDays(policy.nearDueDays).toEpochDay();
+            if (remindOn > today) {
+                schedule(entry, remindOn);
+                return;
+            }
+            if (entry.dueDate.toEpochDay() >= today) {
+                notices.add(notice(LoanNotice.Kind.NEAR_DUE, entry, 0));
+            }
+            entry.stage = Stage.OVERDUE;
+        }
+        if (entry.stage == Stage.OVERDUE) {
+            long overdueOn = policy.overdueFrom(entry.dueDate).toEpochDay();
+            if (overdueOn > today) {
+                schedule(entry, overdueOn);
+                return;
+            }
+            notices.add(notice(LoanNotice.Kind.OVERDUE, entry, 0));
+            entry.stage = Stage.DONE;
+            file(overdueByUser, entry.userId, entry);
+            overdueLoans++;
+        }
+    }
+
+    private void schedule(Entry entry, long day) {
+        entry.bucket = day;
+        IntObjectMap<Entry> bucket = buckets.get(day);
+        if (bucket == null) {
+            bucket = new IntObjectMap<>();
+            buckets.put(day, bucket);
+        }
+        bucket.put(entry.borrowId, entry);
+    }
+
+    // Takes a loan off the schedule; returnDate, for a return, charges any fine
+    private void close(int borrowId, Date returnDate, List<LoanNotice> notices) {
+        if (closedDuringLoad != null) {
+            closedDuringLoad.put(borrowId, Boolean.TRUE);
+        }
+        Entry entry = loans.remove(borrowId);
+        if (entry == null) {
+            return;
+        }
+        if (entry.copyId != 0 && byCopy.get(entry.copyId) == entry) {
+            byCopy.remove(entry.copyId);
+        }
+        unfile(byUser, entry.userId, entry);
+        unfile(byBook, entry.bookId, entry);
+        if (entry.stage != Stage.DONE) {
+            IntObjectMap<Entry> bucket = buckets.get(entry.bucket);
+            if (bucket != null && bucket.remove(borrowId) != null && bucket.size() == 0) {
+                buckets.remove(entry.bucket);
+            }
+            return;
+        }
+        unfile(overdueByUser, entry.userId, entry);
+        overdueLoans--;
+        int fine = returnDate == null ? 0 : policy.fineCents(entry.dueDate, returnDate.toLocalDate());
+        if (fine > 0) {
+            notices.add(notice(LoanNotice.Kind.FINE, entry, fine));
+        }
+    }
+
+    private static void file(IntObjectMap<List<Entry>> map, int key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>(2);
+            map.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void unfile(IntObjectMap<List<Entry>> map, int key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private LoanNotice notice(LoanNotice.Kind kind, Entry entry, int fineCents) {
+        LoanNotice notice = new LoanNotice(kind, entry.borrowId, entry.userId, entry.bookId, entry.dueDate, fineCents);
+        outbox.add(notice);
+        return notice;
+    }
+
+    private void publish(List<LoanNotice> notices) {
+        for (LoanNotice notice : notices) {
+            for (Consumer<LoanNotice> listener : listeners) {
+                try {
+                    listener.accept(notice);
+                } catch (RuntimeException e) {
+                    LibraryMetrics.report("A notice listener failed", e);
+                }
+            }
+        }
+    }
+
+    // One batch at a time; a failed batch goes back in front of newer notices
+    private CompletableFuture<Void> flush() {
+        List<LoanNotice> batch;
+        synchronized (this) {
+            if (flushing || outbox.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            flushing = true;
+            batch = outbox;
+            outbox = new ArrayList<>();
+        }
+        return repository.recordNotices(batch).whenComplete((ok, error) -> {
+            synchronized (this) {
+                flushing = false;
+                if (error != null) {
+                    batch.addAll(outbox);
+                    outbox = batch;
+                }
+            }
+            if (error != null) {
+                LibraryMetrics.report("Recording notices failed", error);
+            }
+        });
+    }
+}
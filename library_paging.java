@@ -0,0 +1,434 @@
+import javax.swing.table.AbstractTableModel;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Rows of one table view, fetched a page at a time.
+interface PageSource {
+    int count(SqlSession session) throws SQLException;
+
+    // Up to limit rows starting at offset. afterKey, when known, is the key
+    // (first column) of the row just before offset.
+    List<Object[]> page(SqlSession session, int offset, Integer afterKey, int limit) throws SQLException;
+
+    // Whether a changed row belongs in this view. Views that cannot tell keep
+    // updated rows where they are.
+    default boolean includes(Object[] row) {
+        return true;
+    }
+
+    // Whether newly inserted rows that it includes go at the end of this view
+    default boolean appendsInserts() {
+        return false;
+    }
+
+    // Whether rows are read from this machine rather than the database (a
+    // BookSnapshot); such a source is read on the spot, with a null session
+    default boolean local() {
+        return false;
+    }
+}
+
+interface RowMapper {
+    Object[] map(ResultSet rs) throws SQLException;
+}
+
+// Keyset pagination over a SELECT whose first column is the integer key.
+class SqlPageSource implements PageSource {
+    final String countSql, pageSql, keyAtSql;
+    private final String[] params;
+    private final RowMapper mapper;
+    private final boolean unfiltered;
+    private Predicate<Object[]> filter;
+
+    // where may be null; params fill its placeholders
+    SqlPageSource(String select, String from, String where, String key,
+                  RowMapper mapper, String... params) {
+        String filter = where == null ? "" : " WHERE " + where;
+        this.countSql = "SELECT COUNT(*) " + from + filter;
+        this.pageSql = select + " " + from + (where == null ? " WHERE " : filter + " AND ") +
+            key + " > ? ORDER BY " + key + " LIMIT ?";
+        this.keyAtSql = "SELECT " + key + " " + from + filter + " ORDER BY " + key + " LIMIT 1 OFFSET ?";
+        this.params = params;
+        this.mapper = mapper;
+        this.unfiltered = where == null;
+    }
+
+    // The WHERE clause as a test on mapped rows, so changes can be matched to this view
+    SqlPageSource filteredBy(Predicate<Object[]> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    @Override
+    public boolean includes(Object[] row) {
+        return filter == null || filter.test(row);
+    }
+
+    // Keys are auto-increment, so a new row sorts last
+    @Override
+    public boolean appendsInserts() {
+        return unfiltered || filter != null;
+    }
+
+    @Override
+    public int count(SqlSession session) throws SQLException {
+        PreparedStatement pstmt = session.prepare(countSql);
+        bindParams(pstmt);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    public List<Object[]> page(SqlSession session, int offset, Integer afterKey, int limit) throws SQLException {
+        // Without a known boundary, find it with an index-only seek and continue by key
+        int after = afterKey != null ? afterKey : offset == 0 ? Integer.MIN_VALUE : keyAt(session, offset - 1);
+        PreparedStatement pstmt = session.prepare(pageSql);
+        int i = bindParams(pstmt);
+        pstmt.setInt(i++, after);
+        pstmt.setInt(i, limit);
+        List<Object[]> rows = new ArrayList<>(limit);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                session.checkCancelled();
+                rows.add(mapper.map(rs));
+            }
+        }
+        return rows;
+    }
+
+    private int keyAt(SqlSession session, int offset) throws SQLException {
+        PreparedStatement pstmt = session.prepare(keyAtSql);
+        int i = bindParams(pstmt);
+        pstmt.setInt(i, offset);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : Integer.MAX_VALUE;
+        }
+    }
+
+    private int bindParams(PreparedStatement pstmt) throws SQLException {
+        int i = 1;
+        for (String param : params) {
+            pstmt.setString(i++, param);
+        }
+        return i;
+    }
+}
+
+// A fixed, ranked list of IDs (e.g. search hits); each page is hydrated with
+// one IN query. The IN list is padded to the page size so the SQL stays the
+// same and its prepared statement is reused.
+class IdListPageSource implements PageSource {
+    private final int[] ids;
+    private final String selectFrom;
+    private final String key;
+    private final RowMapper mapper;
+
+    IdListPageSource(int[] ids, String selectFrom, String key, RowMapper mapper) {
+        this.ids = ids;
+        this.selectFrom = selectFrom;
+        this.key = key;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public int count(SqlSession session) {
+        return ids.length;
+    }
+
+    @Override
+    public List<Object[]> page(SqlSession session, int offset, Integer afterKey, int limit) throws SQLException {
+        int end = Math.min(ids.length, offset + limit);
+        if (offset >= end) {
+            return new ArrayList<>();
+        }
+        StringBuilder sql = new StringBuilder(selectFrom).append(" WHERE ").append(key).append(" IN (?");
+        for (int i = 1; i < limit; i++) {
+            sql.append(",?");
+        }
+        PreparedStatement pstmt = session.prepare(sql.append(')').toString());
+        for (int i = 0; i < limit; i++) {
+            pstmt.setInt(i + 1, ids[Math.min(offset + i, end - 1)]);
+        }
+        IntObjectMap<Object[]> byId = new IntObjectMap<>(end - offset);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                Object[] row = mapper.map(rs);
+                byId.put((Integer) row[0], row);
+            }
+        }
+        // Keep the ranked order; rows deleted since the list was made are dropped
+        List<Object[]> rows = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; i++) {
+            Object[] row = byId.get(ids[i]);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
+
+// Table model that only holds the pages the viewport has asked for. Missing
+// pages render blank and are fetched in the background; at most maxPages stay
+// cached, least recently used first out. Only touched on the EDT.
+class PagedTableModel extends AbstractTableModel implements CatalogListener {
+    private final LibraryDataAccess dataAccess;
+    private final String name;
+    private final String[] columns;
+    private final int pageSize;
+    private final int maxPages;
+    private final Consumer<Throwable> onError;
+
+    private final Map<Integer, Object[][]> pages;
+    private final Map<Integer, Integer> afterKeys = new HashMap<>();
+    private final Set<Integer> loading = new HashSet<>();
+    private PageSource source;
+    private int rowCount;
+    private int generation;
+    private volatile int focusPage;
+    private Runnable onLoaded;
+
+    PagedTableModel(LibraryDataAccess dataAccess, String name, String[] columns,
+                    int pageSize, int maxPages, Consumer<Throwable> onError) {
+        this.dataAccess = dataAccess;
+        this.name = name;
+        this.columns = columns;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.onError = onError;
+        this.pages = new LinkedHashMap<Integer, Object[][]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+                return size() > PagedTableModel.this.maxPages;
+            }
+        };
+    }
+
+    void setSource(PageSource source) {
+        setSource(source, null);
+    }
+
+    // onLoaded runs once the new source's first rows are in the model
+    void setSource(PageSource source, Runnable onLoaded) {
+        this.source = source;
+        this.onLoaded = onLoaded;
+        refresh();
+    }
+
+    // Re-counts the rows; cached pages stay on screen until the new count arrives.
+    void refresh() {
+        PageSource src = source;
+        LibraryDataAccess.onEdt(read(src, name + "-count", "countPage", src::count), count -> {
+            if (src != source) {
+                return;
+            }
+            generation++;
+            pages.clear();
+            afterKeys.clear();
+            loading.clear();
+            rowCount = count;
+            fireTableDataChanged();
+            if (count == 0) {
+                loaded();
+            }
+        }, onError);
+    }
+
+    private void loaded() {
+        Runnable callback = onLoaded;
+        onLoaded = null;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    // Applies one committed change to the loaded rows and fires events for just
+    // those rows. Changes to rows that are not loaded only matter if they move
+    // rows around, and then the view is re-counted.
+    @Override
+    public void catalogChanged(CatalogChange change) {
+        PageSource src = source;
+        if (src == null) {
+            return;
+        }
+        Object[] values = change.row();
+        int row = indexOf(change.id);
+        switch (change.kind) {
+            case INSERTED:
+                if (row < 0 && src.appendsInserts() && src.includes(values)) {
+                    appendRow(values);
+                }
+                break;
+            case UPDATED:
+                if (row >= 0 && src.includes(values)) {
+                    pages.get(row / pageSize)[row % pageSize] = values;
+                    fireTableRowsUpdated(row, row);
+                } else if (row >= 0) {
+                    removeRow(row);
+                } else if (!src.includes(values)) {
+                    refresh();
+                }
+                break;
+            case DELETED:
+                if (row >= 0) {
+                    removeRow(row);
+                } else {
+                    refresh();
+                }
+                break;
+            default:
+                refresh();
+        }
+    }
+
+    // Row index of the loaded row with this key, or -1
+    private int indexOf(int key) {
+        for (Map.Entry<Integer, Object[][]> entry : pages.entrySet()) {
+            Object[][] rows = entry.getValue();
+            for (int i = 0; i < rows.length; i++) {
+                if ((Integer) rows[i][0] == key) {
+                    return entry.getKey() * pageSize + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // New keys sort last, but only a loaded last page shows whether the row is
+    // already counted; otherwise the view is re-counted
+    private void appendRow(Object[] values) {
+        Object[][] rows = rowCount == 0 ? null : pages.get((rowCount - 1) / pageSize);
+        if (rows == null || (rowCount - 1) % pageSize >= rows.length ||
+                (Integer) values[0] < (Integer) rows[rows.length - 1][0]) {
+            refresh();
+            return;
+        }
+        int row = rowCount++;
+        if (row % pageSize == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length + 1);
+            rows[rows.length - 1] = values;
+            pages.put(row / pageSize, rows);
+        }
+        fireTableRowsInserted(row, row);
+    }
+
+    private void removeRow(int row) {
+        int page = row / pageSize;
+        Object[][] rows = pages.get(page);
+        int index = row % pageSize;
+        Object[][] remaining = new Object[rows.length - 1][];
+        System.arraycopy(rows, 0, remaining, 0, index);
+        System.arraycopy(rows, index + 1, remaining, index, rows.length - index - 1);
+
+        // Later rows move up by one, so later pages are re-read on demand
+        generation++;
+        loading.clear();
+        pages.keySet().removeIf(p -> p > page);
+        afterKeys.keySet().removeIf(p -> p > page);
+        pages.put(page, remaining);
+        rowCount--;
+        fireTableRowsDeleted(row, row);
+        if (remaining.length < Math.min(pageSize, rowCount - page * pageSize)) {
+            requestPage(page);   // fill the slot left at the end of the page
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Object[] values = rowAt(row);
+        return values == null ? null : values[column];
+    }
+
+    // The row's values, or null while its page is still loading
+    Object[] rowAt(int row) {
+        int page = row / pageSize;
+        Object[][] rows = pages.get(page);
+        if (rows == null) {
+            requestPage(page);
+            return null;
+        }
+        int index = row % pageSize;
+        return index < rows.length ? rows[index] : null;
+    }
+
+    // A database worker runs the read, unless the source is local
+    private <T> CompletableFuture<T> read(PageSource src, String key, String operation, SqlWork<T> work) {
+        if (!src.local()) {
+            return dataAccess.submit(key, operation, work);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(work.run(null));
+        } catch (SQLException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void requestPage(int page) {
+        focusPage = page;
+        if (!loading.add(page)) {
+            return;
+        }
+        Integer knownAfterKey = afterKeys.get(page);
+        int gen = generation;
+        PageSource src = source;
+        CompletableFuture<Object[][]> future = read(src, null, "loadPage", session -> {
+            // Skip pages the user has already scrolled well past
+            if (Math.abs(page - focusPage) > maxPages / 2) {
+                return null;
+            }
+            return src.page(session, page * pageSize, knownAfterKey, pageSize).toArray(new Object[0][]);
+        });
+        LibraryDataAccess.onEdt(future, rows -> {
+            if (gen != generation) {
+                return;
+            }
+            loading.remove(page);
+            if (rows == null) {
+                return;
+            }
+            pages.put(page, rows);
+            if (rows.length > 0) {
+                afterKeys.put(page + 1, (Integer) rows[rows.length - 1][0]);
+            }
+            int first = page * pageSize;
+            int last = Math.min(rowCount, first + pageSize) - 1;
+            if (last >= first) {
+                fireTableRowsUpdated(first, last);
+            }
+            loaded();
+        }, e -> {
+            if (gen == generation) {
+                loading.remove(page);
+            }
+            LibraryMetrics.report("Loading a page failed", e);
+        });
+    }
+}
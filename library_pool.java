@@ -0,0 +1,328 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Settings read from library.properties (or the file named by -Dlibrary.config).
+// System properties with the same keys win over the file.
+class LibraryConfig {
+    private final Properties props;
+
+    private LibraryConfig(Properties props) {
+        this.props = props;
+    }
+
+    static LibraryConfig load() {
+        Properties props = new Properties();
+        String path = System.getProperty("library.config", "library.properties");
+        try (InputStream in = new FileInputStream(path)) {
+            props.load(in);
+        } catch (IOException e) {
+            // no config file, use defaults
+        }
+        return new LibraryConfig(props);
+    }
+
+    static LibraryConfig of(Properties props) {
+        return new LibraryConfig(props);
+    }
+
+    String get(String key, String defaultValue) {
+        return System.getProperty(key, props.getProperty(key, defaultValue));
+    }
+
+    int getInt(String key, int defaultValue) {
+        return Integer.parseInt(get(key, String.valueOf(defaultValue)).trim());
+    }
+}
+
+// Bounded JDBC connection pool. Idle connections are validated when borrowed
+// and closed after pool.idleTimeoutSeconds; each keeps an LRU cache of
+// prepared statements keyed by SQL text. The pool's statements, and the waits
+// to borrow, are metered in its LibraryMetrics.
+class ConnectionPool implements AutoCloseable {
+    private final StorageBackend backend;
+    private final String url, user, password;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final LibraryMetrics instruments;
+
+    ConnectionPool(LibraryConfig config, StorageBackend backend) {
+        this.backend = backend;
+        this.url = backend.url(config);
+        this.user = backend.user(config);
+        this.password = backend.password(config);
+        this.maxSize = config.getInt("pool.maxSize", 8);
+        this.idleTimeoutMillis = config.getInt("pool.idleTimeoutSeconds", 300) * 1000L;
+        this.borrowTimeoutMillis = config.getInt("pool.borrowTimeoutMillis", 10000);
+        this.validationTimeoutSeconds = config.getInt("pool.validationTimeoutSeconds", 2);
+        this.statementCacheSize = config.getInt("pool.statementCacheSize", 32);
+        this.permits = new Semaphore(maxSize, true);
+        this.instruments = new LibraryMetrics(config, this::metrics);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    StorageBackend backend() {
+        return backend;
+    }
+
+    LibraryMetrics instruments() {
+        return instruments;
+    }
+
+    PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        instruments.poolWait().recordNanos(waited);
+
+        try {
+            PooledConnection pc;
+            while ((pc = pollIdle()) != null) {
+                if (pc.isValid(validationTimeoutSeconds)) {
+                    return pc;
+                }
+                pc.closeQuietly();
+            }
+            pc = new PooledConnection(DriverManager.getConnection(url, user, password), statementCacheSize, instruments);
+            created.incrementAndGet();
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pc) {
+        try {
+            if (closed || pc.connection().isClosed()) {
+                pc.closeQuietly();
+                return;
+            }
+            if (!pc.connection().getAutoCommit()) {
+                pc.connection().rollback();
+                pc.connection().setAutoCommit(true);
+            }
+            pc.touch();
+            synchronized (idle) {
+                idle.push(pc);
+            }
+        } catch (SQLException e) {
+            pc.closeQuietly();
+        } finally {
+            permits.release();
+        }
+    }
+
+    void discard(PooledConnection pc) {
+        pc.closeQuietly();
+        permits.release();
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        synchronized (idle) {
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection pc = it.next();
+                if (pc.lastUsed() < cutoff) {
+                    it.remove();
+                    pc.closeQuietly();
+                }
+            }
+        }
+    }
+
+    PoolMetrics metrics() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        long borrowCount = borrows.get();
+        return new PoolMetrics(maxSize - permits.availablePermits(), idleCount,
+            permits.getQueueLength(), borrowCount, created.get(),
+            borrowCount == 0 ? 0 : totalWaitNanos.get() / borrowCount, maxWaitNanos.get());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        synchronized (idle) {
+            for (PooledConnection pc : idle) {
+                pc.closeQuietly();
+            }
+            idle.clear();
+        }
+    }
+}
+
+class PooledConnection {
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statementCache;
+    private final LibraryMetrics metrics;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private SqlTrace trace;
+
+    PooledConnection(Connection conn, int cacheSize, LibraryMetrics metrics) {
+        this.conn = conn;
+        this.metrics = metrics;
+        this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= cacheSize) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException ignored) {
+                    // evicted statement is discarded either way
+                }
+                return true;
+            }
+        };
+    }
+
+    Connection connection() {
+        return conn;
+    }
+
+    // Only one session uses a connection at a time, so no locking is needed here.
+    PreparedStatement prepareCached(String sql, boolean returnKeys) throws SQLException {
+        String cacheKey = returnKeys ? "keys:" + sql : sql;
+        PreparedStatement ps = statementCache.get(cacheKey);
+        if (ps == null || ps.isClosed()) {
+            ps = metrics.instrument(returnKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                                               : conn.prepareStatement(sql), sql, this::trace);
+            statementCache.put(cacheKey, ps);
+        }
+        return ps;
+    }
+
+    // An ad-hoc statement, metered like the cached ones
+    Statement createStatement() throws SQLException {
+        return metrics.instrument(conn.createStatement(), this::trace);
+    }
+
+    // Where statements run by the session now using this connection are counted
+    void trace(SqlTrace trace) {
+        this.trace = trace;
+    }
+
+    SqlTrace trace() {
+        return trace;
+    }
+
+    boolean isValid(int timeoutSeconds) {
+        try {
+            return conn.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    void closeQuietly() {
+        for (PreparedStatement ps : statementCache.values()) {
+            try {
+                ps.close();
+            } catch (SQLException ignored) {
+                // closing the connection releases it anyway
+            }
+        }
+        statementCache.clear();
+        try {
+            conn.close();
+        } catch (SQLException ignored) {
+            // connection is being discarded
+        }
+    }
+}
+
+class PoolMetrics {
+    final int active;
+    final int idle;
+    final int waiting;
+    final long borrows;
+    final long created;
+    final long avgWaitNanos;
+    final long maxWaitNanos;
+
+    PoolMetrics(int active, int idle, int waiting, long borrows, long created,
+                long avgWaitNanos, long maxWaitNanos) {
+        this.active = active;
+        this.idle = idle;
+        this.waiting = waiting;
+        this.borrows = borrows;
+        this.created = created;
+        this.avgWaitNanos = avgWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d idle=%d waiting=%d borrows=%d created=%d avgWait=%.2fms maxWait=%.2fms",
+            active, idle, waiting, borrows, created, avgWaitNanos / 1e6, maxWaitNanos / 1e6);
+    }
+}
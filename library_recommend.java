@@ -0,0 +1,432 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// "Borrowed together": for each book, the books most often borrowed by the
+// same users over the whole loan history, borrowed_books and loan_archive.
+// Two books score by cosine similarity of their borrowers (users in common
+// over the square root of one's borrowers times the other's). Each book keeps
+// its recommend.neighbours best with at least recommend.minTogether users in
+// common. Users with more than recommend.maxBooksPerUser books on record
+// (class sets, staff accounts) pair everything with everything, so they are
+// left out of the users in common.
+//
+// Who borrowed what is held as sorted int arrays per user and per book. At
+// start the history is read once and every book's neighbours are worked out
+// in recommend.threads stripes, each counting users in common into a scratch
+// array indexed by book ID. After that each new loan, this client's or
+// another's, adds its pair on the recommender's own thread, and the rows it
+// touches are worked out again: the book's and those of the user's other
+// books. The other books the new loan gives one more borrower keep their
+// scores until the next rebuild. related() only reads, under a read lock.
+final class BorrowedTogether implements CatalogListener {
+    private static final String[] PAIRS_SQL = {
+        "SELECT user_id, book_id FROM borrowed_books",
+        "SELECT user_id, book_id FROM loan_archive"
+    };
+    private static final int[] NONE = new int[0];
+
+    private final LibraryDataAccess data;
+    private final int neighbourCount;
+    private final int minTogether;
+    private final int maxBooksPerUser;
+    private final int threads;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "library-recommend");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private IntObjectMap<Neighbours> rows = new IntObjectMap<>();
+
+    // Only touched on the worker thread
+    private IntObjectMap<int[]> booksOf = new IntObjectMap<>();
+    private IntObjectMap<int[]> usersOf = new IntObjectMap<>();
+    private IntObjectMap<Boolean> dirty = new IntObjectMap<>();
+    private RowBuilder builder;
+    private boolean recomputeQueued;
+
+    // A book's best neighbours, best first
+    static final class Neighbours {
+        final int[] ids;
+        final float[] scores;
+
+        Neighbours(int[] ids, float[] scores) {
+            this.ids = ids;
+            this.scores = scores;
+        }
+    }
+
+    BorrowedTogether(LibraryDataAccess data, LibraryConfig config) {
+        this(data, config.getInt("recommend.neighbours", 10), config.getInt("recommend.minTogether", 2),
+            config.getInt("recommend.maxBooksPerUser", 500),
+            config.getInt("recommend.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    BorrowedTogether(LibraryDataAccess data, int neighbours, int minTogether, int maxBooksPerUser, int threads) {
+        this.data = data;
+        this.neighbourCount = neighbours;
+        this.minTogether = minTogether;
+        this.maxBooksPerUser = maxBooksPerUser;
+        this.threads = Math.max(1, threads);
+    }
+
+    // Starts following new loans and rebuilds from the history; completes
+    // with the number of loans read
+    CompletableFuture<Integer> start() {
+        data.catalog().addListener(CatalogChange.Table.LOANS, this);
+        return rebuild();
+    }
+
+    void stop() {
+        worker.shutdownNow();
+    }
+
+    // Up to limit books borrowed together with this one, best first
+    int[] related(int bookId, int limit) {
+        lock.readLock().lock();
+        try {
+            Neighbours row = rows.get(bookId);
+            return row == null ? NONE : Arrays.copyOf(row.ids, Math.min(limit, row.ids.length));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    Neighbours neighbours(int bookId) {
+        lock.readLock().lock();
+        try {
+            return rows.get(bookId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Books with at least one neighbour
+    int books() {
+        lock.readLock().lock();
+        try {
+            return rows.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Reads the whole history again and replaces every book's neighbours.
+    // Loans recorded meanwhile queue behind it and are added after.
+    CompletableFuture<Integer> rebuild() {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                Pairs pairs = data.submit(null, "readBorrowedPairs", this::readPairs).get();
+                build(pairs);
+                done.complete(pairs.count);
+            } catch (ExecutionException e) {
+                done.completeExceptionally(e.getCause());
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    // Completes once the loans heard so far are added and their rows worked
+    // out: the recompute they queue runs before the second task queued here
+    CompletableFuture<Void> flush() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        execute(() -> execute(() -> done.complete(null)));
+        return done;
+    }
+
+    @Override
+    public void catalogChanged(CatalogChange change) {
+        if (change.kind == CatalogChange.Kind.INSERTED) {
+            Loan loan = (Loan) change.record;
+            execute(() -> borrowed(loan.userId, loan.bookId));
+        } else if (change.kind == CatalogChange.Kind.RELOAD) {
+            rebuild().exceptionally(e -> {
+                LibraryMetrics.report("Working out related books failed", e);
+                return null;
+            });
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    Pairs readPairs(SqlSession session) throws SQLException {
+        Pairs pairs = new Pairs();
+        Statement stmt = session.statement();
+        stmt.setFetchSize(data.backend().streamingFetchSize(1000));
+        for (String sql : PAIRS_SQL) {
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    session.checkCancelled();
+                    pairs.add(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        return pairs;
+    }
+
+    // Groups the pairs by user and by book, then works out every book's
+    // neighbours in stripes; runs on the worker, or the benchmark's thread
+    void build(Pairs pairs) throws InterruptedException, ExecutionException {
+        IntObjectMap<int[]> byUser = group(pairs.users, pairs.books, pairs.count, pairs.maxUser);
+        IntObjectMap<int[]> byBook = group(pairs.books, pairs.users, pairs.count, pairs.maxBook);
+        int[] bookIds = new int[byBook.size()];
+        int[] filled = {0};
+        byBook.forEach((id, users) -> bookIds[filled[0]++] = id);
+
+        Neighbours[] built = new Neighbours[bookIds.length];
+        List<Callable<Void>> stripes = new ArrayList<>();
+        for (int s = 0; s < threads; s++) {
+            int stripe = s;
+            stripes.add(() -> {
+                RowBuilder rowBuilder = new RowBuilder(pairs.maxBook);
+                for (int i = stripe; i < bookIds.length; i += threads) {
+                    built[i] = rowBuilder.row(bookIds[i], byUser, byBook);
+                }
+                return null;
+            });
+        }
+        ForkJoinPool forkJoin = new ForkJoinPool(threads);
+        try {
+            for (Future<Void> stripe : forkJoin.invokeAll(stripes)) {
+                stripe.get();
+            }
+        } finally {
+            forkJoin.shutdown();
+        }
+
+        IntObjectMap<Neighbours> fresh = new IntObjectMap<>(bookIds.length);
+        for (int i = 0; i < bookIds.length; i++) {
+            if (built[i] != null) {
+                fresh.put(bookIds[i], built[i]);
+            }
+        }
+        booksOf = byUser;
+        usersOf = byBook;
+        dirty = new IntObjectMap<>();
+        builder = new RowBuilder(pairs.maxBook);
+        lock.writeLock().lock();
+        try {
+            rows = fresh;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // values grouped by key, each group sorted without repeats
+    private static IntObjectMap<int[]> group(int[] keys, int[] values, int count, int maxKey) {
+        int[] start = new int[maxKey + 2];
+        for (int i = 0; i < count; i++) {
+            start[keys[i] + 1]++;
+        }
+        int groups = 0;
+        for (int key = 0; key <= maxKey; key++) {
+            if (start[key + 1] > 0) {
+                groups++;
+            }
+            start[key + 1] += start[key];
+        }
+        int[] sorted = new int[count];
+        int[] next = Arrays.copyOf(start, maxKey + 1);
+        for (int i = 0; i < count; i++) {
+            sorted[next[keys[i]]++] = values[i];
+        }
+        IntObjectMap<int[]> grouped = new IntObjectMap<>(groups);
+        for (int key = 0; key <= maxKey; key++) {
+            if (start[key] == start[key + 1]) {
+                continue;
+            }
+            Arrays.sort(sorted, start[key], start[key + 1]);
+            int distinct = 0;
+            int[] group = new int[start[key + 1] - start[key]];
+            for (int i = start[key]; i < start[key + 1]; i++) {
+                if (distinct == 0 || group[distinct - 1] != sorted[i]) {
+                    group[distinct++] = sorted[i];
+                }
+            }
+            grouped.put(key, distinct == group.length ? group : Arrays.copyOf(group, distinct));
+        }
+        return grouped;
+    }
+
+    // A new loan's pair; only the first loan of a book by a user changes anything
+    private void borrowed(int userId, int bookId) {
+        int[] before = booksOf.get(userId);
+        int[] after = insert(before, bookId);
+        if (after == before) {
+            return;
+        }
+        booksOf.put(userId, after);
+        usersOf.put(bookId, insert(usersOf.get(bookId), userId));
+        dirty.put(bookId, Boolean.TRUE);
+        if (before != null && before.length <= maxBooksPerUser) {
+            for (int other : after) {
+                dirty.put(other, Boolean.TRUE);
+            }
+        }
+        if (!recomputeQueued) {
+            recomputeQueued = true;
+            execute(this::recompute);
+        }
+    }
+
+    // The rows marked since the last time, after the loans queued before it
+    private void recompute() {
+        recomputeQueued = false;
+        int[] ids = new int[dirty.size()];
+        int[] filled = {0};
+        dirty.forEach((id, marked) -> ids[filled[0]++] = id);
+        dirty.clear();
+        int maxId = 0;
+        for (int id : ids) {
+            maxId = Math.max(maxId, id);
+        }
+        if (builder == null || builder.together.length <= maxId) {
+            builder = new RowBuilder(Math.max(maxId, builder == null ? 0 : builder.together.length * 2));
+        }
+        Neighbours[] updated = new Neighbours[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            updated[i] = builder.row(ids[i], booksOf, usersOf);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                if (updated[i] == null) {
+                    rows.remove(ids[i]);
+                } else {
+                    rows.put(ids[i], updated[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // sorted with value put in its place; the same array if it was there
+    private static int[] insert(int[] sorted, int value) {
+        if (sorted == null) {
+            return new int[]{value};
+        }
+        int at = Arrays.binarySearch(sorted, value);
+        if (at >= 0) {
+            return sorted;
+        }
+        at = -at - 1;
+        int[] grown = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, grown, 0, at);
+        grown[at] = value;
+        System.arraycopy(sorted, at, grown, at + 1, sorted.length - at);
+        return grown;
+    }
+
+    // Works out one book's neighbours at a time. Users in common are counted
+    // into together by book ID; the books counted are listed in touched, so
+    // only they are read and cleared afterwards.
+    private final class RowBuilder {
+        final int[] together;
+        private int[] touched = new int[256];
+        private final int[] ids = new int[neighbourCount];
+        private final float[] scores = new float[neighbourCount];
+
+        RowBuilder(int maxBookId) {
+            together = new int[maxBookId + 1];
+        }
+
+        Neighbours row(int bookId, IntObjectMap<int[]> byUser, IntObjectMap<int[]> byBook) {
+            int[] borrowers = byBook.get(bookId);
+            if (borrowers == null) {
+                return null;
+            }
+            int counted = 0;
+            for (int user : borrowers) {
+                int[] borrowed = byUser.get(user);
+                if (borrowed.length > maxBooksPerUser) {
+                    continue;
+                }
+                for (int other : borrowed) {
+                    if (other != bookId && together[other]++ == 0) {
+                        if (counted == touched.length) {
+                            touched = Arrays.copyOf(touched, counted * 2);
+                        }
+                        touched[counted++] = other;
+                    }
+                }
+            }
+
+            // Kept best first by insertion; ties go to the lower book ID
+            int kept = 0;
+            for (int i = 0; i < counted; i++) {
+                int other = touched[i];
+                int common = together[other];
+                together[other] = 0;
+                if (common < minTogether) {
+                    continue;
+                }
+                float score = (float) (common / Math.sqrt((double) borrowers.length * byBook.get(other).length));
+                if (kept == neighbourCount && !better(score, other, scores[kept - 1], ids[kept - 1])) {
+                    continue;
+                }
+                int at = kept < neighbourCount ? kept++ : kept - 1;
+                while (at > 0 && better(score, other, scores[at - 1], ids[at - 1])) {
+                    ids[at] = ids[at - 1];
+                    scores[at] = scores[at - 1];
+                    at--;
+                }
+                ids[at] = other;
+                scores[at] = score;
+            }
+            return kept == 0 ? null : new Neighbours(Arrays.copyOf(ids, kept), Arrays.copyOf(scores, kept));
+        }
+
+        private boolean better(float score, int id, float thanScore, int thanId) {
+            return score > thanScore || score == thanScore && id < thanId;
+        }
+    }
+
+    // (user_id, book_id) pairs as read, in two growing int arrays
+    static final class Pairs {
+        int[] users = new int[1 << 16];
+        int[] books = new int[1 << 16];
+        int count;
+        int maxUser;
+        int maxBook;
+
+        void add(int userId, int bookId) {
+            if (userId <= 0 || bookId <= 0) {
+                return;
+            }
+            if (count == users.length) {
+                users = Arrays.copyOf(users, count * 2);
+                books = Arrays.copyOf(books, count * 2);
+            }
+            users[count] = userId;
+            books[count] = bookId;
+            count++;
+            maxUser = Math.max(maxUser, userId);
+            maxBook = Math.max(maxBook, bookId);
+        }
+    }
+}
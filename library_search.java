@@ -0,0 +1,878 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.sql.*;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+// Inverted index over a few text fields per row. Terms are case and accent
+// folded; every query term matches as a prefix and all must match. Hits are
+// ranked by field weight, with whole-word matches above prefix matches.
+class SearchIndex {
+    private static final int MAGIC = 0x4C4D5349;   // "LMSI"
+    private static final int VERSION = 3;
+    private static final int SEQ_OFFSET = 8;
+
+    private final float[] fieldWeights;
+    private final NavigableMap<String, Postings> terms = new TreeMap<>();
+    private final IntObjectMap<DocTerms> docTerms = new IntObjectMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long version;
+    // The change log position the index is current to; saved with it
+    long seq;
+
+    SearchIndex(float... fieldWeights) {
+        this.fieldWeights = fieldWeights;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return docTerms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Changes whenever a row is indexed or removed
+    long version() {
+        return version;
+    }
+
+    int maxId() {
+        lock.readLock().lock();
+        try {
+            int[] max = {0};
+            docTerms.forEach((doc, tokens) -> max[0] = Math.max(max[0], doc));
+            return max[0];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Indexes (or re-indexes) a row; fields line up with the weights given at construction
+    void put(int id, String... fields) {
+        Map<String, Float> weights = new TreeMap<>();
+        for (int f = 0; f < fields.length; f++) {
+            for (String token : tokenize(fields[f])) {
+                Float w = weights.get(token);
+                if (w == null || w < fieldWeights[f]) {
+                    weights.put(token, fieldWeights[f]);
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            DocTerms doc = new DocTerms(weights.size());
+            for (Map.Entry<String, Float> e : weights.entrySet()) {
+                Postings postings = terms.get(e.getKey());
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(e.getKey(), postings);
+                }
+                postings.add(id, e.getValue());
+                doc.add(e.getKey(), e.getValue());
+            }
+            docTerms.put(id, doc);
+            version++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(int id) {
+        DocTerms doc = docTerms.remove(id);
+        if (doc == null) {
+            return;
+        }
+        for (int i = 0; i < doc.size; i++) {
+            Postings postings = terms.get(doc.tokens[i]);
+            if (postings != null && postings.remove(id) && postings.size == 0) {
+                terms.remove(doc.tokens[i]);
+            }
+        }
+        version++;
+    }
+
+    // The best matches, best first (ties by ascending ID). At most cap IDs are
+    // kept; the hits are complete when nothing past the cap matched.
+    SearchHits search(String query, int cap, BooleanSupplier cancelled) {
+        List<String> queryTerms = tokenize(query);
+        if (queryTerms.isEmpty()) {
+            return new SearchHits(new int[0], true, version);
+        }
+        lock.readLock().lock();
+        try {
+            long searchedVersion = version;
+            // Start from the most selective term so the candidate set stays small
+            queryTerms.sort((a, b) -> Long.compare(matchCount(a), matchCount(b)));
+            IntFloatMap scores = null;
+            for (String queryTerm : queryTerms) {
+                IntFloatMap previous = scores;
+                IntFloatMap termScores = new IntFloatMap(previous == null ? 64 : previous.size());
+                for (Map.Entry<String, Postings> e : prefixRange(queryTerm).entrySet()) {
+                    if (cancelled.getAsBoolean()) {
+                        throw new CancellationException();
+                    }
+                    float match = matchWeight(queryTerm, e.getKey());
+                    Postings postings = e.getValue();
+                    for (int i = 0; i < postings.size; i++) {
+                        int doc = postings.docs[i];
+                        if (previous == null || previous.containsKey(doc)) {
+                            termScores.putMax(doc, postings.weights[i] * match);
+                        }
+                    }
+                }
+                if (previous != null) {
+                    IntFloatMap combined = new IntFloatMap(termScores.size());
+                    termScores.forEach((doc, score) -> combined.putMax(doc, score + previous.get(doc)));
+                    termScores = combined;
+                }
+                scores = termScores;
+                if (scores.size() == 0) {
+                    break;
+                }
+            }
+            return new SearchHits(topN(scores, cap), scores.size() <= cap, searchedVersion);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Re-ranks earlier complete hits for a narrower query (see SearchHits.narrows)
+    // by checking each candidate's own terms instead of walking the postings.
+    SearchHits searchWithin(String query, SearchHits previous, int cap, BooleanSupplier cancelled) {
+        List<String> queryTerms = tokenize(query);
+        lock.readLock().lock();
+        try {
+            IntFloatMap scores = new IntFloatMap(previous.ids.length);
+            for (int k = 0; k < previous.ids.length; k++) {
+                if ((k & 1023) == 0 && cancelled.getAsBoolean()) {
+                    throw new CancellationException();
+                }
+                DocTerms doc = docTerms.get(previous.ids[k]);
+                if (doc == null) {
+                    continue;
+                }
+                float total = 0;
+                for (String queryTerm : queryTerms) {
+                    float best = 0;
+                    for (int i = 0; i < doc.size; i++) {
+                        if (doc.tokens[i].startsWith(queryTerm)) {
+                            best = Math.max(best, doc.weights[i] * matchWeight(queryTerm, doc.tokens[i]));
+                        }
+                    }
+                    if (best == 0) {
+                        total = 0;
+                        break;
+                    }
+                    total += best;
+                }
+                if (total > 0) {
+                    scores.putMax(previous.ids[k], total);
+                }
+            }
+            return new SearchHits(topN(scores, cap), previous.complete, version);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static float matchWeight(String queryTerm, String term) {
+        return term.length() == queryTerm.length() ? 1f : 0.5f * queryTerm.length() / term.length();
+    }
+
+    private long matchCount(String prefix) {
+        long count = 0;
+        for (Postings postings : prefixRange(prefix).values()) {
+            count += postings.size;
+        }
+        return count;
+    }
+
+    private NavigableMap<String, Postings> prefixRange(String prefix) {
+        return terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    // Scores are positive, so their float bits order like the floats; the low
+    // half orders ties by ascending ID.
+    private static int[] topN(IntFloatMap scores, int limit) {
+        int n = Math.min(limit, scores.size());
+        long[] heap = new long[n];
+        int[] size = {0};
+        scores.forEach((doc, score) -> {
+            long key = ((long) Float.floatToIntBits(score) << 32) | (0xffffffffL & (Integer.MAX_VALUE - doc));
+            if (size[0] < n) {
+                heap[size[0]++] = key;
+                siftUp(heap, size[0] - 1);
+            } else if (n > 0 && key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, n);
+            }
+        });
+        Arrays.sort(heap, 0, size[0]);
+        int[] ids = new int[size[0]];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.MAX_VALUE - (int) heap[ids.length - 1 - i];
+        }
+        return ids;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent] <= heap[i]) {
+                return;
+            }
+            long t = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = t;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[i] <= heap[child]) {
+                return;
+            }
+            long t = heap[child];
+            heap[child] = heap[i];
+            heap[i] = t;
+            i = child;
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String folded = fold(text);
+        StringBuilder digits = new StringBuilder();
+        int numberGroups = 0;
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = folded.substring(start, i);
+                tokens.add(token);
+                if (Character.isDigit(token.charAt(0))) {
+                    digits.append(token);
+                    numberGroups++;
+                }
+                start = -1;
+            }
+        }
+        // "978-0743273565" and "555-0101" are also findable without the dashes
+        if (numberGroups > 1) {
+            tokens.add(digits.toString());
+        }
+        return tokens;
+    }
+
+    static String fold(String text) {
+        String stripped = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+        // Letters that NFD does not decompose
+        return stripped.toLowerCase(Locale.ROOT)
+            .replace("\u00df", "ss").replace("\u00e6", "ae").replace("\u0153", "oe")
+            .replace('\u00f8', 'o').replace('\u0142', 'l').replace('\u0111', 'd');
+    }
+
+    // Format: magic, version, change log seq, then each term with its
+    // postings as delta-encoded doc IDs and weights, then the delta-encoded
+    // IDs of rows with no terms at all, which no postings list would bring
+    // back. Written to a temp file and moved into place so a crash never
+    // leaves a torn index.
+    void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> e : terms.entrySet()) {
+                out.writeUTF(e.getKey());
+                Postings postings = e.getValue();
+                writeVarInt(out, postings.size);
+                int last = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    writeVarInt(out, postings.docs[i] - last);
+                    last = postings.docs[i];
+                    out.writeFloat(postings.weights[i]);
+                }
+            }
+            int[] blank = new int[docTerms.size()];
+            int[] blankCount = {0};
+            docTerms.forEach((doc, tokens) -> {
+                if (tokens.size == 0) {
+                    blank[blankCount[0]++] = doc;
+                }
+            });
+            Arrays.sort(blank, 0, blankCount[0]);
+            writeVarInt(out, blankCount[0]);
+            int last = 0;
+            for (int i = 0; i < blankCount[0]; i++) {
+                writeVarInt(out, blank[i] - last);
+                last = blank[i];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Moves a saved index on to seq in place, for an index unchanged since it
+    // was saved. The seq sits in the file's first sector, so it is never torn.
+    static void saveSeq(Path file, long seq) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate(8).putLong(0, seq);
+            channel.write(bytes, SEQ_OFFSET);
+            channel.force(false);
+        }
+    }
+
+    static SearchIndex load(Path file, float... fieldWeights) throws IOException {
+        SearchIndex index = new SearchIndex(fieldWeights);
+        IntObjectMap<DocTerms> byDoc = index.docTerms;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported index file " + file);
+            }
+            index.seq = in.readLong();
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                int size = readVarInt(in);
+                Postings postings = new Postings(size);
+                int doc = 0;
+                for (int i = 0; i < size; i++) {
+                    doc += readVarInt(in);
+                    postings.docs[i] = doc;
+                    postings.weights[i] = in.readFloat();
+                    DocTerms docTerms = byDoc.get(doc);
+                    if (docTerms == null) {
+                        docTerms = new DocTerms(4);
+                        byDoc.put(doc, docTerms);
+                    }
+                    docTerms.add(term, postings.weights[i]);
+                }
+                postings.size = size;
+                index.terms.put(term, postings);
+            }
+            int blankCount = readVarInt(in);
+            int doc = 0;
+            for (int i = 0; i < blankCount; i++) {
+                doc += readVarInt(in);
+                byDoc.put(doc, new DocTerms(0));
+            }
+        }
+        return index;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // A row's distinct terms with their weights, for removal and re-ranking
+    private static final class DocTerms {
+        String[] tokens;
+        float[] weights;
+        int size;
+
+        DocTerms(int capacity) {
+            tokens = new String[Math.max(capacity, 1)];
+            weights = new float[tokens.length];
+        }
+
+        void add(String token, float weight) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            tokens[size] = token;
+            weights[size] = weight;
+            size++;
+        }
+    }
+
+    // Doc IDs in ascending order with a weight each
+    private static final class Postings {
+        int[] docs;
+        float[] weights;
+        int size;
+
+        Postings() {
+            this(2);
+        }
+
+        Postings(int capacity) {
+            docs = new int[Math.max(capacity, 2)];
+            weights = new float[docs.length];
+        }
+
+        void add(int doc, float weight) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0) {
+                weights[i] = weight;
+                return;
+            }
+            i = -i - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            System.arraycopy(docs, i, docs, i + 1, size - i);
+            System.arraycopy(weights, i, weights, i + 1, size - i);
+            docs[i] = doc;
+            weights[i] = weight;
+            size++;
+        }
+
+        boolean remove(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i < 0) {
+                return false;
+            }
+            System.arraycopy(docs, i + 1, docs, i, size - i - 1);
+            System.arraycopy(weights, i + 1, weights, i, size - i - 1);
+            size--;
+            return true;
+        }
+    }
+}
+
+class SearchHits {
+    final int[] ids;
+    final boolean complete;
+    final long version;
+
+    SearchHits(int[] ids, boolean complete, long version) {
+        this.ids = ids;
+        this.complete = complete;
+        this.version = version;
+    }
+
+    // With prefix matching on every term, hits for query can only be a subset
+    // of hits for earlier when each earlier term is a prefix of the term in the
+    // same position of query ("orw" -> "orwe", "geo" -> "geor orw").
+    static boolean narrows(List<String> earlier, List<String> query) {
+        if (earlier.size() > query.size()) {
+            return false;
+        }
+        for (int i = 0; i < earlier.size(); i++) {
+            if (!query.get(i).startsWith(earlier.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Recent query -> hits, least recently used first out. Entries from an older
+// index version are ignored.
+class SearchCache {
+    private final Map<List<String>, SearchHits> entries;
+
+    SearchCache(int capacity) {
+        entries = new LinkedHashMap<List<String>, SearchHits>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, SearchHits> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized SearchHits get(List<String> terms, long version) {
+        SearchHits hits = entries.get(terms);
+        return hits != null && hits.version == version ? hits : null;
+    }
+
+    // The smallest complete cached result that terms narrows, if any
+    synchronized SearchHits narrowable(List<String> terms, long version) {
+        SearchHits best = null;
+        for (Map.Entry<List<String>, SearchHits> e : entries.entrySet()) {
+            SearchHits hits = e.getValue();
+            if (hits.version == version && hits.complete && SearchHits.narrows(e.getKey(), terms) &&
+                    (best == null || hits.ids.length < best.ids.length)) {
+                best = hits;
+            }
+        }
+        return best;
+    }
+
+    synchronized void put(List<String> terms, SearchHits hits) {
+        entries.put(terms, hits);
+    }
+}
+
+// Keeps the book and user search indexes in step with the database. Indexes
+// are loaded from search.indexDir at startup and caught up by re-reading the
+// rows the change log shows changed since they were saved, other desks'
+// edits included. They are rebuilt in the background when the log no longer
+// reaches back that far, or the table's row count or highest ID still does
+// not match. Until an index is ready, searches fall back to SQL LIKE.
+class CatalogSearch {
+    private static final float[] BOOK_WEIGHTS = {3f, 2f, 1f};   // title, author, isbn
+    private static final float[] USER_WEIGHTS = {3f, 2f, 1f};   // name, email, phone
+    // A change is logged when its seq is handed out but read once it commits, so
+    // catching up reads back this far before the position an index was saved at
+    private static final long OVERLAP = 1000;
+    private static final int IN_LIST_SIZE = 500;
+    private static final String IN_LIST = String.join(", ", Collections.nCopies(IN_LIST_SIZE, "?"));
+
+    private final LibraryDataAccess dataAccess;
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "library-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Path bookFile, userFile;
+    private final int maxResults;
+    private final int narrowingCap;
+    private final SearchCache bookCache, userCache;
+    private final AtomicReference<CompletableFuture<PageSource>> bookSearch = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<PageSource>> userSearch = new AtomicReference<>();
+    private volatile SearchIndex books, users;
+    // Changes heard while an index is opening, applied once it is in place
+    private List<CatalogChange> heardBooks, heardUsers;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    // Set when the feed fell behind and reloaded: changes may have been missed
+    private final AtomicBoolean missed = new AtomicBoolean();
+
+    CatalogSearch(LibraryDataAccess dataAccess, LibraryConfig config) {
+        this.dataAccess = dataAccess;
+        Path dir = Paths.get(config.get("search.indexDir", "index"));
+        this.bookFile = dir.resolve("books.idx");
+        this.userFile = dir.resolve("users.idx");
+        this.maxResults = config.getInt("search.maxResults", 500);
+        this.narrowingCap = Math.max(maxResults, config.getInt("search.narrowingCap", 5000));
+        this.bookCache = new SearchCache(config.getInt("search.cacheSize", 64));
+        this.userCache = new SearchCache(config.getInt("search.cacheSize", 64));
+        dataAccess.catalog().addListener(CatalogChange.Table.BOOKS, this::bookChanged);
+        dataAccess.catalog().addListener(CatalogChange.Table.USERS, this::userChanged);
+    }
+
+    CompletableFuture<Void> open() {
+        synchronized (this) {
+            heardBooks = new ArrayList<>();
+            heardUsers = new ArrayList<>();
+        }
+        CompletableFuture<SearchIndex> bookIndex = dataAccess.submit(null, "openBookIndex", session ->
+            openIndex(session, bookFile, BOOK_WEIGHTS, CatalogChange.Table.BOOKS, "book_id",
+                "SELECT book_id, title, author, isbn FROM books")).whenComplete((index, e) -> {
+                    synchronized (this) {
+                        if (index != null) {
+                            heardBooks.forEach(change -> index(index, change));
+                            books = index;
+                        }
+                        heardBooks = null;
+                    }
+                });
+        CompletableFuture<SearchIndex> userIndex = dataAccess.submit(null, "openUserIndex", session ->
+            openIndex(session, userFile, USER_WEIGHTS, CatalogChange.Table.USERS, "user_id",
+                "SELECT user_id, name, email, phone FROM users")).whenComplete((index, e) -> {
+                    synchronized (this) {
+                        if (index != null) {
+                            heardUsers.forEach(change -> index(index, change));
+                            users = index;
+                        }
+                        heardUsers = null;
+                    }
+                });
+        return CompletableFuture.allOf(bookIndex, userIndex);
+    }
+
+    // A newer search of the same kind cancels this one
+    CompletableFuture<PageSource> searchBooks(String query) {
+        return run(bookSearch, cancelled -> bookSource(query, cancelled));
+    }
+
+    CompletableFuture<PageSource> searchUsers(String query) {
+        return run(userSearch, cancelled -> userSource(query, cancelled));
+    }
+
+    // For servers answering many clients at once: runs on the calling thread
+    // and neither cancels nor is cancelled by other searches
+    PageSource findBooks(String query) {
+        return bookSource(query, () -> false);
+    }
+
+    PageSource findUsers(String query) {
+        return userSource(query, () -> false);
+    }
+
+    private PageSource bookSource(String query, BooleanSupplier cancelled) {
+        SearchIndex index = books;
+        return index == null ? dataAccess.searchBookPages(query)
+            : dataAccess.bookIdPages(hits(index, bookCache, query, cancelled));
+    }
+
+    private PageSource userSource(String query, BooleanSupplier cancelled) {
+        SearchIndex index = users;
+        return index == null ? dataAccess.searchUserPages(query)
+            : dataAccess.userIdPages(hits(index, userCache, query, cancelled));
+    }
+
+    // Serves the query from the cache, by narrowing a cached broader query,
+    // or from the index, in that order.
+    private int[] hits(SearchIndex index, SearchCache cache, String query, BooleanSupplier cancelled) {
+        List<String> terms = SearchIndex.tokenize(query);
+        long version = index.version();
+        SearchHits hits = cache.get(terms, version);
+        if (hits == null) {
+            SearchHits broader = cache.narrowable(terms, version);
+            hits = broader != null
+                ? index.searchWithin(query, broader, narrowingCap, cancelled)
+                : index.search(query, narrowingCap, cancelled);
+            cache.put(terms, hits);
+        }
+        return hits.ids.length <= maxResults ? hits.ids : Arrays.copyOf(hits.ids, maxResults);
+    }
+
+    private CompletableFuture<PageSource> run(AtomicReference<CompletableFuture<PageSource>> latest,
+                                              Function<BooleanSupplier, PageSource> work) {
+        CompletableFuture<PageSource> future = new CompletableFuture<>();
+        CompletableFuture<PageSource> previous = latest.getAndSet(future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        searcher.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(work.apply(future::isCancelled));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // Keeps the indexes in step with committed writes; the records carry the
+    // new text, so nothing is read back
+    private void bookChanged(CatalogChange change) {
+        SearchIndex index = books;
+        if (index == null) {
+            synchronized (this) {
+                index = books;
+                if (index == null) {
+                    if (heardBooks != null) {
+                        heardBooks.add(change);
+                    }
+                    return;
+                }
+            }
+        }
+        index(index, change);
+    }
+
+    private void userChanged(CatalogChange change) {
+        SearchIndex index = users;
+        if (index == null) {
+            synchronized (this) {
+                index = users;
+                if (index == null) {
+                    if (heardUsers != null) {
+                        heardUsers.add(change);
+                    }
+                    return;
+                }
+            }
+        }
+        index(index, change);
+    }
+
+    private void index(SearchIndex index, CatalogChange change) {
+        if (change.kind == CatalogChange.Kind.RELOAD) {
+            missed.set(true);
+            return;
+        }
+        if (change.record instanceof Book) {
+            Book book = (Book) change.record;
+            index.put(book.id, book.title, book.author, book.isbn);
+        } else if (change.record instanceof User) {
+            User user = (User) change.record;
+            index.put(user.id, user.name, user.email, user.phone);
+        } else {
+            index.remove(change.id);
+        }
+        dirty.set(true);
+    }
+
+    // Writes the indexes back if anything changed since they were loaded, as
+    // current to position: every change logged at or below it has reached
+    // them. Otherwise only the saved position moves on. After the feed has
+    // had to reload, the indexes keep the position they opened at, so the
+    // next start reads back over what may have been missed.
+    void save(long position) {
+        boolean changed = dirty.getAndSet(false);
+        if (missed.get()) {
+            position = 0;
+        }
+        try {
+            save(books, bookFile, position, changed);
+            save(users, userFile, position, changed);
+        } catch (IOException e) {
+            LibraryMetrics.report("Saving the search indexes failed", e);
+        }
+    }
+
+    private static void save(SearchIndex index, Path file, long position, boolean changed) throws IOException {
+        if (index == null) {
+            return;
+        }
+        index.seq = Math.max(index.seq, position);
+        if (changed || !Files.exists(file)) {
+            index.save(file);
+        } else {
+            SearchIndex.saveSeq(file, index.seq);
+        }
+    }
+
+    private SearchIndex openIndex(SqlSession session, Path file, float[] weights, CatalogChange.Table logged,
+                                  String key, String select) throws SQLException {
+        long minSeq, maxSeq;
+        try (ResultSet rs = session.statement().executeQuery(
+                "SELECT COALESCE(MIN(seq), 0), COALESCE(MAX(seq), 0) FROM change_log")) {
+            rs.next();
+            minSeq = rs.getLong(1);
+            maxSeq = rs.getLong(2);
+        }
+        int count, maxId;
+        try (ResultSet rs = session.statement().executeQuery("SELECT COUNT(*), COALESCE(MAX(" + key + "), 0) FROM " +
+                logged.name().toLowerCase(Locale.ROOT))) {
+            rs.next();
+            count = rs.getInt(1);
+            maxId = rs.getInt(2);
+        }
+        if (Files.exists(file)) {
+            try {
+                SearchIndex index = SearchIndex.load(file, weights);
+                long from = Math.max(0, index.seq - OVERLAP);
+                // A log behind the index belongs to a restored or different database
+                if (maxSeq >= index.seq && (minSeq == 0 || minSeq <= from + 1)) {
+                    if (catchUp(session, index, logged, key, select, from) > 0) {
+                        dirty.set(true);
+                    }
+                    if (index.size() == count && index.maxId() == maxId) {
+                        index.seq = maxSeq;
+                        return index;
+                    }
+                }
+            } catch (IOException e) {
+                LibraryMetrics.report("Loading a saved search index failed", e);
+            }
+        }
+
+        SearchIndex index = new SearchIndex(weights);
+        index.seq = maxSeq;
+        Statement stmt = session.statement();
+        stmt.setFetchSize(1000);
+        try (ResultSet rs = stmt.executeQuery(select)) {
+            while (rs.next()) {
+                session.checkCancelled();
+                index.put(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+            }
+        }
+        try {
+            index.save(file);
+        } catch (IOException e) {
+            LibraryMetrics.report("Saving a new search index failed", e);
+            dirty.set(true);
+        }
+        return index;
+    }
+
+    // Indexes the rows logged as changed after seq from as they are now, and
+    // drops those no longer there. Returns how many rows were logged.
+    private static int catchUp(SqlSession session, SearchIndex index, CatalogChange.Table logged,
+                               String key, String select, long from) throws SQLException {
+        PreparedStatement pstmt = session.prepare(
+            "SELECT DISTINCT row_id FROM change_log WHERE seq > ? AND table_name = ?");
+        pstmt.setLong(1, from);
+        pstmt.setString(2, logged.name());
+        List<Integer> ids = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        }
+        for (int start = 0; start < ids.size(); start += IN_LIST_SIZE) {
+            List<Integer> part = ids.subList(start, Math.min(ids.size(), start + IN_LIST_SIZE));
+            // Padded with the last ID so each table's chunks share one cached statement
+            PreparedStatement read = session.prepare(select + " WHERE " + key + " IN (" + IN_LIST + ")");
+            for (int i = 0; i < IN_LIST_SIZE; i++) {
+                read.setInt(i + 1, part.get(Math.min(i, part.size() - 1)));
+            }
+            for (int id : part) {
+                index.remove(id);
+            }
+            try (ResultSet rs = read.executeQuery()) {
+                while (rs.next()) {
+                    index.put(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+                }
+            }
+        }
+        return ids.size();
+    }
+}
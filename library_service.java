@@ -0,0 +1,186 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// The library with no user interface attached: storage, record cache, change
+// feed and search wired together from config. The desk app and the HTTP API
+// are both clients of one of these, so they share its rules and its caches.
+// Its metrics are published over JMX unless metrics.jmx is false. With
+// journal.enabled, desk checkouts and returns go through a LoanJournal on this
+// machine (see DeskLoans).
+class LibraryService {
+    private final LibraryConfig config;
+    private final LibraryDataAccess data;
+    private final CatalogSearch search;
+    private final ChangeFeed feed;
+    private final OverdueTracker overdue;
+    private final HoldQueues holds;
+    private final LoanArchiver archiver;
+    private final BorrowedTogether related;
+    private final JournalReplayer replayer;
+    private final DeskLoans desk;
+    private ObjectName metricsName;
+    private boolean replayerStarted;
+
+    LibraryService(LibraryConfig config) {
+        this.config = config;
+        this.data = new LibraryDataAccess(new ConnectionPool(config, StorageBackend.fromConfig(config)),
+            new CatalogCache(config.getInt("cache.maxRecords", 100000)));
+        this.search = new CatalogSearch(data, config);
+        this.feed = new ChangeFeed(data, config);
+        this.overdue = new OverdueTracker(data, config);
+        data.setBorrowingBlocked(overdue::blocks);
+        data.setOpenLoans(overdue);
+        this.holds = new HoldQueues(data, config);
+        this.archiver = new LoanArchiver(data, config);
+        this.related = new BorrowedTogether(data, config);
+        LoanJournal journal = null;
+        if (Boolean.parseBoolean(config.get("journal.enabled", "false"))) {
+            try {
+                journal = LoanJournal.open(Paths.get(config.get("journal.file", "desk-journal.dat")),
+                    config.getInt("journal.sizeMB", 16) << 20);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.replayer = journal == null ? null : new JournalReplayer(data, journal, config);
+        this.desk = new DeskLoans(data, journal, replayer, overdue::blocks);
+    }
+
+    // Brings the schema up to date and starts following other clients'
+    // changes; completes once lists can be read. The search indexes open in
+    // the background, and searches go to the database until they are ready.
+    // Open loans load for the overdue tracker in the background too; until
+    // they have, nobody is blocked from borrowing. Hold queues load alongside,
+    // and the books borrowed together are worked out from the loan history.
+    // Archiving old returned loans starts its interval. The journal replayer
+    // starts first and keeps trying, so a desk that cannot reach the database
+    // still takes checkouts and returns; start() can be called again once it
+    // can.
+    CompletableFuture<Void> start() {
+        if (replayer != null && !replayerStarted) {
+            replayerStarted = true;
+            replayer.start();
+        }
+        if (metricsName == null && Boolean.parseBoolean(config.get("metrics.jmx", "true"))) {
+            try {
+                metricsName = MetricsMBean.register(data.metrics(), data.origin());
+            } catch (JMException e) {
+                LibraryMetrics.report("Registering metrics with JMX failed", e);
+            }
+        }
+        return data.migrateSchema().thenCompose(version -> feed.start()).thenRun(() -> {
+            search.open().exceptionally(e -> {
+                LibraryMetrics.report("Opening the search indexes failed", e);
+                return null;
+            });
+            overdue.start().exceptionally(e -> {
+                LibraryMetrics.report("Loading open loans failed", e);
+                return null;
+            });
+            holds.start().exceptionally(e -> {
+                LibraryMetrics.report("Loading hold queues failed", e);
+                return null;
+            });
+            related.start().exceptionally(e -> {
+                LibraryMetrics.report("Working out related books failed", e);
+                return null;
+            });
+            archiver.start();
+        });
+    }
+
+    void stop() {
+        feed.stop();
+        overdue.stop();
+        holds.stop();
+        archiver.stop();
+        related.stop();
+        if (replayer != null) {
+            replayer.stop();
+        }
+        try {
+            desk.close();
+        } catch (IOException e) {
+            LibraryMetrics.report("Closing the desk journal failed", e);
+        }
+        saveSearch();
+        data.shutdown();
+        if (metricsName != null) {
+            MetricsMBean.unregister(metricsName);
+        }
+    }
+
+    // Writes the search indexes back, as current to the change feed's position
+    void saveSearch() {
+        search.save(feed.position());
+    }
+
+    LibraryConfig config() {
+        return config;
+    }
+
+    LibraryDataAccess data() {
+        return data;
+    }
+
+    CatalogSearch search() {
+        return search;
+    }
+
+    BorrowedTogether related() {
+        return related;
+    }
+
+    OverdueTracker overdue() {
+        return overdue;
+    }
+
+    HoldQueues holds() {
+        return holds;
+    }
+
+    DeskLoans desk() {
+        return desk;
+    }
+
+    // One page of a list with the list's total size, read in one round trip
+    CompletableFuture<Page> page(PageSource source, int offset, int limit) {
+        return data.submit(null, "page", session ->
+            new Page(source.count(session), source.page(session, offset, null, limit)));
+    }
+
+    // One "bookId" or "bookId, userId" per line; lines without a user ID use defaultUserId
+    static List<LoanRequest> parseLoanRequests(String text, String defaultUserId) {
+        List<LoanRequest> items = new ArrayList<>();
+        for (String line : text.split("\\R")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s*,\\s*");
+            int bookId = Integer.parseInt(parts[0]);
+            int userId = Integer.parseInt(parts.length > 1 ? parts[1] : defaultUserId.trim());
+            items.add(new LoanRequest(bookId, userId));
+        }
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("No items entered");
+        }
+        return items;
+    }
+}
+
+class Page {
+    final int total;
+    final List<Object[]> rows;
+
+    Page(int total, List<Object[]> rows) {
+        this.total = total;
+        this.rows = rows;
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+// The books table as of one change log position, kept in a file on this
+// machine so the Books tab has rows to show as soon as the window opens,
+// before the database has answered or while it cannot be reached. The file is
+// memory-mapped and read in place: a page is decoded from the mapping when the
+// table asks for it, so opening costs the same at 10k books as at 1M.
+//
+// Format: header (magic, version, row count, change log seq, index offset),
+// then each row's quantities and its title, author and ISBN as length-prefixed
+// UTF-8, then the index: (book_id, row offset) pairs in book_id order.
+//
+// Each sync writes a new generation, file.1, file.2 and so on, through a temp
+// file moved into place, and switches to it; a file still mapped is never
+// replaced, which Windows would refuse. Older generations are deleted once
+// the newest is open. Where a mapping keeps one from being deleted (Windows,
+// until the mapping is collected), it is tried again after the next sync.
+final class BookSnapshot {
+    private static final int MAGIC = 0x4C4D5342;   // "LMSB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int NULL_TEXT = 0xFFFF;
+    // A change is logged when its seq is handed out but read once it commits, so
+    // a sync reads back this far before the position it last saw
+    private static final long OVERLAP = 1000;
+    private static final int IN_LIST_SIZE = 500;
+    private static final String IN_LIST = String.join(",", Collections.nCopies(IN_LIST_SIZE, "?"));
+    private static final String SELECT =
+        "SELECT book_id, title, author, isbn, total_quantity, available_quantity FROM books";
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long seq;
+    private final int indexOffset;
+    private final Path path;
+
+    private BookSnapshot(ByteBuffer buffer, int count, long seq, int indexOffset, Path path) {
+        this.buffer = buffer;
+        this.count = count;
+        this.seq = seq;
+        this.indexOffset = indexOffset;
+        this.path = path;
+    }
+
+    // The newest snapshot for file, or null if there is none yet
+    static BookSnapshot open(Path file) throws IOException {
+        List<Long> generations = generations(file);
+        if (generations.isEmpty()) {
+            return null;
+        }
+        long newest = generations.get(generations.size() - 1);
+        Path path = generation(file, newest);
+        BookSnapshot snapshot;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Unsupported snapshot file " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int count = buffer.getInt(8);
+            int indexOffset = buffer.getInt(24);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+                    indexOffset < HEADER_SIZE || (long) indexOffset + 8L * count != size) {
+                throw new IOException("Unsupported snapshot file " + path);
+            }
+            snapshot = new BookSnapshot(buffer, count, buffer.getLong(16), indexOffset, path);
+        }
+        for (long older : generations.subList(0, generations.size() - 1)) {
+            try {
+                Files.deleteIfExists(generation(file, older));
+            } catch (IOException e) {
+                // Still mapped; gone after a later sync
+            }
+        }
+        return snapshot;
+    }
+
+    // The file holding a generation of the snapshot; 0 is file itself, as
+    // written before there were generations
+    private static Path generation(Path file, long generation) {
+        return generation == 0 ? file : file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    // The generations of file on disk, oldest first
+    private static List<Long> generations(Path file) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        if (Files.exists(file)) {
+            generations.add(0L);
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) {
+            return generations;
+        }
+        String prefix = file.getFileName() + ".";
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir,
+                path -> path.getFileName().toString().startsWith(prefix))) {
+            for (Path path : paths) {
+                String suffix = path.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.length() < 19 && suffix.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    generations.add(Long.parseLong(suffix));
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    int count() {
+        return count;
+    }
+
+    // The generation file the rows are read from
+    Path path() {
+        return path;
+    }
+
+    // The change log position the rows are as of
+    long seq() {
+        return seq;
+    }
+
+    private int id(int index) {
+        return buffer.getInt(indexOffset + 8 * index);
+    }
+
+    private int offset(int index) {
+        return buffer.getInt(indexOffset + 8 * index + 4);
+    }
+
+    // The row at index in book_id order, as Book.toRow() gives it
+    Object[] row(int index) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset(index));
+        int total = in.getInt();
+        int available = in.getInt();
+        return new Object[]{id(index), readText(in), readText(in), readText(in), total, available};
+    }
+
+    private static String readText(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_TEXT) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The book's row as of the last sync, or null
+    Object[] book(int id) {
+        int index = search(id);
+        return index < 0 ? null : row(index);
+    }
+
+    // Whether the snapshot already has this row (null: has no book with this ID)
+    private boolean holds(int id, Object[] row) {
+        return Arrays.equals(book(id), row);
+    }
+
+    // Where the row at index ends, so unchanged rows are copied as they are
+    private int end(int index) {
+        int position = offset(index) + 8;
+        for (int i = 0; i < 3; i++) {
+            int length = buffer.getShort(position) & 0xFFFF;
+            position += 2 + (length == NULL_TEXT ? 0 : length);
+        }
+        return position;
+    }
+
+    // The rows for the Books tab. They come from the mapping, so the table
+    // reads them on the spot rather than from a database worker.
+    PageSource pages() {
+        return new PageSource() {
+            @Override
+            public boolean local() {
+                return true;
+            }
+
+            @Override
+            public int count(SqlSession session) {
+                return count;
+            }
+
+            @Override
+            public List<Object[]> page(SqlSession session, int offset, Integer afterKey, int limit) {
+                int end = Math.min(count, offset + limit);
+                List<Object[]> rows = new ArrayList<>(Math.max(0, end - offset));
+                for (int i = offset; i < end; i++) {
+                    rows.add(row(i));
+                }
+                return rows;
+            }
+
+            // Keys are auto-increment, so a new row sorts last
+            @Override
+            public boolean appendsInserts() {
+                return true;
+            }
+        };
+    }
+
+    // Brings the snapshot in file up to the database and returns it, reopened.
+    // From current, only the books changed since its position are read, and
+    // the rest copied across; without one, or once the change log has been
+    // pruned past it, every book is read. When the books read are as current
+    // has them, the file is left as it is.
+    static CompletableFuture<BookSnapshot> sync(LibraryDataAccess dataAccess, Path file, BookSnapshot current) {
+        return dataAccess.submit(null, "syncSnapshot", session -> {
+            long minSeq, maxSeq;
+            try (ResultSet rs = session.statement().executeQuery(
+                    "SELECT COALESCE(MIN(seq), 0), COALESCE(MAX(seq), 0) FROM change_log")) {
+                rs.next();
+                minSeq = rs.getLong(1);
+                maxSeq = rs.getLong(2);
+            }
+            long from = current == null ? 0 : Math.max(0, current.seq - OVERLAP);
+            // A log behind the snapshot belongs to a restored or different database
+            boolean delta = current != null && maxSeq >= current.seq && (minSeq == 0 || minSeq <= from + 1);
+            try {
+                List<Long> generations = generations(file);
+                long next = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+                if (delta) {
+                    TreeMap<Integer, Object[]> changed = changedBooks(session, from);
+                    changed.entrySet().removeIf(e -> current.holds(e.getKey(), e.getValue()));
+                    if (changed.isEmpty()) {
+                        return current;
+                    }
+                    try (Writer writer = new Writer(file, next)) {
+                        current.merge(changed, writer);
+                        writer.finish(maxSeq);
+                    }
+                } else {
+                    try (Writer writer = new Writer(file, next)) {
+                        Statement stmt = session.statement();
+                        stmt.setFetchSize(dataAccess.backend().streamingFetchSize(1000));
+                        try (ResultSet rs = stmt.executeQuery(SELECT + " ORDER BY book_id")) {
+                            while (rs.next()) {
+                                writer.add(Book.from(rs).toRow());
+                            }
+                        }
+                        writer.finish(maxSeq);
+                    }
+                }
+                return open(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // The books logged as changed after seq from, read as they are now; a
+    // book no longer there maps to null
+    private static TreeMap<Integer, Object[]> changedBooks(SqlSession session, long from) throws SQLException {
+        TreeMap<Integer, Object[]> changed = new TreeMap<>();
+        PreparedStatement pstmt = session.prepare(
+            "SELECT DISTINCT row_id FROM change_log WHERE seq > ? AND table_name = ?");
+        pstmt.setLong(1, from);
+        pstmt.setString(2, CatalogChange.Table.BOOKS.name());
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                changed.put(rs.getInt(1), null);
+            }
+        }
+        Integer[] ids = changed.keySet().toArray(new Integer[0]);
+        for (int start = 0; start < ids.length; start += IN_LIST_SIZE) {
+            int end = Math.min(ids.length, start + IN_LIST_SIZE);
+            // Padded with the last ID so every chunk is the one cached statement
+            PreparedStatement read = session.prepare(SELECT + " WHERE book_id IN (" + IN_LIST + ")");
+            for (int i = 0; i < IN_LIST_SIZE; i++) {
+                read.setInt(i + 1, ids[Math.min(start + i, end - 1)]);
+            }
+            try (ResultSet rs = read.executeQuery()) {
+                while (rs.next()) {
+                    Object[] row = Book.from(rs).toRow();
+                    changed.put((Integer) row[0], row);
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Writes these rows with the changed ones put in, in book_id order. The
+    // unchanged rows between two changes are copied across in one piece.
+    private void merge(TreeMap<Integer, Object[]> changed, Writer writer) throws IOException {
+        int copied = 0;
+        for (Map.Entry<Integer, Object[]> entry : changed.entrySet()) {
+            int at = search(entry.getKey());
+            int before = at < 0 ? -at - 1 : at;
+            writer.copy(this, copied, before);
+            if (entry.getValue() != null) {
+                writer.add(entry.getValue());
+            }
+            copied = at < 0 ? before : at + 1;
+        }
+        writer.copy(this, copied, count);
+    }
+
+    // Index of the row with this book_id, or -(insertion point) - 1
+    private int search(int id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = id(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    // Rows go in book_id order; finish() writes the index and header and
+    // moves the file into place as the given generation. Closing without
+    // finishing leaves the generations there are.
+    private static final class Writer implements Closeable {
+        private final Path file, tmp;
+        private final DataOutputStream out;
+        private int[] ids = new int[1024];
+        private int[] offsets = new int[1024];
+        private int count;
+        private boolean finished;
+
+        Writer(Path file, long generation) throws IOException {
+            this.file = generation(file, generation);
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Path dir = file.toAbsolutePath().getParent();
+            if (dir != null) {
+                Files.createDirectories(dir);
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        void add(Object[] row) throws IOException {
+            begin((Integer) row[0]);
+            out.writeInt((Integer) row[4]);
+            out.writeInt((Integer) row[5]);
+            writeText((String) row[1]);
+            writeText((String) row[2]);
+            writeText((String) row[3]);
+        }
+
+        // Rows first to last (exclusive) of from, which lie end to end in its file
+        void copy(BookSnapshot from, int first, int last) throws IOException {
+            if (first >= last) {
+                return;
+            }
+            int start = from.offset(first);
+            int end = from.end(last - 1);
+            if (out.size() > Integer.MAX_VALUE - (1 << 20) - (end - start)) {
+                throw new IOException("Too many books for a snapshot file");
+            }
+            int shift = out.size() - start;
+            for (int i = first; i < last; i++) {
+                begin(from.id(i));
+                offsets[count - 1] = from.offset(i) + shift;
+            }
+            ByteBuffer rows = from.buffer.duplicate();
+            rows.position(start);
+            rows.limit(end);
+            byte[] chunk = new byte[1 << 16];
+            while (rows.hasRemaining()) {
+                int length = Math.min(chunk.length, rows.remaining());
+                rows.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        // Records where the row starts, which is how much has been written
+        private void begin(int id) throws IOException {
+            if (out.size() > Integer.MAX_VALUE - (1 << 20)) {
+                throw new IOException("Too many books for a snapshot file");
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            ids[count] = id;
+            offsets[count] = out.size();
+            count++;
+        }
+
+        private void writeText(String text) throws IOException {
+            if (text == null) {
+                out.writeShort(NULL_TEXT);
+                return;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length >= NULL_TEXT) {
+                throw new IOException("Text too long for a snapshot file");
+            }
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        void finish(long seq) throws IOException {
+            int indexOffset = out.size();
+            for (int i = 0; i < count; i++) {
+                out.writeInt(ids[i]);
+                out.writeInt(offsets[i]);
+            }
+            out.close();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0).putLong(seq).putInt(indexOffset);
+            header.rewind();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (!finished) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
@@ -2,36 +2,9 @@
 CREATE DATABASE IF NOT EXISTS library_db;
 USE library_db;
 
--- Books table
-CREATE TABLE IF NOT EXISTS books (
-    book_id INT PRIMARY KEY AUTO_INCREMENT,
-    title VARCHAR(200) NOT NULL,
-    author VARCHAR(100) NOT NULL,
-    isbn VARCHAR(20) UNIQUE,
-    total_quantity INT DEFAULT 0,
-    available_quantity INT DEFAULT 0
-);
-
--- Users table
-CREATE TABLE IF NOT EXISTS users (
-    user_id INT PRIMARY KEY AUTO_INCREMENT,
-    name VARCHAR(100) NOT NULL,
-    email VARCHAR(100) UNIQUE,
-    phone VARCHAR(15)
-);
-
--- Borrowed books table
-CREATE TABLE IF NOT EXISTS borrowed_books (
-    borrow_id INT PRIMARY KEY AUTO_INCREMENT,
-    book_id INT,
-    user_id INT,
-    borrow_date DATE,
-    due_date DATE,
-    return_date DATE,
-    status VARCHAR(20) DEFAULT 'BORROWED',
-    FOREIGN KEY (book_id) REFERENCES books(book_id) ON DELETE CASCADE,
-    FOREIGN KEY (user_id) REFERENCES users(user_id) ON DELETE CASCADE
-);
+-- The tables are created and upgraded by the application's schema
+-- migrations (library_storage.java) when it starts. Start it once against
+-- this database, then run the rest of this script for sample data.
 
 -- Insert sample books
 INSERT INTO books (title, author, isbn, total_quantity, available_quantity) VALUES
@@ -41,6 +14,14 @@ INSERT INTO books (title, author, isbn, total_quantity, available_quantity) VALU
 ('Pride and Prejudice', 'Jane Austen', '978-0141439518', 3, 3),
 ('The Catcher in the Rye', 'J.D. Salinger', '978-0316769174', 2, 2);
 
+-- One shelved copy per unit of quantity, barcoded <book_id>-<n>
+INSERT INTO copies (book_id, barcode, status)
+SELECT b.book_id, CONCAT(b.book_id, '-', n.n), 'SHELVED'
+FROM books b
+JOIN (SELECT 1 AS n UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4 UNION ALL SELECT 5) n
+  ON n.n <= b.total_quantity
+WHERE NOT EXISTS (SELECT 1 FROM copies c WHERE c.book_id = b.book_id);
+
 -- Insert sample users
 INSERT INTO users (name, email, phone) VALUES
 ('John Doe', 'john.doe@email.com', '555-0101'),
@@ -0,0 +1,535 @@
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Where the catalog lives, picked by storage.backend: "mysql" (the default) is a
+// server reached over the network; "embedded" is an H2 database file opened
+// inside this process, for single-branch installs and test runs. Both speak the
+// same SQL (H2 runs in MySQL mode), so they share one repository and differ only
+// in connection defaults, table options and lock error codes.
+abstract class StorageBackend {
+    static StorageBackend fromConfig(LibraryConfig config) {
+        String name = config.get("storage.backend", "mysql").trim().toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "mysql":
+                return new MySqlBackend();
+            case "embedded":
+            case "h2":
+                return new EmbeddedBackend();
+            default:
+                throw new IllegalArgumentException("Unknown storage.backend: " + name);
+        }
+    }
+
+    abstract String name();
+
+    abstract String defaultUrl(LibraryConfig config);
+
+    // Appended to CREATE TABLE statements
+    abstract String tableOptions();
+
+    // Appended to CREATE TABLE for tables written once and read rarely
+    String archiveTableOptions() {
+        return tableOptions();
+    }
+
+    // Vendor codes for deadlock and lock wait timeout
+    abstract boolean isLockFailure(SQLException e);
+
+    // Has each table.column key drawn from a sequence of its own, where the
+    // database's identity columns are unsafe under concurrent inserts
+    void keysFromSequences(Connection conn, String... keys) throws SQLException {
+    }
+
+    // Fetch size that has the driver stream a forward-only result rather than
+    // read it whole; rows is how many to fetch at a time where that is honoured
+    abstract int streamingFetchSize(int rows);
+
+    // Starts a read-only transaction that sees every table as of one moment
+    abstract void beginSnapshot(Connection conn) throws SQLException;
+
+    // Adds rows of counters to table in one statement: each row's counters
+    // are added to those of the row with the same keys, which is inserted if
+    // it is not there yet. Parameters are each row's keys, then its counters.
+    // H2 takes this too. Its MERGE is cheaper, but a MERGE that finds no row
+    // fails when another transaction has just inserted it. An INSERT waits for
+    // that transaction and then adds to the row.
+    String addCountsSql(String table, List<String> keys, List<String> counters, int rows) {
+        List<String> columns = new ArrayList<>(keys);
+        columns.addAll(counters);
+        List<String> sums = new ArrayList<>();
+        for (String counter : counters) {
+            sums.add(counter + " = " + counter + " + VALUES(" + counter + ")");
+        }
+        return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES " +
+            valuesRows(columns.size(), rows) + " ON DUPLICATE KEY UPDATE " + String.join(", ", sums);
+    }
+
+    // How many rows, of the rows asked for, one addCountsSql statement takes
+    int addCountsRows(int rows) {
+        return rows;
+    }
+
+    static String valuesRows(int columns, int rows) {
+        String row = "(" + String.join(", ", Collections.nCopies(columns, "?")) + ")";
+        return String.join(", ", Collections.nCopies(rows, row));
+    }
+
+    String url(LibraryConfig config) {
+        return config.get("db.url", defaultUrl(config));
+    }
+
+    String user(LibraryConfig config) {
+        return config.get("db.user", "root");
+    }
+
+    String password(LibraryConfig config) {
+        return config.get("db.password", "password");
+    }
+}
+
+class MySqlBackend extends StorageBackend {
+    @Override
+    String name() {
+        return "mysql";
+    }
+
+    // rewriteBatchedStatements sends a batch of inserts as multi-row INSERTs,
+    // one round trip instead of one per row
+    @Override
+    String defaultUrl(LibraryConfig config) {
+        return "jdbc:mysql://localhost:3306/library_db?rewriteBatchedStatements=true";
+    }
+
+    // Transactions and foreign keys need InnoDB, whatever the server's default engine
+    @Override
+    String tableOptions() {
+        return " ENGINE=InnoDB";
+    }
+
+    // Compressed pages; needs innodb_file_per_table, the default since MySQL 5.6
+    @Override
+    String archiveTableOptions() {
+        return " ENGINE=InnoDB ROW_FORMAT=COMPRESSED";
+    }
+
+    @Override
+    boolean isLockFailure(SQLException e) {
+        return e.getErrorCode() == 1213 ||   // deadlock
+            e.getErrorCode() == 1205;        // lock wait timeout
+    }
+
+    // Connector/J buffers a whole result unless the fetch size is MIN_VALUE
+    // (or useCursorFetch is set), which streams it row by row
+    @Override
+    int streamingFetchSize(int rows) {
+        return Integer.MIN_VALUE;
+    }
+
+    // InnoDB's read view is taken here rather than at the first read
+    @Override
+    void beginSnapshot(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+        }
+    }
+}
+
+class EmbeddedBackend extends StorageBackend {
+    @Override
+    String name() {
+        return "embedded";
+    }
+
+    // storage.dataDir holds library.mv.db; LOCK_TIMEOUT matches a MySQL row lock wait
+    @Override
+    String defaultUrl(LibraryConfig config) {
+        String file = Paths.get(config.get("storage.dataDir", "data"), "library").toAbsolutePath().toString();
+        return "jdbc:h2:file:" + file + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;LOCK_TIMEOUT=10000";
+    }
+
+    @Override
+    String tableOptions() {
+        return "";
+    }
+
+    @Override
+    boolean isLockFailure(SQLException e) {
+        return e.getErrorCode() == 40001 ||   // deadlock
+            e.getErrorCode() == 50200;        // lock wait timeout
+    }
+
+    // In MySQL mode H2 moves an identity column's sequence up to each key
+    // inserted, unlocked: with two sessions inserting at once it can be set
+    // back below a key just handed out, and a later insert collides with that
+    // row. A plain sequence in the column's default is only ever moved forward.
+    // It starts where the identity left off, so no key is given out twice.
+    @Override
+    void keysFromSequences(Connection conn, String... keys) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement columnStmt = conn.prepareStatement(
+                 "SELECT is_identity, identity_base, column_default FROM information_schema.columns " +
+                 "WHERE table_name=? AND column_name=?")) {
+            for (String key : keys) {
+                String table = key.substring(0, key.indexOf('.'));
+                String column = key.substring(key.indexOf('.') + 1);
+                String sequence = table + "_" + column + "_seq";
+                columnStmt.setString(1, table);
+                columnStmt.setString(2, column);
+                long next = 1;
+                try (ResultSet rs = columnStmt.executeQuery()) {
+                    if (!rs.next() || String.valueOf(rs.getString(3)).contains(sequence)) {
+                        continue;   // moved over already
+                    }
+                    if ("YES".equals(rs.getString(1))) {
+                        next = rs.getLong(2);
+                        stmt.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " DROP IDENTITY");
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT MAX(" + column + ") FROM " + table)) {
+                    next = Math.max(next, rs.next() ? rs.getLong(1) + 1 : 1);
+                }
+                stmt.execute("CREATE SEQUENCE IF NOT EXISTS " + sequence + " START WITH " + next);
+                stmt.execute("ALTER TABLE " + table + " ALTER COLUMN " + column +
+                    " SET DEFAULT NEXT VALUE FOR " + sequence);
+            }
+        }
+    }
+
+    // Large results spill to a temporary file, so the fetch size is honoured as is
+    @Override
+    int streamingFetchSize(int rows) {
+        return rows;
+    }
+
+    // H2's REPEATABLE READ still sees rows committed to tables not read yet;
+    // SERIALIZABLE reads every table from the snapshot of its first statement
+    @Override
+    void beginSnapshot(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    }
+
+    // A statement that waited on a row another transaction changed is run
+    // again, and the rows it had already added before that one are added a
+    // second time, so each row goes in a statement of its own
+    @Override
+    int addCountsRows(int rows) {
+        return 1;
+    }
+
+    @Override
+    String user(LibraryConfig config) {
+        return config.get("db.user", "sa");
+    }
+
+    @Override
+    String password(LibraryConfig config) {
+        return config.get("db.password", "");
+    }
+}
+
+// One step of the schema. Steps run once per database, in version order, and
+// schema_version records which have been applied. Add new steps at the end;
+// never edit one that has shipped.
+class Migration {
+    // Data changes plain SQL cannot express on both backends; runs after the statements
+    interface Step {
+        void run(Connection conn) throws SQLException;
+    }
+
+    final int version;
+    final String description;
+    final List<String> statements;
+    final Step step;
+
+    Migration(int version, String description, String... statements) {
+        this(version, description, null, statements);
+    }
+
+    Migration(int version, String description, Step step, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.step = step;
+        this.statements = Arrays.asList(statements);
+    }
+
+    static List<Migration> all(StorageBackend backend) {
+        String options = backend.tableOptions();
+        List<Migration> migrations = new ArrayList<>();
+
+        // IF NOT EXISTS lets this adopt databases created before migrations existed
+        migrations.add(new Migration(1, "Books, users and borrowed books",
+            "CREATE TABLE IF NOT EXISTS books (" +
+                "book_id INT PRIMARY KEY AUTO_INCREMENT," +
+                "title VARCHAR(200) NOT NULL," +
+                "author VARCHAR(100) NOT NULL," +
+                "isbn VARCHAR(20) UNIQUE," +
+                "total_quantity INT DEFAULT 0," +
+                "available_quantity INT DEFAULT 0)" + options,
+            "CREATE TABLE IF NOT EXISTS users (" +
+                "user_id INT PRIMARY KEY AUTO_INCREMENT," +
+                "name VARCHAR(100) NOT NULL," +
+                "email VARCHAR(100) UNIQUE," +
+                "phone VARCHAR(15))" + options,
+            "CREATE TABLE IF NOT EXISTS borrowed_books (" +
+                "borrow_id INT PRIMARY KEY AUTO_INCREMENT," +
+                "book_id INT," +
+                "user_id INT," +
+                "borrow_date DATE," +
+                "due_date DATE," +
+                "return_date DATE," +
+                "status VARCHAR(20) DEFAULT 'BORROWED'," +
+                "FOREIGN KEY (book_id) REFERENCES books(book_id)," +
+                "FOREIGN KEY (user_id) REFERENCES users(user_id))" + options));
+
+        migrations.add(new Migration(2, "Change log tailed by other clients",
+            "CREATE TABLE IF NOT EXISTS change_log (" +
+                "seq BIGINT PRIMARY KEY AUTO_INCREMENT," +
+                "table_name VARCHAR(10) NOT NULL," +
+                "change_kind VARCHAR(10) NOT NULL," +
+                "row_id INT NOT NULL," +
+                "origin VARCHAR(36) NOT NULL," +
+                "changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)" + options));
+
+        // Active loans stay a small slice of borrowed_books as history grows, so
+        // both hot queries reach them through an index instead of a table scan.
+        // Secondary indexes carry the primary key, which gives each the
+        // borrow_id order it sorts by.
+        migrations.add(new Migration(3, "Indexes for open-loan lookups",
+            // Return: WHERE book_id=? AND user_id=? AND status='BORROWED' ORDER BY borrow_id
+            "CREATE INDEX idx_borrowed_book_user_status ON borrowed_books (book_id, user_id, status)",
+            // Borrowed Books tab: WHERE status='BORROWED' AND borrow_id > ? ORDER BY borrow_id
+            "CREATE INDEX idx_borrowed_status ON borrowed_books (status, borrow_id)"));
+
+        // Outbox of reminders and fines for a mailer to send and stamp sent_at.
+        // Every client schedules notices; the unique key keeps one of each kind per loan.
+        migrations.add(new Migration(4, "Loan notices outbox",
+            "CREATE TABLE IF NOT EXISTS loan_notices (" +
+                "notice_id BIGINT PRIMARY KEY AUTO_INCREMENT," +
+                "borrow_id INT NOT NULL," +
+                "user_id INT NOT NULL," +
+                "kind VARCHAR(10) NOT NULL," +
+                "due_date DATE NOT NULL," +
+                "fine_cents INT DEFAULT 0 NOT NULL," +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "sent_at TIMESTAMP NULL," +
+                "UNIQUE (borrow_id, kind))" + options,
+            // Mailer: WHERE sent_at IS NULL ORDER BY notice_id
+            "CREATE INDEX idx_notices_unsent ON loan_notices (sent_at, notice_id)"));
+
+        // A queue per book, in hold_id order. A READY hold has a returned copy
+        // set aside for it until ready_until; that copy is not in available_quantity.
+        migrations.add(new Migration(5, "Hold queues",
+            "CREATE TABLE IF NOT EXISTS holds (" +
+                "hold_id INT PRIMARY KEY AUTO_INCREMENT," +
+                "book_id INT NOT NULL," +
+                "user_id INT NOT NULL," +
+                "status VARCHAR(10) DEFAULT 'WAITING' NOT NULL," +
+                "placed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "ready_until DATE NULL," +
+                "FOREIGN KEY (book_id) REFERENCES books(book_id)," +
+                "FOREIGN KEY (user_id) REFERENCES users(user_id))" + options,
+            // Return: WHERE book_id=? AND status='WAITING' ORDER BY hold_id
+            "CREATE INDEX idx_holds_book_status ON holds (book_id, status, hold_id)",
+            // Startup load and pickup expiry: WHERE status IN (...) AND hold_id > ?
+            "CREATE INDEX idx_holds_status ON holds (status, hold_id)"));
+
+        // One row per barcoded copy. books.total_quantity and available_quantity
+        // stay as counts of these, kept in step in the transaction that moves a
+        // copy, so listing books never has to count copies.
+        migrations.add(new Migration(6, "Copies",
+            "CREATE TABLE IF NOT EXISTS copies (" +
+                "copy_id INT PRIMARY KEY AUTO_INCREMENT," +
+                "book_id INT NOT NULL," +
+                "barcode VARCHAR(32) NOT NULL UNIQUE," +
+                "status VARCHAR(10) DEFAULT 'SHELVED' NOT NULL," +
+                "location VARCHAR(50)," +
+                "FOREIGN KEY (book_id) REFERENCES books(book_id))" + options,
+            // Checkout: WHERE book_id=? AND status='SHELVED' ORDER BY copy_id
+            "CREATE INDEX idx_copies_book_status ON copies (book_id, status, copy_id)"));
+
+        migrations.add(new Migration(7, "Copy lent by each loan",
+            "ALTER TABLE borrowed_books ADD COLUMN copy_id INT NULL",
+            // Return by barcode: WHERE copy_id=? AND status='BORROWED'
+            "CREATE INDEX idx_borrowed_copy_status ON borrowed_books (copy_id, status)"));
+
+        migrations.add(new Migration(8, "Copy set aside for each ready hold",
+            "ALTER TABLE holds ADD COLUMN copy_id INT NULL"));
+
+        migrations.add(new Migration(9, "Copies for existing books", CopyBackfill::run));
+
+        // Returned loans moved out of borrowed_books by LoanArchiver, so the
+        // live table is open loans and recent history. No foreign keys: the
+        // history stays when a book or user is later deleted.
+        migrations.add(new Migration(10, "Loan archive",
+            "CREATE TABLE IF NOT EXISTS loan_archive (" +
+                "borrow_id INT PRIMARY KEY," +
+                "book_id INT," +
+                "copy_id INT NULL," +
+                "user_id INT," +
+                "borrow_date DATE," +
+                "due_date DATE," +
+                "return_date DATE," +
+                "status VARCHAR(20)," +
+                "archived_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)" + backend.archiveTableOptions(),
+            // History: WHERE user_id=? (or book_id=?) AND borrow_id < ? ORDER BY borrow_id DESC
+            "CREATE INDEX idx_archive_user ON loan_archive (user_id, borrow_id)",
+            "CREATE INDEX idx_archive_book ON loan_archive (book_id, borrow_id)"));
+
+        // Circulation counters added to by every checkout and return (see
+        // LoanCounts): subject B(ook), U(ser) or L(ibrary slot), period D(ay),
+        // W(eek) or M(onth). Filled from the loan history once here.
+        migrations.add(new Migration(11, "Circulation counts", conn -> CirculationBackfill.migrate(conn, backend),
+            "CREATE TABLE IF NOT EXISTS loan_counts (" +
+                "subject CHAR(1) NOT NULL," +
+                "period CHAR(1) NOT NULL," +
+                "period_start DATE NOT NULL," +
+                "subject_id INT NOT NULL," +
+                "checkouts INT DEFAULT 0 NOT NULL," +
+                "returns INT DEFAULT 0 NOT NULL," +
+                "late_returns INT DEFAULT 0 NOT NULL," +
+                "PRIMARY KEY (subject, period, period_start, subject_id))" + options,
+            // Reports: WHERE subject=? AND period=? AND period_start=? ORDER BY checkouts DESC LIMIT ?
+            "CREATE INDEX idx_loan_counts_rank ON loan_counts (subject, period, period_start, checkouts DESC)"));
+
+        // One row per checkout or return replayed from a desk's LoanJournal,
+        // written with it: op_key is the desk's idempotency key, and outcome
+        // the LoanResult status, REJECTED (with the error as detail) when a
+        // constraint turned it down, or SETTLED once staff have resolved it
+        migrations.add(new Migration(12, "Desk journal",
+            "CREATE TABLE IF NOT EXISTS desk_journal (" +
+                "op_key VARCHAR(64) PRIMARY KEY," +
+                "kind VARCHAR(16) NOT NULL," +
+                "book_id INT NOT NULL," +
+                "user_id INT NOT NULL," +
+                "barcode VARCHAR(32) NULL," +
+                "occurred_at TIMESTAMP NOT NULL," +
+                "outcome VARCHAR(16) NOT NULL," +
+                "detail VARCHAR(255) NULL," +
+                "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)" + options,
+            // Conflicts: WHERE outcome IN (...) ORDER BY occurred_at DESC
+            "CREATE INDEX idx_desk_journal_outcome ON desk_journal (outcome, occurred_at)"));
+
+        // Generated keys by sequence where the backend needs it (see
+        // EmbeddedBackend.keysFromSequences); nothing to do on MySQL
+        migrations.add(new Migration(13, "Key sequences", conn -> backend.keysFromSequences(conn,
+            "books.book_id", "users.user_id", "borrowed_books.borrow_id", "change_log.seq",
+            "loan_notices.notice_id", "holds.hold_id", "copies.copy_id")));
+
+        return Collections.unmodifiableList(migrations);
+    }
+}
+
+// Brings a database up to the newest Migration. Each step and its
+// schema_version row commit together where the database allows it (MySQL
+// commits DDL as it goes, so steps are kept small). Two clients starting at
+// once may race; the loser sees the step already recorded and moves on.
+// Because of that, a CREATE INDEX or ALTER TABLE ... ADD COLUMN is skipped
+// when the index or column is already there, so a step that failed partway
+// can run again.
+class SchemaMigrator {
+    private static final Pattern CREATE_INDEX =
+        Pattern.compile("CREATE INDEX (\\w+) ON (\\w+) .*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ADD_COLUMN =
+        Pattern.compile("ALTER TABLE (\\w+) ADD COLUMN (\\w+) .*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final StorageBackend backend;
+
+    SchemaMigrator(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    // Returns the schema version the database is at afterwards
+    int migrate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                "version INT PRIMARY KEY," +
+                "description VARCHAR(200) NOT NULL," +
+                "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)" + backend.tableOptions());
+        }
+        int current = currentVersion(conn);
+        for (Migration migration : Migration.all(backend)) {
+            if (migration.version <= current) {
+                continue;
+            }
+            try {
+                apply(conn, migration);
+            } catch (SQLException e) {
+                if (currentVersion(conn) < migration.version) {
+                    throw new SQLException("Schema migration " + migration.version + " (" +
+                        migration.description + ") failed: " + e.getMessage(), e);
+                }
+            }
+            current = migration.version;
+        }
+        return current;
+    }
+
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement record = conn.prepareStatement(
+                 "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+            for (String sql : migration.statements) {
+                if (!alreadyDone(conn, sql)) {
+                    stmt.execute(sql);
+                }
+            }
+            if (migration.step != null) {
+                migration.step.run(conn);
+            }
+            record.setInt(1, migration.version);
+            record.setString(2, migration.description);
+            record.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // Whether sql creates an index or adds a column the table already has
+    private static boolean alreadyDone(Connection conn, String sql) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        Matcher m = CREATE_INDEX.matcher(sql);
+        if (m.matches()) {
+            try (ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, m.group(2), false, true)) {
+                return contains(rs, "INDEX_NAME", m.group(1));
+            }
+        }
+        m = ADD_COLUMN.matcher(sql);
+        if (m.matches()) {
+            try (ResultSet rs = meta.getColumns(conn.getCatalog(), null, m.group(1), null)) {
+                return contains(rs, "COLUMN_NAME", m.group(2));
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(ResultSet rs, String column, String name) throws SQLException {
+        while (rs.next()) {
+            if (name.equalsIgnoreCase(rs.getString(column))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
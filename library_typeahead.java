@@ -0,0 +1,47 @@
+import javax.swing.JTextField;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+// Runs a search once typing in a field pauses for the debounce window.
+class LiveSearch {
+    private final Timer timer;
+    private long lastKeystroke;
+
+    LiveSearch(JTextField field, int debounceMillis, Runnable search) {
+        timer = new Timer(debounceMillis, e -> search.run());
+        timer.setRepeats(false);
+        onEdit(field, this::typed);
+    }
+
+    // Runs edited straight after every change to the field's text, with no
+    // debounce, for lookups answered from memory
+    static void onEdit(JTextField field, Runnable edited) {
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                edited.run();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                edited.run();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+    }
+
+    private void typed() {
+        lastKeystroke = System.nanoTime();
+        timer.restart();
+    }
+
+    // System.nanoTime() of the keystroke that started the pending search
+    long lastKeystroke() {
+        return lastKeystroke;
+    }
+
+    void cancelPending() {
+        timer.stop();
+    }
+}